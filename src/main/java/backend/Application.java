@@ -4,13 +4,19 @@ import backend.config.OpenAiProperties;
 import backend.config.RagProperties;
 import backend.rag.*;
 import backend.service.RAGQueryService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
 import jakarta.annotation.PostConstruct;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 @SpringBootApplication(exclude = {DataSourceAutoConfiguration.class})
 @EnableConfigurationProperties({
         RagProperties.class,
@@ -32,15 +38,167 @@ public class Application {
         System.out.println("📁 Data will be saved in: ./data/");
     }
 
+    @Bean(destroyMethod = "shutdown")
+    public ParallelScanner parallelScanner(RagProperties ragProperties) {
+        return new ParallelScanner(ragProperties.getScanThreads(),
+                ragProperties.getParallelScanThreshold(),
+                ragProperties.getScanPartitionSize());
+    }
+
     @Bean
-    public VectorStore vectorStore() {
-        return new PersistentVectorStore("C:/rag-data");
+    public VectorStore vectorStore(RagProperties ragProperties, ParallelScanner parallelScanner,
+                                   @Value("${openai.embedding.model:text-embedding-3-small}") String embeddingModel) {
+        String basePath = ragProperties.getStoragePath();
+
+        SimilarityKernel kernel = SimilarityKernels.select(ragProperties.getSimilarityKernel());
+        VectorMath.useKernel(kernel);
+        System.out.println("🧮 Similarity kernel: " + kernel.name());
+
+        WriteAheadLog.Policy logPolicy = new WriteAheadLog.Policy(
+                WriteAheadLog.SyncPolicy.parse(ragProperties.getWalSync()),
+                ragProperties.getWalSyncIntervalMs(),
+                ragProperties.getWalCheckpointRecords());
+
+        if ("hnsw".equalsIgnoreCase(ragProperties.getIndexType())) {
+            System.out.println("🕸️ Using HNSW vector index (M=" + ragProperties.getHnswM() +
+                    ", efConstruction=" + ragProperties.getHnswEfConstruction() +
+                    ", efSearch=" + ragProperties.getHnswEfSearch() + ")");
+            return new HnswVectorStore(basePath,
+                    ragProperties.getHnswM(),
+                    ragProperties.getHnswEfConstruction(),
+                    ragProperties.getHnswEfSearch(),
+                    logPolicy);
+        }
+
+        if ("ivfpq".equalsIgnoreCase(ragProperties.getIndexType())) {
+            System.out.println("🗜️ Using IVF-PQ vector index (nlist=" + ragProperties.getIvfNlist() +
+                    ", nprobe=" + ragProperties.getIvfNprobe() +
+                    ", subspaces=" + ragProperties.getPqSubspaces() +
+                    ", rerank=" + ragProperties.getPqRerank() + ")");
+            return new IvfPqVectorStore(basePath,
+                    ragProperties.getIvfNlist(),
+                    ragProperties.getIvfNprobe(),
+                    ragProperties.getPqSubspaces(),
+                    ragProperties.getPqRerank(),
+                    ragProperties.getIvfTrainingSize(),
+                    logPolicy);
+        }
+
+        System.out.println("🧵 Parallel scan: " + parallelScanner.getParallelism() +
+                " threads above " + parallelScanner.getThreshold() + " chunks");
+
+        ContentBlobStore.Policy contentPolicy = ContentBlobStore.Policy.parse(ragProperties.getContentStorage(),
+                ragProperties.getContentBlockKb(), ragProperties.getContentCacheBlocks());
+
+        boolean float16 = parseEmbeddingStorage(ragProperties.getEmbeddingStorage());
+        OffHeapArena arena = embeddingArena(ragProperties);
+        int prefixDimensions = prefixDimensions(ragProperties, embeddingModel);
+
+        if ("segmented".equalsIgnoreCase(ragProperties.getIndexType())) {
+            System.out.println("🧱 Using segmented vector store (memtable=" + ragProperties.getMemtableRows() +
+                    ", maxSegments=" + ragProperties.getMaxSegments() + ")");
+            return new SegmentedVectorStore(basePath,
+                    ragProperties.getMemtableRows(),
+                    ragProperties.getMaxSegments(),
+                    ragProperties.getCompactionDeletedRatio(),
+                    parallelScanner,
+                    logPolicy);
+        }
+
+        if ("partitioned".equalsIgnoreCase(ragProperties.getIndexType())) {
+            System.out.println("🗂️ Using per-module vector partitions (budget=" + ragProperties.getPartitionMemoryMb() +
+                    " MB, idle unload after " + ragProperties.getPartitionIdleMinutes() + " min, max loaded=" +
+                    ragProperties.getMaxLoadedPartitions() + ")");
+            return new ModulePartitionedVectorStore(basePath,
+                    ragProperties.getBinaryShortlist(),
+                    parallelScanner,
+                    logPolicy,
+                    ragProperties.getFilterFirstSelectivity(),
+                    ragProperties.getPartitionMemoryMb() * 1024 * 1024,
+                    ragProperties.getPartitionIdleMinutes() * 60_000,
+                    ragProperties.getMaxLoadedPartitions(),
+                    contentPolicy,
+                    float16,
+                    prefixDimensions,
+                    ragProperties.getPrefixShortlist(),
+                    arena);
+        }
+
+        System.out.println("🔢 Embedding storage: " + (float16 ? "float16" : "float32"));
+        System.out.println("📚 Chunk text storage: " + (contentPolicy.isEnabled()
+                ? "compressed blob, " + ragProperties.getContentBlockKb() + " KB blocks" : "heap"));
+        return new PersistentVectorStore(basePath, ragProperties.getBinaryShortlist(), parallelScanner, logPolicy,
+                ragProperties.getFilterFirstSelectivity(), contentPolicy, float16,
+                prefixDimensions, ragProperties.getPrefixShortlist(), arena);
+    }
+
+    // Truncated embeddings only rank like full ones for models trained with Matryoshka losses
+    private static int prefixDimensions(RagProperties ragProperties, String embeddingModel) {
+        int dimensions = ragProperties.getPrefixDimensions();
+        if (dimensions <= 0) {
+            return 0;
+        }
+        if (!embeddingModel.startsWith("text-embedding-3")) {
+            System.out.println("⚠️ Prefix prefilter disabled: " + embeddingModel + " embeddings cannot be truncated");
+            return 0;
+        }
+        System.out.println("✂️ Prefix prefilter: " + dimensions + " dimensions, rerank " +
+                ragProperties.getPrefixShortlist() + " chunks");
+        return dimensions;
+    }
+
+    private static boolean parseEmbeddingStorage(String storage) {
+        if ("float16".equalsIgnoreCase(storage)) {
+            return true;
+        }
+        if (storage == null || "float32".equalsIgnoreCase(storage)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Unknown embedding storage: " + storage + " (expected float32 or float16)");
+    }
+
+    private static OffHeapArena embeddingArena(RagProperties ragProperties) {
+        String memory = ragProperties.getEmbeddingMemory();
+        if (memory == null || "heap".equalsIgnoreCase(memory)) {
+            return null;
+        }
+        if (!"offheap".equalsIgnoreCase(memory)) {
+            throw new IllegalArgumentException("Unknown embedding memory: " + memory + " (expected heap or offheap)");
+        }
+        System.out.println("🧊 Embeddings off-heap, up to " + ragProperties.getOffheapMaxMb() + " MB");
+        return new OffHeapArena(ragProperties.getOffheapMaxMb() * 1024 * 1024);
     }
 
+    @Bean
+    public LexicalIndex lexicalIndex(RagProperties ragProperties, VectorStore vectorStore) {
+        // built from the store by the first hybrid search; never built while retrieval is vector-only
+        return new LexicalIndex(ragProperties.getBm25K1(), ragProperties.getBm25B(), vectorStore);
+    }
 
     @Bean
-    public EmbeddingService embeddingService() {
-        return new OpenAiEmbeddingService();
+    @Primary
+    public EmbeddingService embeddingService(OpenAiEmbeddingService openAiEmbeddingService, RagProperties ragProperties,
+                                             @Value("${openai.embedding.model:text-embedding-3-small}") String embeddingModel) {
+        if (!ragProperties.isEmbeddingCache()) {
+            return openAiEmbeddingService;
+        }
+        long diskMaxBytes = ragProperties.getEmbeddingCacheDiskMb() * 1024L * 1024L;
+        Path cacheFile = diskMaxBytes > 0
+                ? Paths.get(ragProperties.getStoragePath(), "embedding-cache", "embeddings.bin") : null;
+        try {
+            System.out.println("🗃️ Embedding cache: " + ragProperties.getEmbeddingCacheEntries() + " in memory" +
+                    (cacheFile != null ? ", up to " + ragProperties.getEmbeddingCacheDiskMb() + " MB on disk" : ""));
+            return CachingEmbeddingService.open(openAiEmbeddingService, embeddingModel,
+                    ragProperties.getEmbeddingCacheEntries(), cacheFile, diskMaxBytes);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("⚠️ Embedding cache file unusable, caching in memory only: " + e.getMessage());
+            try {
+                return CachingEmbeddingService.open(openAiEmbeddingService, embeddingModel,
+                        ragProperties.getEmbeddingCacheEntries(), null, 0);
+            } catch (IOException impossible) {
+                throw new IllegalStateException(impossible);
+            }
+        }
     }
 
 }
\ No newline at end of file
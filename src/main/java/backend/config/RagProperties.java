@@ -11,6 +11,95 @@ public class RagProperties {
     private int topK = 10;
     private float similarityThreshold = 0.7f;
 
+    // Similarity kernel: "auto" (Vector API when available), "simd" or "scalar"
+    private String similarityKernel = "auto";
+
+    // Vector index: "flat" scans every chunk, "hnsw" uses the approximate graph index,
+    // "ivfpq" keeps product-quantized codes instead of full vectors,
+    // "segmented" keeps immutable segments with tombstone deletes and background compaction
+    private String indexType = "flat";
+    private String storagePath = "C:/rag-data";
+    private int hnswM = 16;
+    private int hnswEfConstruction = 200;
+    private int hnswEfSearch = 64;
+    private int ivfNlist = 64;
+    private int ivfNprobe = 8;
+    private int ivfTrainingSize = 2048;
+    private int pqSubspaces = 96;
+    private int pqRerank = 100;
+
+    // Flat index: shortlist size for the sign-bit Hamming prefilter (0 = exact scan only)
+    private int binaryShortlist = 0;
+
+    // Flat scans: split across a dedicated fork/join pool once the corpus reaches the threshold
+    private int scanThreads = Runtime.getRuntime().availableProcessors();
+    private int parallelScanThreshold = 20000;
+    private int scanPartitionSize = 4096;
+
+    // Write-ahead log of the flat store: fsync "always", "interval" or "none",
+    // folded into the segment file every walCheckpointRecords adds
+    private String walSync = "interval";
+    private long walSyncIntervalMs = 1000;
+    private int walCheckpointRecords = 1000;
+
+    // Segmented index: memtable size before sealing, segment count that triggers a merge and
+    // fraction of deleted rows that gets a segment rewritten
+    private int memtableRows = 1000;
+    private int maxSegments = 8;
+    private double compactionDeletedRatio = 0.3;
+
+    // Flat index metadata filters: score only the matching chunks when at most this share matches,
+    // otherwise scan everything and skip non-matching rows
+    private double filterFirstSelectivity = 0.1;
+
+    // Partitioned index: one flat store per module, each capped at partitionMemoryMb of estimated heap,
+    // unloaded after partitionIdleMinutes without use or when more than maxLoadedPartitions are open
+    private long partitionMemoryMb = 256;
+    private long partitionIdleMinutes = 30;
+    private int maxLoadedPartitions = 32;
+
+    // Retrieval: "hybrid" fuses BM25 over a code-aware lexical index with vector search (RRF, rrfK),
+    // "vector" uses the embeddings only; identifier lookups such as "cout" skip the embedding when
+    // lexicalFastPath is on. Both stay off until hybrid retrieval has been evaluated on real questions
+    private String retrieval = "vector";
+    private int rrfK = 60;
+    private double bm25K1 = 1.2;
+    private double bm25B = 0.75;
+    private int lexicalCandidates = 20;
+    private boolean lexicalFastPath = false;
+
+    // Flat and partitioned indexes: "blob" keeps chunk text in a block-compressed file read only for
+    // the top-K results (through an LRU of contentCacheBlocks decoded blocks), "heap" keeps it in memory
+    private String contentStorage = "blob";
+    private int contentBlockKb = 64;
+    private int contentCacheBlocks = 32;
+
+    // Flat and partitioned indexes: "float32" or "float16" (half the memory and segment size)
+    private String embeddingStorage = "float32";
+
+    // Flat and partitioned indexes: "heap" keeps each chunk's embedding in its own array, "offheap" in
+    // direct buffers capped at offheapMaxMb (shared by all partitions), which the GC never scans
+    private String embeddingMemory = "heap";
+    private long offheapMaxMb = 1024;
+
+    // Flat and partitioned indexes: opt-in two-stage scan scoring the first prefixDimensions components
+    // of every chunk and reranking the best prefixShortlist at full dimension. It is approximate, so the
+    // default 0 keeps the exact scan. Only used with Matryoshka-trained models (text-embedding-3-*),
+    // whose prefixes are embeddings too
+    private int prefixDimensions = 0;
+    private int prefixShortlist = 200;
+
+    // Embeddings cached by (model, text) in an LRU of embeddingCacheEntries vectors and an append-only
+    // file under storagePath/embedding-cache that survives restarts (0 MB = memory only)
+    private boolean embeddingCache = true;
+    private int embeddingCacheEntries = 4096;
+    private int embeddingCacheDiskMb = 512;
+
+    // Question embeddings reused for queryCacheTtlSeconds when a question is asked again (compared
+    // ignoring case, whitespace and punctuation); 0 entries or 0 seconds disables the cache
+    private int queryCacheEntries = 1000;
+    private int queryCacheTtlSeconds = 600;
+
     // Getters and setters
     public int getChunkSize() { return chunkSize; }
     public void setChunkSize(int chunkSize) { this.chunkSize = chunkSize; }
@@ -25,4 +114,136 @@ public class RagProperties {
     public void setSimilarityThreshold(float similarityThreshold) {
         this.similarityThreshold = similarityThreshold;
     }
-}
\ No newline at end of file
+
+    public String getSimilarityKernel() { return similarityKernel; }
+    public void setSimilarityKernel(String similarityKernel) { this.similarityKernel = similarityKernel; }
+
+    public String getIndexType() { return indexType; }
+    public void setIndexType(String indexType) { this.indexType = indexType; }
+
+    public String getStoragePath() { return storagePath; }
+    public void setStoragePath(String storagePath) { this.storagePath = storagePath; }
+
+    public int getHnswM() { return hnswM; }
+    public void setHnswM(int hnswM) { this.hnswM = hnswM; }
+
+    public int getHnswEfConstruction() { return hnswEfConstruction; }
+    public void setHnswEfConstruction(int hnswEfConstruction) { this.hnswEfConstruction = hnswEfConstruction; }
+
+    public int getHnswEfSearch() { return hnswEfSearch; }
+    public void setHnswEfSearch(int hnswEfSearch) { this.hnswEfSearch = hnswEfSearch; }
+
+    public int getIvfNlist() { return ivfNlist; }
+    public void setIvfNlist(int ivfNlist) { this.ivfNlist = ivfNlist; }
+
+    public int getIvfNprobe() { return ivfNprobe; }
+    public void setIvfNprobe(int ivfNprobe) { this.ivfNprobe = ivfNprobe; }
+
+    public int getIvfTrainingSize() { return ivfTrainingSize; }
+    public void setIvfTrainingSize(int ivfTrainingSize) { this.ivfTrainingSize = ivfTrainingSize; }
+
+    public int getPqSubspaces() { return pqSubspaces; }
+    public void setPqSubspaces(int pqSubspaces) { this.pqSubspaces = pqSubspaces; }
+
+    public int getPqRerank() { return pqRerank; }
+    public void setPqRerank(int pqRerank) { this.pqRerank = pqRerank; }
+
+    public int getBinaryShortlist() { return binaryShortlist; }
+    public void setBinaryShortlist(int binaryShortlist) { this.binaryShortlist = binaryShortlist; }
+
+    public int getScanThreads() { return scanThreads; }
+    public void setScanThreads(int scanThreads) { this.scanThreads = scanThreads; }
+
+    public int getParallelScanThreshold() { return parallelScanThreshold; }
+    public void setParallelScanThreshold(int parallelScanThreshold) { this.parallelScanThreshold = parallelScanThreshold; }
+
+    public int getScanPartitionSize() { return scanPartitionSize; }
+    public void setScanPartitionSize(int scanPartitionSize) { this.scanPartitionSize = scanPartitionSize; }
+
+    public String getWalSync() { return walSync; }
+    public void setWalSync(String walSync) { this.walSync = walSync; }
+
+    public long getWalSyncIntervalMs() { return walSyncIntervalMs; }
+    public void setWalSyncIntervalMs(long walSyncIntervalMs) { this.walSyncIntervalMs = walSyncIntervalMs; }
+
+    public int getWalCheckpointRecords() { return walCheckpointRecords; }
+    public void setWalCheckpointRecords(int walCheckpointRecords) { this.walCheckpointRecords = walCheckpointRecords; }
+
+    public int getMemtableRows() { return memtableRows; }
+    public void setMemtableRows(int memtableRows) { this.memtableRows = memtableRows; }
+
+    public int getMaxSegments() { return maxSegments; }
+    public void setMaxSegments(int maxSegments) { this.maxSegments = maxSegments; }
+
+    public double getCompactionDeletedRatio() { return compactionDeletedRatio; }
+    public void setCompactionDeletedRatio(double compactionDeletedRatio) { this.compactionDeletedRatio = compactionDeletedRatio; }
+
+    public double getFilterFirstSelectivity() { return filterFirstSelectivity; }
+    public void setFilterFirstSelectivity(double filterFirstSelectivity) { this.filterFirstSelectivity = filterFirstSelectivity; }
+
+    public long getPartitionMemoryMb() { return partitionMemoryMb; }
+    public void setPartitionMemoryMb(long partitionMemoryMb) { this.partitionMemoryMb = partitionMemoryMb; }
+
+    public long getPartitionIdleMinutes() { return partitionIdleMinutes; }
+    public void setPartitionIdleMinutes(long partitionIdleMinutes) { this.partitionIdleMinutes = partitionIdleMinutes; }
+
+    public int getMaxLoadedPartitions() { return maxLoadedPartitions; }
+    public void setMaxLoadedPartitions(int maxLoadedPartitions) { this.maxLoadedPartitions = maxLoadedPartitions; }
+
+    public String getRetrieval() { return retrieval; }
+    public void setRetrieval(String retrieval) { this.retrieval = retrieval; }
+
+    public int getRrfK() { return rrfK; }
+    public void setRrfK(int rrfK) { this.rrfK = rrfK; }
+
+    public double getBm25K1() { return bm25K1; }
+    public void setBm25K1(double bm25K1) { this.bm25K1 = bm25K1; }
+
+    public double getBm25B() { return bm25B; }
+    public void setBm25B(double bm25B) { this.bm25B = bm25B; }
+
+    public int getLexicalCandidates() { return lexicalCandidates; }
+    public void setLexicalCandidates(int lexicalCandidates) { this.lexicalCandidates = lexicalCandidates; }
+
+    public boolean isLexicalFastPath() { return lexicalFastPath; }
+    public void setLexicalFastPath(boolean lexicalFastPath) { this.lexicalFastPath = lexicalFastPath; }
+
+    public String getContentStorage() { return contentStorage; }
+    public void setContentStorage(String contentStorage) { this.contentStorage = contentStorage; }
+
+    public int getContentBlockKb() { return contentBlockKb; }
+    public void setContentBlockKb(int contentBlockKb) { this.contentBlockKb = contentBlockKb; }
+
+    public int getContentCacheBlocks() { return contentCacheBlocks; }
+    public void setContentCacheBlocks(int contentCacheBlocks) { this.contentCacheBlocks = contentCacheBlocks; }
+
+    public String getEmbeddingStorage() { return embeddingStorage; }
+    public void setEmbeddingStorage(String embeddingStorage) { this.embeddingStorage = embeddingStorage; }
+
+    public String getEmbeddingMemory() { return embeddingMemory; }
+    public void setEmbeddingMemory(String embeddingMemory) { this.embeddingMemory = embeddingMemory; }
+
+    public long getOffheapMaxMb() { return offheapMaxMb; }
+    public void setOffheapMaxMb(long offheapMaxMb) { this.offheapMaxMb = offheapMaxMb; }
+
+    public int getPrefixDimensions() { return prefixDimensions; }
+    public void setPrefixDimensions(int prefixDimensions) { this.prefixDimensions = prefixDimensions; }
+
+    public int getPrefixShortlist() { return prefixShortlist; }
+    public void setPrefixShortlist(int prefixShortlist) { this.prefixShortlist = prefixShortlist; }
+
+    public boolean isEmbeddingCache() { return embeddingCache; }
+    public void setEmbeddingCache(boolean embeddingCache) { this.embeddingCache = embeddingCache; }
+
+    public int getEmbeddingCacheEntries() { return embeddingCacheEntries; }
+    public void setEmbeddingCacheEntries(int embeddingCacheEntries) { this.embeddingCacheEntries = embeddingCacheEntries; }
+
+    public int getEmbeddingCacheDiskMb() { return embeddingCacheDiskMb; }
+    public void setEmbeddingCacheDiskMb(int embeddingCacheDiskMb) { this.embeddingCacheDiskMb = embeddingCacheDiskMb; }
+
+    public int getQueryCacheEntries() { return queryCacheEntries; }
+    public void setQueryCacheEntries(int queryCacheEntries) { this.queryCacheEntries = queryCacheEntries; }
+
+    public int getQueryCacheTtlSeconds() { return queryCacheTtlSeconds; }
+    public void setQueryCacheTtlSeconds(int queryCacheTtlSeconds) { this.queryCacheTtlSeconds = queryCacheTtlSeconds; }
+}
@@ -1,5 +1,6 @@
 package backend.controller;
 
+import backend.rag.MetadataFilter;
 import backend.rag.SearchResult;
 import backend.service.RAGQueryService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -28,6 +29,12 @@ public class ChatController {
         return "✅ Chat endpoint is healthy at " + new Date();
     }
 
+    /** Question embedding cache statistics **/
+    @GetMapping("/query-cache")
+    public Map<String, Object> queryCacheStats() {
+        return ragService.getQueryCacheStats();
+    }
+
     /** Ask a new question **/
     @PostMapping("/ask")
     public Map<String, Object> askQuestion(@RequestBody Map<String, String> request) {
@@ -36,6 +43,15 @@ public class ChatController {
             return Map.of("error", true, "message", "Question is empty");
         }
 
+        // optional "module" (e.g. "Module 1") and "filter" expression (e.g. page >= 3) restrict the chunks searched;
+        // a module also keeps the chunks that belong to no module (uploads without one, older data)
+        MetadataFilter filter;
+        try {
+            filter = buildFilter(request.get("module"), request.get("filter"));
+        } catch (IllegalArgumentException e) {
+            return Map.of("error", true, "message", "Invalid filter: " + e.getMessage());
+        }
+
         String input = rawInput.trim();
         boolean isQuiz = false;
         String format = "plain";
@@ -55,7 +71,7 @@ public class ChatController {
         try {
             if (isQuiz) {
                 // Generate quiz
-                List<String> questions = ragService.generateQuiz(topic, format, 5);
+                List<String> questions = ragService.generateQuiz(topic, format, 5, filter);
 
                 // Save quiz to chat history
                 List<String> conversation = new ArrayList<>();
@@ -72,7 +88,7 @@ public class ChatController {
 
             } else {
                 // Normal RAG question
-                List<SearchResult> relevantDocs = ragService.searchDocuments(input);
+                List<SearchResult> relevantDocs = ragService.searchDocuments(input, filter);
                 String answer = ragService.generateAnswer(input, relevantDocs);
 
                 // Save to chat history
@@ -98,6 +114,20 @@ public class ChatController {
         }
     }
 
+    private static MetadataFilter buildFilter(String module, String expression) {
+        MetadataFilter moduleFilter = module == null || module.isBlank()
+                ? null
+                : MetadataFilter.moduleOrShared(module.trim());
+        MetadataFilter expressionFilter = expression == null || expression.isBlank()
+                ? null
+                : MetadataFilter.parse(expression);
+
+        if (moduleFilter != null && expressionFilter != null) {
+            return MetadataFilter.and(moduleFilter, expressionFilter);
+        }
+        return moduleFilter != null ? moduleFilter : expressionFilter;
+    }
+
     /** Get all chat history (just the query names) **/
     @GetMapping("/history")
     public Set<String> getAllChatHistory() {
@@ -18,7 +18,8 @@ public class DocumentUploadController {
 
     @PostMapping("/upload")
     public ResponseEntity<Map<String, Object>> uploadDocument(
-            @RequestParam("file") MultipartFile file) {
+            @RequestParam("file") MultipartFile file,
+            @RequestParam(value = "module", required = false) String module) {
 
         Map<String, Object> response = new HashMap<>();
 
@@ -44,12 +45,16 @@ public class DocumentUploadController {
             System.out.println("📤 Receiving upload: " + originalFilename + " (" + file.getSize() + " bytes)");
 
             // Process the upload
-            DocumentUploadService.UploadResult result = uploadService.processUpload(file, documentId);
+            String moduleName = module == null || module.isBlank() ? null : module.trim();
+            DocumentUploadService.UploadResult result = uploadService.processUpload(file, documentId, moduleName);
 
             response.put("success", result.isSuccess());
             response.put("message", result.getMessage());
             response.put("documentId", documentId);
             response.put("filename", originalFilename);
+            if (moduleName != null) {
+                response.put("module", moduleName);
+            }
             response.put("fileSize", file.getSize());
             response.put("chunksProcessed", result.getProcessedChunks());
 
@@ -67,6 +72,28 @@ public class DocumentUploadController {
         }
     }
 
+    @DeleteMapping("/{documentId}")
+    public ResponseEntity<Map<String, Object>> deleteDocument(@PathVariable String documentId) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            int removed = uploadService.deleteDocument(documentId);
+            response.put("success", removed > 0);
+            response.put("documentId", documentId);
+            response.put("chunksDeleted", removed);
+            if (removed == 0) {
+                response.put("message", "No chunks found for document");
+                return ResponseEntity.status(404).body(response);
+            }
+            response.put("message", "Document deleted successfully");
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            System.err.println("❌ Delete failed: " + e.getMessage());
+            response.put("success", false);
+            response.put("message", "Delete failed: " + e.getMessage());
+            return ResponseEntity.internalServerError().body(response);
+        }
+    }
+
     @GetMapping("/health")
     public ResponseEntity<Map<String, Object>> healthCheck() {
         Map<String, Object> response = new HashMap<>();
@@ -82,6 +109,8 @@ public class DocumentUploadController {
             Map<String, Object> stats = new HashMap<>();
             stats.put("totalDocuments", uploadService.getTotalDocuments());
             stats.put("totalVectors", uploadService.getTotalVectors());
+            stats.put("embeddingStorage", uploadService.getEmbeddingStorage());
+            stats.put("embeddingCache", uploadService.getEmbeddingCacheStats());
             stats.put("timestamp", System.currentTimeMillis());
             return ResponseEntity.ok(stats);
         } catch (Exception e) {
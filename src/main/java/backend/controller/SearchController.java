@@ -0,0 +1,74 @@
+package backend.controller;
+
+import backend.rag.SearchResult;
+import backend.service.RAGQueryService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.*;
+
+@RestController
+@RequestMapping("/api/search")
+@CrossOrigin(origins = "*")
+public class SearchController {
+
+    private static final int MAX_TOP_K = 100;
+
+    @Autowired
+    private RAGQueryService ragService;
+
+    /**
+     * Raw top-K chunks for many queries in one pass over the vector store
+     * (quiz generation, offline evaluation). Body: {"queries": ["...", ...], "topK": 10}
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<Map<String, Object>> searchBatch(@RequestBody Map<String, Object> request) {
+        Map<String, Object> response = new HashMap<>();
+
+        Object rawQueries = request.get("queries");
+        if (!(rawQueries instanceof List<?> list) || list.isEmpty()) {
+            response.put("error", true);
+            response.put("message", "queries must be a non-empty list");
+            return ResponseEntity.badRequest().body(response);
+        }
+
+        List<String> queries = new ArrayList<>(list.size());
+        for (Object query : list) {
+            if (query == null || query.toString().trim().isEmpty()) {
+                response.put("error", true);
+                response.put("message", "Query is empty");
+                return ResponseEntity.badRequest().body(response);
+            }
+            queries.add(query.toString().trim());
+        }
+
+        int topK = 10;
+        if (request.get("topK") instanceof Number number) {
+            topK = Math.max(1, Math.min(number.intValue(), MAX_TOP_K));
+        }
+
+        try {
+            List<List<SearchResult>> results = ragService.searchDocumentsBatch(queries, topK);
+
+            List<Map<String, Object>> perQuery = new ArrayList<>(queries.size());
+            for (int i = 0; i < queries.size(); i++) {
+                perQuery.add(Map.of(
+                        "query", queries.get(i),
+                        "results", results.get(i)
+                ));
+            }
+
+            response.put("topK", topK);
+            response.put("results", perQuery);
+            response.put("timestamp", new Date().toString());
+            return ResponseEntity.ok(response);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            response.put("error", true);
+            response.put("message", "Failed to process request: " + e.getMessage());
+            return ResponseEntity.internalServerError().body(response);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package backend.rag;
+
+/**
+ * Top-K for many queries at once as a cache-blocked matrix-matrix product.
+ *
+ * Rows are visited one block at a time and every query is scored against the block before
+ * moving on, so the matrix is streamed from memory once per batch instead of once per query.
+ * The block is sized to stay resident in L2 while the queries sweep over it.
+ */
+public final class BatchScan {
+
+    /**
+     * Scores row {@code ordinal} against a unit-length query, wherever the row is stored.
+     */
+    public interface Rows {
+        float dot(int ordinal, float[] query);
+
+        default boolean isDeleted(int ordinal) {
+            return false;
+        }
+    }
+
+    // bytes of row data per block, well inside a typical 256 KB - 1 MB L2
+    private static final int BLOCK_BYTES = 128 * 1024;
+
+    private BatchScan() {
+    }
+
+    /**
+     * @param count     rows [0, count) are scored
+     * @param dimension row length
+     * @param queries   unit-length queries of the same dimension
+     * @return one heap per query, in query order
+     */
+    public static TopKHeap[] scan(Rows rows, int count, int dimension, float[][] queries, int topK) {
+        TopKHeap[] heaps = new TopKHeap[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            heaps[q] = new TopKHeap(Math.min(topK, count));
+        }
+        if (count == 0 || queries.length == 0) {
+            return heaps;
+        }
+
+        int blockRows = Math.max(1, BLOCK_BYTES / (Float.BYTES * dimension));
+
+        for (int blockStart = 0; blockStart < count; blockStart += blockRows) {
+            int blockEnd = Math.min(blockStart + blockRows, count);
+
+            for (int q = 0; q < queries.length; q++) {
+                float[] query = queries[q];
+                TopKHeap best = heaps[q];
+                for (int ordinal = blockStart; ordinal < blockEnd; ordinal++) {
+                    if (rows.isDeleted(ordinal)) continue;
+                    best.offer(ordinal, rows.dot(ordinal, query));
+                }
+            }
+        }
+        return heaps;
+    }
+
+    /**
+     * @return unit-length copies of the queries
+     */
+    public static float[][] normalizeAll(float[][] queries) {
+        float[][] units = new float[queries.length][];
+        for (int q = 0; q < queries.length; q++) {
+            units[q] = VectorMath.normalize(queries[q]);
+        }
+        return units;
+    }
+}
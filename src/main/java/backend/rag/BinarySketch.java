@@ -0,0 +1,76 @@
+package backend.rag;
+
+/**
+ * 1-bit-per-dimension sketch of an embedding: bit i is set when component i is positive.
+ *
+ * The Hamming distance between two sketches tracks the angle between the original vectors,
+ * so it can rank a whole corpus with XOR + {@link Long#bitCount} before the exact cosine
+ * similarity is computed for a small shortlist. A 1536-dim embedding packs into 24 longs.
+ */
+public final class BinarySketch {
+
+    private BinarySketch() {
+    }
+
+    public static long[] of(float[] embedding) {
+        long[] bits = new long[(embedding.length + 63) >>> 6];
+        for (int i = 0; i < embedding.length; i++) {
+            if (embedding[i] > 0) {
+                bits[i >>> 6] |= 1L << (i & 63);
+            }
+        }
+        return bits;
+    }
+
+    public static int hammingDistance(long[] a, long[] b) {
+        int distance = 0;
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            distance += Long.bitCount(a[i] ^ b[i]);
+        }
+        return distance;
+    }
+
+    /**
+     * Pick the indexes of the {@code limit} smallest distances with a counting pass
+     * over the distance histogram instead of sorting.
+     *
+     * @param distances   Hamming distance of every candidate
+     * @param maxDistance largest possible distance (number of bits)
+     * @param limit       shortlist size
+     * @return indexes into {@code distances}, at most {@code limit} of them
+     */
+    public static int[] shortlist(int[] distances, int maxDistance, int limit) {
+        if (limit >= distances.length) {
+            int[] all = new int[distances.length];
+            for (int i = 0; i < all.length; i++) all[i] = i;
+            return all;
+        }
+
+        int[] histogram = new int[maxDistance + 2];
+        for (int distance : distances) {
+            histogram[Math.min(distance, maxDistance + 1)]++;
+        }
+
+        // cutoff = first distance at which the running count reaches the limit
+        int cutoff = 0;
+        int below = 0;
+        while (below + histogram[cutoff] < limit) {
+            below += histogram[cutoff];
+            cutoff++;
+        }
+        int tiesAllowed = limit - below;
+
+        int[] result = new int[limit];
+        int size = 0;
+        for (int i = 0; i < distances.length && size < limit; i++) {
+            if (distances[i] < cutoff) {
+                result[size++] = i;
+            } else if (distances[i] == cutoff && tiesAllowed > 0) {
+                result[size++] = i;
+                tiesAllowed--;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,361 @@
+package backend.rag;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link EmbeddingService} decorator that remembers embeddings by content, so re-uploading a
+ * revised PDF only pays for the chunks that actually changed.
+ *
+ * The key is the first 128 bits of SHA-256 over the model name and the text as the API sees it
+ * ({@link OpenAiEmbeddingService#cleanText}), so texts differing only in whitespace share an entry
+ * and switching models never returns vectors of the old one. Entries live in an LRU of
+ * {@code memoryEntries} vectors in front of an append-only file of
+ * {@code [long key0][long key1][int dimension][float...]} records, whose offsets are indexed on open
+ * and which stops growing at {@code diskMaxBytes}. A torn record at the end of the file (crash
+ * during an append) is cut off when it is opened. Placeholder vectors are passed through uncached.
+ */
+public final class CachingEmbeddingService implements EmbeddingService {
+
+    private static final int MAGIC = 0x45434331; // "ECC1"
+    private static final int HEADER_BYTES = Integer.BYTES;
+    private static final int RECORD_HEADER_BYTES = 2 * Long.BYTES + Integer.BYTES;
+    private static final int MAX_DIMENSION = 1 << 16;
+
+    private static final class Key {
+        final long high;
+        final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).high == high && ((Key) other).low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high * 31 + low);
+        }
+    }
+
+    private final EmbeddingService delegate;
+    private final String model;
+    private final int memoryEntries;
+    private final Map<Key, float[]> memory;
+
+    // disk tier, null when memory-only
+    private final Path file;
+    private final FileChannel channel;
+    private final long diskMaxBytes;
+    private final Map<Key, Long> diskOffsets = new HashMap<>();
+    private long fileBytes;
+    private boolean diskFullReported;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param file disk tier file, created if missing (null = memory only)
+     */
+    public static CachingEmbeddingService open(EmbeddingService delegate, String model, int memoryEntries,
+                                               Path file, long diskMaxBytes) throws IOException {
+        return new CachingEmbeddingService(delegate, model, memoryEntries, file, diskMaxBytes);
+    }
+
+    private CachingEmbeddingService(EmbeddingService delegate, String model, int memoryEntries,
+                                    Path file, long diskMaxBytes) throws IOException {
+        if (memoryEntries < 0 || diskMaxBytes < 0) {
+            throw new IllegalArgumentException("Cache sizes must be >= 0, got " + memoryEntries + " entries and " + diskMaxBytes + " bytes");
+        }
+        this.delegate = delegate;
+        this.model = model;
+        this.memoryEntries = memoryEntries;
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, float[]> eldest) {
+                if (size() > CachingEmbeddingService.this.memoryEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        this.file = file;
+        this.diskMaxBytes = diskMaxBytes;
+        if (file == null) {
+            this.channel = null;
+            return;
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            loadIndex();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public float[] embed(String text) throws Exception {
+        Key key = keyOf(text);
+        float[] cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        float[] embedding = delegate.embed(text);
+        store(key, embedding);
+        return embedding;
+    }
+
+    /**
+     * Only texts missing from both tiers go to the delegate, in one {@code embedBatch} call and
+     * with duplicates inside the batch sent once.
+     */
+    @Override
+    public List<float[]> embedBatch(List<String> texts) throws Exception {
+        float[][] embeddings = new float[texts.size()][];
+        Map<Key, List<Integer>> missing = new LinkedHashMap<>();
+        List<String> missingTexts = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            Key key = keyOf(texts.get(i));
+            embeddings[i] = lookup(key);
+            if (embeddings[i] == null) {
+                String text = texts.get(i);
+                missing.computeIfAbsent(key, k -> {
+                    missingTexts.add(text);
+                    return new ArrayList<>();
+                }).add(i);
+            }
+        }
+
+        if (!missingTexts.isEmpty()) {
+            System.out.println("🗃️ Embedding cache: " + (texts.size() - missingTexts.size()) + "/" + texts.size() +
+                    " texts cached, embedding " + missingTexts.size());
+            List<float[]> fresh = delegate.embedBatch(missingTexts);
+            int next = 0;
+            for (Map.Entry<Key, List<Integer>> entry : missing.entrySet()) {
+                float[] embedding = fresh.get(next++);
+                store(entry.getKey(), embedding);
+                // the first copy stays the delegate's array, so isPlaceholder still recognises it
+                for (int i : entry.getValue()) {
+                    embeddings[i] = embeddings[entry.getValue().get(0)] == null ? embedding : embedding.clone();
+                }
+            }
+        }
+        return Arrays.asList(embeddings);
+    }
+
+    @Override
+    public boolean isPlaceholder(float[] embedding) {
+        return delegate.isPlaceholder(embedding);
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("model", model);
+        synchronized (this) {
+            stats.put("memoryEntries", memory.size());
+            stats.put("diskEntries", diskOffsets.size());
+            stats.put("diskBytes", fileBytes);
+        }
+        long hits = memoryHits.get() + diskHits.get();
+        long lookups = hits + misses.get();
+        stats.put("memoryHits", memoryHits.get());
+        stats.put("diskHits", diskHits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("hitRate", lookups == 0 ? 0.0 : (double) hits / lookups);
+        return stats;
+    }
+
+    public synchronized void close() {
+        if (channel == null || !channel.isOpen()) {
+            return;
+        }
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("❌ Failed to close embedding cache " + file + ": " + e.getMessage());
+        }
+    }
+
+    // copies in and out, callers (e.g. stores normalizing in place) may modify what they get
+    private float[] lookup(Key key) {
+        float[] embedding;
+        Long offset;
+        synchronized (this) {
+            embedding = memory.get(key);
+            if (embedding != null) {
+                memoryHits.incrementAndGet();
+                return embedding.clone();
+            }
+            offset = diskOffsets.get(key);
+        }
+        if (offset != null) {
+            try {
+                embedding = readRecord(offset);
+                diskHits.incrementAndGet();
+                if (memoryEntries > 0) {
+                    synchronized (this) {
+                        memory.put(key, embedding);
+                    }
+                }
+                return embedding.clone();
+            } catch (IOException e) {
+                System.err.println("⚠️ Embedding cache read failed at " + offset + ": " + e.getMessage());
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private void store(Key key, float[] embedding) {
+        if (embedding == null || embedding.length == 0 || delegate.isPlaceholder(embedding)) {
+            return;
+        }
+        float[] copy = embedding.clone();
+        synchronized (this) {
+            if (memoryEntries > 0) {
+                memory.put(key, copy);
+            }
+            if (channel != null && !diskOffsets.containsKey(key)) {
+                appendRecord(key, copy);
+            }
+        }
+    }
+
+    // callers hold the lock
+    private void appendRecord(Key key, float[] embedding) {
+        long recordBytes = RECORD_HEADER_BYTES + (long) embedding.length * Float.BYTES;
+        if (fileBytes + recordBytes > diskMaxBytes) {
+            if (!diskFullReported) {
+                System.out.println("⚠️ Embedding cache file reached " + (diskMaxBytes / (1024 * 1024)) +
+                        " MB, new embeddings are cached in memory only");
+                diskFullReported = true;
+            }
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate((int) recordBytes);
+        record.putLong(key.high).putLong(key.low).putInt(embedding.length);
+        record.asFloatBuffer().put(embedding);
+        record.position(0).limit((int) recordBytes);
+        try {
+            long offset = fileBytes;
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            fileBytes = offset + recordBytes;
+            diskOffsets.put(key, offset);
+        } catch (IOException e) {
+            System.err.println("⚠️ Embedding cache write failed: " + e.getMessage());
+        }
+    }
+
+    private float[] readRecord(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        readFully(header, offset);
+        int dimension = header.getInt(2 * Long.BYTES);
+        ByteBuffer values = ByteBuffer.allocate(dimension * Float.BYTES);
+        readFully(values, offset + RECORD_HEADER_BYTES);
+        float[] embedding = new float[dimension];
+        values.flip();
+        values.asFloatBuffer().get(embedding);
+        return embedding;
+    }
+
+    private void loadIndex() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC);
+            header.flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            fileBytes = HEADER_BYTES;
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(header, 0);
+        if (header.getInt(0) != MAGIC) {
+            throw new IllegalStateException(file + " is not an embedding cache file");
+        }
+
+        long offset = HEADER_BYTES;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        while (offset + RECORD_HEADER_BYTES <= size) {
+            recordHeader.clear();
+            readFully(recordHeader, offset);
+            int dimension = recordHeader.getInt(2 * Long.BYTES);
+            long end = offset + RECORD_HEADER_BYTES + (long) dimension * Float.BYTES;
+            if (dimension <= 0 || dimension > MAX_DIMENSION || end > size) {
+                break;
+            }
+            diskOffsets.put(new Key(recordHeader.getLong(0), recordHeader.getLong(Long.BYTES)), offset);
+            offset = end;
+        }
+        if (offset < size) {
+            System.out.println("⚠️ Embedding cache " + file.getFileName() + ": dropping " + (size - offset) +
+                    " bytes of an incomplete record");
+            channel.truncate(offset);
+        }
+        fileBytes = offset;
+        System.out.println("🗃️ Embedding cache: " + diskOffsets.size() + " embeddings on disk");
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Embedding cache record ends early at " + offset);
+            }
+        }
+    }
+
+    private Key keyOf(String text) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update(model.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        ByteBuffer hash = ByteBuffer.wrap(digest.digest(OpenAiEmbeddingService.cleanText(text).getBytes(StandardCharsets.UTF_8)));
+        return new Key(hash.getLong(), hash.getLong());
+    }
+}
@@ -0,0 +1,50 @@
+package backend.rag;
+
+/**
+ * Typed attributes of a chunk that searches can filter on.
+ *
+ * Every field is optional: module and documentId may be null and page is {@link #NO_PAGE}
+ * when the chunk does not come from a paged source.
+ */
+public class ChunkMetadata {
+
+    public static final String MODULE = "module";
+    public static final String DOCUMENT_ID = "documentId";
+    public static final String PAGE = "page";
+
+    public static final int NO_PAGE = -1;
+
+    public String module;
+    public String documentId;
+    public int page = NO_PAGE;
+
+    public ChunkMetadata() {}
+
+    public ChunkMetadata(String module, String documentId, int page) {
+        this.module = module;
+        this.documentId = documentId;
+        this.page = page;
+    }
+
+    /**
+     * @return the value of a field as it is indexed, or null when the chunk does not have it
+     */
+    public String value(String field) {
+        switch (field) {
+            case MODULE:
+                // a blank module is no module, like the shared partition treats it
+                return module == null || module.isBlank() ? null : module;
+            case DOCUMENT_ID:
+                return documentId;
+            case PAGE:
+                return page == NO_PAGE ? null : Integer.toString(page);
+            default:
+                throw new IllegalArgumentException("Unknown metadata field: " + field +
+                        " (use " + MODULE + ", " + DOCUMENT_ID + " or " + PAGE + ")");
+        }
+    }
+
+    static boolean isField(String field) {
+        return MODULE.equals(field) || DOCUMENT_ID.equals(field) || PAGE.equals(field);
+    }
+}
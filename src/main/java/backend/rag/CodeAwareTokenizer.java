@@ -0,0 +1,190 @@
+package backend.rag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Splits lecture text and questions into lexical index terms without losing C++ syntax.
+ *
+ * A plain word tokenizer turns {@code int*} into {@code int}, {@code std::cout} into two
+ * unrelated words and drops {@code <<} entirely, which are exactly the tokens students ask
+ * about. This tokenizer keeps them whole and also emits their parts, so {@code std::cout}
+ * yields {@code std::cout}, {@code std} and {@code cout}, {@code push_back} yields
+ * {@code push_back}, {@code push} and {@code back}, and {@code int *p} yields {@code int*}
+ * and {@code int}. Terms are lower-cased. Stop words are dropped on prose lines only; lines
+ * that {@link TextChunkerService#isCodeLine} recognises as code keep every identifier and
+ * report their terms as code terms.
+ */
+public final class CodeAwareTokenizer {
+
+    public interface TermSink {
+        void accept(String term, boolean code);
+    }
+
+    private static final Set<String> OPERATORS = Set.of(
+            "<<", ">>", "->", "::", "++", "--", "==", "!=", "<=", ">=", "&&", "||");
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "and", "are", "as", "at", "be", "but", "by", "can", "do", "does", "for",
+            "from", "how", "i", "if", "in", "into", "is", "it", "its", "me", "of", "on", "or",
+            "that", "the", "their", "then", "there", "these", "this", "to", "was", "we", "what",
+            "when", "where", "which", "who", "why", "will", "with", "you", "your");
+
+    private CodeAwareTokenizer() {}
+
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        tokenize(text, (term, code) -> terms.add(term));
+        return terms;
+    }
+
+    public static void tokenize(String text, TermSink sink) {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        for (String line : text.split("\n")) {
+            tokenizeLine(line, TextChunkerService.isCodeLine(line), sink);
+        }
+    }
+
+    public static boolean isStopWord(String term) {
+        return STOP_WORDS.contains(term);
+    }
+
+    private static void tokenizeLine(String line, boolean code, TermSink sink) {
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            char c = line.charAt(i);
+
+            if (isIdentifierStart(c)) {
+                int start = i;
+                i = identifierEnd(line, i);
+                // qualified names: std::cout, std::vector::push_back
+                while (i + 2 < length && line.charAt(i) == ':' && line.charAt(i + 1) == ':'
+                        && isIdentifierStart(line.charAt(i + 2))) {
+                    i = identifierEnd(line, i + 2);
+                }
+                String word = line.substring(start, i);
+                i = emitWord(line, i, word, code, sink);
+            } else if (Character.isDigit(c)) {
+                int start = i;
+                while (i < length && (Character.isLetterOrDigit(line.charAt(i)) || line.charAt(i) == '.')) {
+                    i++;
+                }
+                sink.accept(line.substring(start, i).toLowerCase(Locale.ROOT), code);
+            } else if (c == '#' && i + 1 < length && isIdentifierStart(line.charAt(i + 1))) {
+                int end = identifierEnd(line, i + 1);
+                sink.accept(line.substring(i, end).toLowerCase(Locale.ROOT), true);
+                i = end;
+            } else if (i + 1 < length && OPERATORS.contains(line.substring(i, i + 2))) {
+                sink.accept(line.substring(i, i + 2), true);
+                i += 2;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Emit an identifier, its parts and a pointer/reference form, and return where scanning resumes.
+     */
+    private static int emitWord(String line, int end, String word, boolean code, TermSink sink) {
+        String lower = word.toLowerCase(Locale.ROOT);
+        boolean qualified = word.contains("::");
+
+        // int* p, int *p, char** argv, int& ref; but not the multiplication in "a * b"
+        int suffixStart = end;
+        boolean spaced = suffixStart < line.length() && line.charAt(suffixStart) == ' ';
+        if (spaced) {
+            suffixStart++;
+        }
+        int suffixEnd = suffixStart;
+        while (suffixEnd < line.length() && (line.charAt(suffixEnd) == '*' || line.charAt(suffixEnd) == '&')) {
+            suffixEnd++;
+        }
+        boolean pointer = suffixEnd > suffixStart && suffixEnd - suffixStart <= 2
+                && (!spaced || (suffixEnd < line.length() && isIdentifierStart(line.charAt(suffixEnd))))
+                && !(suffixEnd < line.length() && line.charAt(suffixEnd) == '=');
+
+        if (pointer) {
+            sink.accept(lower + line.substring(suffixStart, suffixEnd), true);
+        }
+
+        boolean codeTerm = code || pointer || qualified || isCodeShaped(word);
+        if (qualified) {
+            sink.accept(lower, true);
+            for (String part : lower.split("::")) {
+                emitSimple(part, word, true, sink);
+            }
+        } else {
+            emitSimple(lower, word, codeTerm, sink);
+        }
+
+        return pointer ? suffixEnd : end;
+    }
+
+    private static void emitSimple(String lower, String original, boolean code, TermSink sink) {
+        if (lower.length() < 2 || (!code && STOP_WORDS.contains(lower))) {
+            return;
+        }
+        sink.accept(lower, code);
+        if (lower.indexOf('_') >= 0 || hasInnerUpperCase(original)) {
+            for (String part : splitIdentifier(original)) {
+                if (part.length() >= 2 && !part.equals(lower)) {
+                    sink.accept(part, code);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true for words that only occur in code: snake_case and camelCase identifiers
+     */
+    static boolean isCodeShaped(String word) {
+        return word.indexOf('_') >= 0 || hasInnerUpperCase(word);
+    }
+
+    private static boolean hasInnerUpperCase(String word) {
+        for (int i = 1; i < word.length(); i++) {
+            if (Character.isUpperCase(word.charAt(i)) && Character.isLowerCase(word.charAt(i - 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> splitIdentifier(String word) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            boolean boundary = c == '_' || c == ':'
+                    || (Character.isUpperCase(c) && i > 0 && Character.isLowerCase(word.charAt(i - 1)));
+            if (boundary && part.length() > 0) {
+                parts.add(part.toString().toLowerCase(Locale.ROOT));
+                part.setLength(0);
+            }
+            if (c != '_' && c != ':') {
+                part.append(c);
+            }
+        }
+        if (part.length() > 0) {
+            parts.add(part.toString().toLowerCase(Locale.ROOT));
+        }
+        return parts;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static int identifierEnd(String line, int i) {
+        while (i < line.length() && (Character.isLetterOrDigit(line.charAt(i)) || line.charAt(i) == '_')) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,483 @@
+package backend.rag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only, block-compressed file of chunk texts addressed by ordinal, so a store can keep
+ * its embeddings on the heap without the text next to them.
+ *
+ * Appended texts collect in a pending block until it holds {@code blockBytes} characters, which is
+ * then deflated and appended to the file as {@code [int texts][int rawLength][int compressedLength][bytes]}.
+ * A read finds the block of the ordinal, inflates it once and keeps the decoded texts in a small
+ * LRU cache of blocks; searches only read the top-K winners, so most blocks are never touched.
+ *
+ * The file is the persistent home of the owning store's texts: its segment stores ordinals into
+ * {@code contents.<generation>.blob} instead of the texts, and reopening only reads the block
+ * headers. Texts of removed chunks stay in the file until the store copies the live ones into the
+ * next generation. Reads after {@link #close} (a search that started before its store was
+ * unloaded) open the file again for that one read.
+ */
+public final class ContentBlobStore {
+
+    static final String FILE_PREFIX = "contents.";
+    static final String FILE_SUFFIX = ".blob";
+    // throwaway blob files of the format that was rebuilt from the segment on every open
+    static final String LEGACY_FILE_PREFIX = "contents-";
+
+    private static final int BLOCK_HEADER_BYTES = 3 * Integer.BYTES;
+    // block size used when a blob is only opened to read texts back
+    private static final Policy READER = new Policy(64 * 1024, 4);
+
+    /**
+     * Block size and cache size of a store's blob file; {@link #HEAP} keeps texts on the heap.
+     */
+    public static final class Policy {
+        public static final Policy HEAP = new Policy(0, 0);
+
+        final int blockBytes;
+        final int cacheBlocks;
+
+        public Policy(int blockBytes, int cacheBlocks) {
+            if (blockBytes < 0 || cacheBlocks < 0) {
+                throw new IllegalArgumentException("Block and cache sizes must be >= 0, got " + blockBytes + " and " + cacheBlocks);
+            }
+            this.blockBytes = blockBytes;
+            this.cacheBlocks = cacheBlocks;
+        }
+
+        public boolean isEnabled() {
+            return blockBytes > 0;
+        }
+
+        public static Policy parse(String mode, int blockKb, int cacheBlocks) {
+            if (mode == null || mode.equalsIgnoreCase("heap")) {
+                return HEAP;
+            }
+            if (mode.equalsIgnoreCase("blob")) {
+                return new Policy(blockKb * 1024, cacheBlocks);
+            }
+            throw new IllegalArgumentException("Unknown content storage: " + mode + " (expected heap or blob)");
+        }
+    }
+
+    private final Path file;
+    private final int generation;
+    private final int blockBytes;
+    private final FileChannel channel;
+    private volatile boolean closed;
+
+    // flushed blocks: block b holds ordinals [blockFirst[b], blockFirst[b + 1])
+    private int[] blockFirst = new int[16];
+    private long[] blockOffset = new long[16];
+    private int blocks;
+    private long fileBytes;
+
+    // texts appended since the last flush, ordinals from pendingFirst
+    private final List<String> pending = new ArrayList<>();
+    private int pendingFirst;
+    private int pendingBytes;
+
+    private final Map<Integer, String[]> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Open {@code dir/contents.<generation>.blob}, creating it if it does not exist. Only the block
+     * headers are read; a block torn by a crash is cut off (its texts are still in the log).
+     */
+    public static ContentBlobStore open(Path dir, int generation, Policy policy) throws IOException {
+        Files.createDirectories(dir);
+        return new ContentBlobStore(file(dir, generation), generation, policy, false, false);
+    }
+
+    /**
+     * Create an empty {@code dir/contents.<generation>.blob}, replacing any file of that generation.
+     */
+    public static ContentBlobStore create(Path dir, int generation, Policy policy) throws IOException {
+        Files.createDirectories(dir);
+        return new ContentBlobStore(file(dir, generation), generation, policy, true, false);
+    }
+
+    /**
+     * Read every text of an existing generation, e.g. to move a store's texts back onto the heap.
+     */
+    static String[] readAll(Path dir, int generation) throws IOException {
+        ContentBlobStore blob = new ContentBlobStore(file(dir, generation), generation, READER, false, true);
+        try {
+            String[] texts = new String[blob.size()];
+            for (int block = 0; block < blob.blocks; block++) {
+                String[] decoded = blob.readBlock(blob.blockOffset[block]);
+                System.arraycopy(decoded, 0, texts, blob.blockFirst[block], decoded.length);
+            }
+            return texts;
+        } finally {
+            blob.close();
+        }
+    }
+
+    /**
+     * Read the texts of {@code ordinals} from an existing generation without opening it for writing,
+     * e.g. the winners of a search over a store that is not loaded.
+     */
+    static String[] read(Path dir, int generation, int[] ordinals) throws IOException {
+        ContentBlobStore blob = new ContentBlobStore(file(dir, generation), generation, READER, false, true);
+        try {
+            String[] texts = new String[ordinals.length];
+            for (int i = 0; i < ordinals.length; i++) {
+                texts[i] = blob.read(ordinals[i]);
+            }
+            return texts;
+        } finally {
+            blob.close();
+        }
+    }
+
+    /**
+     * Delete the blob files in {@code dir} other than generation {@code keep} (0 = delete all),
+     * including those of the old rebuilt-on-open format.
+     */
+    static void deleteOtherGenerations(Path dir, int keep) {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "contents*" + FILE_SUFFIX)) {
+            for (Path old : files) {
+                if (keep > 0 && old.equals(file(dir, keep))) {
+                    continue;
+                }
+                try {
+                    Files.deleteIfExists(old);
+                } catch (IOException e) {
+                    System.err.println("⚠️ Could not delete old content blob " + old + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ Could not list content blobs in " + dir + ": " + e.getMessage());
+        }
+    }
+
+    static Path file(Path dir, int generation) {
+        return dir.resolve(FILE_PREFIX + generation + FILE_SUFFIX);
+    }
+
+    private ContentBlobStore(Path file, int generation, Policy policy, boolean truncate, boolean readOnly) throws IOException {
+        if (!policy.isEnabled()) {
+            throw new IllegalArgumentException("Content blob store needs a block size > 0");
+        }
+        if (generation <= 0) {
+            throw new IllegalArgumentException("Content blob generation must be > 0, got " + generation);
+        }
+        this.file = file;
+        this.generation = generation;
+        this.blockBytes = policy.blockBytes;
+        if (readOnly) {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        } else if (truncate) {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } else {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        int cacheBlocks = Math.max(1, policy.cacheBlocks);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+                return size() > cacheBlocks;
+            }
+        };
+        try {
+            scanBlocks(readOnly);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // rebuild the block index from the headers, cutting off a block the last flush did not finish
+    private void scanBlocks(boolean readOnly) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+        long offset = 0;
+        while (offset + BLOCK_HEADER_BYTES <= size) {
+            header.clear();
+            readFully(channel, header, offset);
+            int texts = header.getInt(0);
+            int compressedLength = header.getInt(8);
+            long end = offset + BLOCK_HEADER_BYTES + compressedLength;
+            if (texts < 0 || compressedLength < 0 || end > size) {
+                break;
+            }
+            addBlock(offset, texts);
+            offset = end;
+        }
+        if (offset < size && !readOnly) {
+            System.err.println("⚠️ Dropping " + (size - offset) + " bytes of an unfinished block at the end of " + file);
+            channel.truncate(offset);
+        }
+        fileBytes = offset;
+    }
+
+    private void addBlock(long offset, int texts) {
+        if (blocks + 1 >= blockFirst.length) {
+            blockFirst = Arrays.copyOf(blockFirst, blockFirst.length * 2);
+            blockOffset = Arrays.copyOf(blockOffset, blockOffset.length * 2);
+        }
+        blockFirst[blocks] = pendingFirst;
+        blockOffset[blocks] = offset;
+        blocks++;
+        pendingFirst += texts;
+        blockFirst[blocks] = pendingFirst;
+    }
+
+    /**
+     * @return ordinal of the appended text
+     */
+    public synchronized int append(String content) {
+        if (closed) {
+            throw new IllegalStateException("Content blob store " + file.getFileName() + " is closed");
+        }
+        int ordinal = pendingFirst + pending.size();
+        pending.add(content);
+        pendingBytes += content == null ? 0 : content.length();
+        if (pendingBytes >= blockBytes) {
+            flushPending();
+        }
+        return ordinal;
+    }
+
+    public String read(int ordinal) {
+        int block;
+        long offset;
+        synchronized (this) {
+            if (ordinal < 0 || ordinal >= pendingFirst + pending.size()) {
+                throw new IllegalArgumentException("No content with ordinal " + ordinal);
+            }
+            if (ordinal >= pendingFirst) {
+                return pending.get(ordinal - pendingFirst);
+            }
+            block = blockOf(ordinal);
+            offset = blockOffset[block];
+            String[] cached = cache.get(block);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached[ordinal - blockFirst[block]];
+            }
+            misses.incrementAndGet();
+        }
+
+        String[] texts = readBlock(offset);
+        synchronized (this) {
+            cache.put(block, texts);
+            return texts[ordinal - blockFirst[block]];
+        }
+    }
+
+    /**
+     * Write the pending block and sync the file, so every appended ordinal survives a crash;
+     * stores call this before writing a segment that refers to the ordinals.
+     */
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        if (!pending.isEmpty()) {
+            flushPending();
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to sync " + file, e);
+        }
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("❌ Failed to close content blob " + file + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized int size() {
+        return pendingFirst + pending.size();
+    }
+
+    public synchronized long getFileBytes() {
+        return fileBytes;
+    }
+
+    public long getCacheHits() {
+        return hits.get();
+    }
+
+    public long getCacheMisses() {
+        return misses.get();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    // callers hold the lock
+    private void flushPending() {
+        try {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(pendingBytes * 2 + 64);
+            DataOutputStream out = new DataOutputStream(raw);
+            out.writeInt(pending.size());
+            for (String content : pending) {
+                if (content == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            byte[] compressed = deflate(raw.toByteArray());
+
+            ByteBuffer record = ByteBuffer.allocate(BLOCK_HEADER_BYTES + compressed.length);
+            record.putInt(pending.size()).putInt(raw.size()).putInt(compressed.length).put(compressed).flip();
+            long offset = fileBytes;
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+
+            addBlock(offset, pending.size());
+            fileBytes = offset + BLOCK_HEADER_BYTES + compressed.length;
+            pending.clear();
+            pendingBytes = 0;
+        } catch (IOException e) {
+            // texts stay pending (and readable) and the next append retries
+            throw new UncheckedIOException("Failed to write content block to " + file, e);
+        }
+    }
+
+    // callers hold the lock; ordinal is below pendingFirst
+    private int blockOf(int ordinal) {
+        int low = 0;
+        int high = blocks - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockFirst[mid] <= ordinal) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private String[] readBlock(long offset) {
+        try {
+            if (!closed) {
+                try {
+                    return decode(channel, offset);
+                } catch (ClosedChannelException e) {
+                    // closed while reading, fall through to a private channel
+                }
+            }
+            try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+                return decode(reader, offset);
+            }
+        } catch (IOException | DataFormatException e) {
+            throw new IllegalStateException("Failed to read content block at " + offset + " of " + file, e);
+        }
+    }
+
+    private static String[] decode(FileChannel source, long offset) throws IOException, DataFormatException {
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+        readFully(source, header, offset);
+        int rawLength = header.getInt(4);
+        int compressedLength = header.getInt(8);
+
+        ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+        readFully(source, compressed, offset + header.capacity());
+
+        Inflater inflater = new Inflater();
+        byte[] raw = new byte[rawLength];
+        try {
+            inflater.setInput(compressed.array());
+            int read = 0;
+            while (read < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, read, rawLength - read);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // all input is consumed (or a dictionary is wanted): the block is cut short
+                    throw new DataFormatException("Compressed block ends after " + read + " of " + rawLength + " bytes");
+                }
+                read += inflated;
+            }
+            if (read < rawLength) {
+                throw new DataFormatException("Block inflates to " + read + " bytes, its header says " + rawLength);
+            }
+        } finally {
+            inflater.end();
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+        String[] texts = new String[in.readInt()];
+        for (int i = 0; i < texts.length; i++) {
+            int length = in.readInt();
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                texts[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return texts;
+    }
+
+    private static void readFully(FileChannel source, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Content block ends early at " + offset);
+            }
+        }
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -15,7 +15,7 @@ public class DocumentLoader {
     private TextChunkerService chunker;
 
     @Autowired
-    private OpenAiEmbeddingService embeddingService;
+    private EmbeddingService embeddingService;
 
     @Autowired
     private InMemoryVectorStore vectorStore;
@@ -36,14 +36,11 @@ public class DocumentLoader {
 
             // 3. Create and store embeddings
             System.out.println("3. Creating embeddings...");
+            List<float[]> embeddings = embeddingService.embedBatch(chunks);
             for (int i = 0; i < chunks.size(); i++) {
                 String chunkId = pdfFile.getName() + "_chunk_" + i;
-                String chunkText = chunks.get(i);
 
-                System.out.println("   [" + (i+1) + "/" + chunks.size() + "] Creating embedding...");
-                float[] embedding = embeddingService.embed(chunkText);
-
-                vectorStore.addVector(chunkId, chunkText, embedding);
+                vectorStore.addVector(chunkId, chunks.get(i), embeddings.get(i));
                 System.out.println("   ✓ Stored chunk " + (i+1));
             }
 
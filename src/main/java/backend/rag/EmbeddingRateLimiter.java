@@ -0,0 +1,188 @@
+package backend.rag;
+
+import java.util.ArrayDeque;
+import java.util.function.LongSupplier;
+
+/**
+ * Requests-per-minute and tokens-per-minute limits shared by every embedding request.
+ *
+ * Each limit is a sliding one-minute window over what was actually charged, so no 60 s span ever
+ * holds more than the limit: a burst may use a whole minute's allowance at once and then waits
+ * until its charges age out. {@link #acquire} blocks until both windows can pay for the request;
+ * once the API reports the real token usage, {@link #settle} charges the difference to the
+ * estimate, in either direction. {@link #pauseUntil} stops everyone, e.g. while the API asks
+ * clients to back off after a 429. A limit of 0 disables that window.
+ *
+ * Bulk requests (ingestion batches) may only fill {@code 1 - queryReserve} of each window; the
+ * rest is kept for queries, so a student's question is not paced behind an upload burst.
+ */
+public final class EmbeddingRateLimiter {
+
+    private static final long WINDOW_NANOS = 60_000_000_000L;
+
+    private final Window requests;
+    private final Window tokens;
+    private final LongSupplier clockNanos;
+    private long pausedUntilNanos;
+
+    public EmbeddingRateLimiter(int requestsPerMinute, int tokensPerMinute, double queryReserve) {
+        this(requestsPerMinute, tokensPerMinute, queryReserve, System::nanoTime);
+    }
+
+    /**
+     * @param queryReserve share of each window only queries may use, in [0, 1)
+     * @param clockNanos   monotonic time in nanoseconds
+     */
+    public EmbeddingRateLimiter(int requestsPerMinute, int tokensPerMinute, double queryReserve, LongSupplier clockNanos) {
+        if (requestsPerMinute < 0 || tokensPerMinute < 0) {
+            throw new IllegalArgumentException("Rate limits must be >= 0, got " + requestsPerMinute + " RPM and " + tokensPerMinute + " TPM");
+        }
+        if (queryReserve < 0 || queryReserve >= 1) {
+            throw new IllegalArgumentException("Query reserve must be in [0, 1), got " + queryReserve);
+        }
+        this.requests = new Window(requestsPerMinute, queryReserve);
+        this.tokens = new Window(tokensPerMinute, queryReserve);
+        this.clockNanos = clockNanos;
+        this.pausedUntilNanos = clockNanos.getAsLong();
+    }
+
+    /**
+     * Take one request and {@code tokenCount} tokens, waiting until both are available. A request
+     * larger than the whole token limit (the bulk share of it, unless {@code query}) waits for an
+     * empty window and takes all of it.
+     */
+    public synchronized void acquire(int tokenCount, boolean query) throws InterruptedException {
+        long waitNanos;
+        while ((waitNanos = tryAcquire(tokenCount, query)) > 0) {
+            wait(Math.max(1, waitNanos / 1_000_000));
+        }
+    }
+
+    /**
+     * {@link #acquire} without waiting.
+     *
+     * @return 0 when the request and its tokens were taken, otherwise the nanoseconds until they
+     *         may be available
+     */
+    public synchronized long tryAcquire(int tokenCount, boolean query) {
+        long now = clockNanos.getAsLong();
+        long waitNanos = pausedUntilNanos - now;
+        if (waitNanos > 0) {
+            return waitNanos;
+        }
+        double tokensNeeded = tokens.charged(tokenCount, query);
+        waitNanos = Math.max(requests.nanosUntil(1, query, now), tokens.nanosUntil(tokensNeeded, query, now));
+        if (waitNanos > 0) {
+            return waitNanos;
+        }
+        requests.charge(1, now);
+        tokens.charge(tokensNeeded, now);
+        return 0;
+    }
+
+    /**
+     * Replace the estimate an acquired request was charged with the tokens it really used: usage
+     * above the estimate is charged now, unused tokens are given back.
+     */
+    public synchronized void settle(int estimatedTokens, int actualTokens, boolean query) {
+        if (tokens.limit <= 0) {
+            return;
+        }
+        int charged = (int) tokens.charged(estimatedTokens, query);
+        if (actualTokens > charged) {
+            tokens.charge(actualTokens - charged, clockNanos.getAsLong());
+        } else if (actualTokens < charged) {
+            tokens.giveBack(charged - actualTokens);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Hold every request until {@code delayMillis} from now.
+     */
+    public synchronized void pauseUntil(long delayMillis) {
+        long until = clockNanos.getAsLong() + delayMillis * 1_000_000;
+        if (until - pausedUntilNanos > 0) {
+            pausedUntilNanos = until;
+        }
+    }
+
+    /**
+     * Charges of the last minute, oldest first.
+     */
+    private static final class Window {
+        final double limit;
+        final double bulkLimit;
+        final ArrayDeque<Charge> charges = new ArrayDeque<>();
+        double used;
+
+        Window(double limit, double queryReserve) {
+            this.limit = limit;
+            this.bulkLimit = limit * (1 - queryReserve);
+        }
+
+        // acquire() charges at most the whole share a request may use
+        double charged(int amount, boolean query) {
+            return limit > 0 ? Math.min(amount, query ? limit : bulkLimit) : 0;
+        }
+
+        long nanosUntil(double needed, boolean query, long now) {
+            if (limit <= 0) {
+                return 0;
+            }
+            expire(now);
+            double excess = used + needed - (query ? limit : bulkLimit);
+            // wait for the oldest charges to age out until the request fits
+            for (Charge charge : charges) {
+                if (excess <= 0) {
+                    break;
+                }
+                excess -= charge.amount;
+                if (excess <= 0) {
+                    return charge.nanos + WINDOW_NANOS - now;
+                }
+            }
+            return 0;
+        }
+
+        void charge(double amount, long now) {
+            if (limit > 0 && amount > 0) {
+                charges.addLast(new Charge(amount, now));
+                used += amount;
+            }
+        }
+
+        // taken back from the newest charges, which belong to the request being settled
+        void giveBack(double amount) {
+            while (amount > 0 && !charges.isEmpty()) {
+                Charge newest = charges.peekLast();
+                double taken = Math.min(amount, newest.amount);
+                newest.amount -= taken;
+                used -= taken;
+                amount -= taken;
+                if (newest.amount <= 0) {
+                    charges.pollLast();
+                }
+            }
+        }
+
+        private void expire(long now) {
+            while (!charges.isEmpty() && now - charges.peekFirst().nanos >= WINDOW_NANOS) {
+                used -= charges.pollFirst().amount;
+            }
+            if (charges.isEmpty()) {
+                used = 0;
+            }
+        }
+    }
+
+    private static final class Charge {
+        double amount;
+        final long nanos;
+
+        Charge(double amount, long nanos) {
+            this.amount = amount;
+            this.nanos = nanos;
+        }
+    }
+}
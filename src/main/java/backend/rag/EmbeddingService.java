@@ -1,5 +1,28 @@
 package backend.rag;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public interface EmbeddingService {
     float[] embed(String text) throws Exception;
-}
\ No newline at end of file
+
+    /**
+     * Embeddings of several texts, in input order. Remote implementations send them in as few
+     * requests as their batch limits allow; the default embeds them one by one.
+     */
+    default List<float[]> embedBatch(List<String> texts) throws Exception {
+        List<float[]> embeddings = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            embeddings.add(embed(text));
+        }
+        return embeddings;
+    }
+
+    /**
+     * True for a stand-in vector returned instead of a real embedding (e.g. no API key configured),
+     * which must not be cached or reused once real embeddings are available.
+     */
+    default boolean isPlaceholder(float[] embedding) {
+        return false;
+    }
+}
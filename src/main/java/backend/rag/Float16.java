@@ -0,0 +1,134 @@
+package backend.rag;
+
+import java.nio.ByteBuffer;
+
+/**
+ * IEEE 754 half-precision conversions for embeddings stored as {@code short}.
+ *
+ * Java 17 has no {@code Float.float16ToFloat}, so widening is a lookup in a 65536-entry table
+ * (256 KB, shared by every store) and narrowing rounds to nearest-even in plain bit arithmetic.
+ * Unit-length embeddings lose about three decimal digits per component, which moves cosine
+ * similarities by well under 1e-3.
+ */
+public final class Float16 {
+
+    private static final float[] TO_FLOAT = new float[1 << 16];
+
+    static {
+        for (int bits = 0; bits < TO_FLOAT.length; bits++) {
+            TO_FLOAT[bits] = widen((short) bits);
+        }
+    }
+
+    private Float16() {}
+
+    public static float toFloat(short half) {
+        return TO_FLOAT[half & 0xffff];
+    }
+
+    public static short fromFloat(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+
+        if (exponent == 0xff) {
+            // infinity stays infinity, NaN keeps a mantissa bit
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1f) {
+            return (short) (sign | 0x7c00);
+        }
+        if (halfExponent <= 0) {
+            if (halfExponent < -10) {
+                return (short) sign;
+            }
+            // subnormal: shift the mantissa with its implicit bit into place, rounding to nearest-even
+            int full = mantissa | 0x800000;
+            int shift = 14 - halfExponent;
+            int half = full >>> shift;
+            int remainder = full & ((1 << shift) - 1);
+            int midpoint = 1 << (shift - 1);
+            if (remainder > midpoint || (remainder == midpoint && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+
+        int half = (halfExponent << 10) | (mantissa >>> 13);
+        int remainder = mantissa & 0x1fff;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+            // a carry out of the mantissa bumps the exponent, which is the correct rounding
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    public static short[] encode(float[] values) {
+        short[] halves = new short[values.length];
+        for (int i = 0; i < values.length; i++) {
+            halves[i] = fromFloat(values[i]);
+        }
+        return halves;
+    }
+
+    public static float[] decode(short[] halves) {
+        float[] values = new float[halves.length];
+        decode(halves, 0, values, 0, halves.length);
+        return values;
+    }
+
+    public static void decode(short[] src, int srcOffset, float[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = TO_FLOAT[src[srcOffset + i] & 0xffff];
+        }
+    }
+
+    /**
+     * Scalar dot product of floats against halves, widened through the table.
+     */
+    public static float dot(float[] a, int aOffset, short[] b, int bOffset, int length) {
+        float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            s0 += a[aOffset + i] * TO_FLOAT[b[bOffset + i] & 0xffff];
+            s1 += a[aOffset + i + 1] * TO_FLOAT[b[bOffset + i + 1] & 0xffff];
+            s2 += a[aOffset + i + 2] * TO_FLOAT[b[bOffset + i + 2] & 0xffff];
+            s3 += a[aOffset + i + 3] * TO_FLOAT[b[bOffset + i + 3] & 0xffff];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * TO_FLOAT[b[bOffset + i] & 0xffff];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Scalar dot product of floats against halves stored in a (direct) buffer from byte offset
+     * {@code bByteOffset}, in the buffer's byte order.
+     */
+    public static float dot(float[] a, int aOffset, ByteBuffer b, int bByteOffset, int length) {
+        float sum = 0.0f;
+        for (int i = 0; i < length; i++) {
+            sum += a[aOffset + i] * TO_FLOAT[b.getShort(bByteOffset + i * Short.BYTES) & 0xffff];
+        }
+        return sum;
+    }
+
+    private static float widen(short half) {
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+
+        if (exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            // zero or subnormal: mantissa * 2^-24
+            float magnitude = mantissa * 0x1p-24f;
+            return sign != 0 ? -magnitude : magnitude;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
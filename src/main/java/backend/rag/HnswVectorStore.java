@@ -0,0 +1,885 @@
+package backend.rag;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Approximate nearest-neighbour store backed by an HNSW (Hierarchical Navigable Small World) graph.
+ *
+ * Each chunk becomes a node that is linked to its closest neighbours on one or more layers.
+ * A query greedily walks down from the sparse top layer and only does a beam search
+ * (width efSearch) on the dense bottom layer, so it visits a small part of the corpus
+ * instead of scoring every stored chunk.
+ *
+ * The normalized vectors are saved in the same vectors.seg segment and vectors.wal log as
+ * {@link PersistentVectorStore}, so switching rag.index-type between flat and hnsw keeps the
+ * uploaded data. The links are saved next to them in hnsw.graph, one node per segment row; the
+ * graph is only rebuilt when that file is missing or belongs to a different segment. Chunk metadata
+ * goes to vectors.seg.meta like the flat store's, and filtered searches post-filter against it.
+ *
+ * Deleted and replaced nodes stay in the graph for routing (without their text) until they make
+ * up {@link #MAX_TOMBSTONE_RATIO} of it; the next checkpoint then relinks their neighbours and
+ * drops them.
+ */
+public class HnswVectorStore implements VectorStore {
+
+    static final String GRAPH_FILE = "hnsw.graph";
+    static final double MAX_TOMBSTONE_RATIO = 0.2;
+
+    private static final int GRAPH_MAGIC = 0x57534E48;   // "HNSW" when read as little-endian bytes
+    private static final int GRAPH_VERSION = 1;
+    // randomLevel() stays far below this for any M >= 2; a stored level above it is corrupt
+    private static final int MAX_LEVEL = 64;
+
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final int efSearch;
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final Map<String, Integer> idToNode = new HashMap<>();
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private int liveCount = 0;
+    // live chunk id -> metadata, for chunks added with any
+    private final Map<String, ChunkMetadata> metadata = new ConcurrentHashMap<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Path storageFile;
+    private final Path graphFile;
+    private WriteAheadLog log;
+
+    public HnswVectorStore(String basePath, int m, int efConstruction, int efSearch) {
+        this(basePath, m, efConstruction, efSearch, WriteAheadLog.Policy.DEFAULT);
+    }
+
+    /**
+     * @param basePath       directory holding vectors.seg, vectors.wal and hnsw.graph
+     * @param m              max links per node on upper layers (layer 0 keeps 2*m)
+     * @param efConstruction beam width used while inserting
+     * @param efSearch       beam width used while querying (raised to topK if smaller)
+     * @param logPolicy      fsync and checkpoint settings of vectors.wal
+     */
+    public HnswVectorStore(String basePath, int m, int efConstruction, int efSearch, WriteAheadLog.Policy logPolicy) {
+        if (m < 2) {
+            throw new IllegalArgumentException("HNSW M must be at least 2");
+        }
+        this.m = m;
+        this.maxM0 = m * 2;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = Math.max(efSearch, 1);
+        this.levelMultiplier = 1.0 / Math.log(m);
+        this.storageFile = Path.of(basePath, PersistentVectorStore.SEGMENT_FILE);
+        this.graphFile = Path.of(basePath, GRAPH_FILE);
+        PersistentVectorStore.migrateLegacyJson(mapper, Path.of(basePath));
+        open();
+        openLog(Path.of(basePath, PersistentVectorStore.LOG_FILE), logPolicy);
+    }
+
+    @Override
+    public void addVector(String documentId, String content, float[] embedding) {
+        addVector(documentId, content, embedding, null);
+    }
+
+    @Override
+    public void addVector(String documentId, String content, float[] embedding, ChunkMetadata chunkMetadata) {
+        boolean checkpointDue;
+        lock.writeLock().lock();
+        try {
+            float[] unit = insert(documentId, content, embedding);
+            putMetadata(documentId, chunkMetadata);
+            checkpointDue = log(() -> log.appendAdd(documentId, content, unit, chunkMetadata)) || tooManyTombstones();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (checkpointDue) {
+            checkpoint();
+        }
+    }
+
+    @Override
+    public List<SearchResult> searchSimilar(float[] queryEmbedding, int topK) {
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0 || topK <= 0) {
+                return new ArrayList<>();
+            }
+
+            float[] query = VectorMath.normalize(queryEmbedding);
+
+            int current = entryPoint;
+            for (int level = maxLevel; level > 0; level--) {
+                current = greedyClosest(query, current, level);
+            }
+
+            // Deleted (replaced) nodes still route the search but are never returned, so widen
+            // the beam by their number, at most doubling it; compaction keeps them few
+            int ef = Math.max(efSearch, topK);
+            ef += Math.min(nodes.size() - liveCount, ef);
+            List<Candidate> found = searchLayer(query, current, ef, 0);
+
+            List<SearchResult> results = new ArrayList<>(topK);
+            for (Candidate candidate : found) {
+                Node node = nodes.get(candidate.node);
+                if (node.deleted) continue;
+                results.add(new SearchResult(node.id, node.content, candidate.similarity));
+                if (results.size() == topK) break;
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int deleteDocument(String documentId) {
+        List<String> removed = new ArrayList<>();
+        boolean checkpointDue = false;
+        lock.writeLock().lock();
+        try {
+            // deleted nodes stay in the graph for routing, like replaced ones
+            for (String id : new ArrayList<>(idToNode.keySet())) {
+                if (VectorStore.belongsToDocument(id, documentId)) {
+                    tombstone(idToNode.remove(id));
+                    metadata.remove(id);
+                    removed.add(id);
+                }
+            }
+            for (String id : removed) {
+                checkpointDue |= log(() -> log.appendDelete(id));
+            }
+            checkpointDue |= tooManyTombstones();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (checkpointDue) {
+            checkpoint();
+        }
+        if (!removed.isEmpty()) {
+            System.out.println("🗑️ Deleted " + removed.size() + " chunks of " + documentId);
+        }
+        return removed.size();
+    }
+
+    @Override
+    public int getVectorCount() {
+        lock.readLock().lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> getVectors() {
+        lock.readLock().lock();
+        try {
+            Map<String, String> contents = new HashMap<>();
+            for (Node node : nodes) {
+                if (!node.deleted) {
+                    contents.put(node.id, node.content);
+                }
+            }
+            return contents;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, ChunkMetadata> getMetadata() {
+        return Collections.unmodifiableMap(metadata);
+    }
+
+    @Override
+    public Map<String, String> getContents(Collection<String> ids) {
+        lock.readLock().lock();
+        try {
+            Map<String, String> contents = new HashMap<>();
+            for (String id : ids) {
+                Integer node = idToNode.get(id);
+                if (node != null && !nodes.get(node).deleted) {
+                    contents.put(id, nodes.get(node).content);
+                }
+            }
+            return contents;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // persistence
+
+    /**
+     * Drop the tombstoned nodes, write the live ones to vectors.seg and their links to
+     * hnsw.graph, and empty the log. A crash in between is harmless: the graph file no longer
+     * matches the segment and is rebuilt, and replaying the log repeats the same changes.
+     */
+    public void checkpoint() {
+        lock.writeLock().lock();
+        try {
+            dropTombstones();
+            writeSegment(storageFile);
+            PersistentVectorStore.writeMetadata(mapper, storageFile, metadata);
+            writeGraph();
+            if (log != null) {
+                log.reset();
+            }
+        } catch (Exception e) {
+            System.err.println("❌ HNSW checkpoint failed, keeping the log: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checkpoint and release the log; Spring calls this when the bean is destroyed.
+     */
+    public void close() {
+        checkpoint();
+        lock.writeLock().lock();
+        try {
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to close HNSW log: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void saveToFile(String filePath) {
+        lock.readLock().lock();
+        try {
+            writeSegment(Path.of(filePath));
+            PersistentVectorStore.writeMetadata(mapper, Path.of(filePath), metadata);
+        } catch (Exception e) {
+            System.err.println("❌ Failed to save vectors: " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the index with the chunks of a vector segment (or legacy vectors.json), building
+     * a new graph, and checkpoint it.
+     */
+    @Override
+    public void loadFromFile(String filePath) {
+        try {
+            Path file = Path.of(filePath);
+            if (!Files.exists(file)) {
+                return;
+            }
+
+            Map<String, PersistentVectorStore.VectorEntry> loaded =
+                    PersistentVectorStore.readVectors(mapper, file);
+            PersistentVectorStore.readMetadata(mapper, file, loaded);
+
+            lock.writeLock().lock();
+            try {
+                resetGraph();
+                for (PersistentVectorStore.VectorEntry entry : loaded.values()) {
+                    insert(entry.id, entry.content, entry.embedding);
+                    putMetadata(entry.id, entry.metadata);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            System.out.println("📦 Loaded " + liveCount + " vectors from disk into HNSW index");
+            checkpoint();
+        } catch (Exception e) {
+            System.err.println("❌ Failed to load vectors: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            resetGraph();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        checkpoint();
+        System.out.println("🧹 Vector store cleared");
+    }
+
+    // Load vectors.seg and, when it still belongs to it, hnsw.graph; otherwise rebuild the graph
+    private void open() {
+        if (!VectorSegment.isSegment(storageFile)) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            VectorSegment segment = VectorSegment.open(storageFile);
+            int generation = segment.contentGeneration();
+            String[] texts = generation > 0
+                    ? ContentBlobStore.readAll(storageFile.toAbsolutePath().getParent(), generation)
+                    : null;
+            String[] ids = new String[segment.count()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = segment.id(i);
+            }
+
+            int[][][] links = readGraph(ids);
+            for (int i = 0; i < ids.length; i++) {
+                String content = texts != null ? texts[segment.contentOrdinal(i)] : segment.content(i);
+                float[] vector = segment.row(i);
+                if (!segment.isNormalized()) {
+                    VectorMath.normalizeInPlace(vector);
+                }
+                if (links != null) {
+                    nodes.add(new Node(ids[i], content, vector, links[i]));
+                    idToNode.put(ids[i], i);
+                    liveCount++;
+                } else {
+                    insert(ids[i], content, vector);
+                }
+            }
+
+            // a crash after writing the segment can leave the metadata of an older one; the log
+            // still holds the newer adds and deletes
+            PersistentVectorStore.readMetadata(mapper, storageFile).forEach((id, value) -> {
+                if (idToNode.containsKey(id)) {
+                    metadata.put(id, value);
+                }
+            });
+
+            if (links != null) {
+                System.out.println("📦 Loaded " + liveCount + " vectors and their HNSW graph from disk");
+            } else {
+                System.out.println("📦 Loaded " + liveCount + " vectors from disk into a new HNSW graph");
+                writeGraph();
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to load vectors: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Replay adds and deletes logged after the last checkpoint, then fold them in right away
+    private void openLog(Path logFile, WriteAheadLog.Policy policy) {
+        try {
+            log = new WriteAheadLog(logFile, policy);
+            int replayed;
+            lock.writeLock().lock();
+            try {
+                replayed = log.replay(new WriteAheadLog.Replayer() {
+                    @Override
+                    public void add(String id, String content, float[] embedding) {
+                        add(id, content, embedding, null);
+                    }
+
+                    @Override
+                    public void add(String id, String content, float[] embedding, ChunkMetadata chunkMetadata) {
+                        insert(id, content, embedding);
+                        putMetadata(id, chunkMetadata);
+                    }
+
+                    @Override
+                    public void delete(String id) {
+                        Integer node = idToNode.remove(id);
+                        if (node != null) {
+                            tombstone(node);
+                        }
+                        metadata.remove(id);
+                    }
+                });
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (replayed > 0) {
+                System.out.println("📜 Replayed " + replayed + " logged vectors from " + logFile.getFileName());
+                checkpoint();
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to open " + logFile + ", checkpointing on every change: " + e.getMessage());
+            log = null;
+        }
+    }
+
+    private interface LogWrite {
+        void run() throws IOException;
+    }
+
+    // callers hold the write lock; true when the store should checkpoint once it is released
+    private boolean log(LogWrite write) {
+        if (log == null) {
+            return true;
+        }
+        try {
+            write.run();
+            return log.checkpointDue();
+        } catch (IOException e) {
+            System.err.println("❌ Failed to log vector change, checkpointing instead: " + e.getMessage());
+            return true;
+        }
+    }
+
+    private void writeSegment(Path file) throws IOException {
+        List<PersistentVectorStore.VectorEntry> entries = new ArrayList<>(liveCount);
+        for (Node node : nodes) {
+            if (!node.deleted) {
+                entries.add(new PersistentVectorStore.VectorEntry(node.id, node.content, node.vector));
+            }
+        }
+        PersistentVectorStore.writeSegment(file, entries);
+    }
+
+    // Layout (DataOutputStream): magic, version, node count, M, CRC32 of the segment's ids,
+    // entry point, max level, then per node its level and per layer the link count and links.
+    // Only written without tombstones, so node i is row i of vectors.seg.
+    private void writeGraph() throws IOException {
+        Path temp = graphFile.resolveSibling(graphFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(GRAPH_MAGIC);
+            out.writeInt(GRAPH_VERSION);
+            out.writeInt(nodes.size());
+            out.writeInt(m);
+            out.writeLong(idChecksum(nodes.stream().map(node -> node.id).toArray(String[]::new)));
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (Node node : nodes) {
+                out.writeInt(node.links.length - 1);
+                for (int l = 0; l < node.links.length; l++) {
+                    out.writeInt(node.linkCount[l]);
+                    for (int i = 0; i < node.linkCount[l]; i++) {
+                        out.writeInt(node.links[l][i]);
+                    }
+                }
+            }
+        }
+        Files.move(temp, graphFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return links[node][layer] (trimmed to their count), or null when hnsw.graph is missing,
+     *         unreadable, inconsistent or was written for other segment rows or another M
+     */
+    private int[][][] readGraph(String[] ids) {
+        if (!Files.exists(graphFile)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(graphFile), 1 << 16))) {
+            if (in.readInt() != GRAPH_MAGIC || in.readInt() != GRAPH_VERSION
+                    || in.readInt() != ids.length || in.readInt() != m || in.readLong() != idChecksum(ids)) {
+                System.out.println("🔁 " + graphFile.getFileName() + " does not match " + storageFile.getFileName() + ", rebuilding the graph");
+                return null;
+            }
+            int storedEntryPoint = in.readInt();
+            int storedMaxLevel = in.readInt();
+            if (ids.length == 0 ? storedEntryPoint != -1 : storedEntryPoint < 0 || storedEntryPoint >= ids.length
+                    || storedMaxLevel < 0 || storedMaxLevel > MAX_LEVEL) {
+                throw new IOException("entry point " + storedEntryPoint + " at level " + storedMaxLevel + " is out of range");
+            }
+            int[][][] links = new int[ids.length][][];
+            for (int n = 0; n < ids.length; n++) {
+                int level = in.readInt();
+                if (level < 0 || level > storedMaxLevel) {
+                    throw new IOException("node " + n + " has level " + level + " above the top level " + storedMaxLevel);
+                }
+                links[n] = new int[level + 1][];
+                for (int l = 0; l <= level; l++) {
+                    int count = in.readInt();
+                    if (count < 0 || count > (l == 0 ? maxM0 : m)) {
+                        throw new IOException("node " + n + " has " + count + " links on layer " + l);
+                    }
+                    links[n][l] = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        links[n][l][i] = in.readInt();
+                    }
+                }
+            }
+            // a search follows a link on layer l into the neighbour's layer l
+            for (int n = 0; n < ids.length; n++) {
+                for (int l = 0; l < links[n].length; l++) {
+                    for (int neighbour : links[n][l]) {
+                        if (neighbour < 0 || neighbour >= ids.length || links[neighbour].length <= l) {
+                            throw new IOException("node " + n + " links to " + neighbour + " on layer " + l);
+                        }
+                    }
+                }
+            }
+            if (ids.length > 0 && links[storedEntryPoint].length != storedMaxLevel + 1) {
+                throw new IOException("the entry point is not on the top level " + storedMaxLevel);
+            }
+            entryPoint = storedEntryPoint;
+            maxLevel = storedMaxLevel;
+            return links;
+        } catch (IOException e) {
+            System.err.println("❌ Failed to read " + graphFile + ", rebuilding the graph: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static long idChecksum(String[] ids) {
+        CRC32 crc = new CRC32();
+        for (String id : ids) {
+            crc.update(id.getBytes(StandardCharsets.UTF_8));
+            crc.update(0);
+        }
+        return crc.getValue();
+    }
+
+    // graph construction
+
+    private void resetGraph() {
+        nodes.clear();
+        idToNode.clear();
+        entryPoint = -1;
+        maxLevel = -1;
+        liveCount = 0;
+        metadata.clear();
+    }
+
+    // callers hold the write lock; an add without metadata replaces the old chunk's as well
+    private void putMetadata(String id, ChunkMetadata chunkMetadata) {
+        if (chunkMetadata != null) {
+            metadata.put(id, chunkMetadata);
+        } else {
+            metadata.remove(id);
+        }
+    }
+
+    private float[] insert(String id, String content, float[] embedding) {
+        // Re-adding an id replaces it: the old node stays in the graph for routing only
+        Integer previous = idToNode.get(id);
+        if (previous != null) {
+            tombstone(previous);
+        }
+
+        int level = randomLevel();
+        int nodeId = nodes.size();
+        Node node = new Node(id, content, VectorMath.normalize(embedding), level);
+        nodes.add(node);
+        idToNode.put(id, nodeId);
+        liveCount++;
+
+        if (entryPoint < 0) {
+            entryPoint = nodeId;
+            maxLevel = level;
+            return node.vector;
+        }
+
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            current = greedyClosest(node.vector, current, l);
+        }
+
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            List<Candidate> candidates = searchLayer(node.vector, current, efConstruction, l);
+            List<Integer> selected = selectNeighbours(candidates, m);
+
+            for (int neighbour : selected) {
+                node.addLink(l, neighbour);
+                addLinkWithPruning(neighbour, nodeId, l);
+            }
+            current = candidates.get(0).node;
+        }
+
+        if (level > maxLevel) {
+            entryPoint = nodeId;
+            maxLevel = level;
+        }
+        return node.vector;
+    }
+
+    // the vector keeps routing searches, the text is not needed any more
+    private void tombstone(int nodeId) {
+        Node node = nodes.get(nodeId);
+        if (!node.deleted) {
+            node.deleted = true;
+            node.content = null;
+            liveCount--;
+        }
+    }
+
+    private boolean tooManyTombstones() {
+        int tombstones = nodes.size() - liveCount;
+        return tombstones > 0 && tombstones >= nodes.size() * MAX_TOMBSTONE_RATIO;
+    }
+
+    /**
+     * Remove the tombstoned nodes. A live node that linked to one is relinked, with the
+     * neighbour-selection heuristic, among its remaining links and the tombstone's live links
+     * on that layer; then the live nodes are renumbered in order.
+     */
+    private void dropTombstones() {
+        if (liveCount == nodes.size()) {
+            return;
+        }
+        if (liveCount == 0) {
+            resetGraph();
+            return;
+        }
+
+        for (Node node : nodes) {
+            if (node.deleted) continue;
+            for (int l = 0; l < node.links.length; l++) {
+                LinkedHashSet<Integer> candidates = new LinkedHashSet<>();
+                boolean lostLink = false;
+                for (int i = 0; i < node.linkCount[l]; i++) {
+                    Node neighbour = nodes.get(node.links[l][i]);
+                    if (!neighbour.deleted) {
+                        candidates.add(node.links[l][i]);
+                        continue;
+                    }
+                    lostLink = true;
+                    for (int j = 0; j < neighbour.linkCount[l]; j++) {
+                        int next = neighbour.links[l][j];
+                        if (!nodes.get(next).deleted && nodes.get(next) != node) {
+                            candidates.add(next);
+                        }
+                    }
+                }
+                if (!lostLink) continue;
+
+                List<Candidate> ranked = new ArrayList<>(candidates.size());
+                for (int candidate : candidates) {
+                    ranked.add(new Candidate(candidate, similarity(node.vector, nodes.get(candidate).vector)));
+                }
+                ranked.sort(Candidate.BY_SIMILARITY_DESC);
+                List<Integer> kept = selectNeighbours(ranked, l == 0 ? maxM0 : m);
+                node.linkCount[l] = 0;
+                for (int neighbour : kept) {
+                    node.addLink(l, neighbour);
+                }
+            }
+        }
+
+        int[] renumbered = new int[nodes.size()];
+        List<Node> live = new ArrayList<>(liveCount);
+        for (int i = 0; i < nodes.size(); i++) {
+            renumbered[i] = nodes.get(i).deleted ? -1 : live.size();
+            if (!nodes.get(i).deleted) {
+                live.add(nodes.get(i));
+            }
+        }
+        int dropped = nodes.size() - live.size();
+        nodes.clear();
+        nodes.addAll(live);
+        idToNode.clear();
+        entryPoint = 0;
+        maxLevel = -1;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            for (int l = 0; l < node.links.length; l++) {
+                for (int k = 0; k < node.linkCount[l]; k++) {
+                    node.links[l][k] = renumbered[node.links[l][k]];
+                }
+            }
+            idToNode.put(node.id, i);
+            // the top node becomes the entry point if the old one was dropped
+            if (node.links.length - 1 > maxLevel) {
+                maxLevel = node.links.length - 1;
+                entryPoint = i;
+            }
+        }
+        System.out.println("🧹 Dropped " + dropped + " deleted nodes from the HNSW graph");
+    }
+
+    private void addLinkWithPruning(int from, int to, int level) {
+        Node node = nodes.get(from);
+        int limit = level == 0 ? maxM0 : m;
+        if (node.linkCount[level] < limit) {
+            node.addLink(level, to);
+            return;
+        }
+
+        // Neighbour list is full: re-select the best links among old ones plus the new one
+        List<Candidate> candidates = new ArrayList<>(limit + 1);
+        int[] links = node.links[level];
+        for (int i = 0; i < node.linkCount[level]; i++) {
+            candidates.add(new Candidate(links[i], similarity(node.vector, nodes.get(links[i]).vector)));
+        }
+        candidates.add(new Candidate(to, similarity(node.vector, nodes.get(to).vector)));
+        candidates.sort(Candidate.BY_SIMILARITY_DESC);
+
+        List<Integer> kept = selectNeighbours(candidates, limit);
+        node.linkCount[level] = 0;
+        for (int neighbour : kept) {
+            node.addLink(level, neighbour);
+        }
+    }
+
+    /**
+     * Neighbour selection heuristic from the HNSW paper: a candidate is kept only if it is closer
+     * to the base node than to any neighbour already kept, which spreads links across directions.
+     * Remaining slots are filled with the closest pruned candidates.
+     *
+     * @param candidates candidates sorted by similarity to the base node (best first)
+     */
+    private List<Integer> selectNeighbours(List<Candidate> candidates, int limit) {
+        List<Integer> selected = new ArrayList<>(limit);
+        List<Integer> pruned = new ArrayList<>();
+
+        for (Candidate candidate : candidates) {
+            if (selected.size() >= limit) break;
+
+            float[] vector = nodes.get(candidate.node).vector;
+            boolean keep = true;
+            for (int chosen : selected) {
+                if (similarity(vector, nodes.get(chosen).vector) > candidate.similarity) {
+                    keep = false;
+                    break;
+                }
+            }
+
+            if (keep) {
+                selected.add(candidate.node);
+            } else {
+                pruned.add(candidate.node);
+            }
+        }
+
+        for (int i = 0; i < pruned.size() && selected.size() < limit; i++) {
+            selected.add(pruned.get(i));
+        }
+        return selected;
+    }
+
+    private int randomLevel() {
+        double r = 1.0 - random.nextDouble(); // (0, 1]
+        return (int) Math.floor(-Math.log(r) * levelMultiplier);
+    }
+
+    // graph search
+
+    private int greedyClosest(float[] query, int start, int level) {
+        int current = start;
+        float best = similarity(query, nodes.get(current).vector);
+
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            Node node = nodes.get(current);
+            int[] links = node.links[level];
+            for (int i = 0; i < node.linkCount[level]; i++) {
+                float sim = similarity(query, nodes.get(links[i]).vector);
+                if (sim > best) {
+                    best = sim;
+                    current = links[i];
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Beam search on one layer.
+     *
+     * @return up to ef closest nodes, sorted by similarity (best first)
+     */
+    private List<Candidate> searchLayer(float[] query, int start, int ef, int level) {
+        BitSet visited = new BitSet(nodes.size());
+        visited.set(start);
+
+        Candidate first = new Candidate(start, similarity(query, nodes.get(start).vector));
+        PriorityQueue<Candidate> toVisit = new PriorityQueue<>(Candidate.BY_SIMILARITY_DESC);
+        PriorityQueue<Candidate> best = new PriorityQueue<>(Candidate.BY_SIMILARITY_ASC);
+        toVisit.add(first);
+        best.add(first);
+
+        while (!toVisit.isEmpty()) {
+            Candidate candidate = toVisit.poll();
+            if (best.size() >= ef && candidate.similarity < best.peek().similarity) {
+                break;
+            }
+
+            Node node = nodes.get(candidate.node);
+            int[] links = node.links[level];
+            for (int i = 0; i < node.linkCount[level]; i++) {
+                int neighbour = links[i];
+                if (visited.get(neighbour)) continue;
+                visited.set(neighbour);
+
+                float sim = similarity(query, nodes.get(neighbour).vector);
+                if (best.size() < ef || sim > best.peek().similarity) {
+                    Candidate next = new Candidate(neighbour, sim);
+                    toVisit.add(next);
+                    best.add(next);
+                    if (best.size() > ef) {
+                        best.poll();
+                    }
+                }
+            }
+        }
+
+        List<Candidate> result = new ArrayList<>(best);
+        result.sort(Candidate.BY_SIMILARITY_DESC);
+        return result;
+    }
+
+    // vectors are normalized once, so cosine similarity is a plain dot product
+    private static float similarity(float[] a, float[] b) {
+        return VectorMath.dot(a, b);
+    }
+
+    private static class Candidate {
+        static final Comparator<Candidate> BY_SIMILARITY_DESC = (a, b) -> Float.compare(b.similarity, a.similarity);
+        static final Comparator<Candidate> BY_SIMILARITY_ASC = (a, b) -> Float.compare(a.similarity, b.similarity);
+
+        final int node;
+        final float similarity;
+
+        Candidate(int node, float similarity) {
+            this.node = node;
+            this.similarity = similarity;
+        }
+    }
+
+    private class Node {
+        final String id;
+        String content;          // null once deleted
+        final float[] vector;    // unit length
+        final int[][] links;
+        final int[] linkCount;
+        boolean deleted;
+
+        Node(String id, String content, float[] vector, int level) {
+            this.id = id;
+            this.content = content;
+            this.vector = vector;
+            this.links = new int[level + 1][];
+            this.linkCount = new int[level + 1];
+            for (int l = 0; l <= level; l++) {
+                links[l] = new int[(l == 0 ? maxM0 : m)];
+            }
+        }
+
+        Node(String id, String content, float[] vector, int[][] storedLinks) {
+            this(id, content, vector, storedLinks.length - 1);
+            for (int l = 0; l < storedLinks.length; l++) {
+                System.arraycopy(storedLinks[l], 0, links[l], 0, storedLinks[l].length);
+                linkCount[l] = storedLinks[l].length;
+            }
+        }
+
+        void addLink(int level, int neighbour) {
+            links[level][linkCount[level]++] = neighbour;
+        }
+    }
+}
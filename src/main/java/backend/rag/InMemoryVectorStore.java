@@ -2,90 +2,397 @@ package backend.rag;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.core.type.TypeReference;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Component
 public class InMemoryVectorStore implements VectorStore {
 
-    private static class VectorEntry implements Serializable {
-        String documentId;
-        String content;
-        float[] embedding;
+    /**
+     * int8 codes packed into slabs that mirror the {@link VectorMatrix} layout,
+     * together with the quantizer that produced them.
+     */
+    private static class QuantizedRows {
+        final ScalarQuantizer quantizer;
+        final int slabRows;
+        final int dimension;
+        byte[][] slabs = new byte[0][];
+        volatile int rows = 0;
+        // the matrix may be off-heap, so rows are copied out before encoding
+        private final float[] scratch;
+
+        QuantizedRows(ScalarQuantizer quantizer, int slabRows) {
+            this.quantizer = quantizer;
+            this.slabRows = slabRows;
+            this.dimension = quantizer.getDimension();
+            this.scratch = new float[dimension];
+        }
+
+        // rows are written in ordinal order (or overwritten in place) by the single writer
+        void encode(VectorMatrix matrix, int ordinal) {
+            int slabIndex = ordinal / slabRows;
+            if (slabIndex == slabs.length) {
+                byte[][] grown = Arrays.copyOf(slabs, slabs.length + 1);
+                grown[slabs.length] = new byte[slabRows * dimension];
+                slabs = grown;
+            }
+            // a deleted row may have no stored floats left; scans skip it anyway
+            if (!matrix.isDeleted(ordinal)) {
+                matrix.readRow(ordinal, scratch, 0);
+                quantizer.encode(scratch, 0, slabs[slabIndex], (ordinal % slabRows) * dimension);
+            }
+            if (ordinal == rows) {
+                rows = ordinal + 1;
+            }
+        }
 
-        VectorEntry(String documentId, String content, float[] embedding) {
-            this.documentId = documentId;
-            this.content = content;
-            this.embedding = embedding;
+        float score(ScalarQuantizer.Query query, int ordinal) {
+            return query.score(slabs[ordinal / slabRows], (ordinal % slabRows) * dimension);
         }
     }
 
-    private final Map<String, VectorEntry> vectors = new ConcurrentHashMap<>();
+    // unit-length embeddings packed into contiguous slabs; replaced in init() when the slabs live off-heap.
+    // In int8 mode with persistence the rows saved in the storage file are only read from its mapping,
+    // for the rerank, and the slabs hold just the rows added since the last checkpoint
+    private VectorMatrix vectors = new VectorMatrix();
     private final ObjectMapper objectMapper = new ObjectMapper();
 
-    @Value("${vectorstore.persistence.file:vectorstore.json}")
+    @Value("${vectorstore.persistence.file:vectorstore.seg}")
     private String storageFile;
 
     @Value("${vectorstore.persistence.enabled:true}")
     private boolean persistenceEnabled;
 
+    // adds are appended to <storageFile>.wal and folded into the storage file at checkpoints
+    @Value("${vectorstore.wal.sync:interval}")
+    private String walSync = "interval";
+
+    @Value("${vectorstore.wal.sync-interval-ms:1000}")
+    private long walSyncIntervalMs = 1000;
+
+    @Value("${vectorstore.wal.checkpoint-records:1000}")
+    private int walCheckpointRecords = 1000;
+
+    private WriteAheadLog log;
+
+    // "heap" keeps embedding slabs in float[]s, "offheap" in direct buffers capped at offheap-max-bytes
+    @Value("${vectorstore.storage:heap}")
+    private String storage = "heap";
+
+    @Value("${vectorstore.offheap-max-bytes:1073741824}")
+    private long offHeapMaxBytes = 1L << 30;
+
+    private OffHeapArena arena;
+
+    // row readers that do not lock the store; shutdown waits for them before freeing off-heap slabs
+    private final AtomicInteger readers = new AtomicInteger();
+    private volatile boolean shutDown = false;
+
+    // "none" scans float[] embeddings, "int8" scans scalar-quantized codes and reranks exactly
+    @Value("${vectorstore.quantization:none}")
+    private String quantization = "none";
+
+    @Value("${vectorstore.rerank-candidates:200}")
+    private int rerankCandidates = 200;
+
+    // splits scans of large corpora across a dedicated pool; single-threaded when absent
+    @Autowired(required = false)
+    private ParallelScanner scanner;
+
+    private volatile QuantizedRows quantized;
+    private int quantizerTrainedOn = 0;
+
     public InMemoryVectorStore() {
-        // Try to load existing data on startup
+    }
+
+    @PostConstruct
+    public void init() {
+        if ("offheap".equalsIgnoreCase(storage)) {
+            arena = new OffHeapArena(offHeapMaxBytes);
+            vectors = new VectorMatrix(VectorMatrix.DEFAULT_SLAB_ROWS, arena);
+            System.out.println("🧠 Embeddings stored off-heap, capped at " + offHeapMaxBytes / (1024 * 1024) + " MB");
+        } else if (!"heap".equalsIgnoreCase(storage)) {
+            throw new IllegalArgumentException("Unknown vectorstore.storage: " + storage);
+        }
+        // Try to load existing data on startup (the @Value fields are only set after construction)
         loadFromStorage();
+        if (persistenceEnabled && storageFile != null && !storageFile.isBlank()) {
+            openLog();
+        }
+    }
+
+    // Replay adds logged after the last checkpoint, then fold them into the storage file right away
+    private void openLog() {
+        Path logFile = Path.of(storageFile + ".wal");
+        try {
+            log = new WriteAheadLog(logFile, new WriteAheadLog.Policy(
+                    WriteAheadLog.SyncPolicy.parse(walSync), walSyncIntervalMs, walCheckpointRecords));
+            int replayed;
+            synchronized (this) {
+                replayed = log.replay(new WriteAheadLog.Replayer() {
+                    @Override
+                    public void add(String id, String content, float[] embedding) {
+                        vectors.put(id, content, embedding);
+                    }
+
+                    @Override
+                    public void delete(String id) {
+                        vectors.remove(id);
+                    }
+                });
+            }
+            if (replayed > 0) {
+                System.out.println("📜 Replayed " + replayed + " logged vectors from " + logFile.getFileName());
+                checkpoint();
+                if (isInt8()) {
+                    retrainQuantizer();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to open " + logFile + ", saving the full file on every add: " + e.getMessage());
+            log = null;
+        }
     }
 
     @Override
     public void addVector(String documentId, String content, float[] embedding) {
-        vectors.put(documentId, new VectorEntry(documentId, content, embedding));
+        float[] unit = VectorMath.normalize(embedding);
+        synchronized (this) {
+            int ordinal = vectors.put(documentId, content, unit);
+            if (isInt8()) {
+                quantize(ordinal);
+            }
 
-        // Auto-save if persistence is enabled
-        if (persistenceEnabled) {
+            if (persistenceEnabled) {
+                persistAdd(documentId, content, unit);
+            }
+        }
+    }
+
+    // One log record per add; the full file is only rewritten at checkpoints
+    private void persistAdd(String documentId, String content, float[] unit) {
+        if (log == null) {
             saveToStorage();
+            return;
+        }
+        try {
+            log.appendAdd(documentId, content, unit);
+            if (log.checkpointDue()) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to log vector " + documentId + ": " + e.getMessage());
+            saveToStorage();
+        }
+    }
+
+    private void persistDeletes(List<String> removed) {
+        if (log == null) {
+            saveToStorage();
+            return;
+        }
+        try {
+            for (String id : removed) {
+                log.appendDelete(id);
+            }
+            if (log.checkpointDue()) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to log deletions: " + e.getMessage());
+            saveToStorage();
+        }
+    }
+
+    /**
+     * Save the storage file and empty the log; replaying the log over a newer file is harmless.
+     * When the file cannot be saved the log is kept, so the next start still replays it.
+     */
+    public synchronized void checkpoint() {
+        if (!saveToStorage()) {
+            System.err.println("❌ Checkpoint failed, keeping the log");
+            return;
+        }
+        if (log != null) {
+            try {
+                log.reset();
+            } catch (IOException e) {
+                System.err.println("❌ Failed to reset vector log: " + e.getMessage());
+            }
         }
     }
 
     @Override
     public List<SearchResult> searchSimilar(float[] queryEmbedding, int topK) {
-        List<SearchResult> results = new ArrayList<>();
-
-        for (VectorEntry entry : vectors.values()) {
-            float similarity = cosineSimilarity(queryEmbedding, entry.embedding);
-            results.add(new SearchResult(entry.documentId, entry.content, similarity));
+        if (!beginRead()) {
+            return new ArrayList<>();
         }
+        try {
+            if (isInt8() && quantized != null) {
+                return searchQuantized(queryEmbedding, topK);
+            }
+
+            int count = vectors.size();
+            float[] query = VectorMath.normalize(queryEmbedding);
 
-        // Sort by similarity (descending)
-        results.sort((a, b) -> Float.compare(b.getSimilarity(), a.getSimilarity()));
+            // ordinals are visited in storage order, so each partition streams through its slabs;
+            // rows and query are unit length, so the dot product is the cosine similarity
+            TopKHeap best = scan(count, topK, ordinal -> vectors.dot(ordinal, query));
 
-        // Return top K results
-        return results.subList(0, Math.min(topK, results.size()));
+            return toResults(best);
+        } finally {
+            endRead();
+        }
     }
 
     @Override
-    public void saveToFile(String filePath) {
+    public List<List<SearchResult>> searchSimilarBatch(float[][] queryEmbeddings, int topK) {
+        if (isInt8() && quantized != null) {
+            return VectorStore.super.searchSimilarBatch(queryEmbeddings, topK);
+        }
+        if (!beginRead()) {
+            // shut down: every query finds no rows
+            return VectorStore.super.searchSimilarBatch(queryEmbeddings, topK);
+        }
         try {
-            Map<String, Object> storageData = new HashMap<>();
-            List<Map<String, Object>> entries = new ArrayList<>();
+            TopKHeap[] heaps = BatchScan.scan(new BatchScan.Rows() {
+                @Override
+                public float dot(int ordinal, float[] query) {
+                    return vectors.dot(ordinal, query);
+                }
 
-            for (VectorEntry entry : vectors.values()) {
-                Map<String, Object> entryMap = new HashMap<>();
-                entryMap.put("documentId", entry.documentId);
-                entryMap.put("content", entry.content);
-                entryMap.put("embedding", entry.embedding);
-                entries.add(entryMap);
+                @Override
+                public boolean isDeleted(int ordinal) {
+                    return vectors.isDeleted(ordinal);
+                }
+            }, vectors.size(), vectors.dimension(), BatchScan.normalizeAll(queryEmbeddings), topK);
+
+            List<List<SearchResult>> results = new ArrayList<>(heaps.length);
+            for (TopKHeap best : heaps) {
+                results.add(toResults(best));
             }
+            return results;
+        } finally {
+            endRead();
+        }
+    }
+
+    // false once the store is shut down: its rows may be freed, so there is nothing to read
+    private boolean beginRead() {
+        readers.incrementAndGet();
+        if (shutDown) {
+            readers.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void endRead() {
+        readers.decrementAndGet();
+    }
+
+    /**
+     * Two-pass search for int8 mode: an integer dot-product scan over the codes keeps the best
+     * rerankCandidates entries, then only those are rescored against their float[] embeddings.
+     */
+    private List<SearchResult> searchQuantized(float[] queryEmbedding, int topK) {
+        int count = vectors.size();
+        QuantizedRows codes = quantized;
+        int encodedRows = Math.min(codes.rows, count);
+        float[] unitQuery = VectorMath.normalize(queryEmbedding);
+        ScalarQuantizer.Query query = codes.quantizer.prepareQuery(unitQuery);
+        int shortlistSize = Math.max(topK, rerankCandidates);
+
+        TopKHeap shortlist = scan(count, shortlistSize, ordinal -> ordinal < encodedRows
+                ? codes.score(query, ordinal)
+                // added while the quantizer was being retrained, score it exactly
+                : vectors.dot(ordinal, unitQuery));
+
+        TopKHeap best = new TopKHeap(Math.min(topK, shortlist.size()));
+        for (int i = 0; i < shortlist.size(); i++) {
+            int ordinal = shortlist.ordinal(i);
+            best.offer(ordinal, vectors.dot(ordinal, unitQuery));
+        }
+        return toResults(best);
+    }
+
+    // deleted rows keep their ordinal until the next reload, so every scan skips them here
+    private TopKHeap scan(int count, int topK, ParallelScanner.Scorer scorer) {
+        ParallelScanner.Scorer live = ordinal -> vectors.isDeleted(ordinal) ? Float.NaN : scorer.score(ordinal);
+        return scanner != null
+                ? scanner.scan(count, topK, live)
+                : ParallelScanner.scanSequential(count, topK, live);
+    }
 
-            storageData.put("vectors", entries);
-            storageData.put("timestamp", new Date().toString());
-            storageData.put("count", vectors.size());
+    // SearchResult objects are only created for the winners
+    private List<SearchResult> toResults(TopKHeap best) {
+        best.sortDescending();
+        List<SearchResult> results = new ArrayList<>(best.size());
+        for (int i = 0; i < best.size(); i++) {
+            int ordinal = best.ordinal(i);
+            results.add(new SearchResult(vectors.id(ordinal), vectors.content(ordinal), best.score(i)));
+        }
+        return results;
+    }
+
+    @Override
+    public void saveToFile(String filePath) {
+        if (!beginRead()) {
+            System.err.println("❌ Vector store is shut down, not saving " + filePath);
+            return;
+        }
+        try {
+            writeSegment(filePath);
+        } finally {
+            endRead();
+        }
+    }
 
-            objectMapper.writeValue(new File(filePath), storageData);
-            System.out.println("💾 VectorStore saved to: " + filePath + " (" + vectors.size() + " vectors)");
+    /**
+     * @return the ordinals written, in segment row order, or null when the file could not be saved
+     */
+    private int[] writeSegment(String filePath) {
+        try {
+            int[] live = liveOrdinals();
+            int count = live.length;
+            float[] row = new float[Math.max(vectors.dimension(), 0)];
+            VectorSegment.write(Path.of(filePath), count, Math.max(vectors.dimension(), 0), true,
+                    new VectorSegment.Rows() {
+                        @Override
+                        public String id(int index) {
+                            return vectors.id(live[index]);
+                        }
+
+                        @Override
+                        public String content(int index) {
+                            return vectors.content(live[index]);
+                        }
+
+                        @Override
+                        public float[] array(int index) {
+                            vectors.readRow(live[index], row, 0);
+                            return row;
+                        }
+
+                        @Override
+                        public int offset(int index) {
+                            return 0;
+                        }
+                    });
+            System.out.println("💾 VectorStore saved to: " + filePath + " (" + count + " vectors)");
+            return live;
 
         } catch (IOException e) {
             System.err.println("❌ Failed to save VectorStore: " + e.getMessage());
+            return null;
         }
     }
 
@@ -98,107 +405,276 @@ public class InMemoryVectorStore implements VectorStore {
                 return;
             }
 
-            File file = new File(filePath);
-            if (!file.exists()) {
+            Path file = Path.of(filePath);
+            if (!VectorSegment.exists(file)) {
                 System.out.println("📁 No storage file found: " + filePath);
                 return;
             }
 
-            Map<String, Object> storageData = objectMapper.readValue(file,
-                    new TypeReference<Map<String, Object>>() {});
-
-            List<Map<String, Object>> entries = (List<Map<String, Object>>) storageData.get("vectors");
-
-            vectors.clear();
-            for (Map<String, Object> entryMap : entries) {
-                String documentId = (String) entryMap.get("documentId");
-                String content = (String) entryMap.get("content");
-
-                // Handle float array (JSON array to float[])
-                List<Number> embeddingList = (List<Number>) entryMap.get("embedding");
-                float[] embedding = new float[embeddingList.size()];
-                for (int i = 0; i < embeddingList.size(); i++) {
-                    embedding[i] = embeddingList.get(i).floatValue();
+            synchronized (this) {
+                vectors.clear();
+                quantized = null;
+                quantizerTrainedOn = 0;
+
+                if (VectorSegment.isSegment(file)) {
+                    VectorSegment segment = VectorSegment.open(file);
+                    if (isInt8() && segment.isNormalized()) {
+                        // int8 scans read codes; the floats stay in the mapping for the rerank
+                        vectors.load(segment);
+                    } else {
+                        copyRows(segment);
+                    }
+                } else {
+                    loadLegacyJson(file.toFile());
                 }
-
-                vectors.put(documentId, new VectorEntry(documentId, content, embedding));
             }
 
             System.out.println("VectorStore loaded from: " + filePath + " (" + vectors.size() + " vectors)");
 
+            if (isInt8() && vectors.size() > 0) {
+                retrainQuantizer();
+            }
+
         } catch (IOException e) {
             System.err.println("❌ Failed to load VectorStore: " + e.getMessage());
         }
     }
 
+    private void copyRows(VectorSegment segment) {
+        float[] row = new float[segment.dimension()];
+        for (int i = 0; i < segment.count(); i++) {
+            segment.readRow(i, row, 0);
+            if (!segment.isNormalized()) {
+                VectorMath.normalizeInPlace(row);
+            }
+            // put() copies the row into the matrix, so the buffer is reused
+            vectors.put(segment.id(i), segment.content(i), row);
+        }
+    }
+
+    // JSON files written before the segment format; embeddings may predate normalization at ingest
+    private void loadLegacyJson(File file) throws IOException {
+        Map<String, Object> storageData = objectMapper.readValue(file,
+                new TypeReference<Map<String, Object>>() {});
+
+        List<Map<String, Object>> entries = (List<Map<String, Object>>) storageData.get("vectors");
+        boolean normalized = Boolean.TRUE.equals(storageData.get("normalized"));
+
+        for (Map<String, Object> entryMap : entries) {
+            String documentId = (String) entryMap.get("documentId");
+            String content = (String) entryMap.get("content");
+
+            // Handle float array (JSON array to float[])
+            List<Number> embeddingList = (List<Number>) entryMap.get("embedding");
+            float[] embedding = new float[embeddingList.size()];
+            for (int i = 0; i < embeddingList.size(); i++) {
+                embedding[i] = embeddingList.get(i).floatValue();
+            }
+
+            if (!normalized) {
+                VectorMath.normalizeInPlace(embedding);
+            }
+            vectors.put(documentId, content, embedding);
+        }
+    }
+
     @Override
     public int getVectorCount() {
-        return vectors.size();
+        return vectors.liveCount();
+    }
+
+    @Override
+    public int deleteDocument(String documentId) {
+        List<String> removed = new ArrayList<>();
+        synchronized (this) {
+            for (int ordinal : liveOrdinals()) {
+                String id = vectors.id(ordinal);
+                if (VectorStore.belongsToDocument(id, documentId)) {
+                    vectors.remove(id);
+                    removed.add(id);
+                }
+            }
+
+            if (persistenceEnabled && !removed.isEmpty()) {
+                persistDeletes(removed);
+            }
+        }
+        if (!removed.isEmpty()) {
+            System.out.println("🗑️ Deleted " + removed.size() + " chunks of " + documentId);
+        }
+        return removed.size();
+    }
+
+    private int[] liveOrdinals() {
+        int count = vectors.size();
+        int[] live = new int[count];
+        int n = 0;
+        for (int ordinal = 0; ordinal < count; ordinal++) {
+            if (!vectors.isDeleted(ordinal)) {
+                live[n++] = ordinal;
+            }
+        }
+        return Arrays.copyOf(live, n);
     }
 
     @Override
     public Map<String, String> getVectors() {
         Map<String, String> result = new HashMap<>();
-        for (VectorEntry entry : vectors.values()) {
-            result.put(entry.documentId, entry.content);
+        for (int ordinal : liveOrdinals()) {
+            result.put(vectors.id(ordinal), vectors.content(ordinal));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, String> getContents(Collection<String> ids) {
+        Map<String, String> result = new HashMap<>();
+        for (String id : ids) {
+            String content = getDocumentContent(id);
+            if (content != null) {
+                result.put(id, content);
+            }
         }
         return result;
     }
 
     @Override
     public void clear() {
-        vectors.clear();
-        if (persistenceEnabled) {
-            saveToStorage();
+        synchronized (this) {
+            vectors.clear();
+            quantized = null;
+            quantizerTrainedOn = 0;
+
+            if (persistenceEnabled) {
+                checkpoint();
+            }
         }
     }
 
     public boolean containsDocument(String documentId) {
-        return vectors.containsKey(documentId);
+        return vectors.ordinalOf(documentId) >= 0;
     }
 
     // Additional useful methods
     public List<String> getAllDocumentIds() {
-        return new ArrayList<>(vectors.keySet());
+        int[] live = liveOrdinals();
+        List<String> ids = new ArrayList<>(live.length);
+        for (int ordinal : live) {
+            ids.add(vectors.id(ordinal));
+        }
+        return ids;
     }
 
     public String getDocumentContent(String documentId) {
-        VectorEntry entry = vectors.get(documentId);
-        return entry != null ? entry.content : null;
+        int ordinal = vectors.ordinalOf(documentId);
+        return ordinal >= 0 ? vectors.content(ordinal) : null;
     }
 
     public float[] getDocumentEmbedding(String documentId) {
-        VectorEntry entry = vectors.get(documentId);
-        return entry != null ? entry.embedding : null;
+        if (!beginRead()) {
+            return null;
+        }
+        try {
+            int ordinal = vectors.ordinalOf(documentId);
+            return ordinal >= 0 ? vectors.copyRow(ordinal) : null;
+        } finally {
+            endRead();
+        }
     }
 
     // Helper methods
-    private void saveToStorage() {
-        saveToFile(storageFile);
+    /**
+     * @return false when the storage file could not be written
+     */
+    private synchronized boolean saveToStorage() {
+        int[] written = writeSegment(storageFile);
+        if (written == null) {
+            return false;
+        }
+        if (isInt8()) {
+            spillToStorage(written);
+        }
+        return true;
+    }
+
+    // Rows now in the storage file are read from its mapping from here on
+    private void spillToStorage(int[] written) {
+        try {
+            VectorSegment segment = VectorSegment.open(Path.of(storageFile));
+            vectors.spill(segment, written);
+        } catch (IOException e) {
+            System.err.println("❌ Failed to map " + storageFile + ", keeping its rows in memory: " + e.getMessage());
+        }
     }
 
     private void loadFromStorage() {
-        loadFromFile(storageFile);
+        if (storageFile == null || VectorSegment.exists(Path.of(storageFile))) {
+            loadFromFile(storageFile);
+            return;
+        }
+
+        // first start after the switch from JSON: import the old file once, then save a segment
+        Path legacy = Path.of(storageFile.replaceFirst("\\.seg$", ".json"));
+        if (!legacy.toString().equals(storageFile) && Files.exists(legacy)) {
+            loadFromFile(legacy.toString());
+            saveToStorage();
+            System.out.println("🔄 Migrated " + legacy + " to " + storageFile);
+        } else {
+            loadFromFile(storageFile);
+        }
     }
 
-    private float cosineSimilarity(float[] a, float[] b) {
-        float dotProduct = 0.0f;
-        float normA = 0.0f;
-        float normB = 0.0f;
+    private boolean isInt8() {
+        return "int8".equalsIgnoreCase(quantization);
+    }
 
-        for (int i = 0; i < a.length; i++) {
-            dotProduct += a[i] * b[i];
-            normA += a[i] * a[i];
-            normB += b[i] * b[i];
+    private synchronized void quantize(int ordinal) {
+        // Retrain whenever the corpus has doubled so the min/max ranges keep up with new data
+        if (quantized == null || vectors.size() >= quantizerTrainedOn * 2) {
+            retrainQuantizer();
+        } else {
+            quantized.encode(vectors, ordinal);
+        }
+    }
+
+    private synchronized void retrainQuantizer() {
+        int count = vectors.size();
+        if (count == 0) {
+            return;
         }
 
-        return dotProduct / (float)(Math.sqrt(normA) * Math.sqrt(normB));
+        // Encode into a fresh set of slabs so readers keep using the old codes until the swap
+        QuantizedRows trained = new QuantizedRows(ScalarQuantizer.train(vectors), VectorMatrix.DEFAULT_SLAB_ROWS);
+        for (int ordinal = 0; ordinal < count; ordinal++) {
+            trained.encode(vectors, ordinal);
+        }
+        quantized = trained;
+        quantizerTrainedOn = count;
+        System.out.println("🔢 Int8 quantizer trained on " + count + " vectors");
     }
 
     // Called when application shuts down
-    public void onShutdown() {
+    @PreDestroy
+    public synchronized void onShutdown() {
         if (persistenceEnabled) {
-            saveToStorage();
+            checkpoint();
+        }
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.err.println("❌ Failed to close vector log: " + e.getMessage());
+            }
+            log = null;
+        }
+        if (arena != null) {
+            // searches do not lock the store: turn new ones away and free the slabs after the last one
+            shutDown = true;
+            while (readers.get() > 0) {
+                Thread.onSpinWait();
+            }
+            vectors.close();
+            arena.close();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,1123 @@
+package backend.rag;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Compressed vector store using an inverted file with product quantization (IVF-PQ).
+ *
+ * Vectors are normalized and assigned to one of nlist coarse k-means centroids. The residual
+ * (vector minus centroid) is split into subspaces and each piece is replaced by the index of its
+ * closest codeword, so a 1536-dim chunk shrinks from 6 KB of floats to one byte per subspace.
+ *
+ * Queries only scan the nprobe closest lists and score codes with asymmetric distance
+ * computation: the query stays in full precision and one lookup table per subspace turns each
+ * code into a partial dot product. Optionally the best candidates are rescored exactly against
+ * the full vectors (set rerank to 0 to rank by codes alone).
+ *
+ * Only the codes live on the heap. Full vectors and texts are in ivfpq-vectors.seg, a
+ * {@link VectorSegment} that is memory-mapped, so a rerank reads just its candidates' rows; each
+ * checkpoint writes it as a new generation, since the previous one is still mapped.
+ * The model and the codes are in the binary ivfpq.codes, rows in segment order. Adds and deletes
+ * go to ivfpq.wal and are folded into both files every checkpointRecords records; until then the
+ * added rows keep their vector and text on the heap. Segment rows are ordinals: a checkpoint
+ * renumbers the live rows and drops the tombstoned ones from the inverted lists. Chunk metadata
+ * is kept by id in ivfpq-vectors.seg.meta, and filtered searches post-filter against it.
+ *
+ * Until trainingSize vectors have been added the store scans full vectors exactly; the
+ * quantizers are trained once that many chunks are available.
+ */
+public class IvfPqVectorStore implements VectorStore {
+
+    static final String VECTORS_FILE = "ivfpq-vectors.seg";
+    static final String CODES_FILE = "ivfpq.codes";
+    static final String LOG_FILE = "ivfpq.wal";
+    // the JSON index of earlier versions, migrated once
+    static final String LEGACY_INDEX_FILE = "ivfpq.json";
+
+    private static final int CODES_MAGIC = 0x51505649;   // "IVPQ" when read as little-endian bytes
+    // version 1 files have no id checksum; their model is kept and the rows are encoded again
+    private static final int CODES_VERSION = 2;
+
+    private static final int CODEBOOK_SIZE = 256;
+    private static final int KMEANS_ITERATIONS = 10;
+    private static final int MAX_POINTS_PER_CENTROID = 64;
+    private static final int MAX_PQ_TRAINING_POINTS = 4096;
+
+    private final int nlist;
+    private final int nprobe;
+    private final int subspaces;
+    private final int rerank;
+    private final int trainingSize;
+    private final Random random = new Random(42);
+
+    // trained model
+    private int dimension = -1;
+    private float[][] centroids;
+    private float[][][] codebooks;
+    private int[] subspaceStart;
+    private InvertedList[] lists;
+
+    // per-ordinal data; ordinals below segmentRows are the rows of the mapped segment
+    private final List<String> ids = new ArrayList<>();
+    private final List<String> contents = new ArrayList<>();  // null for rows in the segment
+    private final List<float[]> vectors = new ArrayList<>();  // unit vectors, null for rows in the segment
+    private int[] listOf = new int[16];      // inverted list holding each ordinal
+    private int[] positionOf = new int[16];  // slot inside that list
+    private final BitSet deleted = new BitSet();
+    private final Map<String, Integer> idToOrdinal = new HashMap<>();
+    // live chunk id -> metadata, for chunks added with any
+    private final Map<String, ChunkMetadata> metadata = new ConcurrentHashMap<>();
+    private VectorSegment segment;
+    private int segmentRows;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Path basePath;
+    private final Path vectorsFile;
+    private final Path codesFile;
+    private final Path flatSegmentFile;
+    private WriteAheadLog log;
+
+    public IvfPqVectorStore(String basePath, int nlist, int nprobe, int subspaces, int rerank, int trainingSize) {
+        this(basePath, nlist, nprobe, subspaces, rerank, trainingSize, WriteAheadLog.Policy.DEFAULT);
+    }
+
+    /**
+     * @param basePath     directory holding the ivfpq.* files
+     * @param nlist        number of coarse centroids (inverted lists)
+     * @param nprobe       lists scanned per query
+     * @param subspaces    PQ subspaces, i.e. bytes per stored vector
+     * @param rerank       candidates rescored with full vectors (0 = rank by codes only)
+     * @param trainingSize chunks collected before the quantizers are trained
+     * @param logPolicy    fsync and checkpoint settings of ivfpq.wal
+     */
+    public IvfPqVectorStore(String basePath, int nlist, int nprobe, int subspaces, int rerank, int trainingSize,
+                            WriteAheadLog.Policy logPolicy) {
+        if (nlist < 1 || nprobe < 1 || subspaces < 1) {
+            throw new IllegalArgumentException("IVF-PQ nlist, nprobe and subspaces must be positive");
+        }
+        this.nlist = nlist;
+        this.nprobe = Math.min(nprobe, nlist);
+        this.subspaces = subspaces;
+        this.rerank = Math.max(rerank, 0);
+        this.trainingSize = Math.max(trainingSize, Math.max(nlist, CODEBOOK_SIZE));
+        this.basePath = Path.of(basePath);
+        this.vectorsFile = this.basePath.resolve(VECTORS_FILE);
+        this.codesFile = this.basePath.resolve(CODES_FILE);
+        this.flatSegmentFile = this.basePath.resolve(PersistentVectorStore.SEGMENT_FILE);
+
+        Path legacy = this.basePath.resolve(LEGACY_INDEX_FILE);
+        if (VectorSegment.exists(vectorsFile)) {
+            loadIndex();
+        } else if (Files.exists(legacy)) {
+            migrateLegacyIndex(legacy);
+        } else {
+            PersistentVectorStore.migrateLegacyJson(mapper, this.basePath);
+            if (VectorSegment.exists(flatSegmentFile)) {
+                loadFromFile(flatSegmentFile.toString());
+            }
+        }
+        openLog(this.basePath.resolve(LOG_FILE), logPolicy);
+    }
+
+    @Override
+    public void addVector(String documentId, String content, float[] embedding) {
+        addVector(documentId, content, embedding, null);
+    }
+
+    @Override
+    public void addVector(String documentId, String content, float[] embedding, ChunkMetadata chunkMetadata) {
+        boolean checkpointDue;
+        lock.writeLock().lock();
+        try {
+            float[] unit = insert(documentId, content, embedding);
+            putMetadata(documentId, chunkMetadata);
+            if (!isTrained() && getLiveCount() >= trainingSize) {
+                train();
+            }
+            checkpointDue = log(() -> log.appendAdd(documentId, content, unit, chunkMetadata));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (checkpointDue) {
+            checkpoint();
+        }
+    }
+
+    @Override
+    public List<SearchResult> searchSimilar(float[] queryEmbedding, int topK) {
+        lock.readLock().lock();
+        try {
+            if (ids.isEmpty() || topK <= 0) {
+                return new ArrayList<>();
+            }
+            checkDimension(queryEmbedding);
+            float[] query = VectorMath.normalize(queryEmbedding);
+
+            TopKHeap best = isTrained() ? searchCompressed(query, topK) : searchExact(query, topK);
+            best.sortDescending();
+
+            List<SearchResult> results = new ArrayList<>(best.size());
+            for (int i = 0; i < best.size(); i++) {
+                int ordinal = best.ordinal(i);
+                results.add(new SearchResult(ids.get(ordinal), content(ordinal), best.score(i)));
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int deleteDocument(String documentId) {
+        List<String> removed = new ArrayList<>();
+        boolean checkpointDue = false;
+        lock.writeLock().lock();
+        try {
+            // only tombstoned; the codes leave their inverted lists at the next checkpoint
+            for (String id : new ArrayList<>(idToOrdinal.keySet())) {
+                if (VectorStore.belongsToDocument(id, documentId)) {
+                    tombstone(id);
+                    removed.add(id);
+                }
+            }
+            for (String id : removed) {
+                checkpointDue |= log(() -> log.appendDelete(id));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (checkpointDue) {
+            checkpoint();
+        }
+        if (!removed.isEmpty()) {
+            System.out.println("🗑️ Deleted " + removed.size() + " chunks of " + documentId);
+        }
+        return removed.size();
+    }
+
+    @Override
+    public int getVectorCount() {
+        lock.readLock().lock();
+        try {
+            return getLiveCount();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> getVectors() {
+        lock.readLock().lock();
+        try {
+            Map<String, String> result = new HashMap<>();
+            for (int ordinal = 0; ordinal < ids.size(); ordinal++) {
+                if (!deleted.get(ordinal)) {
+                    result.put(ids.get(ordinal), content(ordinal));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, ChunkMetadata> getMetadata() {
+        return Collections.unmodifiableMap(metadata);
+    }
+
+    @Override
+    public Map<String, String> getContents(Collection<String> wanted) {
+        lock.readLock().lock();
+        try {
+            Map<String, String> result = new HashMap<>();
+            for (String id : wanted) {
+                Integer ordinal = idToOrdinal.get(id);
+                if (ordinal != null && !deleted.get(ordinal)) {
+                    result.put(id, content(ordinal));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            reset();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        checkpoint();
+        System.out.println("🧹 Vector store cleared");
+    }
+
+    // persistence
+
+    /**
+     * Write the live rows to ivfpq-vectors.seg and their codes to ivfpq.codes, renumber them in
+     * segment order and empty the log. Writers wait meanwhile; a crash in between is harmless,
+     * since replaying the log over the new files only repeats the same adds and deletes.
+     */
+    public void checkpoint() {
+        lock.writeLock().lock();
+        try {
+            int[] live = liveOrdinals();
+            writeVectors(live);
+            PersistentVectorStore.writeMetadata(mapper, vectorsFile, metadata);
+            VectorSegment written = VectorSegment.open(vectorsFile);
+            renumber(live, written);
+            writeCodes(codesFile);
+            if (log != null) {
+                log.reset();
+            }
+        } catch (Exception e) {
+            System.err.println("❌ IVF-PQ checkpoint failed, keeping the log: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checkpoint and release the log; Spring calls this when the bean is destroyed.
+     */
+    public void close() {
+        checkpoint();
+        lock.writeLock().lock();
+        try {
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to close IVF-PQ log: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Export the live chunks as a flat vector segment, e.g. to switch back to the flat index.
+     */
+    @Override
+    public void saveToFile(String filePath) {
+        lock.readLock().lock();
+        try {
+            List<PersistentVectorStore.VectorEntry> entries = new ArrayList<>();
+            for (int ordinal : liveOrdinals()) {
+                entries.add(new PersistentVectorStore.VectorEntry(ids.get(ordinal), content(ordinal), fullVector(ordinal)));
+            }
+            PersistentVectorStore.writeSegment(Path.of(filePath), entries);
+            PersistentVectorStore.writeMetadata(mapper, Path.of(filePath), metadata);
+        } catch (Exception e) {
+            System.err.println("❌ Failed to save IVF-PQ vectors: " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the index with a flat vector segment (as written by {@link #saveToFile}) or an
+     * ivfpq.json file written by earlier versions, and checkpoint it.
+     */
+    @Override
+    public void loadFromFile(String filePath) {
+        try {
+            Path source = Path.of(filePath);
+            if (!VectorSegment.exists(source)) {
+                return;
+            }
+            if (VectorSegment.isSegment(source)) {
+                importSegment(source);
+            } else {
+                importLegacyIndex(mapper.readValue(source.toFile(), IndexFile.class));
+            }
+            System.out.println("📦 Loaded " + getVectorCount() + " vectors into IVF-PQ index" +
+                    (isTrained() ? " (" + lists.length + " lists, " + subspaces + " bytes/vector)" : " (not trained yet)"));
+            checkpoint();
+        } catch (Exception e) {
+            System.err.println("❌ Failed to load IVF-PQ index: " + e.getMessage());
+        }
+    }
+
+    private void importSegment(Path source) throws IOException {
+        Map<String, PersistentVectorStore.VectorEntry> loaded = PersistentVectorStore.readVectors(mapper, source);
+        PersistentVectorStore.readMetadata(mapper, source, loaded);
+        lock.writeLock().lock();
+        try {
+            reset();
+            for (PersistentVectorStore.VectorEntry entry : loaded.values()) {
+                insert(entry.id, entry.content, entry.embedding);
+                putMetadata(entry.id, entry.metadata);
+            }
+            if (!isTrained() && getLiveCount() >= trainingSize) {
+                train();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void importLegacyIndex(IndexFile file) {
+        lock.writeLock().lock();
+        try {
+            reset();
+            dimension = file.dimension;
+            if (file.centroids != null) {
+                setModel(file.centroids, file.codebooks, file.subspaceStart);
+            }
+
+            for (IndexEntry entry : file.entries) {
+                if (entry.embedding == null) {
+                    // dropped by rerank=0; the segment keeps the vector the codes approximate
+                    entry.embedding = decode(entry.list, entry.codes);
+                }
+                int ordinal = appendEntry(entry.id, entry.content, entry.embedding);
+                if (isTrained()) {
+                    byte[] entryCodes = entry.codes;
+                    int list = entry.list;
+                    if (entryCodes == null) {
+                        // written before training finished, encode it now
+                        list = nearestCentroid(entry.embedding);
+                        entryCodes = encodeResidual(entry.embedding, centroids[list]);
+                    }
+                    attachCodes(ordinal, list, entryCodes);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void migrateLegacyIndex(Path legacy) {
+        loadFromFile(legacy.toString());
+        try {
+            Files.move(legacy, legacy.resolveSibling(LEGACY_INDEX_FILE + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("🔄 Migrated " + legacy + " to " + VECTORS_FILE + " and " + CODES_FILE);
+        } catch (IOException e) {
+            System.err.println("❌ Failed to rename " + legacy + ": " + e.getMessage());
+        }
+    }
+
+    // Map the segment and read the codes; nothing but ids and codes is copied onto the heap
+    private void loadIndex() {
+        lock.writeLock().lock();
+        try {
+            VectorSegment loaded = VectorSegment.open(vectorsFile);
+            for (int row = 0; row < loaded.count(); row++) {
+                appendEntry(loaded.id(row), null, null);
+            }
+            segment = loaded;
+            segmentRows = loaded.count();
+            if (loaded.count() > 0) {
+                dimension = loaded.dimension();
+            }
+            // a crash after writing the segment can leave the metadata of an older one; the log
+            // still holds the newer adds and deletes
+            PersistentVectorStore.readMetadata(mapper, vectorsFile).forEach((id, value) -> {
+                if (idToOrdinal.containsKey(id)) {
+                    metadata.put(id, value);
+                }
+            });
+
+            boolean codesCurrent = readCodes(codesFile, ids);
+            if (isTrained() && !codesCurrent) {
+                // a crash between writing the two files: encode the rows again with the stored model
+                System.out.println("🔁 Re-encoding " + loaded.count() + " IVF-PQ rows");
+                encodeAll();
+            } else if (!isTrained() && getLiveCount() >= trainingSize) {
+                train();
+            }
+
+            System.out.println("📦 Loaded " + ids.size() + " vectors into IVF-PQ index" +
+                    (isTrained() ? " (" + lists.length + " lists, " + subspaces + " bytes/vector)" : " (not trained yet)"));
+        } catch (IOException e) {
+            System.err.println("❌ Failed to load IVF-PQ index: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Replay adds and deletes logged after the last checkpoint, then fold them in right away
+    private void openLog(Path logFile, WriteAheadLog.Policy policy) {
+        try {
+            log = new WriteAheadLog(logFile, policy);
+            int replayed;
+            lock.writeLock().lock();
+            try {
+                replayed = log.replay(new WriteAheadLog.Replayer() {
+                    @Override
+                    public void add(String id, String content, float[] embedding) {
+                        add(id, content, embedding, null);
+                    }
+
+                    @Override
+                    public void add(String id, String content, float[] embedding, ChunkMetadata chunkMetadata) {
+                        insert(id, content, embedding);
+                        putMetadata(id, chunkMetadata);
+                        if (!isTrained() && getLiveCount() >= trainingSize) {
+                            train();
+                        }
+                    }
+
+                    @Override
+                    public void delete(String id) {
+                        tombstone(id);
+                    }
+                });
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (replayed > 0) {
+                System.out.println("📜 Replayed " + replayed + " logged IVF-PQ records from " + logFile.getFileName());
+                checkpoint();
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to open " + logFile + ", checkpointing on every change: " + e.getMessage());
+            log = null;
+        }
+    }
+
+    private interface LogWrite {
+        void run() throws IOException;
+    }
+
+    // callers hold the write lock; true when the store should checkpoint once it is released
+    private boolean log(LogWrite write) {
+        if (log == null) {
+            return true;
+        }
+        try {
+            write.run();
+            return log.checkpointDue();
+        } catch (IOException e) {
+            System.err.println("❌ Failed to log IVF-PQ change, checkpointing instead: " + e.getMessage());
+            return true;
+        }
+    }
+
+    private void writeVectors(int[] live) throws IOException {
+        float[] row = new float[Math.max(dimension, 0)];
+        VectorSegment.write(vectorsFile, live.length, Math.max(dimension, 0), true, new VectorSegment.Rows() {
+            @Override
+            public String id(int index) {
+                return ids.get(live[index]);
+            }
+
+            @Override
+            public String content(int index) {
+                return IvfPqVectorStore.this.content(live[index]);
+            }
+
+            @Override
+            public float[] array(int index) {
+                int ordinal = live[index];
+                if (ordinal >= segmentRows) {
+                    return vectors.get(ordinal);
+                }
+                segment.readRow(ordinal, row, 0);
+                return row;
+            }
+
+            @Override
+            public int offset(int index) {
+                return 0;
+            }
+        });
+    }
+
+    // Layout (DataOutputStream): magic, version, dimension, rows, CRC32 of the segment's ids, centroid
+    // count (0 = untrained), subspaces; if trained the subspace bounds, centroids and codebooks, then
+    // list + codes per row
+    private void writeCodes(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(CODES_MAGIC);
+            out.writeInt(CODES_VERSION);
+            out.writeInt(dimension);
+            out.writeInt(segmentRows);
+            out.writeLong(idChecksum(ids.subList(0, segmentRows)));
+            out.writeInt(isTrained() ? centroids.length : 0);
+            out.writeInt(isTrained() ? codebooks.length : 0);
+            if (isTrained()) {
+                for (int bound : subspaceStart) {
+                    out.writeInt(bound);
+                }
+                for (float[] centroid : centroids) {
+                    writeFloats(out, centroid);
+                }
+                for (float[][] codebook : codebooks) {
+                    out.writeInt(codebook.length);
+                    for (float[] codeword : codebook) {
+                        writeFloats(out, codeword);
+                    }
+                }
+                for (int ordinal = 0; ordinal < segmentRows; ordinal++) {
+                    InvertedList list = lists[listOf[ordinal]];
+                    out.writeInt(listOf[ordinal]);
+                    out.write(list.codes, positionOf[ordinal] * list.codeSize, list.codeSize);
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the model and, when they were written for exactly these segment rows, the codes. The
+     * row count alone does not tell: a crash between writing the segment and the codes after as
+     * many deletes as adds leaves the old codes with the same count, so the ids' CRC is compared.
+     */
+    private boolean readCodes(Path file, List<String> segmentIds) throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            int version;
+            if (in.readInt() != CODES_MAGIC || (version = in.readInt()) < 1 || version > CODES_VERSION) {
+                throw new IOException(file + " is not an IVF-PQ codes file");
+            }
+            int storedDimension = in.readInt();
+            int storedRows = in.readInt();
+            boolean sameRows = version >= 2 && in.readLong() == idChecksum(segmentIds) && storedRows == segmentIds.size();
+            int centroidCount = in.readInt();
+            int parts = in.readInt();
+            if (dimension < 0) {
+                dimension = storedDimension;
+            }
+            if (centroidCount == 0) {
+                return sameRows;
+            }
+
+            int[] bounds = new int[parts + 1];
+            for (int s = 0; s <= parts; s++) {
+                bounds[s] = in.readInt();
+            }
+            float[][] trainedCentroids = new float[centroidCount][];
+            for (int c = 0; c < centroidCount; c++) {
+                trainedCentroids[c] = readFloats(in, storedDimension);
+            }
+            float[][][] trainedCodebooks = new float[parts][][];
+            for (int s = 0; s < parts; s++) {
+                trainedCodebooks[s] = new float[in.readInt()][];
+                for (int k = 0; k < trainedCodebooks[s].length; k++) {
+                    trainedCodebooks[s][k] = readFloats(in, bounds[s + 1] - bounds[s]);
+                }
+            }
+            setModel(trainedCentroids, trainedCodebooks, bounds);
+            if (!sameRows) {
+                return false;
+            }
+
+            byte[] rowCodes = new byte[parts];
+            for (int ordinal = 0; ordinal < storedRows; ordinal++) {
+                int list = in.readInt();
+                in.readFully(rowCodes);
+                attachCodes(ordinal, list, rowCodes);
+            }
+            return true;
+        }
+    }
+
+    private static long idChecksum(List<String> segmentIds) {
+        CRC32 crc = new CRC32();
+        for (String id : segmentIds) {
+            crc.update(id.getBytes(StandardCharsets.UTF_8));
+            crc.update(0);
+        }
+        return crc.getValue();
+    }
+
+    private static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+        for (float value : values) {
+            out.writeFloat(value);
+        }
+    }
+
+    private static float[] readFloats(DataInputStream in, int length) throws IOException {
+        float[] values = new float[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readFloat();
+        }
+        return values;
+    }
+
+    // indexing
+
+    private boolean isTrained() {
+        return centroids != null;
+    }
+
+    private int getLiveCount() {
+        return ids.size() - deleted.cardinality();
+    }
+
+    private int[] liveOrdinals() {
+        int[] live = new int[getLiveCount()];
+        int n = 0;
+        for (int ordinal = 0; ordinal < ids.size(); ordinal++) {
+            if (!deleted.get(ordinal)) {
+                live[n++] = ordinal;
+            }
+        }
+        return live;
+    }
+
+    private float[] fullVector(int ordinal) {
+        return ordinal < segmentRows ? segment.row(ordinal) : vectors.get(ordinal);
+    }
+
+    private float fullDot(int ordinal, float[] query) {
+        return ordinal < segmentRows ? segment.dot(ordinal, query) : VectorMath.dot(query, vectors.get(ordinal));
+    }
+
+    private String content(int ordinal) {
+        return ordinal < segmentRows ? segment.content(ordinal) : contents.get(ordinal);
+    }
+
+    private void reset() {
+        dimension = -1;
+        centroids = null;
+        codebooks = null;
+        subspaceStart = null;
+        lists = null;
+        ids.clear();
+        contents.clear();
+        vectors.clear();
+        deleted.clear();
+        idToOrdinal.clear();
+        metadata.clear();
+        segment = null;
+        segmentRows = 0;
+    }
+
+    private void setModel(float[][] trainedCentroids, float[][][] trainedCodebooks, int[] bounds) {
+        centroids = trainedCentroids;
+        codebooks = trainedCodebooks;
+        subspaceStart = bounds;
+        lists = new InvertedList[centroids.length];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = new InvertedList(subspaceStart.length - 1);
+        }
+    }
+
+    // The live rows are now the rows of {@code written}, in order: renumber them and drop the rest
+    private void renumber(int[] live, VectorSegment written) {
+        InvertedList[] relisted = null;
+        if (isTrained()) {
+            relisted = new InvertedList[lists.length];
+            for (int i = 0; i < relisted.length; i++) {
+                relisted[i] = new InvertedList(codebooks.length);
+            }
+        }
+        int[] newListOf = new int[Math.max(16, live.length * 2)];
+        int[] newPositionOf = new int[newListOf.length];
+        for (int row = 0; row < live.length; row++) {
+            int ordinal = live[row];
+            if (relisted != null) {
+                InvertedList list = lists[listOf[ordinal]];
+                newListOf[row] = listOf[ordinal];
+                newPositionOf[row] = relisted[listOf[ordinal]].add(row, list.codes, positionOf[ordinal] * list.codeSize);
+            }
+            ids.set(row, ids.get(ordinal));
+        }
+
+        ids.subList(live.length, ids.size()).clear();
+        contents.clear();
+        vectors.clear();
+        for (int row = 0; row < live.length; row++) {
+            contents.add(null);
+            vectors.add(null);
+        }
+        deleted.clear();
+        idToOrdinal.clear();
+        for (int row = 0; row < live.length; row++) {
+            idToOrdinal.put(ids.get(row), row);
+        }
+        if (relisted != null) {
+            lists = relisted;
+        }
+        listOf = newListOf;
+        positionOf = newPositionOf;
+        segment = written;
+        segmentRows = live.length;
+    }
+
+    private float[] insert(String id, String content, float[] embedding) {
+        if (dimension < 0) {
+            dimension = embedding.length;
+        }
+        checkDimension(embedding);
+
+        float[] unit = VectorMath.normalize(embedding);
+        int ordinal = appendEntry(id, content, unit);
+
+        if (isTrained()) {
+            int list = nearestCentroid(unit);
+            attachCodes(ordinal, list, encodeResidual(unit, centroids[list]));
+        }
+        return unit;
+    }
+
+    private void tombstone(String id) {
+        Integer ordinal = idToOrdinal.remove(id);
+        if (ordinal != null) {
+            deleted.set(ordinal);
+        }
+        metadata.remove(id);
+    }
+
+    // an add without metadata replaces the old chunk's as well
+    private void putMetadata(String id, ChunkMetadata chunkMetadata) {
+        if (chunkMetadata != null) {
+            metadata.put(id, chunkMetadata);
+        } else {
+            metadata.remove(id);
+        }
+    }
+
+    private int appendEntry(String id, String content, float[] unit) {
+        // Re-adding an id replaces it: the old ordinal is only tombstoned
+        Integer previous = idToOrdinal.get(id);
+        if (previous != null) {
+            deleted.set(previous);
+        }
+
+        int ordinal = ids.size();
+        ids.add(id);
+        contents.add(content);
+        vectors.add(unit);
+        idToOrdinal.put(id, ordinal);
+
+        if (ordinal == listOf.length) {
+            listOf = Arrays.copyOf(listOf, ordinal * 2);
+            positionOf = Arrays.copyOf(positionOf, ordinal * 2);
+        }
+        return ordinal;
+    }
+
+    private void attachCodes(int ordinal, int list, byte[] entryCodes) {
+        listOf[ordinal] = list;
+        positionOf[ordinal] = lists[list].add(ordinal, entryCodes, 0);
+    }
+
+    private void train() {
+        long start = System.currentTimeMillis();
+        System.out.println("🏋️ Training IVF-PQ quantizers on " + getLiveCount() + " vectors...");
+
+        int[] live = liveOrdinals();
+
+        // 1. Coarse quantizer
+        float[][] coarseSample = sample(live, nlist * MAX_POINTS_PER_CENTROID);
+        centroids = kMeans(coarseSample, Math.min(nlist, coarseSample.length));
+
+        // 2. Product quantizer on residuals
+        int parts = Math.min(subspaces, dimension);
+        subspaceStart = new int[parts + 1];
+        for (int s = 0; s <= parts; s++) {
+            subspaceStart[s] = (int) ((long) s * dimension / parts);
+        }
+
+        float[][] residualSample = sample(live, MAX_PQ_TRAINING_POINTS);
+        for (int i = 0; i < residualSample.length; i++) {
+            float[] centroid = centroids[nearestCentroid(residualSample[i])];
+            float[] residual = new float[dimension];
+            for (int d = 0; d < dimension; d++) {
+                residual[d] = residualSample[i][d] - centroid[d];
+            }
+            residualSample[i] = residual;
+        }
+
+        float[][][] trainedCodebooks = new float[parts][][];
+        for (int s = 0; s < parts; s++) {
+            int from = subspaceStart[s];
+            int width = subspaceStart[s + 1] - from;
+            float[][] slice = new float[residualSample.length][width];
+            for (int i = 0; i < residualSample.length; i++) {
+                System.arraycopy(residualSample[i], from, slice[i], 0, width);
+            }
+            trainedCodebooks[s] = kMeans(slice, Math.min(CODEBOOK_SIZE, slice.length));
+        }
+        setModel(centroids, trainedCodebooks, subspaceStart);
+
+        // 3. Encode everything collected so far
+        encodeAll();
+
+        System.out.println("✅ IVF-PQ trained in " + (System.currentTimeMillis() - start) + " ms (" +
+                centroids.length + " lists, " + parts + " bytes/vector)");
+    }
+
+    private void encodeAll() {
+        for (int ordinal = 0; ordinal < ids.size(); ordinal++) {
+            if (deleted.get(ordinal)) continue;
+            float[] unit = fullVector(ordinal);
+            int list = nearestCentroid(unit);
+            attachCodes(ordinal, list, encodeResidual(unit, centroids[list]));
+        }
+    }
+
+    private byte[] encodeResidual(float[] unit, float[] centroid) {
+        byte[] result = new byte[codebooks.length];
+        for (int s = 0; s < codebooks.length; s++) {
+            int from = subspaceStart[s];
+            int to = subspaceStart[s + 1];
+            int best = 0;
+            float bestDistance = Float.MAX_VALUE;
+            for (int k = 0; k < codebooks[s].length; k++) {
+                float[] codeword = codebooks[s][k];
+                float distance = 0;
+                for (int d = from; d < to; d++) {
+                    float diff = unit[d] - centroid[d] - codeword[d - from];
+                    distance += diff * diff;
+                }
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = k;
+                }
+            }
+            result[s] = (byte) best;
+        }
+        return result;
+    }
+
+    private float[] decode(int list, byte[] entryCodes) {
+        float[] vector = centroids[list].clone();
+        for (int s = 0; s < codebooks.length; s++) {
+            float[] codeword = codebooks[s][entryCodes[s] & 0xFF];
+            for (int d = subspaceStart[s]; d < subspaceStart[s + 1]; d++) {
+                vector[d] += codeword[d - subspaceStart[s]];
+            }
+        }
+        return vector;
+    }
+
+    private int nearestCentroid(float[] vector) {
+        return nearest(vector, centroids);
+    }
+
+    // searching
+
+    private TopKHeap searchExact(float[] query, int topK) {
+        TopKHeap best = new TopKHeap(topK);
+        for (int ordinal = 0; ordinal < ids.size(); ordinal++) {
+            if (deleted.get(ordinal)) continue;
+            best.offer(ordinal, fullDot(ordinal, query));
+        }
+        return best;
+    }
+
+    private TopKHeap searchCompressed(float[] query, int topK) {
+        // Lists to probe: the nprobe centroids closest to the query
+        float[] centroidScores = new float[centroids.length];
+        float[] centroidDistances = new float[centroids.length];
+        Integer[] order = new Integer[centroids.length];
+        for (int c = 0; c < centroids.length; c++) {
+            centroidScores[c] = VectorMath.dot(query, centroids[c]);
+            centroidDistances[c] = squaredDistance(query, centroids[c]);
+            order[c] = c;
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(centroidDistances[a], centroidDistances[b]));
+
+        // Asymmetric distance lookup table: partial dot product of the query with every codeword
+        float[][] table = new float[codebooks.length][];
+        for (int s = 0; s < codebooks.length; s++) {
+            int from = subspaceStart[s];
+            int width = subspaceStart[s + 1] - from;
+            table[s] = new float[codebooks[s].length];
+            for (int k = 0; k < codebooks[s].length; k++) {
+                float[] codeword = codebooks[s][k];
+                float sum = 0;
+                for (int d = 0; d < width; d++) {
+                    sum += query[from + d] * codeword[d];
+                }
+                table[s][k] = sum;
+            }
+        }
+
+        boolean exactRerank = rerank > 0;
+        int shortlist = exactRerank ? Math.max(rerank, topK) : topK;
+        TopKHeap best = new TopKHeap(shortlist);
+
+        int probes = Math.min(nprobe, centroids.length);
+        for (int p = 0; p < probes; p++) {
+            int list = order[p];
+            InvertedList inverted = lists[list];
+            float base = centroidScores[list];
+            byte[] listCodes = inverted.codes;
+            int width = codebooks.length;
+
+            for (int i = 0; i < inverted.size; i++) {
+                int ordinal = inverted.ordinals[i];
+                if (deleted.get(ordinal)) continue;
+
+                float score = base;
+                int offset = i * width;
+                for (int s = 0; s < width; s++) {
+                    score += table[s][listCodes[offset + s] & 0xFF];
+                }
+                best.offer(ordinal, score);
+            }
+        }
+
+        if (!exactRerank) {
+            return best;
+        }
+
+        // the shortlist's rows are read from the mapped segment, or the heap for rows not yet in it
+        TopKHeap reranked = new TopKHeap(topK);
+        for (int i = 0; i < best.size(); i++) {
+            int ordinal = best.ordinal(i);
+            reranked.offer(ordinal, fullDot(ordinal, query));
+        }
+        return reranked;
+    }
+
+    // k-means and vector math
+
+    private float[][] sample(int[] ordinals, int max) {
+        List<Integer> picks = new ArrayList<>(ordinals.length);
+        for (int ordinal : ordinals) {
+            picks.add(ordinal);
+        }
+        if (picks.size() > max) {
+            Collections.shuffle(picks, random);
+            picks = picks.subList(0, max);
+        }
+        float[][] result = new float[picks.size()][];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = fullVector(picks.get(i)).clone();
+        }
+        return result;
+    }
+
+    private float[][] kMeans(float[][] data, int k) {
+        int width = data[0].length;
+        float[][] means = new float[k][];
+
+        // Initialise from distinct random points
+        List<Integer> picks = new ArrayList<>();
+        for (int i = 0; i < data.length; i++) picks.add(i);
+        Collections.shuffle(picks, random);
+        for (int c = 0; c < k; c++) {
+            means[c] = data[picks.get(c)].clone();
+        }
+
+        int[] assignment = new int[data.length];
+        for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+            for (int i = 0; i < data.length; i++) {
+                assignment[i] = nearest(data[i], means);
+            }
+
+            float[][] sums = new float[k][width];
+            int[] counts = new int[k];
+            for (int i = 0; i < data.length; i++) {
+                int c = assignment[i];
+                counts[c]++;
+                for (int d = 0; d < width; d++) {
+                    sums[c][d] += data[i][d];
+                }
+            }
+
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) {
+                    // Empty cluster: restart it on a random point
+                    means[c] = data[random.nextInt(data.length)].clone();
+                    continue;
+                }
+                for (int d = 0; d < width; d++) {
+                    sums[c][d] /= counts[c];
+                }
+                means[c] = sums[c];
+            }
+        }
+        return means;
+    }
+
+    private static int nearest(float[] vector, float[][] candidates) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < candidates.length; c++) {
+            float distance = squaredDistance(vector, candidates[c]);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static float squaredDistance(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < b.length; i++) {
+            float diff = a[i] - b[i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    private void checkDimension(float[] embedding) {
+        if (dimension >= 0 && embedding.length != dimension) {
+            throw new IllegalArgumentException(
+                    "Embedding has " + embedding.length + " dimensions but the IVF-PQ index expects " + dimension);
+        }
+    }
+
+    // helper types
+
+    private static class InvertedList {
+        final int codeSize;
+        int[] ordinals = new int[16];
+        byte[] codes;
+        int size;
+
+        InvertedList(int codeSize) {
+            this.codeSize = codeSize;
+            this.codes = new byte[16 * codeSize];
+        }
+
+        // codeSize bytes of source starting at from
+        int add(int ordinal, byte[] source, int from) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                codes = Arrays.copyOf(codes, size * 2 * codeSize);
+            }
+            ordinals[size] = ordinal;
+            System.arraycopy(source, from, codes, size * codeSize, codeSize);
+            return size++;
+        }
+    }
+
+    // JSON layout of ivfpq.json (read-only, superseded by ivfpq-vectors.seg and ivfpq.codes)
+    static class IndexFile {
+        public int dimension = -1;
+        public float[][] centroids;
+        public float[][][] codebooks;
+        public int[] subspaceStart;
+        public List<IndexEntry> entries = new ArrayList<>();
+    }
+
+    static class IndexEntry {
+        public String id;
+        public String content;
+        public float[] embedding;  // only present before training or when rerank is enabled
+        public int list = -1;
+        public byte[] codes;
+    }
+}
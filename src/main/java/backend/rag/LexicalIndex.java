@@ -0,0 +1,432 @@
+package backend.rag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-process BM25 index over the chunk text of a vector store.
+ *
+ * Terms come from {@link CodeAwareTokenizer}, so identifiers such as {@code cout}, {@code int*}
+ * or {@code std::vector} are matched exactly instead of through the embedding of a one-word
+ * question. Every chunk gets an ordinal; a term keeps a posting list of (ordinal, term frequency,
+ * code line) in ordinal order plus the number of chunks that use it on a code line, which is how
+ * {@link #isIdentifierLookup} tells {@code cout} from an ordinary word. Deletes mark ordinals dead
+ * and the postings are compacted once a quarter of them are dead.
+ *
+ * The index keeps chunk ids, not text: the top-K texts are read back from the store. It is built
+ * from the store on the first search, so nothing is tokenized at startup or kept in memory while
+ * retrieval is vector-only; until then {@link #add} and {@link #removeDocument} do nothing, the
+ * build picks their chunks up from the store.
+ *
+ * Lexical scores are not cosine similarities; results carry the BM25 score divided by the best
+ * score of the query, so the top hit is 1.0 and the rest are relative to it.
+ */
+public final class LexicalIndex {
+
+    private static final double COMPACT_DELETED_RATIO = 0.25;
+
+    private static final String[] QUESTION_PREFIXES = {
+            "what is the", "what is a", "what is", "what's", "what are", "what does", "explain",
+            "define", "how do i use", "how to use", "how does", "meaning of", "usage of", "use of"};
+    private static final String[] QUESTION_SUFFIXES = {
+            "do", "does", "mean", "means", "work", "works", "used for", "for"};
+
+    private static final class Postings {
+        int[] ordinals = new int[4];
+        int[] frequencies = new int[4];
+        boolean[] code = new boolean[4];
+        int size;
+        int codeChunks;
+
+        void add(int ordinal, int frequency, boolean onCodeLine) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+                code = Arrays.copyOf(code, size * 2);
+            }
+            ordinals[size] = ordinal;
+            frequencies[size] = frequency;
+            code[size] = onCodeLine;
+            size++;
+            if (onCodeLine) {
+                codeChunks++;
+            }
+        }
+    }
+
+    private final double k1;
+    private final double b;
+    private final VectorStore store;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean built;
+
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private List<String> ids = new ArrayList<>();
+    private List<ChunkMetadata> metadata = new ArrayList<>();
+    private int[] lengths = new int[16];
+    private boolean[] deleted = new boolean[16];
+    private long totalLength;
+    private int deletedCount;
+
+    /**
+     * @param store the vector store whose chunks are indexed and whose texts results carry
+     */
+    public LexicalIndex(double k1, double b, VectorStore store) {
+        if (k1 < 0 || b < 0 || b > 1) {
+            throw new IllegalArgumentException("BM25 needs k1 >= 0 and 0 <= b <= 1, got k1=" + k1 + ", b=" + b);
+        }
+        this.k1 = k1;
+        this.b = b;
+        this.store = store;
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    // Index every chunk of the store once. Adds and deletes wait for the write lock, so a chunk
+    // stored while the build reads the store is still indexed by its own add afterwards
+    private void ensureBuilt() {
+        if (built) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (built) {
+                return;
+            }
+            Map<String, ChunkMetadata> storedMetadata = store.getMetadata();
+            for (Map.Entry<String, String> chunk : store.getVectors().entrySet()) {
+                index(chunk.getKey(), chunk.getValue(), storedMetadata.get(chunk.getKey()));
+            }
+            built = true;
+            System.out.println("🔤 Lexical index: " + ordinals.size() + " chunks, " + terms.size() + " terms");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Index a chunk that was just added to the store, replacing an earlier chunk with the same id.
+     */
+    public void add(String chunkId, String content, ChunkMetadata chunkMetadata) {
+        lock.writeLock().lock();
+        try {
+            if (built) {
+                index(chunkId, content, chunkMetadata);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // callers hold the write lock
+    private void index(String chunkId, String content, ChunkMetadata chunkMetadata) {
+        Map<String, int[]> frequencies = new HashMap<>();
+        int[] length = {0};
+        CodeAwareTokenizer.tokenize(content, (term, code) -> {
+            int[] counts = frequencies.computeIfAbsent(term, t -> new int[2]);
+            counts[0]++;
+            if (code) {
+                counts[1] = 1;
+            }
+            length[0]++;
+        });
+
+        Integer previous = ordinals.get(chunkId);
+        if (previous != null) {
+            markDeleted(previous);
+        }
+        int ordinal = ids.size();
+        ids.add(chunkId);
+        metadata.add(chunkMetadata);
+        if (ordinal == lengths.length) {
+            lengths = Arrays.copyOf(lengths, ordinal * 2);
+            deleted = Arrays.copyOf(deleted, ordinal * 2);
+        }
+        lengths[ordinal] = length[0];
+        totalLength += length[0];
+        ordinals.put(chunkId, ordinal);
+        for (Map.Entry<String, int[]> term : frequencies.entrySet()) {
+            terms.computeIfAbsent(term.getKey(), t -> new Postings())
+                    .add(ordinal, term.getValue()[0], term.getValue()[1] == 1);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Remove every chunk of a document, see {@link VectorStore#belongsToDocument}.
+     *
+     * @return number of chunks removed
+     */
+    public int removeDocument(String documentId) {
+        lock.writeLock().lock();
+        try {
+            if (!built) {
+                return 0;
+            }
+            List<Integer> matches = new ArrayList<>();
+            for (Map.Entry<String, Integer> entry : ordinals.entrySet()) {
+                if (VectorStore.belongsToDocument(entry.getKey(), documentId)) {
+                    matches.add(entry.getValue());
+                }
+            }
+            for (int ordinal : matches) {
+                markDeleted(ordinal);
+            }
+            compactIfNeeded();
+            return matches.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            terms.clear();
+            ordinals.clear();
+            ids = new ArrayList<>();
+            metadata = new ArrayList<>();
+            lengths = new int[16];
+            deleted = new boolean[16];
+            totalLength = 0;
+            deletedCount = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ordinals.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getTermCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * BM25 top-K among the chunks matching {@code filter} (null = all chunks). Scores are relative
+     * to the best hit, which scores 1.0, and are not vector similarities.
+     */
+    public List<SearchResult> search(String query, int topK, MetadataFilter filter) {
+        Set<String> queryTerms = new LinkedHashSet<>(CodeAwareTokenizer.tokenize(query));
+        List<SearchResult> results = new ArrayList<>();
+        if (queryTerms.isEmpty() || topK <= 0) {
+            return results;
+        }
+        ensureBuilt();
+
+        String[] winners;
+        float[] scores;
+        lock.readLock().lock();
+        try {
+            int live = ids.size() - deletedCount;
+            if (live == 0) {
+                return results;
+            }
+            double averageLength = Math.max(1.0, (double) totalLength / live);
+
+            List<Postings> lists = new ArrayList<>();
+            List<Double> idfs = new ArrayList<>();
+            for (String term : queryTerms) {
+                Postings postings = terms.get(term);
+                if (postings != null) {
+                    lists.add(postings);
+                    // postings still count dead chunks until the next compaction, keep idf positive
+                    idfs.add(Math.max(Math.log(1 + (live - postings.size + 0.5) / (postings.size + 0.5)), 1e-3));
+                }
+            }
+
+            // postings are in ordinal order, so merging them visits each matching chunk once
+            // with its full score and needs no per-chunk scratch arrays
+            int[] cursors = new int[lists.size()];
+            TopKHeap heap = new TopKHeap(topK);
+            while (true) {
+                int ordinal = Integer.MAX_VALUE;
+                for (int t = 0; t < cursors.length; t++) {
+                    Postings postings = lists.get(t);
+                    if (cursors[t] < postings.size) {
+                        ordinal = Math.min(ordinal, postings.ordinals[cursors[t]]);
+                    }
+                }
+                if (ordinal == Integer.MAX_VALUE) {
+                    break;
+                }
+                double score = 0;
+                for (int t = 0; t < cursors.length; t++) {
+                    Postings postings = lists.get(t);
+                    if (cursors[t] < postings.size && postings.ordinals[cursors[t]] == ordinal) {
+                        int tf = postings.frequencies[cursors[t]++];
+                        double norm = k1 * (1 - b + b * lengths[ordinal] / averageLength);
+                        score += idfs.get(t) * tf * (k1 + 1) / (tf + norm);
+                    }
+                }
+                if (!deleted[ordinal] && (filter == null || filter.matches(metadata.get(ordinal)))) {
+                    heap.offer(ordinal, (float) score);
+                }
+            }
+            heap.sortDescending();
+
+            winners = new String[heap.size()];
+            scores = new float[heap.size()];
+            for (int i = 0; i < heap.size(); i++) {
+                winners[i] = ids.get(heap.ordinal(i));
+                scores[i] = heap.score(i);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Map<String, String> contents = store.getContents(Arrays.asList(winners));
+        float best = winners.length > 0 ? scores[0] : 0;
+        for (int i = 0; i < winners.length; i++) {
+            String content = contents.get(winners[i]);
+            // deleted from the store after this search read the postings
+            if (content != null) {
+                results.add(new SearchResult(winners[i], content, scores[i] / best, false));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * True when the question is just a name to look up ("cout", "what is int*", "std::vector?"),
+     * so exact term matches answer it better than the embedding of the sentence. Plain words count
+     * as identifiers only when most chunks that use them use them on code lines.
+     */
+    public boolean isIdentifierLookup(String query) {
+        String core = stripQuestion(query);
+        if (core.isEmpty() || core.chars().anyMatch(Character::isWhitespace)) {
+            return false;
+        }
+        boolean hasLetter = core.chars().anyMatch(Character::isLetter);
+        if (!hasLetter) {
+            // bare operators such as << or ->
+            return CodeAwareTokenizer.tokenize(core).size() == 1;
+        }
+        if (core.matches(".*[*&:#<>()\\[\\]_].*") || CodeAwareTokenizer.isCodeShaped(core)) {
+            return true;
+        }
+
+        String term = core.toLowerCase(Locale.ROOT);
+        if (CodeAwareTokenizer.isStopWord(term)) {
+            return false;
+        }
+        ensureBuilt();
+        lock.readLock().lock();
+        try {
+            Postings postings = terms.get(term);
+            return postings != null && postings.codeChunks * 2 >= postings.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static String stripQuestion(String query) {
+        String core = query == null ? "" : query.trim();
+        core = core.replaceAll("[?.!]+$", "").trim();
+        if (core.length() >= 2 && (core.charAt(0) == '`' || core.charAt(0) == '"')
+                && core.charAt(core.length() - 1) == core.charAt(0)) {
+            core = core.substring(1, core.length() - 1).trim();
+        }
+
+        String lower = core.toLowerCase(Locale.ROOT);
+        for (String prefix : QUESTION_PREFIXES) {
+            if (lower.startsWith(prefix + " ")) {
+                core = core.substring(prefix.length()).trim();
+                lower = core.toLowerCase(Locale.ROOT);
+                break;
+            }
+        }
+        for (String suffix : QUESTION_SUFFIXES) {
+            if (lower.endsWith(" " + suffix)) {
+                core = core.substring(0, core.length() - suffix.length()).trim();
+                break;
+            }
+        }
+        // "int *" and "int &" name the same type as "int*" and "int&"
+        return core.replace("`", "").replaceAll("\\s+(?=[*&]+$)", "");
+    }
+
+    private void markDeleted(int ordinal) {
+        if (deleted[ordinal]) {
+            return;
+        }
+        deleted[ordinal] = true;
+        deletedCount++;
+        totalLength -= lengths[ordinal];
+        ordinals.remove(ids.get(ordinal));
+    }
+
+    // Drop dead ordinals from the postings and renumber the live ones, keeping their order
+    private void compactIfNeeded() {
+        if (deletedCount == 0 || deletedCount < COMPACT_DELETED_RATIO * ids.size()) {
+            return;
+        }
+        int[] remap = new int[ids.size()];
+        List<String> liveIds = new ArrayList<>(ids.size() - deletedCount);
+        List<ChunkMetadata> liveMetadata = new ArrayList<>(ids.size() - deletedCount);
+        int[] liveLengths = new int[Math.max(16, ids.size() - deletedCount)];
+        for (int ordinal = 0; ordinal < ids.size(); ordinal++) {
+            if (deleted[ordinal]) {
+                remap[ordinal] = -1;
+                continue;
+            }
+            remap[ordinal] = liveIds.size();
+            liveLengths[liveIds.size()] = lengths[ordinal];
+            liveIds.add(ids.get(ordinal));
+            liveMetadata.add(metadata.get(ordinal));
+        }
+
+        Iterator<Postings> lists = terms.values().iterator();
+        while (lists.hasNext()) {
+            Postings postings = lists.next();
+            Postings live = new Postings();
+            for (int p = 0; p < postings.size; p++) {
+                int ordinal = remap[postings.ordinals[p]];
+                if (ordinal >= 0) {
+                    live.add(ordinal, postings.frequencies[p], postings.code[p]);
+                }
+            }
+            if (live.size == 0) {
+                lists.remove();
+            } else {
+                postings.ordinals = live.ordinals;
+                postings.frequencies = live.frequencies;
+                postings.code = live.code;
+                postings.size = live.size;
+                postings.codeChunks = live.codeChunks;
+            }
+        }
+
+        ids = liveIds;
+        metadata = liveMetadata;
+        lengths = liveLengths;
+        deleted = new boolean[liveLengths.length];
+        deletedCount = 0;
+        ordinals.clear();
+        for (int ordinal = 0; ordinal < ids.size(); ordinal++) {
+            ordinals.put(ids.get(ordinal), ordinal);
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package backend.rag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Boolean expression over chunk metadata, e.g. {@code module = "Module 1" AND page >= 3}.
+ *
+ * A filter can be checked row by row against {@link ChunkMetadata} (scan-then-filter) or
+ * evaluated against a {@link MetadataIndex} into a bitmap of matching ordinals (filter-first).
+ * {@link #estimate} gives an upper bound on the number of matches from posting list sizes
+ * alone, which is what the store's planner uses to pick between the two.
+ *
+ * Grammar of {@link #parse}: {@code expr := and (OR and)*}, {@code and := atom (AND atom)*},
+ * {@code atom := ( expr ) | field op value}, with op one of {@code = < <= > >=} (comparisons
+ * only for page) and values either bare words or double-quoted strings.
+ */
+public abstract class MetadataFilter {
+
+    public abstract boolean matches(ChunkMetadata metadata);
+
+    /**
+     * @return upper bound on the number of ordinals below {@code limit} that match
+     */
+    public abstract long estimate(MetadataIndex index, int limit);
+
+    /**
+     * @return bitmap of the matching ordinals below {@code limit}, (limit + 63) / 64 words long
+     */
+    public abstract long[] evaluate(MetadataIndex index, int limit);
+
+    /**
+     * @return the modules matching chunks can belong to (a null element stands for chunks without a
+     *         module), or null when matches may come from any module
+     */
+    public Set<String> candidateModules() {
+        return null;
+    }
+
+    // factories
+
+    public static MetadataFilter eq(String field, String value) {
+        return new Eq(checkField(field), value);
+    }
+
+    /**
+     * Chunks without a value in {@code field}, e.g. chunks ingested before modules were recorded.
+     */
+    public static MetadataFilter missing(String field) {
+        return new Missing(checkField(field));
+    }
+
+    /**
+     * Chunks of {@code module} plus the chunks that belong to no module, which are shared by all
+     * modules (documents uploaded without one, or stored before modules were recorded).
+     */
+    public static MetadataFilter moduleOrShared(String module) {
+        return or(eq(ChunkMetadata.MODULE, module), missing(ChunkMetadata.MODULE));
+    }
+
+    public static MetadataFilter pageRange(int min, int max) {
+        return new PageRange(min, max);
+    }
+
+    public static MetadataFilter and(MetadataFilter... filters) {
+        return filters.length == 1 ? filters[0] : new And(Arrays.asList(filters));
+    }
+
+    public static MetadataFilter or(MetadataFilter... filters) {
+        return filters.length == 1 ? filters[0] : new Or(Arrays.asList(filters));
+    }
+
+    public static MetadataFilter parse(String expression) {
+        Parser parser = new Parser(expression);
+        MetadataFilter filter = parser.orExpression();
+        if (parser.peek() != null) {
+            throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in filter: " + expression);
+        }
+        return filter;
+    }
+
+    static long[] words(int limit) {
+        return new long[(limit + 63) >>> 6];
+    }
+
+    private static String join(List<MetadataFilter> filters, String separator) {
+        StringBuilder text = new StringBuilder("(");
+        for (int i = 0; i < filters.size(); i++) {
+            text.append(i > 0 ? separator : "").append(filters.get(i));
+        }
+        return text.append(')').toString();
+    }
+
+    private static String checkField(String field) {
+        if (!ChunkMetadata.isField(field)) {
+            throw new IllegalArgumentException("Unknown metadata field: " + field);
+        }
+        return field;
+    }
+
+    // expressions
+
+    private static final class Eq extends MetadataFilter {
+        final String field;
+        final String value;
+
+        Eq(String field, String value) {
+            this.field = field;
+            this.value = value;
+        }
+
+        @Override
+        public boolean matches(ChunkMetadata metadata) {
+            return metadata != null && value.equals(metadata.value(field));
+        }
+
+        @Override
+        public long estimate(MetadataIndex index, int limit) {
+            OrdinalSet postings = index.postings(field, value);
+            return postings == null ? 0 : Math.min(postings.size(), limit);
+        }
+
+        @Override
+        public long[] evaluate(MetadataIndex index, int limit) {
+            long[] bits = words(limit);
+            OrdinalSet postings = index.postings(field, value);
+            if (postings != null) {
+                postings.orInto(bits, limit);
+            }
+            return bits;
+        }
+
+        @Override
+        public Set<String> candidateModules() {
+            return ChunkMetadata.MODULE.equals(field) ? Collections.singleton(value) : null;
+        }
+
+        @Override
+        public String toString() {
+            return field + " = \"" + value + "\"";
+        }
+    }
+
+    private static final class Missing extends MetadataFilter {
+        final String field;
+
+        Missing(String field) {
+            this.field = field;
+        }
+
+        @Override
+        public boolean matches(ChunkMetadata metadata) {
+            return metadata == null || metadata.value(field) == null;
+        }
+
+        @Override
+        public long estimate(MetadataIndex index, int limit) {
+            OrdinalSet postings = index.missing(field);
+            return postings == null ? 0 : Math.min(postings.size(), limit);
+        }
+
+        @Override
+        public long[] evaluate(MetadataIndex index, int limit) {
+            long[] bits = words(limit);
+            OrdinalSet postings = index.missing(field);
+            if (postings != null) {
+                postings.orInto(bits, limit);
+            }
+            return bits;
+        }
+
+        @Override
+        public Set<String> candidateModules() {
+            return ChunkMetadata.MODULE.equals(field) ? Collections.singleton(null) : null;
+        }
+
+        @Override
+        public String toString() {
+            return field + " is missing";
+        }
+    }
+
+    private static final class PageRange extends MetadataFilter {
+        final int min;
+        final int max;
+
+        PageRange(int min, int max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        public boolean matches(ChunkMetadata metadata) {
+            return metadata != null && metadata.page != ChunkMetadata.NO_PAGE
+                    && metadata.page >= min && metadata.page <= max;
+        }
+
+        @Override
+        public long estimate(MetadataIndex index, int limit) {
+            long total = 0;
+            for (String page : index.values(ChunkMetadata.PAGE)) {
+                if (inRange(page)) {
+                    total += index.postings(ChunkMetadata.PAGE, page).size();
+                }
+            }
+            return Math.min(total, limit);
+        }
+
+        @Override
+        public long[] evaluate(MetadataIndex index, int limit) {
+            long[] bits = words(limit);
+            for (String page : index.values(ChunkMetadata.PAGE)) {
+                if (inRange(page)) {
+                    index.postings(ChunkMetadata.PAGE, page).orInto(bits, limit);
+                }
+            }
+            return bits;
+        }
+
+        private boolean inRange(String page) {
+            int value = Integer.parseInt(page);
+            return value >= min && value <= max;
+        }
+
+        @Override
+        public String toString() {
+            return "page in [" + min + ", " + max + "]";
+        }
+    }
+
+    private static final class And extends MetadataFilter {
+        final List<MetadataFilter> filters;
+
+        And(List<MetadataFilter> filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        public boolean matches(ChunkMetadata metadata) {
+            for (MetadataFilter filter : filters) {
+                if (!filter.matches(metadata)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public long estimate(MetadataIndex index, int limit) {
+            long best = limit;
+            for (MetadataFilter filter : filters) {
+                best = Math.min(best, filter.estimate(index, limit));
+            }
+            return best;
+        }
+
+        @Override
+        public long[] evaluate(MetadataIndex index, int limit) {
+            long[] bits = null;
+            for (MetadataFilter filter : filters) {
+                long[] next = filter.evaluate(index, limit);
+                if (bits == null) {
+                    bits = next;
+                } else {
+                    for (int w = 0; w < bits.length; w++) {
+                        bits[w] &= next[w];
+                    }
+                }
+            }
+            return bits != null ? bits : words(limit);
+        }
+
+        @Override
+        public Set<String> candidateModules() {
+            Set<String> modules = null;
+            for (MetadataFilter filter : filters) {
+                Set<String> next = filter.candidateModules();
+                if (next != null) {
+                    if (modules == null) {
+                        modules = new HashSet<>(next);
+                    } else {
+                        modules.retainAll(next);
+                    }
+                }
+            }
+            return modules;
+        }
+
+        @Override
+        public String toString() {
+            return join(filters, " AND ");
+        }
+    }
+
+    private static final class Or extends MetadataFilter {
+        final List<MetadataFilter> filters;
+
+        Or(List<MetadataFilter> filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        public boolean matches(ChunkMetadata metadata) {
+            for (MetadataFilter filter : filters) {
+                if (filter.matches(metadata)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public long estimate(MetadataIndex index, int limit) {
+            long total = 0;
+            for (MetadataFilter filter : filters) {
+                total += filter.estimate(index, limit);
+            }
+            return Math.min(total, limit);
+        }
+
+        @Override
+        public long[] evaluate(MetadataIndex index, int limit) {
+            long[] bits = words(limit);
+            for (MetadataFilter filter : filters) {
+                long[] next = filter.evaluate(index, limit);
+                for (int w = 0; w < bits.length; w++) {
+                    bits[w] |= next[w];
+                }
+            }
+            return bits;
+        }
+
+        @Override
+        public Set<String> candidateModules() {
+            Set<String> modules = new HashSet<>();
+            for (MetadataFilter filter : filters) {
+                Set<String> next = filter.candidateModules();
+                if (next == null) {
+                    return null;
+                }
+                modules.addAll(next);
+            }
+            return modules;
+        }
+
+        @Override
+        public String toString() {
+            return join(filters, " OR ");
+        }
+    }
+
+    // recursive-descent parser over a simple tokenizer
+
+    private static final class Parser {
+        private final String source;
+        private final List<String> tokens = new ArrayList<>();
+        private int position = 0;
+
+        Parser(String source) {
+            this.source = source;
+            tokenize(source);
+        }
+
+        MetadataFilter orExpression() {
+            List<MetadataFilter> terms = new ArrayList<>();
+            terms.add(andExpression());
+            while ("OR".equalsIgnoreCase(peek())) {
+                position++;
+                terms.add(andExpression());
+            }
+            return or(terms.toArray(new MetadataFilter[0]));
+        }
+
+        MetadataFilter andExpression() {
+            List<MetadataFilter> terms = new ArrayList<>();
+            terms.add(atom());
+            while ("AND".equalsIgnoreCase(peek())) {
+                position++;
+                terms.add(atom());
+            }
+            return and(terms.toArray(new MetadataFilter[0]));
+        }
+
+        MetadataFilter atom() {
+            String token = next();
+            if ("(".equals(token)) {
+                MetadataFilter inner = orExpression();
+                expect(")");
+                return inner;
+            }
+
+            String field = checkField(token);
+            String op = next();
+            String value = unquote(next());
+            switch (op) {
+                case "=":
+                    return eq(field, value);
+                case "<":
+                case "<=":
+                case ">":
+                case ">=":
+                    return comparison(field, op, value);
+                default:
+                    throw new IllegalArgumentException("Unknown operator '" + op + "' in filter: " + source);
+            }
+        }
+
+        private MetadataFilter comparison(String field, String op, String value) {
+            if (!ChunkMetadata.PAGE.equals(field)) {
+                throw new IllegalArgumentException("Only " + ChunkMetadata.PAGE + " can be compared with " + op);
+            }
+            int page;
+            try {
+                page = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Page must be a number: " + value);
+            }
+            switch (op) {
+                case "<":
+                    return pageRange(0, page - 1);
+                case "<=":
+                    return pageRange(0, page);
+                case ">":
+                    return pageRange(page + 1, Integer.MAX_VALUE);
+                default:
+                    return pageRange(page, Integer.MAX_VALUE);
+            }
+        }
+
+        String peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private String next() {
+            if (position >= tokens.size()) {
+                throw new IllegalArgumentException("Filter ends unexpectedly: " + source);
+            }
+            return tokens.get(position++);
+        }
+
+        private void expect(String token) {
+            if (!token.equals(next())) {
+                throw new IllegalArgumentException("Expected '" + token + "' in filter: " + source);
+            }
+        }
+
+        private static String unquote(String token) {
+            return token.length() >= 2 && token.startsWith("\"") && token.endsWith("\"")
+                    ? token.substring(1, token.length() - 1)
+                    : token;
+        }
+
+        private void tokenize(String text) {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')') {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else if (c == '=' || c == '<' || c == '>') {
+                    boolean twoChars = c != '=' && i + 1 < text.length() && text.charAt(i + 1) == '=';
+                    tokens.add(text.substring(i, twoChars ? i + 2 : i + 1));
+                    i += twoChars ? 2 : 1;
+                } else if (c == '"') {
+                    int end = text.indexOf('"', i + 1);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Unterminated string in filter: " + text);
+                    }
+                    tokens.add(text.substring(i, end + 1));
+                    i = end + 1;
+                } else {
+                    int start = i;
+                    while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+                            && "()=<>\"".indexOf(text.charAt(i)) < 0) {
+                        i++;
+                    }
+                    tokens.add(text.substring(start, i));
+                }
+            }
+        }
+    }
+}
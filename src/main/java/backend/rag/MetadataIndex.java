@@ -0,0 +1,58 @@
+package backend.rag;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index from metadata values to the ordinals of the chunks that carry them.
+ *
+ * Rows are indexed in ordinal order by the store's writer; readers query it without locking
+ * and clip posting lists to the row count of their snapshot (see {@link OrdinalSet}).
+ */
+public final class MetadataIndex {
+
+    private final Map<String, Map<String, OrdinalSet>> fields = new ConcurrentHashMap<>();
+    // field -> ordinals of the chunks without a value for it (including chunks without metadata)
+    private final Map<String, OrdinalSet> missing = new ConcurrentHashMap<>();
+
+    public void add(int ordinal, ChunkMetadata metadata) {
+        index(ChunkMetadata.MODULE, metadata != null ? metadata.value(ChunkMetadata.MODULE) : null, ordinal);
+        index(ChunkMetadata.DOCUMENT_ID, metadata != null ? metadata.value(ChunkMetadata.DOCUMENT_ID) : null, ordinal);
+        index(ChunkMetadata.PAGE, metadata != null ? metadata.value(ChunkMetadata.PAGE) : null, ordinal);
+    }
+
+    /**
+     * @return ordinals carrying {@code value} in {@code field}, or null when there are none
+     */
+    public OrdinalSet postings(String field, String value) {
+        Map<String, OrdinalSet> values = fields.get(field);
+        return values != null ? values.get(value) : null;
+    }
+
+    /**
+     * @return every value indexed for the field
+     */
+    public Set<String> values(String field) {
+        Map<String, OrdinalSet> values = fields.get(field);
+        return values != null ? values.keySet() : Collections.emptySet();
+    }
+
+    /**
+     * @return ordinals without a value in {@code field}, or null when there are none
+     */
+    public OrdinalSet missing(String field) {
+        return missing.get(field);
+    }
+
+    private void index(String field, String value, int ordinal) {
+        if (value == null) {
+            missing.computeIfAbsent(field, f -> new OrdinalSet()).add(ordinal);
+            return;
+        }
+        fields.computeIfAbsent(field, f -> new ConcurrentHashMap<>())
+                .computeIfAbsent(value, v -> new OrdinalSet())
+                .add(ordinal);
+    }
+}
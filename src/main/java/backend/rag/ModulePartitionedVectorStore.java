@@ -0,0 +1,702 @@
+package backend.rag;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * One independent flat store per course module under basePath/modules/{slug}/.
+ *
+ * Chunks are routed by {@link ChunkMetadata#module} (chunks without a module go to a shared
+ * partition) and searches whose filter names its modules ({@link MetadataFilter#candidateModules()})
+ * only touch those partitions; anything else fans out over every partition and merges. Unfiltered
+ * fan-outs, counts and listings read partitions that are not loaded straight from their segments
+ * instead of opening them, and deletes go only to the partitions modules/documents.json lists for
+ * the document.
+ *
+ * Partitions are opened on first use and unloaded again (checkpointed, then dropped from memory)
+ * once they have been idle for idleMillis or when more than maxLoaded are open; a partition that
+ * searches are still running on is unloaded when the last of them finishes. Each partition
+ * has its own memory budget; adds beyond it are rejected instead of growing the heap.
+ */
+public class ModulePartitionedVectorStore implements VectorStore {
+
+    static final String PARTITIONS_DIR = "modules";
+    static final String MODULE_FILE = "module.txt";
+    static final String SHARED_PARTITION = "_shared";
+    // document id -> modules holding its chunks, so a delete opens only those partitions
+    static final String DOCUMENTS_FILE = "documents.json";
+
+    private final class Partition {
+        final String module;
+        final Path dir;
+        volatile PersistentVectorStore store;
+        long memoryBytes;
+        // remembered while unloaded so counts do not need the partition in memory
+        int lastKnownCount;
+        // searches running on store outside the lock; while there are any, unload only marks it
+        int readers;
+        String pendingUnload;
+        volatile long lastAccess = System.currentTimeMillis();
+
+        Partition(String module, Path dir) {
+            this.module = module;
+            this.dir = dir;
+        }
+
+        // callers hold the partition's lock (and made room with makeRoomFor first)
+        PersistentVectorStore open() {
+            lastAccess = System.currentTimeMillis();
+            // used again before its readers finished: keep it
+            pendingUnload = null;
+            if (store == null) {
+                store = new PersistentVectorStore(dir.toString(), binaryShortlist, scanner, logPolicy,
+                        filterFirstSelectivity, contentPolicy, float16, prefixDimensions, prefixShortlist, arena);
+                memoryBytes = store.estimateMemoryBytes();
+                System.out.println("📂 Opened module partition " + module + " (" + store.getVectorCount() + " vectors)");
+            }
+            return store;
+        }
+
+        boolean isLoaded() {
+            return store != null;
+        }
+
+        // callers hold the partition's lock
+        void unload(String reason) {
+            if (store == null) {
+                return;
+            }
+            if (readers > 0) {
+                pendingUnload = reason;
+                return;
+            }
+            pendingUnload = null;
+            lastKnownCount = store.getVectorCount();
+            store.close();
+            store = null;
+            memoryBytes = 0;
+            System.out.println("💤 Unloaded module partition " + module + " (" + reason + ")");
+        }
+    }
+
+    private final Path partitionsDir;
+    private final int binaryShortlist;
+    private final ParallelScanner scanner;
+    private final WriteAheadLog.Policy logPolicy;
+    private final double filterFirstSelectivity;
+    private final ContentBlobStore.Policy contentPolicy;
+    private final boolean float16;
+    private final int prefixDimensions;
+    private final int prefixShortlist;
+    private final OffHeapArena arena;
+    private final long memoryBudgetBytes;
+    private final long idleMillis;
+    private final int maxLoaded;
+
+    private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> documentModules = new ConcurrentHashMap<>();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * @param basePath          directory holding modules/
+     * @param memoryBudgetBytes estimated heap one partition may use before adds are rejected (rows in
+     *                          the arena are capped by the arena instead)
+     * @param idleMillis        partitions untouched for this long are unloaded to disk
+     * @param maxLoaded         partitions kept in memory at once; the least recently used goes first
+     * @param contentPolicy     where each partition keeps its chunk texts, see {@link ContentBlobStore}
+     * @param float16           keep each partition's embeddings in half precision
+     * @param prefixDimensions  leading components scored by each partition's coarse scan (0 = exact scan)
+     * @param prefixShortlist   candidates of the coarse scan reranked at full dimension
+     * @param arena             off-heap memory shared by every partition's rows, null = rows on the heap
+     */
+    public ModulePartitionedVectorStore(String basePath, int binaryShortlist, ParallelScanner scanner,
+                                        WriteAheadLog.Policy logPolicy, double filterFirstSelectivity,
+                                        long memoryBudgetBytes, long idleMillis, int maxLoaded,
+                                        ContentBlobStore.Policy contentPolicy, boolean float16,
+                                        int prefixDimensions, int prefixShortlist, OffHeapArena arena) {
+        this.partitionsDir = Path.of(basePath, PARTITIONS_DIR);
+        this.binaryShortlist = binaryShortlist;
+        this.scanner = scanner;
+        this.logPolicy = logPolicy;
+        this.filterFirstSelectivity = filterFirstSelectivity;
+        this.contentPolicy = contentPolicy;
+        this.float16 = float16;
+        this.prefixDimensions = prefixDimensions;
+        this.prefixShortlist = prefixShortlist;
+        this.arena = arena;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.idleMillis = Math.max(idleMillis, 1);
+        this.maxLoaded = Math.max(maxLoaded, 1);
+
+        discoverPartitions();
+        loadDocumentModules();
+        if (partitions.isEmpty()) {
+            importFlatStore(Path.of(basePath));
+        }
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "partition-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.min(this.idleMillis / 2 + 1, 60_000);
+        sweeper.scheduleWithFixedDelay(this::unloadIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // writes
+
+    @Override
+    public void addVector(String documentId, String content, float[] embedding) {
+        addVector(documentId, content, embedding, null);
+    }
+
+    @Override
+    public void addVector(String documentId, String content, float[] embedding, ChunkMetadata metadata) {
+        Partition partition = partition(metadata != null ? metadata.module : null);
+        // texts moved to a content blob and rows kept off-heap do not count against the heap budget
+        long bytes = PersistentVectorStore.estimateMemoryBytes(contentPolicy.isEnabled() ? null : content,
+                arena != null ? 0 : embedding.length, float16);
+        makeRoomFor(partition);
+        synchronized (partition) {
+            PersistentVectorStore store = partition.open();
+            if (partition.memoryBytes + bytes > memoryBudgetBytes) {
+                throw new IllegalStateException("Module " + partition.module + " is over its memory budget of " +
+                        memoryBudgetBytes / (1024 * 1024) + " MB (" + store.getVectorCount() + " vectors)");
+            }
+            // recorded before the chunk, so the map never misses a partition holding one
+            recordDocument(documentOf(documentId), partition.module);
+            store.addVector(documentId, content, embedding, metadata);
+            partition.memoryBytes += bytes;
+        }
+    }
+
+    @Override
+    public int deleteDocument(String documentId) {
+        // a chunk id deletes that one chunk, from the partitions of its document
+        Set<String> modules = documentModules.get(documentId);
+        if (modules == null) {
+            modules = documentModules.get(documentOf(documentId));
+        }
+        if (modules == null) {
+            return 0;
+        }
+
+        int removed = 0;
+        for (String module : new ArrayList<>(modules)) {
+            Partition partition = partitions.get(module);
+            if (partition == null) {
+                continue;
+            }
+            makeRoomFor(partition);
+            synchronized (partition) {
+                PersistentVectorStore store = partition.open();
+                int count = store.deleteDocument(documentId);
+                if (count > 0) {
+                    removed += count;
+                    partition.memoryBytes = store.estimateMemoryBytes();
+                }
+            }
+        }
+        if (documentModules.remove(documentId) != null) {
+            saveDocumentModules();
+        }
+        return removed;
+    }
+
+    // reads
+
+    @Override
+    public List<SearchResult> searchSimilar(float[] queryEmbedding, int topK) {
+        return searchSimilar(queryEmbedding, topK, null);
+    }
+
+    @Override
+    public List<SearchResult> searchSimilar(float[] queryEmbedding, int topK, MetadataFilter filter) {
+        Set<String> modules = filter != null ? filter.candidateModules() : null;
+        Collection<Partition> targets = partitions.values();
+        if (modules != null) {
+            targets = new ArrayList<>();
+            for (String module : modules) {
+                Partition partition = partitions.get(module == null || module.isBlank() ? SHARED_PARTITION : module);
+                if (partition != null) {
+                    targets.add(partition);
+                }
+            }
+        }
+
+        List<SearchResult> merged = new ArrayList<>();
+        for (Partition partition : targets) {
+            merged.addAll(search(partition, queryEmbedding, topK, filter));
+        }
+        merged.sort((a, b) -> Float.compare(b.getSimilarity(), a.getSimilarity()));
+        return merged.size() > topK ? new ArrayList<>(merged.subList(0, topK)) : merged;
+    }
+
+    // An unfiltered search of a partition that is not loaded scans its segment in place instead of
+    // opening it (and evicting another); the lock keeps it from being opened, and its files
+    // rewritten, meanwhile. Filtered searches need the partition's metadata index.
+    private List<SearchResult> search(Partition partition, float[] queryEmbedding, int topK, MetadataFilter filter) {
+        if (filter == null) {
+            synchronized (partition) {
+                if (!partition.isLoaded()) {
+                    try {
+                        return PersistentVectorStore.searchSegment(segmentOf(partition), queryEmbedding, topK);
+                    } catch (IOException e) {
+                        System.err.println("❌ Failed to scan module partition " + partition.module + " on disk: " + e.getMessage());
+                        return new ArrayList<>();
+                    }
+                }
+            }
+        }
+        PersistentVectorStore store = acquire(partition);
+        try {
+            return store.searchSimilar(queryEmbedding, topK, filter);
+        } finally {
+            release(partition);
+        }
+    }
+
+    // Searches run outside the partition lock, so they hold a reference instead: an unload
+    // meanwhile is deferred to release, and the store and its content blob stay open until then
+    private PersistentVectorStore acquire(Partition partition) {
+        makeRoomFor(partition);
+        synchronized (partition) {
+            PersistentVectorStore store = partition.open();
+            partition.readers++;
+            return store;
+        }
+    }
+
+    private void release(Partition partition) {
+        synchronized (partition) {
+            partition.readers--;
+            if (partition.readers == 0 && partition.pendingUnload != null) {
+                partition.unload(partition.pendingUnload);
+            }
+        }
+    }
+
+    @Override
+    public int getVectorCount() {
+        int count = 0;
+        for (Partition partition : partitions.values()) {
+            synchronized (partition) {
+                count += partition.isLoaded() ? partition.store.getVectorCount() : partition.lastKnownCount;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Map<String, String> getVectors() {
+        Map<String, String> contents = new HashMap<>();
+        for (Partition partition : partitions.values()) {
+            synchronized (partition) {
+                try {
+                    contents.putAll(partition.isLoaded() ? partition.store.getVectors()
+                            : PersistentVectorStore.readContents(segmentOf(partition)));
+                } catch (IOException e) {
+                    System.err.println("❌ Failed to read module partition " + partition.module + " on disk: " + e.getMessage());
+                }
+            }
+        }
+        return contents;
+    }
+
+    @Override
+    public Map<String, String> getContents(Collection<String> ids) {
+        // group by the partitions the documents' chunks are in
+        Map<String, Set<String>> byModule = new HashMap<>();
+        for (String id : ids) {
+            Set<String> modules = documentModules.get(documentOf(id));
+            if (modules != null) {
+                for (String module : modules) {
+                    byModule.computeIfAbsent(module, m -> new HashSet<>()).add(id);
+                }
+            }
+        }
+
+        Map<String, String> contents = new HashMap<>();
+        for (Map.Entry<String, Set<String>> wanted : byModule.entrySet()) {
+            Partition partition = partitions.get(wanted.getKey());
+            if (partition == null) {
+                continue;
+            }
+            synchronized (partition) {
+                try {
+                    contents.putAll(partition.isLoaded() ? partition.store.getContents(wanted.getValue())
+                            : PersistentVectorStore.readContents(segmentOf(partition), wanted.getValue()));
+                } catch (IOException e) {
+                    System.err.println("❌ Failed to read module partition " + partition.module + " on disk: " + e.getMessage());
+                }
+            }
+        }
+        return contents;
+    }
+
+    @Override
+    public Map<String, ChunkMetadata> getMetadata() {
+        Map<String, ChunkMetadata> metadata = new HashMap<>();
+        for (Partition partition : partitions.values()) {
+            synchronized (partition) {
+                try {
+                    metadata.putAll(partition.isLoaded() ? partition.store.getMetadata()
+                            : PersistentVectorStore.readMetadata(mapper, segmentOf(partition)));
+                } catch (IOException e) {
+                    System.err.println("❌ Failed to read module partition " + partition.module + " on disk: " + e.getMessage());
+                }
+            }
+        }
+        return metadata;
+    }
+
+    @Override
+    public String getEmbeddingStorage() {
+        return float16 ? "float16" : "float32";
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    public int getLoadedPartitionCount() {
+        int loaded = 0;
+        for (Partition partition : partitions.values()) {
+            synchronized (partition) {
+                loaded += partition.isLoaded() ? 1 : 0;
+            }
+        }
+        return loaded;
+    }
+
+    // persistence
+
+    /**
+     * Export every partition into {@code filePath}/{slug}/vectors.seg.
+     */
+    @Override
+    public void saveToFile(String filePath) {
+        for (Partition partition : partitions.values()) {
+            Path target = Path.of(filePath, partition.dir.getFileName().toString());
+            try {
+                Files.createDirectories(target);
+                Files.writeString(target.resolve(MODULE_FILE), partition.module, StandardCharsets.UTF_8);
+                PersistentVectorStore store = acquire(partition);
+                try {
+                    store.saveToFile(target.resolve(PersistentVectorStore.SEGMENT_FILE).toString());
+                } finally {
+                    release(partition);
+                }
+            } catch (IOException e) {
+                System.err.println("❌ Failed to export module " + partition.module + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Import partitions exported by {@link #saveToFile}, replacing modules with the same name.
+     */
+    @Override
+    public void loadFromFile(String filePath) {
+        try (Stream<Path> dirs = Files.list(Path.of(filePath))) {
+            for (Path dir : (Iterable<Path>) dirs::iterator) {
+                Path segment = dir.resolve(PersistentVectorStore.SEGMENT_FILE);
+                if (!Files.exists(dir.resolve(MODULE_FILE)) || !VectorSegment.exists(segment)) {
+                    continue;
+                }
+                Partition partition = partition(Files.readString(dir.resolve(MODULE_FILE), StandardCharsets.UTF_8).trim());
+                makeRoomFor(partition);
+                synchronized (partition) {
+                    PersistentVectorStore store = partition.open();
+                    store.loadFromFile(segment.toString());
+                    store.checkpoint();
+                    partition.memoryBytes = store.estimateMemoryBytes();
+                    recordSegment(segmentOf(partition), partition.module);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to import module partitions from " + filePath + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Partition partition : partitions.values()) {
+            makeRoomFor(partition);
+            synchronized (partition) {
+                PersistentVectorStore store = partition.open();
+                store.clear();
+                partition.memoryBytes = 0;
+            }
+        }
+        documentModules.clear();
+        saveDocumentModules();
+        System.out.println("🧹 All module partitions cleared");
+    }
+
+    /**
+     * Stop the sweeper and unload every partition; Spring calls this when the bean is destroyed.
+     */
+    public void close() {
+        sweeper.shutdown();
+        for (Partition partition : partitions.values()) {
+            synchronized (partition) {
+                partition.unload("shutdown");
+            }
+        }
+    }
+
+    // partition lifecycle
+
+    private Partition partition(String module) {
+        String name = module == null || module.isBlank() ? SHARED_PARTITION : module.trim();
+        return partitions.computeIfAbsent(name, n -> {
+            Path dir = partitionsDir.resolve(slug(n));
+            try {
+                Files.createDirectories(dir);
+                Files.writeString(dir.resolve(MODULE_FILE), n, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot create partition directory " + dir + ": " + e.getMessage(), e);
+            }
+            return new Partition(n, dir);
+        });
+    }
+
+    // partitions on disk are registered without loading them; their size comes from the segment header
+    private void discoverPartitions() {
+        if (!Files.isDirectory(partitionsDir)) {
+            return;
+        }
+        try (Stream<Path> dirs = Files.list(partitionsDir)) {
+            for (Path dir : (Iterable<Path>) dirs::iterator) {
+                Path moduleFile = dir.resolve(MODULE_FILE);
+                if (!Files.exists(moduleFile)) {
+                    continue;
+                }
+                String module = Files.readString(moduleFile, StandardCharsets.UTF_8).trim();
+                Partition partition = new Partition(module, dir);
+                partitions.put(module, partition);
+                Path log = dir.resolve(PersistentVectorStore.LOG_FILE);
+                if (Files.exists(log) && Files.size(log) > 0) {
+                    // left unfolded by a crash: reading the partition from disk needs it in the segment
+                    synchronized (partition) {
+                        partition.open();
+                        partition.unload("log recovered");
+                    }
+                }
+                Path segment = segmentOf(partition);
+                if (VectorSegment.isSegment(segment)) {
+                    partition.lastKnownCount = VectorSegment.open(segment).count();
+                }
+            }
+            System.out.println("🗂️ Found " + partitions.size() + " module partitions in " + partitionsDir);
+        } catch (IOException e) {
+            System.err.println("❌ Failed to list module partitions: " + e.getMessage());
+        }
+    }
+
+    // first start after switching from the flat index: route its chunks by their module once
+    private void importFlatStore(Path basePath) {
+        Path segment = basePath.resolve(PersistentVectorStore.SEGMENT_FILE);
+        if (!VectorSegment.exists(segment)) {
+            return;
+        }
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            Map<String, PersistentVectorStore.VectorEntry> entries = PersistentVectorStore.readVectors(mapper, segment);
+            PersistentVectorStore.readMetadata(mapper, segment, entries);
+            // one module at a time, so the import never holds more than one partition open for itself
+            Map<String, List<PersistentVectorStore.VectorEntry>> byModule = new LinkedHashMap<>();
+            for (PersistentVectorStore.VectorEntry entry : entries.values()) {
+                String module = entry.metadata != null ? entry.metadata.module : null;
+                byModule.computeIfAbsent(module == null ? SHARED_PARTITION : module, m -> new ArrayList<>()).add(entry);
+            }
+            int imported = 0;
+            for (Map.Entry<String, List<PersistentVectorStore.VectorEntry>> module : byModule.entrySet()) {
+                // a module that cannot fit is left out as a whole instead of stopping halfway through it
+                long bytes = 0;
+                for (PersistentVectorStore.VectorEntry entry : module.getValue()) {
+                    bytes += PersistentVectorStore.estimateMemoryBytes(contentPolicy.isEnabled() ? null : entry.content,
+                            arena != null ? 0 : entry.embedding.length, float16);
+                }
+                if (bytes > memoryBudgetBytes) {
+                    System.err.println("❌ Not importing module " + module.getKey() + ": its " + module.getValue().size() +
+                            " vectors need about " + bytes / 1024 + " KB, over the budget of " +
+                            memoryBudgetBytes / 1024 + " KB; they stay in " + segment);
+                    continue;
+                }
+                try {
+                    for (PersistentVectorStore.VectorEntry entry : module.getValue()) {
+                        addVector(entry.id, entry.content, entry.embedding, entry.metadata);
+                    }
+                    imported += module.getValue().size();
+                } catch (RuntimeException e) {
+                    System.err.println("❌ Failed to import module " + module.getKey() + ", rolling it back: " + e.getMessage());
+                    for (String document : documentsOf(module.getValue())) {
+                        deleteDocument(document);
+                    }
+                    continue;
+                }
+                Partition partition = partition(module.getValue().get(0).metadata != null ? module.getValue().get(0).metadata.module : null);
+                synchronized (partition) {
+                    partition.open().checkpoint();
+                }
+            }
+            System.out.println("🔄 Imported " + imported + " of " + entries.size() + " vectors from " + segment + " into " +
+                    partitions.size() + " module partitions");
+        } catch (Exception e) {
+            System.err.println("❌ Failed to import " + segment + ": " + e.getMessage());
+        }
+    }
+
+    private static Set<String> documentsOf(List<PersistentVectorStore.VectorEntry> entries) {
+        Set<String> documents = new LinkedHashSet<>();
+        for (PersistentVectorStore.VectorEntry entry : entries) {
+            documents.add(documentOf(entry.id));
+        }
+        return documents;
+    }
+
+    private static Path segmentOf(Partition partition) {
+        return partition.dir.resolve(PersistentVectorStore.SEGMENT_FILE);
+    }
+
+    // documents
+
+    // chunk ids are "{documentId}_chunk_{n}"
+    static String documentOf(String chunkId) {
+        int index = chunkId.lastIndexOf("_chunk_");
+        return index > 0 && VectorStore.belongsToDocument(chunkId, chunkId.substring(0, index))
+                ? chunkId.substring(0, index) : chunkId;
+    }
+
+    private void recordDocument(String documentId, String module) {
+        if (documentModules.computeIfAbsent(documentId, d -> ConcurrentHashMap.newKeySet()).add(module)) {
+            saveDocumentModules();
+        }
+    }
+
+    // every chunk id of a partition's segment, e.g. for partitions from before the map existed
+    private void recordSegment(Path segment, String module) throws IOException {
+        if (!VectorSegment.isSegment(segment)) {
+            return;
+        }
+        VectorSegment rows = VectorSegment.open(segment);
+        for (int i = 0; i < rows.count(); i++) {
+            documentModules.computeIfAbsent(documentOf(rows.id(i)), d -> ConcurrentHashMap.newKeySet()).add(module);
+        }
+        saveDocumentModules();
+    }
+
+    private void loadDocumentModules() {
+        Path file = partitionsDir.resolve(DOCUMENTS_FILE);
+        try {
+            if (Files.exists(file)) {
+                Map<String, Set<String>> stored = mapper.readValue(file.toFile(), mapper.getTypeFactory()
+                        .constructMapType(HashMap.class, mapper.getTypeFactory().constructType(String.class),
+                                mapper.getTypeFactory().constructCollectionType(Set.class, String.class)));
+                stored.forEach((document, modules) -> {
+                    Set<String> set = ConcurrentHashMap.newKeySet();
+                    set.addAll(modules);
+                    documentModules.put(document, set);
+                });
+                return;
+            }
+            // first start with the map: list the ids of each segment once, without opening the partitions
+            for (Partition partition : partitions.values()) {
+                recordSegment(segmentOf(partition), partition.module);
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to read " + file + ", deletes will miss unlisted documents: " + e.getMessage());
+        }
+    }
+
+    // small (one entry per document) and only written when a document or module is new
+    private void saveDocumentModules() {
+        Path file = partitionsDir.resolve(DOCUMENTS_FILE);
+        synchronized (documentModules) {
+            try {
+                Files.createDirectories(partitionsDir);
+                Path temp = file.resolveSibling(DOCUMENTS_FILE + ".tmp");
+                mapper.writeValue(temp.toFile(), new TreeMap<>(documentModules));
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("❌ Failed to save " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void unloadIdle() {
+        long now = System.currentTimeMillis();
+        for (Partition partition : partitions.values()) {
+            if (now - partition.lastAccess < idleMillis) {
+                continue;
+            }
+            synchronized (partition) {
+                if (partition.isLoaded() && now - partition.lastAccess >= idleMillis) {
+                    partition.unload("idle");
+                }
+            }
+        }
+    }
+
+    // Make room for one more loaded partition by unloading the least recently used ones. Runs
+    // before the opening partition is locked, so two openers never wait on each other's lock.
+    private void makeRoomFor(Partition opening) {
+        if (opening.isLoaded()) {
+            return;
+        }
+        // readers and lastAccess change under each partition's lock while this runs, so the sort
+        // works on values read under those locks; sorting live fields can break its contract
+        List<Candidate> loaded = new ArrayList<>();
+        for (Partition partition : partitions.values()) {
+            if (partition == opening) {
+                continue;
+            }
+            synchronized (partition) {
+                if (partition.isLoaded()) {
+                    loaded.add(new Candidate(partition, partition.readers > 0, partition.lastAccess));
+                }
+            }
+        }
+        // partitions with running searches last: their unload would only be deferred
+        loaded.sort(Comparator.comparing((Candidate c) -> c.searched).thenComparingLong(c -> c.lastAccess));
+        for (int i = 0; i < loaded.size() - maxLoaded + 1; i++) {
+            Partition victim = loaded.get(i).partition;
+            synchronized (victim) {
+                victim.unload("over " + maxLoaded + " loaded partitions");
+            }
+        }
+    }
+
+    // a loaded partition as makeRoomFor saw it
+    private static final class Candidate {
+        final Partition partition;
+        final boolean searched;
+        final long lastAccess;
+
+        Candidate(Partition partition, boolean searched, long lastAccess) {
+            this.partition = partition;
+            this.searched = searched;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    static String slug(String module) {
+        String slug = module.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]+", "-").replaceAll("^-|-$", "");
+        // the hash keeps names that differ only in punctuation or case apart
+        return (slug.isEmpty() ? "module" : slug) + "-" + Integer.toHexString(module.hashCode());
+    }
+}
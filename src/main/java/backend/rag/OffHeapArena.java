@@ -0,0 +1,108 @@
+package backend.rag;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Budgeted allocator for direct (off-heap) buffers holding embeddings.
+ *
+ * Every allocation is charged against a fixed cap and fails with an {@link IllegalStateException}
+ * instead of growing past it. {@link #release} frees a buffer's native memory on the spot through
+ * the JDK's {@code sun.misc.Unsafe.invokeCleaner}, so the cap bounds the memory actually held.
+ * {@link #releaseWhenUnreachable} is for buffers a concurrent reader may still hold: their memory
+ * goes back to the OS when the buffer is garbage collected and may briefly exceed the cap. Without
+ * the jdk.unsupported module every release falls back to the latter. Buffers use the native byte
+ * order so the similarity kernels read them without byte swapping.
+ *
+ * {@link InMemoryVectorStore} (vectorstore.storage=offheap) and the flat and partitioned
+ * {@link PersistentVectorStore}s (rag.embedding-memory=offheap) allocate from an arena. The latter
+ * reference-count their slabs per search, so replaced slabs are released as soon as the last
+ * search on them finishes.
+ */
+public class OffHeapArena implements AutoCloseable {
+
+    // Unsafe.invokeCleaner(ByteBuffer), or null when jdk.unsupported is not available
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    private final long capacityBytes;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private volatile boolean closed = false;
+
+    public OffHeapArena(long capacityBytes) {
+        if (capacityBytes <= 0) {
+            throw new IllegalArgumentException("Off-heap capacity must be positive");
+        }
+        this.capacityBytes = capacityBytes;
+    }
+
+    public ByteBuffer allocate(int bytes) {
+        if (closed) {
+            throw new IllegalStateException("Off-heap arena is closed");
+        }
+        long after = allocatedBytes.addAndGet(bytes);
+        if (after > capacityBytes) {
+            allocatedBytes.addAndGet(-bytes);
+            throw new IllegalStateException("Off-heap embedding storage is full: " + (after - bytes) +
+                    " of " + capacityBytes + " bytes in use, " + bytes + " more requested");
+        }
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Return a buffer from {@link #allocate} and free its memory now. No thread may touch the
+     * buffer afterwards: reading freed native memory can crash the JVM.
+     */
+    public void release(ByteBuffer buffer) {
+        allocatedBytes.addAndGet(-buffer.capacity());
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invokeExact(buffer);
+            } catch (Throwable e) {
+                System.err.println("⚠️ Could not free off-heap buffer, leaving it to the GC: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Return a buffer from {@link #allocate} that a reader may still be using; its memory is freed
+     * once it becomes unreachable.
+     */
+    public void releaseWhenUnreachable(ByteBuffer buffer) {
+        allocatedBytes.addAndGet(-buffer.capacity());
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    /**
+     * Refuse further allocations; buffers still in use stay valid until released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("⚠️ sun.misc.Unsafe is not available, off-heap buffers are freed by the GC");
+            return null;
+        }
+    }
+}
@@ -1,31 +1,88 @@
 package backend.rag;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 
 @Service
 public class OpenAiEmbeddingService implements EmbeddingService {
 
+    static final int MAX_INPUT_CHARS = 6000;
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
     @Value("${openai.api.key:}")
     private String apiKeyFromProperty;
 
     @Value("${openai.embedding.model:text-embedding-3-small}")  // semantic matching
     private String embeddingModel;
 
+    // OpenAI accepts up to 2048 inputs and 300k tokens per embeddings request
+    @Value("${openai.embedding.batch-size:256}")
+    private int batchSize = 256;
+
+    @Value("${openai.embedding.batch-tokens:250000}")
+    private int batchTokens = 250000;
+
+    // requests in flight at once, and the account's rate limits the requests are paced to
+    @Value("${openai.embedding.concurrency:4}")
+    private int concurrency = 4;
+
+    @Value("${openai.embedding.requests-per-minute:3000}")
+    private int requestsPerMinute = 3000;
+
+    @Value("${openai.embedding.tokens-per-minute:1000000}")
+    private int tokensPerMinute = 1000000;
+
+    // questions (embed) get their own requests in flight and this share of both rate limits,
+    // so they are not queued behind ingestion batches
+    @Value("${openai.embedding.query-concurrency:2}")
+    private int queryConcurrency = 2;
+
+    @Value("${openai.embedding.query-reserve:0.1}")
+    private double queryReserve = 0.1;
+
+    // attempts after a 429, a 5xx or a network error before the request fails
+    @Value("${openai.embedding.max-retries:6}")
+    private int maxRetries = 6;
+
     private String apiKey = null;
     private boolean initialized = false;
     private final HttpClient httpClient;
     private final ObjectMapper objectMapper;
 
+    private EmbeddingRateLimiter rateLimiter;
+    private Semaphore inFlight;
+    private Semaphore queryInFlight;
+    private ExecutorService executor;
+
+    // dummy vectors handed out since startup, by identity, so caches can refuse them
+    private final Set<float[]> placeholders = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
     public OpenAiEmbeddingService() {
         this.httpClient = HttpClient.newBuilder()
                 .connectTimeout(Duration.ofSeconds(30))
@@ -34,7 +91,7 @@ public class OpenAiEmbeddingService implements EmbeddingService {
     }
 
     // Initialize on first use (lazy initialization)
-    private void initializeIfNeeded() {
+    private synchronized void initializeIfNeeded() {
         if (initialized) return;
 
         System.out.println("\n🔑 Initializing OpenAI Embedding Service...");
@@ -63,6 +120,19 @@ public class OpenAiEmbeddingService implements EmbeddingService {
             String maskedKey = maskApiKey(apiKey);
             System.out.println("✅ OpenAI API Key loaded: " + maskedKey);
             System.out.println("   Model: " + embeddingModel);
+
+            int threads = Math.max(1, concurrency);
+            rateLimiter = new EmbeddingRateLimiter(requestsPerMinute, tokensPerMinute, queryReserve);
+            inFlight = new Semaphore(threads);
+            queryInFlight = new Semaphore(Math.max(1, queryConcurrency));
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "openai-embeddings");
+                thread.setDaemon(true);
+                return thread;
+            });
+            System.out.println("   Limits: " + threads + " concurrent requests, " + requestsPerMinute + " RPM, " +
+                    tokensPerMinute + " TPM (" + Math.max(1, queryConcurrency) + " requests and " +
+                    Math.round(queryReserve * 100) + "% kept for questions)");
         }
 
         initialized = true;
@@ -104,56 +174,227 @@ public class OpenAiEmbeddingService implements EmbeddingService {
             return createDummyEmbedding(text);
         }
 
-        try {
+        String cleanedText = cleanTextForEmbedding(text);
+        float[] embedding = requestWithRetry(List.of(cleanedText), estimateTokens(cleanedText), true).get(0);
+        System.out.println("Created real OpenAI embedding with " + embedding.length + " dimensions");
+        return embedding;
+    }
+
+    /**
+     * Sends the texts as input arrays, starting a new request whenever the next text would take
+     * the current one past {@code batchSize} inputs or {@code batchTokens} estimated tokens.
+     */
+    @Override
+    public List<float[]> embedBatch(List<String> texts) throws Exception {
+        initializeIfNeeded();
+
+        List<float[]> embeddings = new ArrayList<>(texts.size());
+        if (texts.isEmpty()) {
+            return embeddings;
+        }
+        System.out.println("\n🔧 Creating embeddings for " + texts.size() + " texts");
+
+        if (apiKey == null) {
+            System.out.println("⚠️ No valid API key - using dummy embeddings");
+            for (String text : texts) {
+                embeddings.add(createDummyEmbedding(text));
+            }
+            return embeddings;
+        }
+
+        int maxInputs = Math.max(1, batchSize);
+        List<List<String>> batches = new ArrayList<>();
+        List<Integer> batchTokenEstimates = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        int batchTokenEstimate = 0;
+        for (String text : texts) {
             String cleanedText = cleanTextForEmbedding(text);
+            int tokens = estimateTokens(cleanedText);
+            if (!batch.isEmpty() && (batch.size() >= maxInputs || batchTokenEstimate + tokens > batchTokens)) {
+                batches.add(batch);
+                batchTokenEstimates.add(batchTokenEstimate);
+                batch = new ArrayList<>();
+                batchTokenEstimate = 0;
+            }
+            batch.add(cleanedText);
+            batchTokenEstimate += tokens;
+        }
+        batches.add(batch);
+        batchTokenEstimates.add(batchTokenEstimate);
 
-            // JSON request
-            Map<String, Object> requestMap = new HashMap<>();
-            requestMap.put("model", embeddingModel);
-            requestMap.put("input", cleanedText);
-            requestMap.put("encoding_format", "float");
-
-            String requestBody = objectMapper.writeValueAsString(requestMap);
-
-            System.out.println("📤 Calling OpenAI API with model: " + embeddingModel);
-
-            //HTTP request
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create("https://api.openai.com/v1/embeddings"))
-                    .header("Authorization", "Bearer " + apiKey)
-                    .header("Content-Type", "application/json")
-                    .header("User-Agent", "AP-STEVE-RAG-App/1.0")
-                    .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                    .timeout(Duration.ofSeconds(30))
-                    .build();
-
-            HttpResponse<String> response = httpClient.send(
-                    request,
-                    HttpResponse.BodyHandlers.ofString()
-            );
+        if (batches.size() == 1) {
+            embeddings.addAll(requestWithRetry(batches.get(0), batchTokenEstimates.get(0), false));
+        } else {
+            // up to `concurrency` batches in flight, paced by the rate limiter, collected in input order
+            List<Future<List<float[]>>> pending = new ArrayList<>(batches.size());
+            for (int b = 0; b < batches.size(); b++) {
+                List<String> inputs = batches.get(b);
+                int tokens = batchTokenEstimates.get(b);
+                pending.add(executor.submit(() -> requestWithRetry(inputs, tokens, false)));
+            }
+            try {
+                for (Future<List<float[]>> result : pending) {
+                    embeddings.addAll(result.get());
+                }
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } finally {
+                for (Future<List<float[]>> result : pending) {
+                    result.cancel(true);
+                }
+            }
+        }
+
+        System.out.println("Created " + embeddings.size() + " embeddings in " + batches.size() + " OpenAI requests");
+        return embeddings;
+    }
+
+    /**
+     * Sends one request once the rate limiter allows it, retrying 429s, 5xx responses and network
+     * errors up to {@code maxRetries} times. A 429 pauses every request for the Retry-After time,
+     * other failures back off exponentially with jitter. Failures are thrown rather than answered
+     * with dummy vectors, which would end up in the index. Queries take their own permits and
+     * may use the share of the rate limits that batches leave free.
+     */
+    private List<float[]> requestWithRetry(List<String> cleanedTexts, int estimatedTokens, boolean query) throws Exception {
+        Semaphore permits = query ? queryInFlight : inFlight;
+        for (int attempt = 0; ; attempt++) {
+            rateLimiter.acquire(estimatedTokens, query);
+            long delayMillis;
+            permits.acquire();
+            try {
+                return requestEmbeddings(cleanedTexts, estimatedTokens, query);
+            } catch (RetryableException | IOException e) {
+                long retryAfter = e instanceof RetryableException ? ((RetryableException) e).retryAfterMillis : -1;
+                if (attempt >= maxRetries) {
+                    throw new RuntimeException("OpenAI embeddings failed after " + (attempt + 1) + " attempts: " + e.getMessage(), e);
+                }
+                delayMillis = backoffMillis(attempt, retryAfter);
+                System.err.println("⏳ OpenAI embeddings request failed (" + e.getMessage() + "), retry " + (attempt + 1) +
+                        "/" + maxRetries + " in " + delayMillis + " ms");
+                if (e instanceof RetryableException && ((RetryableException) e).rateLimited) {
+                    rateLimiter.pauseUntil(delayMillis);
+                    delayMillis = 0;
+                }
+            } finally {
+                permits.release();
+            }
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+        }
+    }
 
-            System.out.println("OpenAI Response Status: " + response.statusCode());
+    // Retry-After plus up to a quarter more when the API sent one, otherwise a random delay in
+    // [base/2, base] with base doubling from 500 ms up to 30 s, so retries do not arrive together
+    private static long backoffMillis(int attempt, long retryAfterMillis) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (retryAfterMillis >= 0) {
+            return retryAfterMillis + random.nextLong(retryAfterMillis / 4 + 50);
+        }
+        long base = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return base / 2 + random.nextLong(base / 2 + 1);
+    }
 
-            if (response.statusCode() == 401) {
-                System.err.println("Invalid OpenAI API key (401 Unauthorized)");
-                throw new RuntimeException("Invalid OpenAI API key. Please check your key.");
-            } else if (response.statusCode() != 200) {
-                throw new RuntimeException(
-                        "OpenAI API error: " + response.statusCode() +
-                                " - " + response.body()
-                );
+    // retry-after-ms (OpenAI), then retry-after in seconds or as an HTTP date; -1 when absent
+    private static long retryAfterMillis(HttpResponse<?> response, long nowMillis) {
+        try {
+            Optional<String> millis = response.headers().firstValue("retry-after-ms");
+            if (millis.isPresent()) {
+                return Math.max(0, (long) Double.parseDouble(millis.get().trim()));
             }
+            Optional<String> retryAfter = response.headers().firstValue("retry-after");
+            if (retryAfter.isPresent()) {
+                String value = retryAfter.get().trim();
+                if (value.matches("\\d+(\\.\\d+)?")) {
+                    return (long) (Double.parseDouble(value) * 1000);
+                }
+                ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - nowMillis);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("⚠️ Unreadable Retry-After header: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * One call to the embeddings endpoint with an array of inputs; the response items carry the
+     * index of their input and are put back in input order.
+     */
+    private List<float[]> requestEmbeddings(List<String> cleanedTexts, int estimatedTokens, boolean query) throws Exception {
+        // JSON request
+        Map<String, Object> requestMap = new HashMap<>();
+        requestMap.put("model", embeddingModel);
+        requestMap.put("input", cleanedTexts);
+        requestMap.put("encoding_format", "float");
+
+        String requestBody = objectMapper.writeValueAsString(requestMap);
+
+        System.out.println("📤 Calling OpenAI API with model: " + embeddingModel + " (" + cleanedTexts.size() + " inputs)");
+
+        //HTTP request
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("https://api.openai.com/v1/embeddings"))
+                .header("Authorization", "Bearer " + apiKey)
+                .header("Content-Type", "application/json")
+                .header("User-Agent", "AP-STEVE-RAG-App/1.0")
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+                .timeout(Duration.ofSeconds(30 + 5L * (cleanedTexts.size() / 32)))
+                .build();
+
+        HttpResponse<String> response = httpClient.send(
+                request,
+                HttpResponse.BodyHandlers.ofString()
+        );
+
+        System.out.println("OpenAI Response Status: " + response.statusCode());
+
+        if (response.statusCode() == 401) {
+            System.err.println("Invalid OpenAI API key (401 Unauthorized)");
+            throw new RuntimeException("Invalid OpenAI API key. Please check your key.");
+        } else if (response.statusCode() == 429 && !response.body().contains("insufficient_quota")) {
+            throw new RetryableException("rate limited (429)", true, retryAfterMillis(response, System.currentTimeMillis()));
+        } else if (response.statusCode() >= 500) {
+            throw new RetryableException("OpenAI API error: " + response.statusCode(), false, retryAfterMillis(response, System.currentTimeMillis()));
+        } else if (response.statusCode() != 200) {
+            throw new RuntimeException(
+                    "OpenAI API error: " + response.statusCode() +
+                            " - " + response.body()
+            );
+        }
 
-            String responseBody = response.body();
-            Map<String, Object> responseMap = objectMapper.readValue(
-                    responseBody, Map.class);
+        String responseBody = response.body();
+        Map<String, Object> responseMap = objectMapper.readValue(
+                responseBody, Map.class);
 
-            List<Map<String, Object>> data = (List<Map<String, Object>>) responseMap.get("data");
-            if (data == null || data.isEmpty()) {
-                throw new RuntimeException("No embedding data in OpenAI response");
+        List<Map<String, Object>> data = (List<Map<String, Object>>) responseMap.get("data");
+        if (data == null || data.isEmpty()) {
+            throw new RuntimeException("No embedding data in OpenAI response");
+        }
+
+        // the estimate is deliberately high, return what the request did not use
+        Map<String, Object> usage = (Map<String, Object>) responseMap.get("usage");
+        if (usage != null && usage.get("total_tokens") instanceof Number) {
+            rateLimiter.settle(estimatedTokens, ((Number) usage.get("total_tokens")).intValue(), query);
+        }
+
+        float[][] embeddings = new float[cleanedTexts.size()][];
+        for (int item = 0; item < data.size(); item++) {
+            Object index = data.get(item).get("index");
+            int position = index instanceof Number ? ((Number) index).intValue() : item;
+            if (position < 0 || position >= embeddings.length) {
+                throw new RuntimeException("Embedding index " + position + " out of range for " + embeddings.length + " inputs");
             }
 
-            List<Double> embeddingList = (List<Double>) data.get(0).get("embedding");
+            List<Double> embeddingList = (List<Double>) data.get(item).get("embedding");
             if (embeddingList == null || embeddingList.isEmpty()) {
                 throw new RuntimeException("Empty embedding in response");
             }
@@ -162,17 +403,37 @@ public class OpenAiEmbeddingService implements EmbeddingService {
             for (int i = 0; i < embeddingList.size(); i++) {
                 embedding[i] = embeddingList.get(i).floatValue();
             }
+            embeddings[position] = embedding;
+        }
+        for (int i = 0; i < embeddings.length; i++) {
+            if (embeddings[i] == null) {
+                throw new RuntimeException("No embedding for input " + i + " in OpenAI response");
+            }
+        }
+        return Arrays.asList(embeddings);
+    }
 
-            System.out.println("Created real OpenAI embedding with " + embedding.length + " dimensions");
-            return embedding;
+    private static final class RetryableException extends Exception {
+        final boolean rateLimited;
+        final long retryAfterMillis;
 
-        } catch (Exception e) {
-            System.err.println("OpenAI API call failed: " + e.getMessage());
-            System.err.println("⚠Falling back to dummy embedding");
-            return createDummyEmbedding(text);
+        RetryableException(String message, boolean rateLimited, long retryAfterMillis) {
+            super(message);
+            this.rateLimited = rateLimited;
+            this.retryAfterMillis = retryAfterMillis;
         }
     }
 
+    // rough upper bound: English prose is ~4 chars per token, code and symbols closer to 3
+    private static int estimateTokens(String cleanedText) {
+        return cleanedText.length() / 3 + 1;
+    }
+
+    @Override
+    public boolean isPlaceholder(float[] embedding) {
+        return placeholders.contains(embedding);
+    }
+
     private float[] createDummyEmbedding(String text) {
         System.out.println("🔄 Creating dummy embedding for testing");
 
@@ -198,21 +459,32 @@ public class OpenAiEmbeddingService implements EmbeddingService {
             }
         }
 
+        placeholders.add(embedding);
         System.out.println("✅ Created dummy embedding with " + embedding.length + " dimensions");
         return embedding;
     }
 
     private String cleanTextForEmbedding(String text) {
+        String cleaned = cleanText(text);
+        if (text != null && cleaned.length() == MAX_INPUT_CHARS && text.length() > MAX_INPUT_CHARS) {
+            System.out.println("⚠Text truncated from " + text.length() + " to " + MAX_INPUT_CHARS + " characters");
+        }
+        return cleaned;
+    }
+
+    /**
+     * The text as it is sent to the API: whitespace collapsed and cut at {@link #MAX_INPUT_CHARS}.
+     * Texts that clean to the same string get the same embedding, which caches rely on.
+     */
+    static String cleanText(String text) {
         if (text == null || text.trim().isEmpty()) {
             return "empty";
         }
 
         text = text.replaceAll("\\s+", " ").trim();
 
-        int maxLength = 6000;
-        if (text.length() > maxLength) {
-            System.out.println("⚠Text truncated from " + text.length() + " to " + maxLength + " characters");
-            text = text.substring(0, maxLength);
+        if (text.length() > MAX_INPUT_CHARS) {
+            text = text.substring(0, MAX_INPUT_CHARS);
         }
 
         return text;
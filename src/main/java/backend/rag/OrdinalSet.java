@@ -0,0 +1,100 @@
+package backend.rag;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of ordinals used as a posting list of the metadata index.
+ *
+ * Sparse sets are a sorted int[]; once more than one ordinal in 32 is present a bitmap is
+ * smaller, and the set converts itself to long[] words. Ordinals are appended in increasing
+ * order by a single writer while readers look at the set concurrently; readers pass the row
+ * count of the snapshot they scan and ignore everything at or above it.
+ */
+public final class OrdinalSet {
+
+    // a bitmap costs ordinal / 8 bytes, sorted ints 4 bytes per member
+    private static final int DENSE_RATIO = 32;
+    private static final int MIN_DENSE_SIZE = 64;
+
+    private volatile int[] sparse = new int[4];
+    private volatile long[] words;   // non-null once dense
+    // published after the member it counts
+    private volatile int size;
+    private int last = -1;
+
+    public void add(int ordinal) {
+        if (ordinal <= last) {
+            throw new IllegalArgumentException("Ordinals must be added in increasing order: " + ordinal + " after " + last);
+        }
+        last = ordinal;
+
+        long[] bits = words;
+        if (bits != null) {
+            int word = ordinal >>> 6;
+            if (word >= bits.length) {
+                bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+            }
+            bits[word] |= 1L << ordinal;
+            words = bits;
+            size = size + 1;
+            return;
+        }
+
+        int count = size;
+        int[] values = sparse;
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+        }
+        values[count] = ordinal;
+        sparse = values;
+        size = count + 1;
+
+        if (count + 1 >= MIN_DENSE_SIZE && (long) (count + 1) * DENSE_RATIO > ordinal) {
+            long[] dense = new long[(ordinal >>> 6) + 1];
+            for (int i = 0; i <= count; i++) {
+                dense[values[i] >>> 6] |= 1L << values[i];
+            }
+            words = dense;
+        }
+    }
+
+    /**
+     * @return number of members, including ones above any reader's limit
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isDense() {
+        return words != null;
+    }
+
+    /**
+     * Set the bit of every member below {@code limit} in {@code dst}.
+     */
+    public void orInto(long[] dst, int limit) {
+        // size before words before sparse: a set that turned dense in between is read as dense
+        int count = size;
+        long[] bits = words;
+        if (bits != null) {
+            int fullWords = Math.min(limit >>> 6, Math.min(bits.length, dst.length));
+            for (int w = 0; w < fullWords; w++) {
+                dst[w] |= bits[w];
+            }
+            int tail = limit & 63;
+            if (tail != 0 && fullWords < bits.length && fullWords < dst.length) {
+                dst[fullWords] |= bits[fullWords] & ((1L << tail) - 1);
+            }
+            return;
+        }
+
+        int[] values = sparse;
+        for (int i = 0; i < count; i++) {
+            int ordinal = values[i];
+            if (ordinal >= limit) {
+                break;
+            }
+            dst[ordinal >>> 6] |= 1L << ordinal;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package backend.rag;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Top-K scan over ordinals [0, count) that fans out to a dedicated ForkJoinPool for big corpora.
+ *
+ * The range is cut into fixed-size partitions, each partition is scored into its own
+ * {@link TopKHeap} and the heaps are merged pairwise on the way back up. Corpora smaller than
+ * the threshold are scanned on the calling thread, where the fan-out would cost more than it saves.
+ * The pool is private to the scanner so searches never compete with the common pool.
+ */
+public class ParallelScanner {
+
+    /**
+     * Scores one ordinal; return {@link Float#NaN} to skip it (e.g. deleted rows).
+     */
+    @FunctionalInterface
+    public interface Scorer {
+        float score(int ordinal);
+    }
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+    private final int partitionSize;
+
+    /**
+     * @param threads       worker threads of the dedicated pool
+     * @param threshold     minimum row count before the scan is split
+     * @param partitionSize rows scored per task
+     */
+    public ParallelScanner(int threads, int threshold, int partitionSize) {
+        this.pool = new ForkJoinPool(Math.max(1, threads));
+        this.threshold = Math.max(threshold, 1);
+        this.partitionSize = Math.max(partitionSize, 1);
+    }
+
+    /**
+     * Scan on the calling thread only (used when no scanner is configured).
+     */
+    public static TopKHeap scanSequential(int count, int topK, Scorer scorer) {
+        TopKHeap best = new TopKHeap(Math.min(topK, count));
+        scanRange(best, 0, count, scorer);
+        return best;
+    }
+
+    public TopKHeap scan(int count, int topK, Scorer scorer) {
+        if (count < threshold || pool.getParallelism() == 1) {
+            return scanSequential(count, topK, scorer);
+        }
+        return pool.invoke(new PartitionTask(0, count, Math.min(topK, count), scorer));
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private static void scanRange(TopKHeap best, int from, int to, Scorer scorer) {
+        for (int ordinal = from; ordinal < to; ordinal++) {
+            float score = scorer.score(ordinal);
+            if (!Float.isNaN(score)) {
+                best.offer(ordinal, score);
+            }
+        }
+    }
+
+    private static TopKHeap merge(TopKHeap into, TopKHeap from) {
+        for (int i = 0; i < from.size(); i++) {
+            into.offer(from.ordinal(i), from.score(i));
+        }
+        return into;
+    }
+
+    private class PartitionTask extends RecursiveTask<TopKHeap> {
+        private final int from;
+        private final int to;
+        private final int topK;
+        private final Scorer scorer;
+
+        PartitionTask(int from, int to, int topK, Scorer scorer) {
+            this.from = from;
+            this.to = to;
+            this.topK = topK;
+            this.scorer = scorer;
+        }
+
+        @Override
+        protected TopKHeap compute() {
+            if (to - from <= partitionSize) {
+                TopKHeap best = new TopKHeap(topK);
+                scanRange(best, from, to, scorer);
+                return best;
+            }
+
+            // split on a partition boundary so every leaf covers whole partitions
+            int partitions = (to - from + partitionSize - 1) / partitionSize;
+            int middle = from + (partitions / 2) * partitionSize;
+
+            PartitionTask left = new PartitionTask(from, middle, topK, scorer);
+            PartitionTask right = new PartitionTask(middle, to, topK, scorer);
+            left.fork();
+            TopKHeap rightBest = right.compute();
+            return merge(rightBest, left.join());
+        }
+    }
+}
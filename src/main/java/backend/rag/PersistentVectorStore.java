@@ -1,82 +1,864 @@
 package backend.rag;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PersistentVectorStore implements VectorStore {
 
-    private final Map<String, VectorEntry> vectors = new HashMap<>();
+    static final String SEGMENT_FILE = "vectors.seg";
+    static final String LEGACY_JSON_FILE = "vectors.json";
+    static final String LOG_FILE = "vectors.wal";
+    // chunk metadata sits next to the segment as "<segment>.meta" (JSON id -> metadata)
+    static final String METADATA_SUFFIX = ".meta";
+    // removed chunks left in the content blob (compacted at open) or in the off-heap row slabs
+    // (compacted at a checkpoint) before they are copied out
+    static final int COMPACT_MIN_GARBAGE = 1024;
+
+    /**
+     * Immutable snapshot of the store that readers scan without locking. Writers are serialized on
+     * the store; an add writes the slot at {@code count} of a shared array (invisible to earlier
+     * views) and then publishes a view with one more row, so adds are O(1). Replacing or removing
+     * rows copies the array instead of touching slots older views can see. The metadata index
+     * follows the same rule: appends extend it in place, anything else builds a new one.
+     *
+     * With off-heap rows every entry of a view has its row in the view's {@link RowSlabs}; a
+     * search reads them between {@link #acquire()} and {@link #release(View)}.
+     */
+    private static final class View {
+        static View empty(RowSlabs slabs) {
+            return new View(new VectorEntry[0], 0, new MetadataIndex(), slabs);
+        }
+
+        final VectorEntry[] entries;
+        final int count;
+        final MetadataIndex index;
+        final RowSlabs slabs;   // null when rows are on the heap
+
+        View(VectorEntry[] entries, int count, MetadataIndex index, RowSlabs slabs) {
+            this.entries = entries;
+            this.count = count;
+            this.index = index;
+            this.slabs = slabs;
+        }
+    }
+
+    /**
+     * Direct buffers from the store's {@link OffHeapArena} holding the rows added since the last
+     * row compaction. Rows are appended and never overwritten, so every view built in the meantime
+     * shares them. The store holds one reference until it moves on to new slabs and every search
+     * holds one while it scans; the buffers are freed when the last reference is dropped, so a
+     * search never reads memory that was handed back.
+     */
+    private static final class RowSlabs {
+        static final int MIN_SLAB_BYTES = 64 * 1024;
+        static final int MAX_SLAB_BYTES = 8 * 1024 * 1024;
+
+        final OffHeapArena arena;
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        final AtomicInteger references = new AtomicInteger(1);   // the store's
+        // writer side: slab rows are appended to, bytes allocated and rows appended so far
+        ByteBuffer current;
+        long allocatedBytes;
+        int rows;
+
+        RowSlabs(OffHeapArena arena) {
+            this.arena = arena;
+        }
+
+        // false once the buffers are freed: the store has already published newer slabs
+        boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                for (ByteBuffer buffer : buffers) {
+                    arena.release(buffer);
+                }
+                buffers.clear();
+            }
+        }
+
+        // The slab the next row of this many bytes goes to, at its position; slabs double up to 8 MB
+        ByteBuffer room(int bytes) {
+            if (current == null || current.remaining() < bytes) {
+                long size = Math.min(MAX_SLAB_BYTES, Math.max(MIN_SLAB_BYTES, allocatedBytes));
+                current = arena.allocate((int) Math.max(size, bytes));
+                buffers.add(current);
+                allocatedBytes += current.capacity();
+            }
+            rows++;
+            return current;
+        }
+    }
+
+    private volatile View view = View.empty(null);
+    // id -> index in view.entries, written by writers; getContents reads it and checks the id,
+    // since a position may belong to a newer view than the reader's
+    private final Map<String, Integer> positions = new ConcurrentHashMap<>();
     private final ObjectMapper mapper = new ObjectMapper();
     private final Path storageFile;
+    private final int binaryShortlist;
+    private final ParallelScanner scanner;
+    private final double filterFirstSelectivity;
+    // chunk texts live here instead of in the entries and the segment; null = texts stay on the heap.
+    // Replaced only by compaction, which runs before the store serves searches
+    private ContentBlobStore contents;
+    private final ContentBlobStore.Policy contentPolicy;
+    // embeddings kept (and written to vectors.seg) as half-precision shorts
+    private final boolean float16;
+    // coarse stage: score the first prefixDimensions components, rerank prefixShortlist in full
+    private final int prefixDimensions;
+    private final int prefixShortlist;
+    // where rows go instead of the heap; null = float[]/short[] per entry
+    private final OffHeapArena arena;
+    // slabs new rows are appended to, writers only
+    private RowSlabs slabs;
+    // adds are appended here and folded into vectors.seg at checkpoints; null = rewrite the segment per add
+    private WriteAheadLog log;
 
     public PersistentVectorStore(String basePath) {
-        this.storageFile = Path.of(basePath, "vectors.json");
+        this(basePath, 0, null, WriteAheadLog.Policy.DEFAULT);
+    }
+
+    public PersistentVectorStore(String basePath, int binaryShortlist, ParallelScanner scanner,
+                                 WriteAheadLog.Policy logPolicy) {
+        this(basePath, binaryShortlist, scanner, logPolicy, 0.1);
+    }
+
+    /**
+     * @param basePath        directory holding vectors.seg
+     * @param binaryShortlist when > 0, rank all chunks by sign-bit Hamming distance first and
+     *                        compute cosine similarity only for this many candidates
+     * @param scanner         splits exact scans of large corpora across its pool (null = single-threaded)
+     * @param logPolicy       fsync and checkpoint settings of vectors.wal
+     * @param filterFirstSelectivity filtered searches whose estimated share of matching chunks is at
+     *                        most this score only the matching ordinals; above it they scan everything
+     *                        and drop non-matching rows on the fly
+     */
+    public PersistentVectorStore(String basePath, int binaryShortlist, ParallelScanner scanner,
+                                 WriteAheadLog.Policy logPolicy, double filterFirstSelectivity) {
+        this(basePath, binaryShortlist, scanner, logPolicy, filterFirstSelectivity, ContentBlobStore.Policy.HEAP);
+    }
+
+    /**
+     * @param contentPolicy where chunk texts are kept: on the heap, or in a block-compressed blob
+     *                      file next to the segment that is read lazily for the top-K results
+     */
+    public PersistentVectorStore(String basePath, int binaryShortlist, ParallelScanner scanner,
+                                 WriteAheadLog.Policy logPolicy, double filterFirstSelectivity,
+                                 ContentBlobStore.Policy contentPolicy) {
+        this(basePath, binaryShortlist, scanner, logPolicy, filterFirstSelectivity, contentPolicy, false);
+    }
+
+    /**
+     * @param float16 keep embeddings in half precision (see {@link Float16}): half the heap and
+     *                segment size, similarities within about 1e-3 of float32
+     */
+    public PersistentVectorStore(String basePath, int binaryShortlist, ParallelScanner scanner,
+                                 WriteAheadLog.Policy logPolicy, double filterFirstSelectivity,
+                                 ContentBlobStore.Policy contentPolicy, boolean float16) {
+        this(basePath, binaryShortlist, scanner, logPolicy, filterFirstSelectivity, contentPolicy, float16, 0, 0);
+    }
+
+    /**
+     * @param prefixDimensions when > 0, scans first rank every chunk by the cosine similarity of the
+     *                         leading prefixDimensions components (Matryoshka truncation, valid for
+     *                         text-embedding-3 models) and compute the full similarity only for the
+     *                         best prefixShortlist of them
+     */
+    public PersistentVectorStore(String basePath, int binaryShortlist, ParallelScanner scanner,
+                                 WriteAheadLog.Policy logPolicy, double filterFirstSelectivity,
+                                 ContentBlobStore.Policy contentPolicy, boolean float16,
+                                 int prefixDimensions, int prefixShortlist) {
+        this(basePath, binaryShortlist, scanner, logPolicy, filterFirstSelectivity, contentPolicy, float16,
+                prefixDimensions, prefixShortlist, null);
+    }
+
+    /**
+     * @param arena when not null, rows are kept in direct buffers charged to this arena instead of
+     *              on the heap; adds fail with an {@link IllegalStateException} once it is full
+     */
+    public PersistentVectorStore(String basePath, int binaryShortlist, ParallelScanner scanner,
+                                 WriteAheadLog.Policy logPolicy, double filterFirstSelectivity,
+                                 ContentBlobStore.Policy contentPolicy, boolean float16,
+                                 int prefixDimensions, int prefixShortlist, OffHeapArena arena) {
+        if (prefixDimensions < 0 || prefixShortlist < 0) {
+            throw new IllegalArgumentException("Prefix dimensions and shortlist must be >= 0, got "
+                    + prefixDimensions + " and " + prefixShortlist);
+        }
+        this.prefixDimensions = prefixDimensions;
+        this.prefixShortlist = prefixShortlist;
+        this.float16 = float16;
+        this.storageFile = Path.of(basePath, SEGMENT_FILE);
+        this.binaryShortlist = binaryShortlist;
+        this.scanner = scanner;
+        this.filterFirstSelectivity = filterFirstSelectivity;
+        this.contentPolicy = contentPolicy;
+        this.arena = arena;
+        if (arena != null) {
+            this.slabs = new RowSlabs(arena);
+            this.view = View.empty(slabs);
+        }
+        migrateLegacyJson(mapper, Path.of(basePath));
+        this.contents = openContents(Path.of(basePath), contentPolicy, contentGeneration(storageFile));
         loadFromFile(storageFile.toString());
+        openLog(Path.of(basePath, LOG_FILE), logPolicy);
+        settleContents();
     }
 
+    // The blob the segment points to is opened as it is; without one, a fresh first generation
+    private static ContentBlobStore openContents(Path dir, ContentBlobStore.Policy policy, int generation) {
+        if (!policy.isEnabled()) {
+            return null;
+        }
+        try {
+            return generation > 0
+                    ? ContentBlobStore.open(dir, generation, policy)
+                    : ContentBlobStore.create(dir, 1, policy);
+        } catch (IOException e) {
+            System.err.println("❌ Failed to open content blob in " + dir + ", keeping chunk text on the heap: " + e.getMessage());
+            return null;
+        }
+    }
+
+    static int contentGeneration(Path segmentFile) {
+        if (!VectorSegment.isSegment(segmentFile)) {
+            return 0;
+        }
+        try {
+            return VectorSegment.open(segmentFile).contentGeneration();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // Called once the segment and the log are loaded, before any search can hold an ordinal:
+    // drop blob files the segment no longer needs and compact a blob that is mostly garbage
+    private synchronized void settleContents() {
+        Path dir = storageFile.getParent();
+        if (contents == null) {
+            if (contentGeneration(storageFile) > 0) {
+                // switched back to heap: the texts were read in, write them into the segment
+                checkpoint();
+            }
+            if (contentGeneration(storageFile) == 0) {
+                ContentBlobStore.deleteOtherGenerations(dir, 0);
+            }
+            return;
+        }
+
+        int garbage = contents.size() - view.count;
+        if (garbage >= COMPACT_MIN_GARBAGE && garbage >= view.count) {
+            compactContents();
+        } else if (VectorSegment.isSegment(storageFile) && contentGeneration(storageFile) != contents.getGeneration()) {
+            // texts were still inline (a segment from before the blob, or heap mode): refer to them once
+            checkpoint();
+        }
+        if (contentGeneration(storageFile) == contents.getGeneration() || !VectorSegment.isSegment(storageFile)) {
+            ContentBlobStore.deleteOtherGenerations(dir, contents.getGeneration());
+        }
+    }
+
+    // Copy the live texts into the next generation and point the segment at it
+    private void compactContents() {
+        ContentBlobStore previous = contents;
+        try {
+            ContentBlobStore next = ContentBlobStore.create(storageFile.getParent(), previous.getGeneration() + 1, contentPolicy);
+            List<VectorEntry> live = rows(view);
+            int[] ordinals = new int[live.size()];
+            for (int i = 0; i < ordinals.length; i++) {
+                ordinals[i] = next.append(live.get(i).content());
+            }
+            next.flush();
+            for (int i = 0; i < ordinals.length; i++) {
+                live.get(i).pointTo(next, ordinals[i]);
+            }
+            contents = next;
+            checkpoint();
+            previous.close();
+            System.out.println("🗜️ Compacted content blob: " + previous.size() + " -> " + next.size() + " texts");
+        } catch (IOException | RuntimeException e) {
+            System.err.println("❌ Failed to compact content blob " + previous.getFile() + ": " + e.getMessage());
+        }
+    }
+
+    // Replay adds logged after the last checkpoint, then fold them into the segment right away
+    private void openLog(Path logFile, WriteAheadLog.Policy policy) {
+        try {
+            log = new WriteAheadLog(logFile, policy);
+            int replayed;
+            synchronized (this) {
+                replayed = log.replay(new WriteAheadLog.Replayer() {
+                    @Override
+                    public void add(String id, String content, float[] embedding) {
+                        put(entry(id, content, embedding, null));
+                    }
+
+                    @Override
+                    public void add(String id, String content, float[] embedding, ChunkMetadata metadata) {
+                        put(entry(id, content, embedding, metadata));
+                    }
+
+                    @Override
+                    public void delete(String id) {
+                        removeAll(List.of(id));
+                    }
+                });
+            }
+            if (replayed > 0) {
+                System.out.println("📜 Replayed " + replayed + " logged vectors from " + logFile.getFileName());
+                checkpoint();
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to open " + logFile + ", saving the full segment on every add: " + e.getMessage());
+            log = null;
+        }
+    }
 
     @Override
     public void addVector(String documentId, String content, float[] embedding) {
-        vectors.put(documentId, new VectorEntry(documentId, content, embedding));
-        saveToFile(storageFile.toString());
+        addVector(documentId, content, embedding, null);
+    }
+
+    @Override
+    public synchronized void addVector(String documentId, String content, float[] embedding, ChunkMetadata metadata) {
+        // stored at unit length so scoring is a plain dot product
+        float[] normalized = VectorMath.normalize(embedding);
+        VectorEntry entry = entry(documentId, content, normalized, metadata);
+        put(entry);
+
+        if (log == null) {
+            saveToFile(storageFile.toString());
+            return;
+        }
+        try {
+            log.appendAdd(entry.id, content, normalized, entry.metadata);
+            if (log.checkpointDue()) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to log vector " + documentId + ": " + e.getMessage());
+            saveToFile(storageFile.toString());
+        }
+    }
+
+    @Override
+    public synchronized int deleteDocument(String documentId) {
+        List<String> removed = new ArrayList<>();
+        for (String id : positions.keySet()) {
+            if (VectorStore.belongsToDocument(id, documentId)) {
+                removed.add(id);
+            }
+        }
+        if (removed.isEmpty()) {
+            return 0;
+        }
+
+        removeAll(removed);
+
+        try {
+            if (log == null) {
+                saveToFile(storageFile.toString());
+            } else {
+                for (String id : removed) {
+                    log.appendDelete(id);
+                }
+                if (log.checkpointDue()) {
+                    checkpoint();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to log deletion of " + documentId + ": " + e.getMessage());
+            saveToFile(storageFile.toString());
+        }
+        System.out.println("🗑️ Deleted " + removed.size() + " chunks of " + documentId);
+        return removed.size();
+    }
+
+    // writer-side view maintenance; callers hold the store's lock
+
+    private VectorEntry entry(String id, String content, float[] embedding, ChunkMetadata metadata) {
+        VectorEntry entry = new VectorEntry(id, content, embedding);
+        entry.metadata = metadata;
+        if (contents != null) {
+            entry.moveContentTo(contents);
+        }
+        if (float16) {
+            entry.toHalf();
+        }
+        if (slabs != null) {
+            entry.moveRowTo(slabs);
+        }
+        return entry;
+    }
+
+    private void put(VectorEntry entry) {
+        View current = view;
+        Integer existing = positions.get(entry.id);
+        if (existing != null) {
+            // earlier views may be scanning the old row, so replace it in a copy
+            VectorEntry[] copy = Arrays.copyOf(current.entries, current.entries.length);
+            copy[existing] = entry;
+            view = new View(copy, current.count, indexOf(copy, current.count), slabs);
+            return;
+        }
+
+        VectorEntry[] entries = current.entries;
+        if (current.count == entries.length) {
+            entries = Arrays.copyOf(entries, Math.max(16, entries.length * 2));
+        }
+        entries[current.count] = entry;
+        current.index.add(current.count, entry.metadata);
+        positions.put(entry.id, current.count);
+        view = new View(entries, current.count + 1, current.index, slabs);
+    }
+
+    private void removeAll(Collection<String> ids) {
+        View current = view;
+        Set<String> doomed = new HashSet<>(ids);
+        VectorEntry[] kept = new VectorEntry[current.entries.length];
+        int count = 0;
+        positions.clear();
+        for (int i = 0; i < current.count; i++) {
+            VectorEntry entry = current.entries[i];
+            if (!doomed.contains(entry.id)) {
+                positions.put(entry.id, count);
+                kept[count++] = entry;
+            }
+        }
+        view = new View(kept, count, indexOf(kept, count), slabs);
+    }
+
+    // Replace every row; off-heap rows move to fresh slabs and the old ones are freed after the
+    // searches still reading them
+    private void publish(Map<String, VectorEntry> entries) {
+        VectorEntry[] rows = entries.values().toArray(new VectorEntry[0]);
+        RowSlabs previous = slabs;
+        if (arena != null) {
+            RowSlabs next = new RowSlabs(arena);
+            try {
+                for (VectorEntry row : rows) {
+                    row.moveRowTo(next);
+                }
+            } catch (IllegalStateException e) {
+                next.release();
+                throw e;
+            }
+            slabs = next;
+        }
+        positions.clear();
+        for (int i = 0; i < rows.length; i++) {
+            positions.put(rows[i].id, i);
+        }
+        view = new View(rows, rows.length, indexOf(rows, rows.length), slabs);
+        if (previous != null && previous != slabs) {
+            previous.release();
+        }
+    }
+
+    // Copy the live off-heap rows into new slabs once the replaced and removed ones outnumber them
+    private void compactRows() {
+        View current = view;
+        int garbage = slabs.rows - current.count;
+        if (garbage < COMPACT_MIN_GARBAGE || garbage < current.count) {
+            return;
+        }
+        RowSlabs previous = slabs;
+        RowSlabs next = new RowSlabs(arena);
+        VectorEntry[] copied = new VectorEntry[current.entries.length];
+        try {
+            for (int i = 0; i < current.count; i++) {
+                copied[i] = current.entries[i].copyRowTo(next);
+            }
+        } catch (IllegalStateException e) {
+            // both copies do not fit into the arena at once; try again at the next checkpoint
+            next.release();
+            System.err.println("⚠️ Could not compact off-heap rows: " + e.getMessage());
+            return;
+        }
+        slabs = next;
+        view = new View(copied, current.count, current.index, next);
+        previous.release();
+        System.out.println("🗜️ Compacted off-heap rows: " + previous.rows + " -> " + next.rows);
+    }
+
+    // A view whose rows stay readable until release(view). Only spins past a view whose slabs
+    // were freed in the meantime, and a newer view is published before that happens
+    private View acquire() {
+        while (true) {
+            View snapshot = view;
+            if (snapshot.slabs == null || snapshot.slabs.retain()) {
+                return snapshot;
+            }
+        }
     }
 
+    private static void release(View snapshot) {
+        if (snapshot.slabs != null) {
+            snapshot.slabs.release();
+        }
+    }
+
+    private static MetadataIndex indexOf(VectorEntry[] entries, int count) {
+        MetadataIndex index = new MetadataIndex();
+        for (int i = 0; i < count; i++) {
+            index.add(i, entries[i].metadata);
+        }
+        return index;
+    }
+
+    private static List<VectorEntry> rows(View view) {
+        return Arrays.asList(view.entries).subList(0, view.count);
+    }
+
+    /**
+     * Write every vector to vectors.seg and empty the log. A crash in between is harmless:
+     * replaying the log over the new segment only re-adds the same entries.
+     */
+    public synchronized void checkpoint() {
+        if (slabs != null) {
+            compactRows();
+        }
+        try {
+            View snapshot = view;
+            if (contents != null) {
+                // the segment only refers to the texts, so they must be on disk first
+                contents.flush();
+            }
+            writeSegment(storageFile, rows(snapshot), float16, contents);
+            writeMetadata(mapper, storageFile, rows(snapshot));
+            if (log != null) {
+                log.reset();
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Checkpoint failed, keeping the log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checkpoint and release the log; Spring calls this when the bean is destroyed.
+     */
+    public synchronized void close() {
+        checkpoint();
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.err.println("❌ Failed to close vector log: " + e.getMessage());
+            }
+            log = null;
+        }
+        if (contents != null) {
+            contents.close();
+        }
+        if (slabs != null) {
+            // searches still running keep the rows until they finish, later ones find no rows
+            RowSlabs previous = slabs;
+            positions.clear();
+            slabs = new RowSlabs(arena);
+            view = View.empty(slabs);
+            previous.release();
+        }
+    }
+
+    // Readers take one view and never synchronize, so queries keep running while writers add,
+    // delete or checkpoint
+
     @Override
     public List<SearchResult> searchSimilar(float[] queryEmbedding, int topK) {
-        List<SearchResult> results = new ArrayList<>();
+        View snapshot = acquire();
+        try {
+            return searchSimilar(snapshot, queryEmbedding, topK);
+        } finally {
+            release(snapshot);
+        }
+    }
+
+    private List<SearchResult> searchSimilar(View snapshot, float[] queryEmbedding, int topK) {
+        if (binaryShortlist > 0 && snapshot.count > Math.max(binaryShortlist, topK)) {
+            return searchWithBinaryPrefilter(snapshot, queryEmbedding, topK);
+        }
+
+        float[] query = VectorMath.normalize(queryEmbedding);
+        VectorEntry[] entries = snapshot.entries;
+        if (usePrefix(snapshot, query, topK)) {
+            return toResults(entries, rerank(entries, query, topK,
+                    scan(snapshot.count, prefixShortlist, i -> entries[i].prefixDot(query, prefixDimensions))));
+        }
+        TopKHeap best = scan(snapshot.count, topK, i -> entries[i].dot(query));
+        return toResults(entries, best);
+    }
+
+    private boolean usePrefix(View snapshot, float[] query, int topK) {
+        return prefixDimensions > 0 && prefixDimensions < query.length
+                && prefixShortlist > topK && snapshot.count > prefixShortlist;
+    }
+
+    // Second stage of the prefix scan: full-dimension similarity for the shortlisted ordinals
+    private static TopKHeap rerank(VectorEntry[] entries, float[] query, int topK, TopKHeap shortlist) {
+        TopKHeap best = new TopKHeap(topK);
+        for (int i = 0; i < shortlist.size(); i++) {
+            int ordinal = shortlist.ordinal(i);
+            best.offer(ordinal, entries[ordinal].dot(query));
+        }
+        return best;
+    }
+
+    /**
+     * Filtered search. The filter's estimate from posting list sizes picks the plan: selective
+     * filters are evaluated on the metadata index and only matching ordinals are scored
+     * (filter-first); broad ones scan every row and skip rows whose metadata does not match
+     * (scan-then-filter), which avoids building a bitmap that would select most rows anyway.
+     */
+    @Override
+    public List<SearchResult> searchSimilar(float[] queryEmbedding, int topK, MetadataFilter filter) {
+        if (filter == null) {
+            return searchSimilar(queryEmbedding, topK);
+        }
+
+        View snapshot = acquire();
+        try {
+            return searchSimilar(snapshot, queryEmbedding, topK, filter);
+        } finally {
+            release(snapshot);
+        }
+    }
+
+    private List<SearchResult> searchSimilar(View snapshot, float[] queryEmbedding, int topK, MetadataFilter filter) {
+        float[] query = VectorMath.normalize(queryEmbedding);
+        VectorEntry[] entries = snapshot.entries;
+        long estimate = filter.estimate(snapshot.index, snapshot.count);
+
+        if (estimate <= filterFirstSelectivity * snapshot.count) {
+            int[] candidates = ordinals(filter.evaluate(snapshot.index, snapshot.count), estimate);
+            TopKHeap best = scan(candidates.length, topK, i -> entries[candidates[i]].dot(query));
+            TopKHeap mapped = new TopKHeap(Math.max(best.size(), 1));
+            for (int i = 0; i < best.size(); i++) {
+                mapped.offer(candidates[best.ordinal(i)], best.score(i));
+            }
+            return toResults(entries, mapped);
+        }
+
+        if (usePrefix(snapshot, query, topK)) {
+            return toResults(entries, rerank(entries, query, topK,
+                    scan(snapshot.count, prefixShortlist, i -> filter.matches(entries[i].metadata)
+                            ? entries[i].prefixDot(query, prefixDimensions)
+                            : Float.NaN)));
+        }
+        TopKHeap best = scan(snapshot.count, topK, i -> filter.matches(entries[i].metadata)
+                ? entries[i].dot(query)
+                : Float.NaN);
+        return toResults(entries, best);
+    }
+
+    private TopKHeap scan(int count, int topK, ParallelScanner.Scorer scorer) {
+        return scanner != null
+                ? scanner.scan(count, topK, scorer)
+                : ParallelScanner.scanSequential(count, topK, scorer);
+    }
+
+    private static int[] ordinals(long[] bits, long expected) {
+        int[] ordinals = new int[(int) expected];
+        int count = 0;
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                if (count == ordinals.length) {
+                    ordinals = Arrays.copyOf(ordinals, Math.max(16, count * 2));
+                }
+                ordinals[count++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return count == ordinals.length ? ordinals : Arrays.copyOf(ordinals, count);
+    }
 
-        for (VectorEntry entry : vectors.values()) {
-            float similarity = cosineSimilarity(queryEmbedding, entry.embedding);
-            results.add(new SearchResult(entry.id, entry.content, similarity));
+    @Override
+    public List<List<SearchResult>> searchSimilarBatch(float[][] queryEmbeddings, int topK) {
+        if (binaryShortlist > 0 && view.count > Math.max(binaryShortlist, topK)) {
+            return VectorStore.super.searchSimilarBatch(queryEmbeddings, topK);
         }
 
-        results.sort((a, b) -> Float.compare(b.getSimilarity(), a.getSimilarity()));
-        return results.stream().limit(topK).toList();
+        View snapshot = acquire();
+        try {
+            VectorEntry[] entries = snapshot.entries;
+            int dimension = snapshot.count > 0 ? entries[0].dimension() : 0;
+            TopKHeap[] heaps = BatchScan.scan(new BatchScan.Rows() {
+                @Override
+                public float dot(int ordinal, float[] query) {
+                    return entries[ordinal].dot(query);
+                }
+            }, snapshot.count, dimension, BatchScan.normalizeAll(queryEmbeddings), topK);
+
+            List<List<SearchResult>> results = new ArrayList<>(heaps.length);
+            for (TopKHeap best : heaps) {
+                results.add(toResults(entries, best));
+            }
+            return results;
+        } finally {
+            release(snapshot);
+        }
+    }
+
+    // First pass: Hamming distance of sign-bit sketches over every chunk,
+    // second pass: exact cosine similarity over the closest binaryShortlist chunks only
+    private List<SearchResult> searchWithBinaryPrefilter(View snapshot, float[] queryEmbedding, int topK) {
+        float[] query = VectorMath.normalize(queryEmbedding);
+        long[] querySketch = BinarySketch.of(query);
+        VectorEntry[] entries = snapshot.entries;
+
+        int[] distances = new int[snapshot.count];
+        for (int i = 0; i < snapshot.count; i++) {
+            distances[i] = BinarySketch.hammingDistance(querySketch, entries[i].sketch());
+        }
+
+        int[] shortlist = BinarySketch.shortlist(distances, queryEmbedding.length, Math.max(binaryShortlist, topK));
+
+        TopKHeap best = new TopKHeap(Math.min(topK, shortlist.length));
+        for (int index : shortlist) {
+            best.offer(index, entries[index].dot(query));
+        }
+        return toResults(entries, best);
+    }
+
+    // SearchResult objects are only created for the winners
+    private static List<SearchResult> toResults(VectorEntry[] entries, TopKHeap best) {
+        best.sortDescending();
+        List<SearchResult> results = new ArrayList<>(best.size());
+        for (int i = 0; i < best.size(); i++) {
+            VectorEntry entry = entries[best.ordinal(i)];
+            results.add(new SearchResult(entry.id, entry.content(), best.score(i)));
+        }
+        return results;
     }
 
     @Override
     public int getVectorCount() {
-        return vectors.size();
+        return view.count;
+    }
+
+    /**
+     * @return rough heap footprint of the stored chunks: embeddings, content and per-entry overhead
+     */
+    public long estimateMemoryBytes() {
+        long bytes = 0;
+        for (VectorEntry entry : rows(view)) {
+            // content is null once moved to the blob, off-heap rows are not on the heap
+            bytes += estimateMemoryBytes(entry.content, entry.row != null ? 0 : entry.dimension(), entry.half != null);
+        }
+        return bytes;
+    }
+
+    static long estimateMemoryBytes(String content, int dimension, boolean float16) {
+        // object headers, id string and map slot of one entry
+        long overhead = 128;
+        long embeddingBytes = (long) dimension * (float16 ? Short.BYTES : Float.BYTES);
+        return overhead + embeddingBytes + (content == null ? 0 : 2L * content.length());
+    }
+
+    /**
+     * @return "float16" or "float32", the precision embeddings are kept in
+     */
+    @Override
+    public String getEmbeddingStorage() {
+        return float16 ? "float16" : "float32";
     }
 
     @Override
     public Map<String, String> getVectors() {
+        Map<String, String> texts = new HashMap<>();
+        for (VectorEntry entry : rows(view)) {
+            texts.put(entry.id, entry.content());
+        }
+        return texts;
+    }
+
+    @Override
+    public Map<String, String> getContents(Collection<String> ids) {
+        View snapshot = view;
         Map<String, String> contents = new HashMap<>();
-        for (VectorEntry entry : vectors.values()) {
-            contents.put(entry.id, entry.content);
+        Set<String> unresolved = new HashSet<>();
+        for (String id : ids) {
+            Integer position = positions.get(id);
+            if (position != null && position < snapshot.count && snapshot.entries[position].id.equals(id)) {
+                contents.put(id, snapshot.entries[position].content());
+            } else {
+                unresolved.add(id);
+            }
+        }
+        if (!unresolved.isEmpty()) {
+            // removed ids, or positions rebuilt by a concurrent delete
+            for (VectorEntry entry : rows(snapshot)) {
+                if (unresolved.contains(entry.id)) {
+                    contents.put(entry.id, entry.content());
+                }
+            }
         }
         return contents;
     }
 
+    @Override
+    public Map<String, ChunkMetadata> getMetadata() {
+        Map<String, ChunkMetadata> metadata = new HashMap<>();
+        for (VectorEntry entry : rows(view)) {
+            if (entry.metadata != null) {
+                metadata.put(entry.id, entry.metadata);
+            }
+        }
+        return metadata;
+    }
+
     // persistence
 
     @Override
     public void saveToFile(String filePath) {
+        View snapshot = acquire();
         try {
-            Files.createDirectories(Path.of(filePath).getParent());
-            mapper.writeValue(new File(filePath), vectors);
+            // exports carry their texts; only this store's own segment refers to its blob
+            ContentBlobStore blob = Path.of(filePath).toAbsolutePath().equals(storageFile.toAbsolutePath()) ? contents : null;
+            if (blob != null) {
+                blob.flush();
+            }
+            writeSegment(Path.of(filePath), rows(snapshot), float16, blob);
+            writeMetadata(mapper, Path.of(filePath), rows(snapshot));
         } catch (Exception e) {
             System.err.println("❌ Failed to save vectors: " + e.getMessage());
+        } finally {
+            release(snapshot);
         }
     }
 
     @Override
-    public void loadFromFile(String filePath) {
+    public synchronized void loadFromFile(String filePath) {
         try {
             File file = new File(filePath);
-            if (file.exists()) {
-                Map<String, VectorEntry> loaded =
-                        mapper.readValue(file,
-                                mapper.getTypeFactory().constructMapType(
-                                        HashMap.class, String.class, VectorEntry.class));
-
-                vectors.clear();
-                vectors.putAll(loaded);
-                System.out.println("📦 Loaded " + vectors.size() + " vectors from disk");
+            if (VectorSegment.exists(file.toPath())) {
+                Map<String, VectorEntry> loaded = readVectors(mapper, file.toPath(), float16, contents);
+                readMetadata(mapper, file.toPath(), loaded);
+                if (contents != null) {
+                    loaded.values().forEach(entry -> entry.moveContentTo(contents));
+                }
+                publish(loaded);
+                System.out.println("📦 Loaded " + view.count + " vectors from disk");
             }
         } catch (Exception e) {
             System.err.println("❌ Failed to load vectors: " + e.getMessage());
@@ -84,28 +866,344 @@ public class PersistentVectorStore implements VectorStore {
     }
 
     @Override
-    public void clear() {
-        vectors.clear();
-        saveToFile(storageFile.toString());
+    public synchronized void clear() {
+        positions.clear();
+        RowSlabs previous = slabs;
+        if (previous != null) {
+            slabs = new RowSlabs(arena);
+        }
+        view = View.empty(slabs);
+        if (previous != null) {
+            previous.release();
+        }
+        checkpoint();
         System.out.println("🧹 Vector store cleared");
     }
 
 
-    private float cosineSimilarity(float[] a, float[] b) {
-        float dot = 0, normA = 0, normB = 0;
-        for (int i = 0; i < a.length; i++) {
-            dot += a[i] * b[i];
-            normA += a[i] * a[i];
-            normB += b[i] * b[i];
+    /**
+     * Read a vector segment, or a vectors.json file from before the segment format.
+     */
+    static Map<String, VectorEntry> readVectors(ObjectMapper mapper, Path file) throws IOException {
+        return readVectors(mapper, file, false);
+    }
+
+    /**
+     * @param float16 return entries in half precision; rows of a float16 segment are copied
+     *                without being widened to float[] first
+     */
+    static Map<String, VectorEntry> readVectors(ObjectMapper mapper, Path file, boolean float16) throws IOException {
+        return readVectors(mapper, file, float16, null);
+    }
+
+    /**
+     * @param blob when it is the content blob the segment refers to, entries keep only their
+     *             ordinals into it; otherwise texts kept in a blob are read from the segment's
+     *             directory into the entries
+     */
+    static Map<String, VectorEntry> readVectors(ObjectMapper mapper, Path file, boolean float16,
+                                                ContentBlobStore blob) throws IOException {
+        if (!VectorSegment.isSegment(file)) {
+            Map<String, VectorEntry> entries = readSnapshot(mapper, file.toFile()).vectors;
+            if (float16) {
+                entries.values().forEach(VectorEntry::toHalf);
+            }
+            return entries;
+        }
+
+        VectorSegment segment = VectorSegment.open(file);
+        int generation = segment.contentGeneration();
+        boolean ownBlob = generation > 0 && blob != null && blob.getGeneration() == generation
+                && blob.getFile().toAbsolutePath().getParent().equals(file.toAbsolutePath().getParent());
+        String[] texts = generation > 0 && !ownBlob
+                ? ContentBlobStore.readAll(file.toAbsolutePath().getParent(), generation)
+                : null;
+
+        Map<String, VectorEntry> entries = new HashMap<>(segment.count() * 2);
+        for (int i = 0; i < segment.count(); i++) {
+            String content = generation == 0 ? segment.content(i) : texts != null ? texts[segment.contentOrdinal(i)] : null;
+            VectorEntry entry;
+            if (float16 && segment.isFloat16() && segment.isNormalized()) {
+                entry = new VectorEntry(segment.id(i), content, null);
+                entry.half = segment.halfRow(i);
+            } else {
+                float[] embedding = segment.row(i);
+                if (!segment.isNormalized()) {
+                    VectorMath.normalizeInPlace(embedding);
+                }
+                entry = new VectorEntry(segment.id(i), content, embedding);
+                if (float16) {
+                    entry.toHalf();
+                }
+            }
+            if (ownBlob) {
+                entry.pointTo(blob, segment.contentOrdinal(i));
+            }
+            entries.put(entry.id, entry);
+        }
+        return entries;
+    }
+
+    static Path metadataFile(Path segmentFile) {
+        return segmentFile.resolveSibling(segmentFile.getFileName() + METADATA_SUFFIX);
+    }
+
+    /**
+     * Write the metadata of the entries that have any next to their segment, atomically.
+     */
+    static void writeMetadata(ObjectMapper mapper, Path segmentFile, Collection<VectorEntry> entries) throws IOException {
+        Map<String, ChunkMetadata> metadata = new HashMap<>();
+        for (VectorEntry entry : entries) {
+            if (entry.metadata != null) {
+                metadata.put(entry.id, entry.metadata);
+            }
+        }
+        writeMetadata(mapper, segmentFile, metadata);
+    }
+
+    /**
+     * Write chunk id -> metadata next to a segment, atomically.
+     */
+    static void writeMetadata(ObjectMapper mapper, Path segmentFile, Map<String, ChunkMetadata> metadata) throws IOException {
+        Path file = metadataFile(segmentFile);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        mapper.writeValue(temp.toFile(), metadata);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static void readMetadata(ObjectMapper mapper, Path segmentFile, Map<String, VectorEntry> entries) throws IOException {
+        readMetadata(mapper, segmentFile).forEach((id, value) -> {
+            VectorEntry entry = entries.get(id);
+            if (entry != null) {
+                entry.metadata = value;
+            }
+        });
+    }
+
+    /**
+     * @return chunk id -> metadata stored next to a segment, empty when there is none
+     */
+    static Map<String, ChunkMetadata> readMetadata(ObjectMapper mapper, Path segmentFile) throws IOException {
+        Path file = metadataFile(segmentFile);
+        if (!Files.exists(file)) {
+            return new HashMap<>();
+        }
+        return mapper.readValue(file.toFile(),
+                mapper.getTypeFactory().constructMapType(HashMap.class, String.class, ChunkMetadata.class));
+    }
+
+    /**
+     * Chunk id -> text of a segment written by a closed store, read without loading its embeddings.
+     */
+    static Map<String, String> readContents(Path segmentFile) throws IOException {
+        Map<String, String> contents = new HashMap<>();
+        if (!VectorSegment.isSegment(segmentFile)) {
+            return contents;
+        }
+        VectorSegment segment = VectorSegment.open(segmentFile);
+        int generation = segment.contentGeneration();
+        String[] texts = generation > 0 ? ContentBlobStore.readAll(segmentFile.toAbsolutePath().getParent(), generation) : null;
+        for (int i = 0; i < segment.count(); i++) {
+            contents.put(segment.id(i), texts != null ? texts[segment.contentOrdinal(i)] : segment.content(i));
+        }
+        return contents;
+    }
+
+    /**
+     * Texts of {@code ids} in a segment written by a closed store; only those texts are read.
+     */
+    static Map<String, String> readContents(Path segmentFile, Set<String> ids) throws IOException {
+        Map<String, String> contents = new HashMap<>();
+        if (!VectorSegment.isSegment(segmentFile) || ids.isEmpty()) {
+            return contents;
+        }
+        VectorSegment segment = VectorSegment.open(segmentFile);
+        List<Integer> rows = new ArrayList<>();
+        for (int i = 0; i < segment.count(); i++) {
+            if (ids.contains(segment.id(i))) {
+                rows.add(i);
+            }
+        }
+        String[] texts = null;
+        if (segment.contentGeneration() > 0) {
+            int[] ordinals = new int[rows.size()];
+            for (int i = 0; i < ordinals.length; i++) {
+                ordinals[i] = segment.contentOrdinal(rows.get(i));
+            }
+            texts = ContentBlobStore.read(segmentFile.toAbsolutePath().getParent(), segment.contentGeneration(), ordinals);
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            contents.put(segment.id(rows.get(i)), texts != null ? texts[i] : segment.content(rows.get(i)));
+        }
+        return contents;
+    }
+
+    /**
+     * Top-K of a segment written by a closed store, scored straight from the mapping (rows are unit
+     * length); texts are read for the winners only.
+     */
+    static List<SearchResult> searchSegment(Path segmentFile, float[] queryEmbedding, int topK) throws IOException {
+        if (!VectorSegment.isSegment(segmentFile)) {
+            return new ArrayList<>();
+        }
+        VectorSegment segment = VectorSegment.open(segmentFile);
+        float[] query = VectorMath.normalize(queryEmbedding);
+        TopKHeap best = new TopKHeap(topK);
+        for (int i = 0; i < segment.count(); i++) {
+            best.offer(i, segment.dot(i, query));
+        }
+        best.sortDescending();
+
+        String[] texts = null;
+        if (segment.contentGeneration() > 0) {
+            int[] ordinals = new int[best.size()];
+            for (int i = 0; i < ordinals.length; i++) {
+                ordinals[i] = segment.contentOrdinal(best.ordinal(i));
+            }
+            texts = ContentBlobStore.read(segmentFile.toAbsolutePath().getParent(), segment.contentGeneration(), ordinals);
+        }
+        List<SearchResult> results = new ArrayList<>(best.size());
+        for (int i = 0; i < best.size(); i++) {
+            int ordinal = best.ordinal(i);
+            results.add(new SearchResult(segment.id(ordinal), texts != null ? texts[i] : segment.content(ordinal), best.score(i)));
+        }
+        return results;
+    }
+
+    static void writeSegment(Path file, Collection<VectorEntry> entries) throws IOException {
+        writeSegment(file, entries, false);
+    }
+
+    static void writeSegment(Path file, Collection<VectorEntry> entries, boolean float16) throws IOException {
+        writeSegment(file, entries, float16, null);
+    }
+
+    /**
+     * @param blob when not null, the segment stores each entry's ordinal into this blob instead of its text
+     */
+    static void writeSegment(Path file, Collection<VectorEntry> entries, boolean float16,
+                             ContentBlobStore blob) throws IOException {
+        VectorEntry[] rows = entries.toArray(new VectorEntry[0]);
+        int dimension = rows.length > 0 ? rows[0].dimension() : 0;
+        int generation = blob != null ? blob.getGeneration() : 0;
+
+        VectorSegment.write(file, rows.length, dimension, true, float16, generation, new VectorSegment.Rows() {
+            @Override
+            public String id(int index) {
+                return rows[index].id;
+            }
+
+            @Override
+            public String content(int index) {
+                return rows[index].content();
+            }
+
+            @Override
+            public float[] array(int index) {
+                return rows[index].floats();
+            }
+
+            @Override
+            public short[] halfArray(int index) {
+                return rows[index].halves();
+            }
+
+            @Override
+            public int offset(int index) {
+                return 0;
+            }
+
+            @Override
+            public int contentOrdinal(int index) {
+                if (rows[index].blob != blob) {
+                    throw new IllegalStateException("Text of " + rows[index].id + " is not in " + blob.getFile());
+                }
+                return rows[index].contentOrdinal;
+            }
+        });
+    }
+
+    /**
+     * Convert basePath/vectors.json into basePath/vectors.seg once; the JSON file is kept
+     * as vectors.json.migrated.
+     */
+    static void migrateLegacyJson(ObjectMapper mapper, Path basePath) {
+        Path segment = basePath.resolve(SEGMENT_FILE);
+        Path legacy = basePath.resolve(LEGACY_JSON_FILE);
+        if (VectorSegment.exists(segment) || !Files.exists(legacy)) {
+            return;
+        }
+
+        try {
+            Map<String, VectorEntry> entries = readSnapshot(mapper, legacy.toFile()).vectors;
+            writeSegment(segment, entries.values());
+            Files.move(legacy, basePath.resolve(LEGACY_JSON_FILE + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("🔄 Migrated " + entries.size() + " vectors from " + legacy + " to " + SEGMENT_FILE);
+        } catch (Exception e) {
+            System.err.println("❌ Failed to migrate " + legacy + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read vectors.json. Files from before embeddings were normalized at ingest are a bare
+     * id -> entry map; their embeddings are normalized here and the snapshot reports version 1.
+     */
+    static Snapshot readSnapshot(ObjectMapper mapper, File file) throws IOException {
+        JsonNode root = mapper.readTree(file);
+
+        if (root.has("version") && root.has("vectors")) {
+            Snapshot snapshot = mapper.treeToValue(root, Snapshot.class);
+            if (!snapshot.normalized) {
+                snapshot.vectors.values().forEach(entry -> VectorMath.normalizeInPlace(entry.embedding));
+                snapshot.normalized = true;
+            }
+            return snapshot;
         }
-        return (float) (dot / (Math.sqrt(normA) * Math.sqrt(normB) + 1e-10));
+
+        Map<String, VectorEntry> legacy = mapper.convertValue(root,
+                mapper.getTypeFactory().constructMapType(HashMap.class, String.class, VectorEntry.class));
+        legacy.values().forEach(entry -> VectorMath.normalizeInPlace(entry.embedding));
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.version = 1;
+        snapshot.vectors = legacy;
+        return snapshot;
+    }
+
+    // JSON layout of vectors.json (read-only, superseded by vectors.seg)
+    static class Snapshot {
+        static final int CURRENT_VERSION = 2;
+
+        public int version = CURRENT_VERSION;
+        public boolean normalized = true;
+        public Map<String, VectorEntry> vectors = new HashMap<>();
     }
 
 
     static class VectorEntry {
         public String id;
-        public String content;
-        public float[] embedding;
+        public String content;   // null once moved to a content blob
+        public float[] embedding;   // unit length, null when kept in half precision
+        public ChunkMetadata metadata;   // null when added without metadata
+
+        @JsonIgnore
+        private long[] sketch;
+        @JsonIgnore
+        private short[] half;   // unit length in float16, replaces embedding
+        @JsonIgnore
+        private float prefixScale;   // 1 / norm of the leading prefixDimensions, 0 = not computed
+        @JsonIgnore
+        private ContentBlobStore blob;
+        @JsonIgnore
+        private int contentOrdinal = -1;
+        @JsonIgnore
+        private ByteBuffer row;   // off-heap copy of embedding or half, which are then null
+        @JsonIgnore
+        private int rowOffset;
+        @JsonIgnore
+        private int rowDimension;
+        @JsonIgnore
+        private boolean rowHalf;
 
         public VectorEntry() {}
         public VectorEntry(String id, String content, float[] embedding) {
@@ -113,5 +1211,156 @@ public class PersistentVectorStore implements VectorStore {
             this.content = content;
             this.embedding = embedding;
         }
+
+        String content() {
+            return blob != null ? blob.read(contentOrdinal) : content;
+        }
+
+        // Drop the text from the heap; content() reads it back from the blob
+        void moveContentTo(ContentBlobStore store) {
+            if (blob == null) {
+                contentOrdinal = store.append(content);
+                blob = store;
+                content = null;
+            }
+        }
+
+        // Text already stored in the blob under this ordinal
+        void pointTo(ContentBlobStore store, int ordinal) {
+            blob = store;
+            contentOrdinal = ordinal;
+            content = null;
+        }
+
+        // Move the embedding into the slabs, in the precision it has now
+        void moveRowTo(RowSlabs slabs) {
+            if (row != null) {
+                return;
+            }
+            int dimension = dimension();
+            boolean halfRow = half != null;
+            int bytes = dimension * (halfRow ? Short.BYTES : Float.BYTES);
+            ByteBuffer slab = slabs.room(bytes);
+            int offset = slab.position();
+            for (int d = 0; d < dimension; d++) {
+                if (halfRow) {
+                    slab.putShort(offset + d * Short.BYTES, half[d]);
+                } else {
+                    slab.putFloat(offset + d * Float.BYTES, embedding[d]);
+                }
+            }
+            slab.position(offset + bytes);
+            row = slab;
+            rowOffset = offset;
+            rowDimension = dimension;
+            rowHalf = halfRow;
+            embedding = null;
+            half = null;
+        }
+
+        // An entry like this one with its off-heap row copied into other slabs; views that hold
+        // this entry keep reading the old slabs
+        VectorEntry copyRowTo(RowSlabs slabs) {
+            VectorEntry copy = new VectorEntry(id, content, null);
+            copy.metadata = metadata;
+            copy.blob = blob;
+            copy.contentOrdinal = contentOrdinal;
+            copy.sketch = sketch;
+            copy.prefixScale = prefixScale;
+            if (rowHalf) {
+                copy.half = halves();
+            } else {
+                copy.embedding = floats();
+            }
+            copy.moveRowTo(slabs);
+            return copy;
+        }
+
+        float dot(float[] query) {
+            if (row != null) {
+                return rowHalf
+                        ? Float16.dot(query, 0, row, rowOffset, rowDimension)
+                        : VectorMath.dot(row, rowOffset, query, 0, rowDimension);
+            }
+            return half != null
+                    ? VectorMath.dot(query, 0, half, 0, half.length)
+                    : VectorMath.dot(query, embedding);
+        }
+
+        // Cosine similarity of the leading components, up to the query prefix's norm (same for every row)
+        float prefixDot(float[] query, int dimensions) {
+            float scale = prefixScale;
+            if (scale == 0) {
+                float squares = 0;
+                for (int d = 0; d < dimensions; d++) {
+                    float value = component(d);
+                    squares += value * value;
+                }
+                scale = squares > 0 ? (float) (1 / Math.sqrt(squares)) : 0;
+                prefixScale = scale;
+            }
+            float dot;
+            if (row != null) {
+                dot = rowHalf
+                        ? Float16.dot(query, 0, row, rowOffset, dimensions)
+                        : VectorMath.dot(row, rowOffset, query, 0, dimensions);
+            } else {
+                dot = half != null
+                        ? VectorMath.dot(query, 0, half, 0, dimensions)
+                        : VectorMath.dot(query, 0, embedding, 0, dimensions);
+            }
+            return dot * scale;
+        }
+
+        private float component(int d) {
+            if (row != null) {
+                return rowHalf
+                        ? Float16.toFloat(row.getShort(rowOffset + d * Short.BYTES))
+                        : row.getFloat(rowOffset + d * Float.BYTES);
+            }
+            return half != null ? Float16.toFloat(half[d]) : embedding[d];
+        }
+
+        int dimension() {
+            return row != null ? rowDimension : half != null ? half.length : embedding.length;
+        }
+
+        float[] floats() {
+            if (row != null) {
+                float[] values = new float[rowDimension];
+                for (int d = 0; d < rowDimension; d++) {
+                    values[d] = component(d);
+                }
+                return values;
+            }
+            return half != null ? Float16.decode(half) : embedding;
+        }
+
+        // Half-precision components, or null when the entry is kept in float32
+        short[] halves() {
+            if (row != null && rowHalf) {
+                short[] values = new short[rowDimension];
+                for (int d = 0; d < rowDimension; d++) {
+                    values[d] = row.getShort(rowOffset + d * Short.BYTES);
+                }
+                return values;
+            }
+            return row != null ? null : half;
+        }
+
+        void toHalf() {
+            if (half == null && row == null) {
+                half = Float16.encode(embedding);
+                embedding = null;
+            }
+        }
+
+        // Sign-bit sketch, derived from the embedding so it is never persisted
+        long[] sketch() {
+            if (sketch == null) {
+                sketch = BinarySketch.of(floats());
+            }
+            return sketch;
+        }
     }
 }
@@ -0,0 +1,117 @@
+package backend.rag;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Short-lived cache of question embeddings, so the same question asked again by another student a
+ * few minutes later skips the embedding round-trip.
+ *
+ * Questions are looked up by {@link #normalize}: lower case, collapsed whitespace, no quotes and no
+ * sentence punctuation, so "What is a pointer?" and "what is a pointer" share an entry. Symbols
+ * that matter in C++ ({@code int*}, {@code std::cout}, {@code a.size()}) are kept. Entries expire
+ * {@code ttlMillis} after they were stored and the least recently used one is evicted above
+ * {@code maxEntries}.
+ */
+public final class QueryEmbeddingCache {
+
+    private static final class Entry {
+        final float[] embedding;
+        final long expiresAt;
+
+        Entry(float[] embedding, long expiresAt) {
+            this.embedding = embedding;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LongSupplier clockMillis;
+    private final Map<String, Entry> entries;
+
+    private long hits;
+    private long misses;
+    private long expirations;
+    private long evictions;
+
+    public QueryEmbeddingCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, System::currentTimeMillis);
+    }
+
+    public QueryEmbeddingCache(int maxEntries, long ttlMillis, LongSupplier clockMillis) {
+        if (maxEntries < 0 || ttlMillis < 0) {
+            throw new IllegalArgumentException("Query cache needs maxEntries >= 0 and ttl >= 0, got " + maxEntries + " and " + ttlMillis);
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.clockMillis = clockMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > QueryEmbeddingCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0 && ttlMillis > 0;
+    }
+
+    /**
+     * @return a copy of the cached embedding, or null when the question is not cached or expired
+     */
+    public synchronized float[] get(String query) {
+        String key = normalize(query);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt <= clockMillis.getAsLong()) {
+            entries.remove(key);
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.embedding.clone();
+    }
+
+    public synchronized void put(String query, float[] embedding) {
+        if (!isEnabled()) {
+            return;
+        }
+        entries.put(normalize(query), new Entry(embedding.clone(), clockMillis.getAsLong() + ttlMillis));
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("maxEntries", maxEntries);
+        stats.put("ttlSeconds", ttlMillis / 1000);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("expirations", expirations);
+        stats.put("evictions", evictions);
+        stats.put("hitRate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        return stats;
+    }
+
+    public static String normalize(String query) {
+        if (query == null) {
+            return "";
+        }
+        return query.toLowerCase(Locale.ROOT)
+                .replaceAll("[\"'`‘’“”]", "")
+                // sentence punctuation ends a word; inside one ("std::cout", "v.size()") it is code
+                .replaceAll("[?!.,;:]+(?=\\s|$)", " ")
+                .replaceAll("\\s+", " ")
+                .trim();
+    }
+}
@@ -0,0 +1,48 @@
+package backend.rag;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reciprocal rank fusion of ranked result lists, e.g. vector search and BM25.
+ *
+ * A chunk at (1-based) rank r of a list contributes 1 / (k + r); contributions are summed over
+ * the lists and the fused list is ordered by that sum. Only ranks are used, so cosine
+ * similarities and BM25 scores never have to be put on a common scale. Each fused result keeps
+ * its vector similarity when a list ranked it by one, otherwise the score it had in the first
+ * list that contains it.
+ */
+public final class RankFusion {
+
+    private RankFusion() {}
+
+    @SafeVarargs
+    public static List<SearchResult> fuse(int k, int topK, List<SearchResult>... rankings) {
+        if (k < 0) {
+            throw new IllegalArgumentException("RRF k must be >= 0, got " + k);
+        }
+        Map<String, SearchResult> firstSeen = new LinkedHashMap<>();
+        Map<String, Double> fusedScores = new LinkedHashMap<>();
+        for (List<SearchResult> ranking : rankings) {
+            for (int rank = 0; rank < ranking.size(); rank++) {
+                SearchResult result = ranking.get(rank);
+                SearchResult seen = firstSeen.get(result.getDocumentId());
+                if (seen == null || (!seen.isVectorScore() && result.isVectorScore())) {
+                    firstSeen.put(result.getDocumentId(), result);
+                }
+                fusedScores.merge(result.getDocumentId(), 1.0 / (k + rank + 1), Double::sum);
+            }
+        }
+
+        List<Map.Entry<String, Double>> ordered = new ArrayList<>(fusedScores.entrySet());
+        ordered.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+
+        List<SearchResult> fused = new ArrayList<>(Math.min(topK, ordered.size()));
+        for (int i = 0; i < ordered.size() && i < topK; i++) {
+            fused.add(firstSeen.get(ordered.get(i).getKey()));
+        }
+        return fused;
+    }
+}
@@ -0,0 +1,166 @@
+package backend.rag;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Per-dimension min/max scalar quantizer that turns each float of an embedding into one signed byte.
+ *
+ * A value x in dimension i is stored as code c = round((x - min[i]) / scale[i]) - 128, so
+ * x ≈ min[i] + scale[i] * (c + 128). Queries are folded into integer weights so that scoring a
+ * stored vector is a pure byte-by-byte integer dot product (see {@link Query#score(byte[])}).
+ */
+public class ScalarQuantizer {
+
+    private final float[] min;
+    private final float[] scale;
+
+    private ScalarQuantizer(float[] min, float[] scale) {
+        this.min = min;
+        this.scale = scale;
+    }
+
+    /**
+     * Learn the per-dimension range from the given vectors.
+     */
+    public static ScalarQuantizer train(Collection<float[]> vectors) {
+        if (vectors.isEmpty()) {
+            throw new IllegalArgumentException("Cannot train a quantizer without vectors");
+        }
+        int dimension = vectors.iterator().next().length;
+        float[] min = new float[dimension];
+        float[] max = new float[dimension];
+        Arrays.fill(min, Float.MAX_VALUE);
+        Arrays.fill(max, -Float.MAX_VALUE);
+
+        for (float[] vector : vectors) {
+            for (int i = 0; i < dimension; i++) {
+                min[i] = Math.min(min[i], vector[i]);
+                max[i] = Math.max(max[i], vector[i]);
+            }
+        }
+
+        return new ScalarQuantizer(min, rangeToScale(min, max));
+    }
+
+    private static float[] rangeToScale(float[] min, float[] max) {
+        float[] scale = new float[min.length];
+        for (int i = 0; i < min.length; i++) {
+            float range = max[i] - min[i];
+            scale[i] = range > 0 ? range / 255f : 1e-9f;
+        }
+        return scale;
+    }
+
+    /**
+     * Learn the per-dimension range from every row of a matrix, one row at a time.
+     */
+    public static ScalarQuantizer train(VectorMatrix matrix) {
+        int rows = matrix.size();
+        if (rows == 0) {
+            throw new IllegalArgumentException("Cannot train a quantizer without vectors");
+        }
+        int dimension = matrix.dimension();
+        float[] min = new float[dimension];
+        float[] max = new float[dimension];
+        Arrays.fill(min, Float.MAX_VALUE);
+        Arrays.fill(max, -Float.MAX_VALUE);
+
+        float[] row = new float[dimension];
+        for (int ordinal = 0; ordinal < rows; ordinal++) {
+            if (matrix.isDeleted(ordinal)) continue;
+            matrix.readRow(ordinal, row, 0);
+            for (int i = 0; i < dimension; i++) {
+                min[i] = Math.min(min[i], row[i]);
+                max[i] = Math.max(max[i], row[i]);
+            }
+        }
+        return new ScalarQuantizer(min, rangeToScale(min, max));
+    }
+
+    public int getDimension() {
+        return min.length;
+    }
+
+    /**
+     * Encode a vector; values outside the trained range are clamped.
+     */
+    public byte[] encode(float[] vector) {
+        byte[] codes = new byte[min.length];
+        encode(vector, 0, codes, 0);
+        return codes;
+    }
+
+    /**
+     * Encode one row of a packed float array into a packed code array.
+     */
+    public void encode(float[] source, int sourceOffset, byte[] target, int targetOffset) {
+        for (int i = 0; i < min.length; i++) {
+            int level = Math.round((source[sourceOffset + i] - min[i]) / scale[i]);
+            level = Math.max(0, Math.min(255, level));
+            target[targetOffset + i] = (byte) (level - 128);
+        }
+    }
+
+    /**
+     * Fold a query into integer weights for the int8 scan.
+     */
+    public Query prepareQuery(float[] queryEmbedding) {
+        int dimension = min.length;
+        float offset = 0f;
+        float maxWeight = 0f;
+        float normSq = 0f;
+        float[] weights = new float[dimension];
+
+        // q·x ≈ Σ q[i]*(min[i] + 128*scale[i]) + Σ (q[i]*scale[i]) * c[i]
+        for (int i = 0; i < dimension; i++) {
+            float q = queryEmbedding[i];
+            offset += q * (min[i] + 128f * scale[i]);
+            weights[i] = q * scale[i];
+            maxWeight = Math.max(maxWeight, Math.abs(weights[i]));
+            normSq += q * q;
+        }
+
+        float weightScale = maxWeight > 0 ? maxWeight / 127f : 1f;
+        byte[] quantizedWeights = new byte[dimension];
+        for (int i = 0; i < dimension; i++) {
+            quantizedWeights[i] = (byte) Math.round(weights[i] / weightScale);
+        }
+
+        float queryNorm = (float) Math.sqrt(normSq);
+        return new Query(quantizedWeights, weightScale, offset, queryNorm > 0 ? queryNorm : 1f);
+    }
+
+    /**
+     * Query prepared against one quantizer.
+     */
+    public static final class Query {
+        private final byte[] weights;
+        private final float weightScale;
+        private final float offset;
+        private final float norm;
+
+        private Query(byte[] weights, float weightScale, float offset, float norm) {
+            this.weights = weights;
+            this.weightScale = weightScale;
+            this.offset = offset;
+            this.norm = norm;
+        }
+
+        /**
+         * Approximate dot product with a stored vector divided by the query norm.
+         * Dividing by the stored vector's norm turns this into an approximate cosine similarity.
+         */
+        public float score(byte[] codes) {
+            return score(codes, 0);
+        }
+
+        public float score(byte[] codes, int codeOffset) {
+            int sum = 0;
+            for (int i = 0; i < weights.length; i++) {
+                sum += weights[i] * codes[codeOffset + i];
+            }
+            return (offset + weightScale * sum) / norm;
+        }
+    }
+}
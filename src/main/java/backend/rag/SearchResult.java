@@ -4,6 +4,7 @@ public class SearchResult {
     private final String documentId;
     private final String content;
     private final float similarity;
+    private final boolean vectorScore;
 
     /**
      * Constructor to create a search result
@@ -13,9 +14,18 @@ public class SearchResult {
      * @param similarity The cosine similarity score (0.0 to 1.0)
      */
     public SearchResult(String documentId, String content, float similarity) {
+        this(documentId, content, similarity, true);
+    }
+
+    /**
+     * @param vectorScore false when the score is not an embedding similarity, e.g. a BM25 score
+     *                    relative to the best lexical hit
+     */
+    public SearchResult(String documentId, String content, float similarity, boolean vectorScore) {
         this.documentId = documentId;
         this.content = content;
         this.similarity = similarity;
+        this.vectorScore = vectorScore;
     }
 
     /**
@@ -39,6 +49,13 @@ public class SearchResult {
         return similarity;
     }
 
+    /**
+     * @return true if the score is the cosine similarity to the query; only then is it a percentage match
+     */
+    public boolean isVectorScore() {
+        return vectorScore;
+    }
+
     /**
      * @return Similarity as percentage (0% to 100%)
      */
@@ -95,6 +112,7 @@ public class SearchResult {
         SearchResult that = (SearchResult) obj;
 
         if (Float.compare(that.similarity, similarity) != 0) return false;
+        if (vectorScore != that.vectorScore) return false;
         if (!documentId.equals(that.documentId)) return false;
         return content.equals(that.content);
     }
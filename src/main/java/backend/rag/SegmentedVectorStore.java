@@ -0,0 +1,797 @@
+package backend.rag;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log-structured vector store: recent adds live in a mutable memtable backed by a write-ahead
+ * log, a full memtable is sealed into an immutable memory-mapped {@link VectorSegment}, and a
+ * delete only sets a bit in the tombstone bitset of the segment holding the row. Searches skip
+ * tombstoned ordinals, so deleting a document never rewrites the index. A background compactor
+ * merges small segments and rewrites mostly-deleted ones, dropping dead rows.
+ *
+ * Files under basePath/segments:
+ * <pre>
+ *   manifest.json    segment names in order (oldest first) and the next segment number
+ *   seg-NNNNNN.seg   sealed segment
+ *   seg-NNNNNN.del   its tombstone bitset (little-endian longs), written at seal time
+ *   seg-NNNNNN.seg.meta  chunk id -> metadata of its rows added with any (JSON)
+ *   memtable.wal     adds and deletes since the last seal
+ * </pre>
+ * A chunk id is live in at most one place: on load, later segments and the memtable shadow
+ * earlier copies, and replaying the log re-applies deletes that are not yet in a .del file.
+ */
+public class SegmentedVectorStore implements VectorStore {
+
+    static final String DIRECTORY = "segments";
+    static final String MANIFEST_FILE = "manifest.json";
+    static final String LOG_FILE = "memtable.wal";
+
+    private static final class Sealed {
+        final String name;
+        final VectorSegment segment;
+        final BitSet tombstones;
+        final Map<String, Integer> ordinals;   // live ids only
+        final Map<String, ChunkMetadata> metadata;   // every row added with metadata, live or not
+        boolean dirty;                          // tombstones not yet written to the .del file
+
+        Sealed(String name, VectorSegment segment, BitSet tombstones, Map<String, Integer> ordinals,
+               Map<String, ChunkMetadata> metadata) {
+            this.name = name;
+            this.segment = segment;
+            this.tombstones = tombstones;
+            this.ordinals = ordinals;
+            this.metadata = metadata;
+        }
+
+        int count() {
+            return segment.count();
+        }
+
+        int liveCount() {
+            return ordinals.size();
+        }
+
+        boolean tombstone(String id) {
+            Integer ordinal = ordinals.remove(id);
+            if (ordinal == null) {
+                return false;
+            }
+            tombstones.set(ordinal);
+            dirty = true;
+            return true;
+        }
+    }
+
+    // JSON layout of manifest.json
+    static class Manifest {
+        public long nextSegment = 1;
+        public List<String> segments = new ArrayList<>();
+    }
+
+    private final Path directory;
+    private final int memtableRows;
+    private final int maxSegments;
+    private final double compactionDeletedRatio;
+    private final ParallelScanner scanner;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, PersistentVectorStore.VectorEntry> memtable = new LinkedHashMap<>();
+    private PersistentVectorStore.VectorEntry[] memtableView;
+    private List<Sealed> segments = new ArrayList<>();    // oldest first, replaced on seal and compaction
+    private long nextSegment = 1;
+    private WriteAheadLog log;
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "segment-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param basePath               directory holding the segments directory
+     * @param memtableRows           adds buffered in the memtable before it is sealed
+     * @param maxSegments            segment count above which the smallest neighbours are merged
+     * @param compactionDeletedRatio fraction of tombstoned rows that gets a segment rewritten
+     * @param scanner                splits scans of large segments across its pool (null = single-threaded)
+     * @param logPolicy              fsync settings of the memtable log (it is also sealed once
+     *                               checkpointRecords records have been logged)
+     */
+    public SegmentedVectorStore(String basePath, int memtableRows, int maxSegments, double compactionDeletedRatio,
+                                ParallelScanner scanner, WriteAheadLog.Policy logPolicy) {
+        if (memtableRows < 1 || maxSegments < 1) {
+            throw new IllegalArgumentException("Memtable rows and max segments must be positive");
+        }
+        this.directory = Path.of(basePath, DIRECTORY);
+        this.memtableRows = memtableRows;
+        this.maxSegments = maxSegments;
+        this.compactionDeletedRatio = compactionDeletedRatio;
+        this.scanner = scanner;
+
+        try {
+            Files.createDirectories(directory);
+            boolean fresh = !Files.exists(directory.resolve(MANIFEST_FILE));
+            loadSegments();
+            openLog(logPolicy);
+            if (fresh && segments.isEmpty() && memtable.isEmpty()) {
+                importFlatStore(Path.of(basePath));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open segmented vector store in " + directory, e);
+        }
+        System.out.println("📦 Loaded " + getVectorCount() + " vectors from " + segments.size() +
+                " segments (" + memtable.size() + " in memtable)");
+        scheduleCompaction();
+    }
+
+    @Override
+    public void addVector(String documentId, String content, float[] embedding) {
+        addVector(documentId, content, embedding, null);
+    }
+
+    @Override
+    public void addVector(String documentId, String content, float[] embedding, ChunkMetadata metadata) {
+        PersistentVectorStore.VectorEntry entry =
+                new PersistentVectorStore.VectorEntry(documentId, content, VectorMath.normalize(embedding));
+        entry.metadata = metadata;
+
+        lock.writeLock().lock();
+        try {
+            log.appendAdd(entry.id, entry.content, entry.embedding, metadata);
+            applyAdd(entry);
+            sealIfDue();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to log vector " + documentId, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int deleteDocument(String documentId) {
+        int removed = 0;
+        lock.writeLock().lock();
+        try {
+            List<String> ids = new ArrayList<>();
+            for (String id : memtable.keySet()) {
+                if (VectorStore.belongsToDocument(id, documentId)) {
+                    ids.add(id);
+                }
+            }
+            for (Sealed sealed : segments) {
+                for (String id : sealed.ordinals.keySet()) {
+                    if (VectorStore.belongsToDocument(id, documentId)) {
+                        ids.add(id);
+                    }
+                }
+            }
+
+            for (String id : ids) {
+                log.appendDelete(id);
+                if (applyDelete(id)) {
+                    removed++;
+                }
+            }
+            sealIfDue();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to log deletion of " + documentId, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (removed > 0) {
+            System.out.println("🗑️ Deleted " + removed + " chunks of " + documentId);
+            scheduleCompaction();
+        }
+        return removed;
+    }
+
+    @Override
+    public List<SearchResult> searchSimilar(float[] queryEmbedding, int topK) {
+        float[] query = VectorMath.normalize(queryEmbedding);
+
+        lock.readLock().lock();
+        try {
+            List<Sealed> sealed = segments;
+            PersistentVectorStore.VectorEntry[] recent = memtableEntries();
+
+            // ordinals are made global by offsetting each source by the rows before it
+            TopKHeap best = new TopKHeap(topK);
+            int base = 0;
+            for (Sealed s : sealed) {
+                if (s.liveCount() > 0) {
+                    TopKHeap local = scan(s.count(), topK,
+                            ordinal -> s.tombstones.get(ordinal) ? Float.NaN : s.segment.dot(ordinal, query));
+                    merge(best, local, base);
+                }
+                base += s.count();
+            }
+            merge(best, scan(recent.length, topK, i -> VectorMath.dot(query, recent[i].embedding)), base);
+
+            best.sortDescending();
+            List<SearchResult> results = new ArrayList<>(best.size());
+            for (int i = 0; i < best.size(); i++) {
+                results.add(resolve(sealed, recent, best.ordinal(i), best.score(i)));
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getVectorCount() {
+        lock.readLock().lock();
+        try {
+            int count = memtable.size();
+            for (Sealed sealed : segments) {
+                count += sealed.liveCount();
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of sealed segments (the memtable is not counted)
+     */
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> getVectors() {
+        lock.readLock().lock();
+        try {
+            Map<String, String> contents = new HashMap<>();
+            for (Sealed sealed : segments) {
+                for (Map.Entry<String, Integer> entry : sealed.ordinals.entrySet()) {
+                    contents.put(entry.getKey(), sealed.segment.content(entry.getValue()));
+                }
+            }
+            for (PersistentVectorStore.VectorEntry entry : memtable.values()) {
+                contents.put(entry.id, entry.content);
+            }
+            return contents;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, ChunkMetadata> getMetadata() {
+        lock.readLock().lock();
+        try {
+            Map<String, ChunkMetadata> metadata = new HashMap<>();
+            for (Sealed sealed : segments) {
+                for (String id : sealed.ordinals.keySet()) {
+                    ChunkMetadata value = sealed.metadata.get(id);
+                    if (value != null) {
+                        metadata.put(id, value);
+                    }
+                }
+            }
+            for (PersistentVectorStore.VectorEntry entry : memtable.values()) {
+                if (entry.metadata != null) {
+                    metadata.put(entry.id, entry.metadata);
+                }
+            }
+            return metadata;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> getContents(Collection<String> ids) {
+        lock.readLock().lock();
+        try {
+            Map<String, String> contents = new HashMap<>();
+            for (String id : ids) {
+                PersistentVectorStore.VectorEntry entry = memtable.get(id);
+                if (entry != null) {
+                    contents.put(id, entry.content);
+                    continue;
+                }
+                // newest segment first, older ones may still hold a replaced copy
+                for (int s = segments.size() - 1; s >= 0; s--) {
+                    Integer ordinal = segments.get(s).ordinals.get(id);
+                    if (ordinal != null) {
+                        contents.put(id, segments.get(s).segment.content(ordinal));
+                        break;
+                    }
+                }
+            }
+            return contents;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // persistence
+
+    /**
+     * Export every live vector into a single segment file.
+     */
+    @Override
+    public void saveToFile(String filePath) {
+        lock.readLock().lock();
+        try {
+            List<PersistentVectorStore.VectorEntry> entries = new ArrayList<>(getVectorCount());
+            for (Sealed sealed : segments) {
+                for (Map.Entry<String, Integer> entry : sealed.ordinals.entrySet()) {
+                    int ordinal = entry.getValue();
+                    PersistentVectorStore.VectorEntry copy = new PersistentVectorStore.VectorEntry(entry.getKey(),
+                            sealed.segment.content(ordinal), sealed.segment.row(ordinal));
+                    copy.metadata = sealed.metadata.get(entry.getKey());
+                    entries.add(copy);
+                }
+            }
+            entries.addAll(memtable.values());
+            PersistentVectorStore.writeSegment(Path.of(filePath), entries);
+            PersistentVectorStore.writeMetadata(mapper, Path.of(filePath), entries);
+        } catch (Exception e) {
+            System.err.println("❌ Failed to save vectors: " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the contents of the store with a segment or vectors.json file.
+     */
+    @Override
+    public void loadFromFile(String filePath) {
+        try {
+            Map<String, PersistentVectorStore.VectorEntry> loaded =
+                    PersistentVectorStore.readVectors(mapper, Path.of(filePath));
+            PersistentVectorStore.readMetadata(mapper, Path.of(filePath), loaded);
+            clear();
+            for (PersistentVectorStore.VectorEntry entry : loaded.values()) {
+                addVector(entry.id, entry.content, entry.embedding, entry.metadata);
+            }
+            System.out.println("📦 Imported " + loaded.size() + " vectors from " + filePath);
+        } catch (Exception e) {
+            System.err.println("❌ Failed to load vectors: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            List<Sealed> dropped = segments;
+            segments = new ArrayList<>();
+            memtable.clear();
+            memtableView = null;
+            writeManifest();
+            log.reset();
+            for (Sealed sealed : dropped) {
+                deleteFiles(sealed.name);
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to clear segments: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        System.out.println("🧹 Vector store cleared");
+    }
+
+    /**
+     * Stop the compactor and close the log; Spring calls this when the bean is destroyed.
+     */
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (log != null) {
+                log.close();
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to close memtable log: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // mutations (write lock held)
+
+    private void applyAdd(PersistentVectorStore.VectorEntry entry) {
+        // the new copy shadows any older one
+        for (Sealed sealed : segments) {
+            sealed.tombstone(entry.id);
+        }
+        memtable.remove(entry.id);
+        memtable.put(entry.id, entry);
+        memtableView = null;
+    }
+
+    private boolean applyDelete(String id) {
+        boolean removed = memtable.remove(id) != null;
+        if (removed) {
+            memtableView = null;
+        }
+        for (Sealed sealed : segments) {
+            removed |= sealed.tombstone(id);
+        }
+        return removed;
+    }
+
+    private void sealIfDue() throws IOException {
+        if (memtable.size() >= memtableRows || log.checkpointDue()) {
+            seal();
+        }
+    }
+
+    // Memtable -> new segment, tombstones -> .del files, then the log can be dropped
+    private void seal() throws IOException {
+        List<Sealed> next = new ArrayList<>(segments);
+        if (!memtable.isEmpty()) {
+            String name = segmentName(nextSegment++);
+            Path file = directory.resolve(name + ".seg");
+            PersistentVectorStore.writeSegment(file, memtable.values());
+            PersistentVectorStore.writeMetadata(mapper, file, memtable.values());
+            next.add(open(name, new BitSet()));
+        }
+
+        for (Sealed sealed : next) {
+            writeTombstones(sealed);
+        }
+        segments = next;
+        writeManifest();
+        memtable.clear();
+        memtableView = null;
+        log.reset();
+
+        scheduleCompaction();
+    }
+
+    // search helpers
+
+    private TopKHeap scan(int count, int topK, ParallelScanner.Scorer scorer) {
+        return scanner != null
+                ? scanner.scan(count, topK, scorer)
+                : ParallelScanner.scanSequential(count, topK, scorer);
+    }
+
+    private static void merge(TopKHeap into, TopKHeap from, int base) {
+        for (int i = 0; i < from.size(); i++) {
+            into.offer(base + from.ordinal(i), from.score(i));
+        }
+    }
+
+    private static SearchResult resolve(List<Sealed> sealed, PersistentVectorStore.VectorEntry[] recent,
+                                        int ordinal, float score) {
+        for (Sealed s : sealed) {
+            if (ordinal < s.count()) {
+                return new SearchResult(s.segment.id(ordinal), s.segment.content(ordinal), score);
+            }
+            ordinal -= s.count();
+        }
+        PersistentVectorStore.VectorEntry entry = recent[ordinal];
+        return new SearchResult(entry.id, entry.content, score);
+    }
+
+    private PersistentVectorStore.VectorEntry[] memtableEntries() {
+        PersistentVectorStore.VectorEntry[] view = memtableView;
+        if (view == null) {
+            view = memtable.values().toArray(new PersistentVectorStore.VectorEntry[0]);
+            memtableView = view;
+        }
+        return view;
+    }
+
+    // compaction
+
+    private void scheduleCompaction() {
+        if (!compactor.isShutdown()) {
+            compactor.execute(this::compact);
+        }
+    }
+
+    private void compact() {
+        try {
+            int[] run;
+            while ((run = pickRun()) != null) {
+                mergeRun(run[0], run[1]);
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Segment compaction failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return [first, last] index of the segments to rewrite, or null when nothing needs doing
+     */
+    private int[] pickRun() {
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < segments.size(); i++) {
+                Sealed s = segments.get(i);
+                int dead = s.count() - s.liveCount();
+                if (dead > 0 && dead >= compactionDeletedRatio * s.count()) {
+                    return new int[]{i, i};
+                }
+            }
+            if (segments.size() <= maxSegments) {
+                return null;
+            }
+
+            // merge the neighbouring pair with the fewest live rows; neighbours keep shadowing order intact
+            int bestStart = 0;
+            long bestSize = Long.MAX_VALUE;
+            for (int i = 0; i + 1 < segments.size(); i++) {
+                long size = (long) segments.get(i).liveCount() + segments.get(i + 1).liveCount();
+                if (size < bestSize) {
+                    bestSize = size;
+                    bestStart = i;
+                }
+            }
+            return new int[]{bestStart, bestStart + 1};
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void mergeRun(int first, int last) throws IOException {
+        // 1. snapshot the inputs and their tombstones
+        List<Sealed> inputs;
+        List<BitSet> snapshot = new ArrayList<>();
+        String name;
+        lock.readLock().lock();
+        try {
+            inputs = new ArrayList<>(segments.subList(first, last + 1));
+            for (Sealed input : inputs) {
+                snapshot.add((BitSet) input.tombstones.clone());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            name = segmentName(nextSegment++);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        // 2. write the live rows without holding the lock
+        int live = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            live += inputs.get(i).count() - snapshot.get(i).cardinality();
+        }
+        int[] sourceSegment = new int[live];
+        int[] sourceOrdinal = new int[live];
+        int n = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            for (int ordinal = 0; ordinal < inputs.get(i).count(); ordinal++) {
+                if (!snapshot.get(i).get(ordinal)) {
+                    sourceSegment[n] = i;
+                    sourceOrdinal[n++] = ordinal;
+                }
+            }
+        }
+
+        int dimension = inputs.get(0).segment.dimension();
+        float[] row = new float[Math.max(dimension, 0)];
+        Path file = directory.resolve(name + ".seg");
+        if (live > 0) {
+            Map<String, ChunkMetadata> metadata = new HashMap<>();
+            for (int index = 0; index < live; index++) {
+                Sealed input = inputs.get(sourceSegment[index]);
+                String id = input.segment.id(sourceOrdinal[index]);
+                ChunkMetadata value = input.metadata.get(id);
+                if (value != null) {
+                    metadata.put(id, value);
+                }
+            }
+            PersistentVectorStore.writeMetadata(mapper, file, metadata);
+            VectorSegment.write(file, live, dimension, true, new VectorSegment.Rows() {
+                @Override
+                public String id(int index) {
+                    return inputs.get(sourceSegment[index]).segment.id(sourceOrdinal[index]);
+                }
+
+                @Override
+                public String content(int index) {
+                    return inputs.get(sourceSegment[index]).segment.content(sourceOrdinal[index]);
+                }
+
+                @Override
+                public float[] array(int index) {
+                    inputs.get(sourceSegment[index]).segment.readRow(sourceOrdinal[index], row, 0);
+                    return row;
+                }
+
+                @Override
+                public int offset(int index) {
+                    return 0;
+                }
+            });
+        }
+
+        // 3. swap it in, carrying over rows deleted while it was being written
+        lock.writeLock().lock();
+        try {
+            int start = segments.indexOf(inputs.get(0));
+            if (start < 0 || start + inputs.size() > segments.size()
+                    || !segments.subList(start, start + inputs.size()).equals(inputs)) {
+                // cleared or already rewritten in the meantime
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(PersistentVectorStore.metadataFile(file));
+                return;
+            }
+
+            List<Sealed> next = new ArrayList<>(segments);
+            next.subList(start, start + inputs.size()).clear();
+
+            // a run with no live rows left is simply dropped
+            if (live > 0) {
+                BitSet tombstones = new BitSet(live);
+                for (int index = 0; index < live; index++) {
+                    if (inputs.get(sourceSegment[index]).tombstones.get(sourceOrdinal[index])) {
+                        tombstones.set(index);
+                    }
+                }
+                Sealed merged = open(name, tombstones);
+                merged.dirty = !tombstones.isEmpty();
+                writeTombstones(merged);
+                next.add(start, merged);
+            }
+            segments = next;
+            writeManifest();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (Sealed input : inputs) {
+            deleteFiles(input.name);
+        }
+        System.out.println("🧱 Compacted " + inputs.size() + " segment(s) into " + name + " (" + live + " rows)");
+    }
+
+    // files
+
+    private void loadSegments() throws IOException {
+        Path manifestFile = directory.resolve(MANIFEST_FILE);
+        if (!Files.exists(manifestFile)) {
+            writeManifest();
+            return;
+        }
+
+        Manifest manifest = mapper.readValue(manifestFile.toFile(), Manifest.class);
+        nextSegment = manifest.nextSegment;
+        List<Sealed> loaded = new ArrayList<>();
+        for (String name : manifest.segments) {
+            Sealed sealed = open(name, readTombstones(name));
+            // a later copy of an id shadows the earlier one
+            for (String id : sealed.ordinals.keySet()) {
+                for (Sealed earlier : loaded) {
+                    earlier.tombstone(id);
+                }
+            }
+            loaded.add(sealed);
+        }
+        segments = loaded;
+    }
+
+    private void openLog(WriteAheadLog.Policy policy) throws IOException {
+        log = new WriteAheadLog(directory.resolve(LOG_FILE), policy);
+        int replayed = log.replay(new WriteAheadLog.Replayer() {
+            @Override
+            public void add(String id, String content, float[] embedding) {
+                add(id, content, embedding, null);
+            }
+
+            @Override
+            public void add(String id, String content, float[] embedding, ChunkMetadata metadata) {
+                PersistentVectorStore.VectorEntry entry = new PersistentVectorStore.VectorEntry(id, content, embedding);
+                entry.metadata = metadata;
+                applyAdd(entry);
+            }
+
+            @Override
+            public void delete(String id) {
+                applyDelete(id);
+            }
+        });
+        if (replayed > 0) {
+            System.out.println("📜 Replayed " + replayed + " logged changes into the memtable");
+        }
+    }
+
+    // Switching rag.index-type from flat keeps the uploaded data
+    private void importFlatStore(Path basePath) {
+        PersistentVectorStore.migrateLegacyJson(mapper, basePath);
+        Path flat = basePath.resolve(PersistentVectorStore.SEGMENT_FILE);
+        if (VectorSegment.exists(flat)) {
+            loadFromFile(flat.toString());
+        }
+    }
+
+    private Sealed open(String name, BitSet tombstones) throws IOException {
+        Path file = directory.resolve(name + ".seg");
+        VectorSegment segment = VectorSegment.open(file);
+        Map<String, ChunkMetadata> metadata = PersistentVectorStore.readMetadata(mapper, file);
+        Map<String, Integer> ordinals = new HashMap<>(segment.count() * 2);
+        for (int ordinal = 0; ordinal < segment.count(); ordinal++) {
+            if (!tombstones.get(ordinal)) {
+                ordinals.put(segment.id(ordinal), ordinal);
+            }
+        }
+        return new Sealed(name, segment, tombstones, ordinals, metadata);
+    }
+
+    private void writeManifest() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.nextSegment = nextSegment;
+        for (Sealed sealed : segments) {
+            manifest.segments.add(sealed.name);
+        }
+        Path temp = directory.resolve(MANIFEST_FILE + ".tmp");
+        mapper.writeValue(temp.toFile(), manifest);
+        Files.move(temp, directory.resolve(MANIFEST_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeTombstones(Sealed sealed) throws IOException {
+        if (!sealed.dirty) {
+            return;
+        }
+        long[] words = sealed.tombstones.toLongArray();
+        ByteBuffer buffer = ByteBuffer.allocate(words.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asLongBuffer().put(words);
+
+        Path temp = directory.resolve(sealed.name + ".del.tmp");
+        Files.write(temp, buffer.array());
+        Files.move(temp, directory.resolve(sealed.name + ".del"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        sealed.dirty = false;
+    }
+
+    private BitSet readTombstones(String name) throws IOException {
+        Path file = directory.resolve(name + ".del");
+        if (!Files.exists(file)) {
+            return new BitSet();
+        }
+        return BitSet.valueOf(ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    private void deleteFiles(String name) {
+        try {
+            Files.deleteIfExists(directory.resolve(name + ".seg"));
+            Files.deleteIfExists(directory.resolve(name + ".del"));
+            Files.deleteIfExists(PersistentVectorStore.metadataFile(directory.resolve(name + ".seg")));
+        } catch (IOException e) {
+            // a mapped file cannot be deleted on some platforms; it is no longer in the manifest
+            System.err.println("⚠️ Could not delete segment " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static String segmentName(long number) {
+        return String.format("seg-%06d", number);
+    }
+}
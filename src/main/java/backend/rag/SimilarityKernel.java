@@ -0,0 +1,42 @@
+package backend.rag;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Dot-product kernel used by every store to score a query against stored rows.
+ *
+ * Embeddings are unit length, so this dot product is the cosine similarity. Implementations
+ * are chosen once at startup through {@link SimilarityKernels#select(String)}.
+ */
+public interface SimilarityKernel {
+
+    /**
+     * Dot product of {@code length} floats starting at the given offsets.
+     */
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    default float dot(float[] a, float[] b) {
+        return dot(a, 0, b, 0, Math.min(a.length, b.length));
+    }
+
+    /**
+     * Dot product of {@code length} floats stored in a (direct or mapped) buffer, starting at
+     * byte offset {@code aByteOffset} in the buffer's byte order, against a float[].
+     */
+    default float dot(ByteBuffer a, int aByteOffset, float[] b, int bOffset, int length) {
+        float sum = 0.0f;
+        for (int i = 0; i < length; i++) {
+            sum += a.getFloat(aByteOffset + i * Float.BYTES) * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Dot product of {@code length} floats against half-precision values (see {@link Float16}).
+     */
+    default float dot(float[] a, int aOffset, short[] b, int bOffset, int length) {
+        return Float16.dot(a, aOffset, b, bOffset, length);
+    }
+
+    String name();
+}
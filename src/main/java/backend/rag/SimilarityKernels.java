@@ -0,0 +1,54 @@
+package backend.rag;
+
+/**
+ * Picks the similarity kernel at startup.
+ *
+ * "scalar" forces the plain loop, "simd" asks for the Vector API kernel and "auto" uses it
+ * when available. When the jdk.incubator.vector module is not present the Vector API kernel
+ * cannot be loaded and the scalar kernel is used instead.
+ */
+public final class SimilarityKernels {
+
+    private static final String VECTOR_API_KERNEL = "backend.rag.VectorApiSimilarityKernel";
+
+    private SimilarityKernels() {
+    }
+
+    public static SimilarityKernel scalar() {
+        return new ScalarSimilarityKernel();
+    }
+
+    /**
+     * @return the Vector API kernel, or null when the incubator module is missing
+     */
+    public static SimilarityKernel vectorApi() {
+        try {
+            SimilarityKernel kernel = (SimilarityKernel) Class.forName(VECTOR_API_KERNEL)
+                    .getDeclaredConstructor()
+                    .newInstance();
+            // touch the Vector API once so a missing module fails here, not on the first query
+            kernel.dot(new float[]{1f}, new float[]{1f});
+            return kernel;
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    public static SimilarityKernel select(String name) {
+        String choice = name == null ? "auto" : name.trim().toLowerCase();
+
+        if (choice.equals("scalar")) {
+            return scalar();
+        }
+
+        SimilarityKernel simd = vectorApi();
+        if (simd != null) {
+            return simd;
+        }
+        if (choice.equals("simd")) {
+            System.out.println("⚠️ Vector API not available (start the JVM with --add-modules jdk.incubator.vector)," +
+                    " falling back to the scalar similarity kernel");
+        }
+        return scalar();
+    }
+}
@@ -26,8 +26,7 @@ public class TextChunkerService {
 
         for (String line : lines) {
             line = line.trim();
-            boolean isCode = line.startsWith("int ") || line.startsWith("float ") ||
-                    line.startsWith("*") || line.startsWith("cout") || line.contains(";");
+            boolean isCode = isCodeLine(line);
 
             if (currentChunk.length() + line.length() + 1 > chunkSize) {
                 if (currentChunk.length() > 0) {
@@ -54,4 +53,13 @@ public class TextChunkerService {
 
         return chunks;
     }
+
+    /**
+     * Heuristic used by the chunker and the lexical index to tell C++ lines from prose.
+     */
+    public static boolean isCodeLine(String line) {
+        line = line.trim();
+        return line.startsWith("int ") || line.startsWith("float ") ||
+                line.startsWith("*") || line.startsWith("cout") || line.contains(";");
+    }
 }
@@ -0,0 +1,110 @@
+package backend.rag;
+
+/**
+ * Bounded min-heap of (ordinal, score) pairs kept in primitive arrays.
+ *
+ * A scan offers every candidate and the heap only keeps the best {@code capacity} of them,
+ * so selecting the top K costs O(N log K) with no per-candidate allocation. Callers
+ * materialize {@link SearchResult} objects for the winners only.
+ */
+public final class TopKHeap {
+
+    private final int[] ordinals;
+    private final float[] scores;
+    private int size;
+
+    public TopKHeap(int capacity) {
+        int bounded = Math.max(capacity, 0);
+        this.ordinals = new int[bounded];
+        this.scores = new float[bounded];
+    }
+
+    /**
+     * @return true if the candidate is kept (for now)
+     */
+    public boolean offer(int ordinal, float score) {
+        int capacity = ordinals.length;
+        if (size < capacity) {
+            ordinals[size] = ordinal;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (capacity == 0 || !(score > scores[0])) {
+            return false;
+        }
+        ordinals[0] = ordinal;
+        scores[0] = score;
+        siftDown(0, size);
+        return true;
+    }
+
+    /**
+     * Lowest score still kept once the heap is full; candidates must beat it to get in.
+     */
+    public float threshold() {
+        return size < ordinals.length ? Float.NEGATIVE_INFINITY : scores[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return ordinals.length;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Heap-sort the kept entries in place so that {@link #ordinal(int)} and {@link #score(int)}
+     * return them best first. The heap must not be offered to afterwards (call clear() first).
+     */
+    public void sortDescending() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    public int ordinal(int index) {
+        return ordinals[index];
+    }
+
+    public float score(int index) {
+        return scores[index];
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (scores[index] >= scores[parent]) break;
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index, int limit) {
+        while (true) {
+            int left = 2 * index + 1;
+            if (left >= limit) break;
+            int right = left + 1;
+            int smallest = (right < limit && scores[right] < scores[left]) ? right : left;
+            if (scores[index] <= scores[smallest]) break;
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int ordinal = ordinals[a];
+        ordinals[a] = ordinals[b];
+        ordinals[b] = ordinal;
+
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
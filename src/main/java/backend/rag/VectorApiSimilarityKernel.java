@@ -0,0 +1,134 @@
+package backend.rag;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * SIMD dot product on the JDK Vector API (jdk.incubator.vector).
+ *
+ * Uses the widest float species the CPU supports and four independent FMA accumulators so
+ * consecutive fused multiply-adds do not wait on each other. Only loaded through
+ * {@link SimilarityKernels}, which falls back to the scalar kernel when the JVM was started
+ * without {@code --add-modules jdk.incubator.vector}.
+ */
+public class VectorApiSimilarityKernel implements SimilarityKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    // as many shorts and ints as SPECIES has floats
+    private static final VectorSpecies<Short> HALF_SPECIES =
+            VectorSpecies.of(short.class, VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+    private static final VectorSpecies<Integer> INT_SPECIES =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(SPECIES.vectorBitSize()));
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        int step = SPECIES.length();
+        int i = 0;
+
+        FloatVector acc0 = FloatVector.zero(SPECIES);
+        FloatVector acc1 = FloatVector.zero(SPECIES);
+        FloatVector acc2 = FloatVector.zero(SPECIES);
+        FloatVector acc3 = FloatVector.zero(SPECIES);
+
+        for (; i <= length - 4 * step; i += 4 * step) {
+            acc0 = FloatVector.fromArray(SPECIES, a, aOffset + i)
+                    .fma(FloatVector.fromArray(SPECIES, b, bOffset + i), acc0);
+            acc1 = FloatVector.fromArray(SPECIES, a, aOffset + i + step)
+                    .fma(FloatVector.fromArray(SPECIES, b, bOffset + i + step), acc1);
+            acc2 = FloatVector.fromArray(SPECIES, a, aOffset + i + 2 * step)
+                    .fma(FloatVector.fromArray(SPECIES, b, bOffset + i + 2 * step), acc2);
+            acc3 = FloatVector.fromArray(SPECIES, a, aOffset + i + 3 * step)
+                    .fma(FloatVector.fromArray(SPECIES, b, bOffset + i + 3 * step), acc3);
+        }
+        for (; i <= length - step; i += step) {
+            acc0 = FloatVector.fromArray(SPECIES, a, aOffset + i)
+                    .fma(FloatVector.fromArray(SPECIES, b, bOffset + i), acc0);
+        }
+
+        float sum = acc0.add(acc1).add(acc2.add(acc3)).reduceLanes(VectorOperators.ADD);
+
+        // tail shorter than one vector
+        for (; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float dot(ByteBuffer a, int aByteOffset, float[] b, int bOffset, int length) {
+        int step = SPECIES.length();
+        int stepBytes = step * Float.BYTES;
+        ByteOrder order = a.order();
+        int i = 0;
+
+        FloatVector acc0 = FloatVector.zero(SPECIES);
+        FloatVector acc1 = FloatVector.zero(SPECIES);
+
+        for (; i <= length - 2 * step; i += 2 * step) {
+            int byteOffset = aByteOffset + i * Float.BYTES;
+            acc0 = FloatVector.fromByteBuffer(SPECIES, a, byteOffset, order)
+                    .fma(FloatVector.fromArray(SPECIES, b, bOffset + i), acc0);
+            acc1 = FloatVector.fromByteBuffer(SPECIES, a, byteOffset + stepBytes, order)
+                    .fma(FloatVector.fromArray(SPECIES, b, bOffset + i + step), acc1);
+        }
+        for (; i <= length - step; i += step) {
+            acc0 = FloatVector.fromByteBuffer(SPECIES, a, aByteOffset + i * Float.BYTES, order)
+                    .fma(FloatVector.fromArray(SPECIES, b, bOffset + i), acc0);
+        }
+
+        float sum = acc0.add(acc1).reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a.getFloat(aByteOffset + i * Float.BYTES) * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Half-precision rows are widened in registers: exponent and mantissa shifted into float
+     * position and scaled by 2^112 (which also gets zeros and subnormals right), then the sign
+     * bit is or-ed back in. Infinities and NaNs are not handled; unit-length embeddings have none.
+     */
+    @Override
+    public float dot(float[] a, int aOffset, short[] b, int bOffset, int length) {
+        int step = SPECIES.length();
+        int i = 0;
+
+        FloatVector acc0 = FloatVector.zero(SPECIES);
+        FloatVector acc1 = FloatVector.zero(SPECIES);
+
+        for (; i <= length - 2 * step; i += 2 * step) {
+            acc0 = FloatVector.fromArray(SPECIES, a, aOffset + i).fma(widen(b, bOffset + i), acc0);
+            acc1 = FloatVector.fromArray(SPECIES, a, aOffset + i + step).fma(widen(b, bOffset + i + step), acc1);
+        }
+        for (; i <= length - step; i += step) {
+            acc0 = FloatVector.fromArray(SPECIES, a, aOffset + i).fma(widen(b, bOffset + i), acc0);
+        }
+
+        float sum = acc0.add(acc1).reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOffset + i] * Float16.toFloat(b[bOffset + i]);
+        }
+        return sum;
+    }
+
+    private static FloatVector widen(short[] halves, int offset) {
+        IntVector bits = (IntVector) ShortVector.fromArray(HALF_SPECIES, halves, offset)
+                .convertShape(VectorOperators.S2I, INT_SPECIES, 0);
+        FloatVector magnitude = bits.and(0x7fff).lanewise(VectorOperators.LSHL, 13)
+                .reinterpretAsFloats().mul(0x1p112f);
+        IntVector sign = bits.and(0x8000).lanewise(VectorOperators.LSHL, 16);
+        return (FloatVector) magnitude.reinterpretAsInts().or(sign).reinterpretAsFloats();
+    }
+
+    @Override
+    public String name() {
+        return "simd (" + SPECIES.length() + " lanes)";
+    }
+}
@@ -0,0 +1,67 @@
+package backend.rag;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Small vector helpers shared by the stores.
+ *
+ * Stores keep every embedding at unit length, so cosine similarity reduces to {@link #dot}.
+ * Dot products go through the {@link SimilarityKernel} chosen at startup.
+ */
+public final class VectorMath {
+
+    private static volatile SimilarityKernel kernel = new ScalarSimilarityKernel();
+
+    private VectorMath() {
+    }
+
+    public static void useKernel(SimilarityKernel similarityKernel) {
+        kernel = similarityKernel;
+    }
+
+    public static SimilarityKernel kernel() {
+        return kernel;
+    }
+
+    public static float norm(float[] vector) {
+        float sumSq = 0.0f;
+        for (float v : vector) {
+            sumSq += v * v;
+        }
+        return (float) Math.sqrt(sumSq);
+    }
+
+    /**
+     * @return a unit-length copy of the vector (all zeros stay all zeros)
+     */
+    public static float[] normalize(float[] vector) {
+        float[] unit = vector.clone();
+        normalizeInPlace(unit);
+        return unit;
+    }
+
+    public static void normalizeInPlace(float[] vector) {
+        float norm = norm(vector);
+        if (norm > 0) {
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] /= norm;
+            }
+        }
+    }
+
+    public static float dot(float[] a, float[] b) {
+        return kernel.dot(a, b);
+    }
+
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        return kernel.dot(a, aOffset, b, bOffset, length);
+    }
+
+    public static float dot(ByteBuffer a, int aByteOffset, float[] b, int bOffset, int length) {
+        return kernel.dot(a, aByteOffset, b, bOffset, length);
+    }
+
+    public static float dot(float[] a, int aOffset, short[] b, int bOffset, int length) {
+        return kernel.dot(a, aOffset, b, bOffset, length);
+    }
+}
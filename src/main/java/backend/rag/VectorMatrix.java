@@ -0,0 +1,390 @@
+package backend.rag;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Structure-of-arrays storage for embeddings.
+ *
+ * Rows are packed row-major into fixed-size float[] slabs and addressed by int ordinal, so a
+ * scan streams through a few large arrays instead of chasing one float[] per chunk. Chunk ids
+ * and contents live in parallel arrays and the id dictionary maps chunk ids to ordinals.
+ *
+ * Writers are serialized on the matrix. Readers take {@link #size()} first and then only touch
+ * ordinals below it; arrays only grow (they are reset once the dimension changes after clear()).
+ * Removed rows keep their ordinal and are only flagged, so scans must skip {@link #isDeleted}
+ * ordinals; the space is reclaimed when the owner rewrites its file and reloads.
+ *
+ * With an {@link OffHeapArena} the slabs are direct buffers charged against the arena's cap
+ * instead of float[]s, which keeps large stores out of the GC's marking work. Rows are then only
+ * reachable through {@link #readRow}, {@link #copyRow} and {@link #dot}; call {@link #close()}
+ * to hand the slabs back to the arena.
+ *
+ * A cold tier moves rows out of the slabs entirely: after {@link #load} or {@link #spill} the
+ * rows that were stored at that point are read from a memory-mapped {@link VectorSegment} and
+ * only later puts occupy slabs. Replacing a cold row gives its id a new ordinal.
+ */
+public class VectorMatrix {
+
+    public static final int DEFAULT_SLAB_ROWS = 1024;
+
+    /**
+     * Where rows live; replaced as a whole so a reader never pairs slabs with the wrong cold tier.
+     */
+    private static final class Tier {
+        static final Tier EMPTY = new Tier(new float[0][], new ByteBuffer[0], null, null, 0);
+
+        final float[][] slabs;
+        final ByteBuffer[] directSlabs;
+        final VectorSegment cold;   // rows of ordinals below coldLimit
+        final int[] coldRow;        // segment row of each such ordinal, -1 when it was deleted
+        final int coldLimit;
+
+        Tier(float[][] slabs, ByteBuffer[] directSlabs, VectorSegment cold, int[] coldRow, int coldLimit) {
+            this.slabs = slabs;
+            this.directSlabs = directSlabs;
+            this.cold = cold;
+            this.coldRow = coldRow;
+            this.coldLimit = coldLimit;
+        }
+
+        Tier withSlabs(float[][] newSlabs, ByteBuffer[] newDirectSlabs) {
+            return new Tier(newSlabs, newDirectSlabs, cold, coldRow, coldLimit);
+        }
+    }
+
+    private final int slabRows;
+    private final OffHeapArena arena;
+    private final Map<String, Integer> ordinals = new ConcurrentHashMap<>();
+
+    private int dimension = -1;
+    private volatile Tier tier = Tier.EMPTY;
+    private String[] ids = new String[0];
+    private String[] contents = new String[0];
+    private boolean[] deleted = new boolean[0];
+    private int deletedCount = 0;
+
+    // published last by writers, read first by readers
+    private volatile int size = 0;
+
+    public VectorMatrix() {
+        this(DEFAULT_SLAB_ROWS);
+    }
+
+    public VectorMatrix(int slabRows) {
+        this(slabRows, null);
+    }
+
+    /**
+     * @param arena where slabs are allocated, or null to keep them on the heap
+     */
+    public VectorMatrix(int slabRows, OffHeapArena arena) {
+        if (slabRows < 1) {
+            throw new IllegalArgumentException("Slab must hold at least one row");
+        }
+        this.slabRows = slabRows;
+        this.arena = arena;
+    }
+
+    /**
+     * Store a row, replacing the existing row with the same id.
+     *
+     * @return the ordinal of the row
+     */
+    public synchronized int put(String id, String content, float[] embedding) {
+        if (size == 0 && embedding.length != dimension) {
+            // first row (or first row after clear) fixes the dimension
+            dimension = embedding.length;
+            // a scan that started before clear() may still be reading the old slabs
+            releaseSlabs(false);
+            ids = new String[0];
+            contents = new String[0];
+            deleted = new boolean[0];
+        }
+        if (embedding.length != dimension) {
+            throw new IllegalArgumentException(
+                    "Embedding has " + embedding.length + " dimensions but the store holds " + dimension);
+        }
+
+        Integer existing = ordinals.get(id);
+        if (existing != null && existing < tier.coldLimit) {
+            // the mapped row cannot be overwritten
+            remove(id);
+            existing = null;
+        }
+        int ordinal = existing != null ? existing : size;
+        if (ordinal == ids.length) {
+            grow();
+        }
+
+        Tier current = slabFor(ordinal);
+        if (arena != null) {
+            ByteBuffer slab = current.directSlabs[ordinal / slabRows];
+            int byteOffset = offsetOf(ordinal) * Float.BYTES;
+            for (int i = 0; i < dimension; i++) {
+                slab.putFloat(byteOffset + i * Float.BYTES, embedding[i]);
+            }
+        } else {
+            System.arraycopy(embedding, 0, current.slabs[ordinal / slabRows], offsetOf(ordinal), dimension);
+        }
+        ids[ordinal] = id;
+        contents[ordinal] = content;
+        deleted[ordinal] = false;
+
+        if (existing == null) {
+            ordinals.put(id, ordinal);
+            size = ordinal + 1;
+        }
+        return ordinal;
+    }
+
+    /**
+     * Replace every row with those of a normalized segment, leaving the rows in the mapping. Ids
+     * and contents are copied; ordinal i is segment row i.
+     */
+    public synchronized void load(VectorSegment segment) {
+        if (!segment.isNormalized()) {
+            throw new IllegalArgumentException("Only normalized segments can back a matrix");
+        }
+        int count = segment.count();
+        int slabCount = (count + slabRows - 1) / slabRows;
+        releaseSlabs(false);
+        ordinals.clear();
+        deletedCount = 0;
+        dimension = count > 0 ? segment.dimension() : -1;
+        ids = new String[slabCount * slabRows];
+        contents = new String[ids.length];
+        deleted = new boolean[ids.length];
+        int[] coldRow = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = segment.id(i);
+            contents[i] = segment.content(i);
+            ordinals.put(ids[i], i);
+            coldRow[i] = i;
+        }
+        // slabs are only allocated once a put lands in them
+        tier = new Tier(new float[slabCount][], new ByteBuffer[slabCount], segment, coldRow, count);
+        size = count;
+    }
+
+    /**
+     * Move every stored row to the cold tier: {@code segment} row k must hold ordinal
+     * {@code liveOrdinals[k]}, and the ordinals left out must be deleted. Slabs that then only
+     * hold cold rows are dropped.
+     */
+    public synchronized void spill(VectorSegment segment, int[] liveOrdinals) {
+        int limit = size;
+        int[] coldRow = new int[limit];
+        Arrays.fill(coldRow, -1);
+        for (int k = 0; k < liveOrdinals.length; k++) {
+            coldRow[liveOrdinals[k]] = k;
+        }
+
+        Tier current = tier;
+        float[][] keptSlabs = current.slabs.clone();
+        ByteBuffer[] keptDirect = current.directSlabs.clone();
+        for (int s = 0; s < limit / slabRows; s++) {
+            if (arena != null && keptDirect[s] != null) {
+                // a scan may still be reading it
+                arena.releaseWhenUnreachable(keptDirect[s]);
+            }
+            if (arena != null) {
+                keptDirect[s] = null;
+            } else {
+                keptSlabs[s] = null;
+            }
+        }
+        tier = new Tier(keptSlabs, keptDirect, segment, coldRow, limit);
+    }
+
+    /**
+     * Flag the row with this id as deleted; a later put of the same id gets a new ordinal.
+     *
+     * @return the ordinal of the removed row, or -1 when it is not stored
+     */
+    public synchronized int remove(String id) {
+        Integer ordinal = ordinals.remove(id);
+        if (ordinal == null) {
+            return -1;
+        }
+        deleted[ordinal] = true;
+        deletedCount++;
+        return ordinal;
+    }
+
+    public synchronized void clear() {
+        ordinals.clear();
+        deletedCount = 0;
+        size = 0;
+        Tier current = tier;
+        tier = new Tier(current.slabs, current.directSlabs, null, null, 0);
+    }
+
+    /**
+     * Drop all rows and free the off-heap slabs. Readers must be done with the matrix.
+     */
+    public synchronized void close() {
+        clear();
+        releaseSlabs(true);
+        ids = new String[0];
+        contents = new String[0];
+        deleted = new boolean[0];
+    }
+
+    public boolean isOffHeap() {
+        return arena != null;
+    }
+
+    /**
+     * @return bytes reserved for row data in slabs, whether on or off the heap
+     */
+    public synchronized long getAllocatedBytes() {
+        Tier current = tier;
+        long allocated = Arrays.stream(arena != null ? current.directSlabs : current.slabs).filter(s -> s != null).count();
+        return allocated * slabRows * Math.max(dimension, 0) * Float.BYTES;
+    }
+
+    /**
+     * @return number of ordinals in use, including deleted ones
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of rows that have not been removed
+     */
+    public synchronized int liveCount() {
+        return size - deletedCount;
+    }
+
+    public boolean isDeleted(int ordinal) {
+        return deleted[ordinal];
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    /**
+     * @return the ordinal of the id, or -1 when it is not stored
+     */
+    public int ordinalOf(String id) {
+        Integer ordinal = ordinals.get(id);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    public String id(int ordinal) {
+        return ids[ordinal];
+    }
+
+    public String content(int ordinal) {
+        return contents[ordinal];
+    }
+
+    /**
+     * Copy the row into {@code dst} starting at {@code dstOffset}.
+     */
+    public void readRow(int ordinal, float[] dst, int dstOffset) {
+        Tier current = tier;
+        if (ordinal < current.coldLimit) {
+            current.cold.readRow(coldRow(current, ordinal), dst, dstOffset);
+        } else if (arena != null) {
+            ByteBuffer slab = current.directSlabs[ordinal / slabRows];
+            int byteOffset = offsetOf(ordinal) * Float.BYTES;
+            for (int i = 0; i < dimension; i++) {
+                dst[dstOffset + i] = slab.getFloat(byteOffset + i * Float.BYTES);
+            }
+        } else {
+            System.arraycopy(current.slabs[ordinal / slabRows], offsetOf(ordinal), dst, dstOffset, dimension);
+        }
+    }
+
+    public float[] copyRow(int ordinal) {
+        float[] row = new float[dimension];
+        readRow(ordinal, row, 0);
+        return row;
+    }
+
+    public float dot(int ordinal, float[] query) {
+        Tier current = tier;
+        if (ordinal < current.coldLimit) {
+            return current.cold.dot(coldRow(current, ordinal), query);
+        }
+        if (arena != null) {
+            return VectorMath.dot(current.directSlabs[ordinal / slabRows], offsetOf(ordinal) * Float.BYTES, query, 0, dimension);
+        }
+        return VectorMath.dot(current.slabs[ordinal / slabRows], offsetOf(ordinal), query, 0, dimension);
+    }
+
+    private static int coldRow(Tier current, int ordinal) {
+        int row = current.coldRow[ordinal];
+        if (row < 0) {
+            throw new IllegalStateException("Ordinal " + ordinal + " was deleted before its row was spilled");
+        }
+        return row;
+    }
+
+    private int offsetOf(int ordinal) {
+        return (ordinal % slabRows) * dimension;
+    }
+
+    // free: no reader can hold a slab any more, so its memory is freed at once
+    private void releaseSlabs(boolean free) {
+        if (arena != null) {
+            for (ByteBuffer slab : tier.directSlabs) {
+                if (slab == null) continue;
+                if (free) {
+                    arena.release(slab);
+                } else {
+                    arena.releaseWhenUnreachable(slab);
+                }
+            }
+        }
+        tier = Tier.EMPTY;
+    }
+
+    // The tier with the slab of this ordinal allocated; after a spill or load it may be missing
+    private Tier slabFor(int ordinal) {
+        Tier current = tier;
+        int s = ordinal / slabRows;
+        if (arena != null ? current.directSlabs[s] != null : current.slabs[s] != null) {
+            return current;
+        }
+        float[][] grownSlabs = current.slabs.clone();
+        ByteBuffer[] grownDirect = current.directSlabs.clone();
+        if (arena != null) {
+            grownDirect[s] = arena.allocate(slabRows * dimension * Float.BYTES);
+        } else {
+            grownSlabs[s] = new float[slabRows * dimension];
+        }
+        tier = current.withSlabs(grownSlabs, grownDirect);
+        return tier;
+    }
+
+    private void grow() {
+        int capacity = ids.length + slabRows;
+        Tier current = tier;
+        if (arena != null) {
+            // allocate first so a full arena leaves the matrix unchanged
+            ByteBuffer slab = arena.allocate(slabRows * dimension * Float.BYTES);
+            ByteBuffer[] grownDirect = Arrays.copyOf(current.directSlabs, current.directSlabs.length + 1);
+            grownDirect[current.directSlabs.length] = slab;
+            tier = current.withSlabs(Arrays.copyOf(current.slabs, grownDirect.length), grownDirect);
+        } else {
+            float[][] grownSlabs = Arrays.copyOf(current.slabs, current.slabs.length + 1);
+            grownSlabs[current.slabs.length] = new float[slabRows * dimension];
+            tier = current.withSlabs(grownSlabs, Arrays.copyOf(current.directSlabs, grownSlabs.length));
+        }
+
+        String[] grownIds = Arrays.copyOf(ids, capacity);
+        String[] grownContents = Arrays.copyOf(contents, capacity);
+        boolean[] grownDeleted = Arrays.copyOf(deleted, capacity);
+
+        ids = grownIds;
+        contents = grownContents;
+        deleted = grownDeleted;
+    }
+}
@@ -0,0 +1,539 @@
+package backend.rag;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Versioned binary segment file holding embeddings, chunk ids and contents, opened with
+ * {@link FileChannel#map} so loading is a page-cache read instead of a JSON parse.
+ *
+ * Layout (all little-endian):
+ * <pre>
+ *   header           64 bytes: magic, version, count, dimension, flags, content blob generation
+ *                    (0 = contents inline), then the byte offsets of the four sections below and
+ *                    the string section length
+ *   float matrix     count * dimension floats, row-major (half-precision shorts in version 2
+ *                    files, flagged FLAG_FLOAT16, see {@link Float16})
+ *   id offsets       count + 1 longs into the string section
+ *   content offsets  count + 1 longs into the string section, or in version 3 files (flagged
+ *                    FLAG_BLOB_CONTENT) the ordinal of each row's text in the store's
+ *                    {@link ContentBlobStore} of the header's generation, then a 0
+ *   strings          UTF-8 ids, then UTF-8 contents (ids only in version 3 files)
+ * </pre>
+ * Files are written to a temporary sibling and moved into place, so a crash never leaves a
+ * half-written segment behind.
+ *
+ * A segment is never overwritten, since it may still be mapped (and Windows refuses to replace
+ * or delete a mapped file). Rewriting {@code vectors.seg} writes the next generation,
+ * {@code vectors.<n>.seg}, and then switches the small {@code vectors.seg.current} pointer to it,
+ * like the store's {@code contents.<n>.blob} files; {@link #open}, {@link #isSegment} and
+ * {@link #exists} follow the pointer. Older generations are deleted once nothing maps them any more.
+ */
+public final class VectorSegment {
+
+    /**
+     * Rows to write: row {@code i} is {@code array(i)} starting at {@code offset(i)}.
+     */
+    public interface Rows {
+        String id(int index);
+
+        String content(int index);
+
+        float[] array(int index);
+
+        int offset(int index);
+
+        /**
+         * Ordinal of row {@code index}'s text in the content blob, for segments written with a
+         * content generation.
+         */
+        default int contentOrdinal(int index) {
+            throw new UnsupportedOperationException("Rows keep their content inline");
+        }
+
+        /**
+         * Row {@code index} in half precision starting at {@code offset(index)}, or null to
+         * encode {@code array(index)} when writing a float16 segment.
+         */
+        default short[] halfArray(int index) {
+            return null;
+        }
+    }
+
+    static final int MAGIC = 0x47455356;   // "VSEG" when read as little-endian bytes
+    static final int VERSION = 1;
+    static final int VERSION_FLOAT16 = 2;
+    static final int VERSION_BLOB_CONTENT = 3;
+    static final int HEADER_BYTES = 64;
+    static final int FLAG_NORMALIZED = 1;
+    static final int FLAG_FLOAT16 = 2;
+    static final int FLAG_BLOB_CONTENT = 4;
+    static final String POINTER_SUFFIX = ".current";
+
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    private final int count;
+    private final int dimension;
+    private final int flags;
+    private final int contentGeneration;
+    private final ByteBuffer[] matrixBytes;
+    private final FloatBuffer[] matrixChunks;   // float32 segments
+    private final ShortBuffer[] halfChunks;     // float16 segments
+    private final int rowsPerChunk;
+    private final LongBuffer idOffsets;
+    private final LongBuffer contentOffsets;
+    private final MappedByteBuffer strings;
+
+    private VectorSegment(int count, int dimension, int flags, int contentGeneration, ByteBuffer[] matrixBytes,
+                          int rowsPerChunk, LongBuffer idOffsets, LongBuffer contentOffsets, MappedByteBuffer strings) {
+        this.count = count;
+        this.dimension = dimension;
+        this.flags = flags;
+        this.contentGeneration = contentGeneration;
+        this.matrixBytes = matrixBytes;
+        this.matrixChunks = new FloatBuffer[matrixBytes.length];
+        this.halfChunks = new ShortBuffer[matrixBytes.length];
+        for (int c = 0; c < matrixBytes.length; c++) {
+            if ((flags & FLAG_FLOAT16) != 0) {
+                halfChunks[c] = matrixBytes[c].asShortBuffer();
+            } else {
+                matrixChunks[c] = matrixBytes[c].asFloatBuffer();
+            }
+        }
+        this.rowsPerChunk = rowsPerChunk;
+        this.idOffsets = idOffsets;
+        this.contentOffsets = contentOffsets;
+        this.strings = strings;
+    }
+
+    /**
+     * @return true if the current generation of the file starts with the segment magic number
+     */
+    public static boolean isSegment(Path file) {
+        try {
+            file = current(file);
+        } catch (IOException e) {
+            return false;
+        }
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            return channel.read(magic, 0) == Integer.BYTES && magic.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the file, or a generation its pointer names, exists
+     */
+    public static boolean exists(Path file) {
+        return Files.exists(pointerFile(file)) || Files.exists(file);
+    }
+
+    /**
+     * The file holding the current generation of {@code file}: the one its pointer names, or
+     * {@code file} itself while it was never rewritten.
+     */
+    public static Path current(Path file) throws IOException {
+        int generation = generation(file);
+        return generation > 0 ? generationFile(file, generation) : file;
+    }
+
+    public static VectorSegment open(Path file) throws IOException {
+        file = current(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_BYTES) {
+                throw new IOException(file + " is too short to be a vector segment");
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a vector segment");
+            }
+            int version = header.getInt(4);
+            if (version != VERSION && version != VERSION_FLOAT16 && version != VERSION_BLOB_CONTENT) {
+                throw new IOException("Unsupported vector segment version " + version + " in " + file);
+            }
+
+            int count = header.getInt(8);
+            int dimension = header.getInt(12);
+            int flags = header.getInt(16);
+            int contentGeneration = header.getInt(20);
+            boolean consistent = version == VERSION_BLOB_CONTENT
+                    ? (flags & FLAG_BLOB_CONTENT) != 0 && contentGeneration > 0
+                    : (version == VERSION_FLOAT16) == ((flags & FLAG_FLOAT16) != 0)
+                            && (flags & FLAG_BLOB_CONTENT) == 0 && contentGeneration == 0;
+            if (!consistent) {
+                throw new IOException(file + " has an inconsistent segment header");
+            }
+            int elementBytes = (flags & FLAG_FLOAT16) != 0 ? Short.BYTES : Float.BYTES;
+            long matrixOffset = header.getLong(24);
+            long idOffsetsOffset = header.getLong(32);
+            long contentOffsetsOffset = header.getLong(40);
+            long stringsOffset = header.getLong(48);
+            long stringsLength = header.getLong(56);
+
+            if (count < 0 || dimension < 0 || stringsOffset + stringsLength != fileSize
+                    || idOffsetsOffset != matrixOffset + (long) count * dimension * elementBytes) {
+                throw new IOException(file + " has an inconsistent segment header");
+            }
+            long tableBytes = (long) (count + 1) * Long.BYTES;
+            if (tableBytes > Integer.MAX_VALUE || stringsLength > Integer.MAX_VALUE) {
+                throw new IOException(file + " has more id/content data than a single segment supports");
+            }
+
+            // the matrix may exceed the 2 GB limit of one mapping, so it is mapped in whole-row chunks
+            int rowBytes = Math.max(dimension * elementBytes, 1);
+            int rowsPerChunk = Math.max(1, Integer.MAX_VALUE / rowBytes);
+            int chunks = count == 0 ? 0 : (count + rowsPerChunk - 1) / rowsPerChunk;
+            ByteBuffer[] matrixBytes = new ByteBuffer[chunks];
+            for (int c = 0; c < chunks; c++) {
+                int rows = Math.min(rowsPerChunk, count - c * rowsPerChunk);
+                matrixBytes[c] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                matrixOffset + (long) c * rowsPerChunk * rowBytes, (long) rows * rowBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            LongBuffer idOffsets = channel.map(FileChannel.MapMode.READ_ONLY, idOffsetsOffset, tableBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            LongBuffer contentOffsets = channel.map(FileChannel.MapMode.READ_ONLY, contentOffsetsOffset, tableBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            MappedByteBuffer strings = channel.map(FileChannel.MapMode.READ_ONLY, stringsOffset, stringsLength);
+
+            // the mappings stay valid after the channel is closed
+            return new VectorSegment(count, dimension, flags, contentGeneration, matrixBytes, rowsPerChunk,
+                    idOffsets, contentOffsets, strings);
+        }
+    }
+
+    public static void write(Path file, int count, int dimension, boolean normalized, Rows rows) throws IOException {
+        write(file, count, dimension, normalized, false, rows);
+    }
+
+    /**
+     * @param float16 store the matrix in half precision (a version 2 segment, half the size)
+     */
+    public static void write(Path file, int count, int dimension, boolean normalized, boolean float16,
+                             Rows rows) throws IOException {
+        write(file, count, dimension, normalized, float16, 0, rows);
+    }
+
+    /**
+     * @param contentGeneration when > 0, store {@link Rows#contentOrdinal} into that generation of
+     *                          the content blob next to the segment instead of the texts (a version 3 segment)
+     */
+    public static void write(Path file, int count, int dimension, boolean normalized, boolean float16,
+                             int contentGeneration, Rows rows) throws IOException {
+        boolean blobContent = contentGeneration > 0;
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        // an existing segment may be mapped, so a rewrite goes to the next generation
+        int previous = generation(file);
+        boolean rewrite = previous > 0 || Files.exists(file);
+        Path target = rewrite ? generationFile(file, previous + 1) : file;
+        Path temp = parent.resolve(target.getFileName() + ".tmp");
+
+        byte[][] ids = new byte[count][];
+        byte[][] contents = new byte[count][];
+        long idBytes = 0;
+        long contentBytes = 0;
+        for (int i = 0; i < count; i++) {
+            ids[i] = utf8(rows.id(i));
+            contents[i] = blobContent ? new byte[0] : utf8(rows.content(i));
+            idBytes += ids[i].length;
+            contentBytes += contents[i].length;
+        }
+
+        long matrixOffset = HEADER_BYTES;
+        int elementBytes = float16 ? Short.BYTES : Float.BYTES;
+        long idOffsetsOffset = matrixOffset + (long) count * dimension * elementBytes;
+        long contentOffsetsOffset = idOffsetsOffset + (long) (count + 1) * Long.BYTES;
+        long stringsOffset = contentOffsetsOffset + (long) (count + 1) * Long.BYTES;
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+            int version = blobContent ? VERSION_BLOB_CONTENT : float16 ? VERSION_FLOAT16 : VERSION;
+            int flags = (normalized ? FLAG_NORMALIZED : 0) | (float16 ? FLAG_FLOAT16 : 0)
+                    | (blobContent ? FLAG_BLOB_CONTENT : 0);
+            buffer.putInt(MAGIC).putInt(version).putInt(count).putInt(dimension)
+                    .putInt(flags).putInt(blobContent ? contentGeneration : 0)
+                    .putLong(matrixOffset).putLong(idOffsetsOffset).putLong(contentOffsetsOffset)
+                    .putLong(stringsOffset).putLong(idBytes + contentBytes);
+
+            int rowBytes = dimension * elementBytes;
+            for (int i = 0; i < count; i++) {
+                int offset = rows.offset(i);
+                if (float16) {
+                    short[] halves = rows.halfArray(i);
+                    float[] array = halves == null ? rows.array(i) : null;
+                    for (int d = 0; d < dimension; d++) {
+                        ensureRoom(channel, buffer, Short.BYTES);
+                        buffer.putShort(halves != null ? halves[offset + d] : Float16.fromFloat(array[offset + d]));
+                    }
+                    continue;
+                }
+                float[] array = rows.array(i);
+                if (rowBytes <= buffer.capacity()) {
+                    ensureRoom(channel, buffer, rowBytes);
+                    buffer.asFloatBuffer().put(array, offset, dimension);
+                    buffer.position(buffer.position() + rowBytes);
+                } else {
+                    for (int d = 0; d < dimension; d++) {
+                        ensureRoom(channel, buffer, Float.BYTES);
+                        buffer.putFloat(array[offset + d]);
+                    }
+                }
+            }
+
+            long position = 0;
+            for (int i = 0; i <= count; i++) {
+                ensureRoom(channel, buffer, Long.BYTES);
+                buffer.putLong(position);
+                if (i < count) {
+                    position += ids[i].length;
+                }
+            }
+            for (int i = 0; i <= count; i++) {
+                ensureRoom(channel, buffer, Long.BYTES);
+                if (blobContent) {
+                    buffer.putLong(i < count ? rows.contentOrdinal(i) : 0);
+                    continue;
+                }
+                buffer.putLong(position);
+                if (i < count) {
+                    position += contents[i].length;
+                }
+            }
+
+            for (byte[] id : ids) {
+                putBytes(channel, buffer, id);
+            }
+            for (byte[] content : contents) {
+                putBytes(channel, buffer, content);
+            }
+
+            flush(channel, buffer);
+            channel.force(false);
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (rewrite) {
+            Path pointer = pointerFile(file);
+            Path pointerTemp = pointer.resolveSibling(pointer.getFileName() + ".tmp");
+            Files.writeString(pointerTemp, Integer.toString(previous + 1), StandardCharsets.UTF_8);
+            Files.move(pointerTemp, pointer, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            deleteOtherGenerations(file, previous + 1);
+        }
+    }
+
+    static Path pointerFile(Path file) {
+        return file.resolveSibling(file.getFileName() + POINTER_SUFFIX);
+    }
+
+    // vectors.seg -> vectors.<generation>.seg
+    static Path generationFile(Path file, int generation) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return file.resolveSibling(dot > 0
+                ? name.substring(0, dot) + "." + generation + name.substring(dot)
+                : name + "." + generation);
+    }
+
+    // 0 while the file was never rewritten
+    private static int generation(Path file) throws IOException {
+        Path pointer = pointerFile(file);
+        if (!Files.exists(pointer)) {
+            return 0;
+        }
+        String text = Files.readString(pointer, StandardCharsets.UTF_8).trim();
+        try {
+            int generation = Integer.parseInt(text);
+            if (generation > 0) {
+                return generation;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IOException(pointer + " does not name a segment generation: " + text);
+    }
+
+    // The unversioned file and every other generation. A file that is still mapped cannot be
+    // deleted on Windows; it is left for the next rewrite, by which time the mapping may be gone.
+    private static void deleteOtherGenerations(Path file, int keep) {
+        Path current = generationFile(file, keep);
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String prefix = (dot > 0 ? name.substring(0, dot) : name) + ".";
+        String suffix = dot > 0 ? name.substring(dot) : "";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(file.toAbsolutePath().getParent())) {
+            for (Path old : files) {
+                String oldName = old.getFileName().toString();
+                boolean generation = oldName.startsWith(prefix) && oldName.endsWith(suffix)
+                        && oldName.length() > prefix.length() + suffix.length()
+                        && oldName.substring(prefix.length(), oldName.length() - suffix.length()).chars().allMatch(Character::isDigit);
+                if ((generation || oldName.equals(name)) && !oldName.equals(current.getFileName().toString())) {
+                    try {
+                        Files.deleteIfExists(old);
+                    } catch (IOException e) {
+                        // still mapped
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ Could not list old generations of " + file + ": " + e.getMessage());
+        }
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public boolean isNormalized() {
+        return (flags & FLAG_NORMALIZED) != 0;
+    }
+
+    public boolean isFloat16() {
+        return (flags & FLAG_FLOAT16) != 0;
+    }
+
+    /**
+     * @return generation of the content blob holding the texts, 0 when they are in this file
+     */
+    public int contentGeneration() {
+        return contentGeneration;
+    }
+
+    public String id(int index) {
+        return string(idOffsets.get(index), idOffsets.get(index + 1));
+    }
+
+    public String content(int index) {
+        if (contentGeneration > 0) {
+            throw new IllegalStateException("Texts of this segment are in content blob generation " + contentGeneration);
+        }
+        return string(contentOffsets.get(index), contentOffsets.get(index + 1));
+    }
+
+    /**
+     * Ordinal of row {@code index}'s text in the content blob of {@link #contentGeneration()}.
+     */
+    public int contentOrdinal(int index) {
+        if (contentGeneration == 0) {
+            throw new IllegalStateException("Texts of this segment are inline");
+        }
+        return (int) contentOffsets.get(index);
+    }
+
+    /**
+     * Bulk-copy row {@code index} into {@code dst} at {@code dstOffset}.
+     */
+    public void readRow(int index, float[] dst, int dstOffset) {
+        if (isFloat16()) {
+            ShortBuffer chunk = halfChunks[index / rowsPerChunk];
+            int base = (index % rowsPerChunk) * dimension;
+            for (int d = 0; d < dimension; d++) {
+                dst[dstOffset + d] = Float16.toFloat(chunk.get(base + d));
+            }
+            return;
+        }
+        FloatBuffer chunk = matrixChunks[index / rowsPerChunk];
+        chunk.get((index % rowsPerChunk) * dimension, dst, dstOffset, dimension);
+    }
+
+    /**
+     * Dot product of row {@code index} with {@code query}, read straight from the mapping.
+     */
+    public float dot(int index, float[] query) {
+        if (isFloat16()) {
+            ShortBuffer chunk = halfChunks[index / rowsPerChunk];
+            int base = (index % rowsPerChunk) * dimension;
+            float sum = 0.0f;
+            for (int d = 0; d < dimension; d++) {
+                sum += query[d] * Float16.toFloat(chunk.get(base + d));
+            }
+            return sum;
+        }
+        ByteBuffer chunk = matrixBytes[index / rowsPerChunk];
+        return VectorMath.dot(chunk, (index % rowsPerChunk) * dimension * Float.BYTES, query, 0, dimension);
+    }
+
+    public float[] row(int index) {
+        float[] row = new float[dimension];
+        readRow(index, row, 0);
+        return row;
+    }
+
+    /**
+     * Row {@code index} in half precision, copied without widening from a float16 segment.
+     */
+    public short[] halfRow(int index) {
+        short[] row = new short[dimension];
+        if (isFloat16()) {
+            halfChunks[index / rowsPerChunk].get((index % rowsPerChunk) * dimension, row, 0, dimension);
+        } else {
+            FloatBuffer chunk = matrixChunks[index / rowsPerChunk];
+            int base = (index % rowsPerChunk) * dimension;
+            for (int d = 0; d < dimension; d++) {
+                row[d] = Float16.fromFloat(chunk.get(base + d));
+            }
+        }
+        return row;
+    }
+
+    private String string(long from, long to) {
+        byte[] bytes = new byte[(int) (to - from)];
+        strings.get((int) from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(FileChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+        int written = 0;
+        while (written < bytes.length) {
+            ensureRoom(channel, buffer, 1);
+            int length = Math.min(buffer.remaining(), bytes.length - written);
+            buffer.put(bytes, written, length);
+            written += length;
+        }
+    }
+
+    private static void ensureRoom(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
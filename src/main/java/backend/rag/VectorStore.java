@@ -1,5 +1,9 @@
 package backend.rag;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -7,12 +11,121 @@ public interface VectorStore {
     void addVector(String documentId, String content, float[] embedding);
     List<SearchResult> searchSimilar(float[] queryEmbedding, int topK);
 
+    /**
+     * Add a chunk together with the metadata searches can filter on.
+     * Stores without a metadata index keep the chunk and drop the metadata.
+     */
+    default void addVector(String documentId, String content, float[] embedding, ChunkMetadata metadata) {
+        addVector(documentId, content, embedding);
+    }
+
+    /**
+     * Top-K among the chunks whose metadata matches {@code filter} (null = all chunks).
+     *
+     * Stores with a metadata index override this. The default post-filters an unfiltered search
+     * against {@link #getMetadata()}, asking for four times as many results each round until topK
+     * match or the store is exhausted, so a store relying on it must keep the metadata it is given. Chunks the store keeps no metadata for are checked as
+     * chunks without metadata, so they match module filters (see
+     * {@link MetadataFilter#moduleOrShared}) but not page or document conditions.
+     */
+    default List<SearchResult> searchSimilar(float[] queryEmbedding, int topK, MetadataFilter filter) {
+        if (filter == null) {
+            return searchSimilar(queryEmbedding, topK);
+        }
+        Map<String, ChunkMetadata> metadata = getMetadata();
+        int total = getVectorCount();
+        int fetch = Math.max(topK, 1) * 4;
+        while (true) {
+            List<SearchResult> candidates = searchSimilar(queryEmbedding, Math.min(fetch, Math.max(total, 1)));
+            List<SearchResult> matches = new ArrayList<>(topK);
+            for (SearchResult candidate : candidates) {
+                if (filter.matches(metadata.get(candidate.getDocumentId()))) {
+                    matches.add(candidate);
+                    if (matches.size() == topK) {
+                        return matches;
+                    }
+                }
+            }
+            if (candidates.size() < fetch || fetch >= total) {
+                return matches;
+            }
+            fetch = (int) Math.min((long) fetch * 4, total);
+        }
+    }
+
+    /**
+     * Top-K for several queries at once; results are returned in query order.
+     * Flat stores override this to stream the vectors once for the whole batch.
+     */
+    default List<List<SearchResult>> searchSimilarBatch(float[][] queryEmbeddings, int topK) {
+        List<List<SearchResult>> results = new ArrayList<>(queryEmbeddings.length);
+        for (float[] queryEmbedding : queryEmbeddings) {
+            results.add(searchSimilar(queryEmbedding, topK));
+        }
+        return results;
+    }
+
+    /**
+     * Remove every chunk of a document (chunk ids are "{documentId}_chunk_{n}", see
+     * {@link #belongsToDocument}) so a re-uploaded file does not leave stale chunks behind.
+     *
+     * @return number of chunks removed
+     */
+    int deleteDocument(String documentId);
+
     // persistence methods
     void saveToFile(String filePath);
     void loadFromFile(String filePath);
 
     int getVectorCount();
+
+    /**
+     * Precision the store keeps embeddings in, reported by /api/documents/stats.
+     */
+    default String getEmbeddingStorage() {
+        return "float32";
+    }
     Map<String, String> getVectors();
 
+    /**
+     * Texts of the given chunk ids; ids that are not stored are left out. For callers that keep
+     * only ids, e.g. the lexical index resolving its top-K. The default goes through
+     * {@link #getVectors()}; stores with an id lookup override it.
+     */
+    default Map<String, String> getContents(Collection<String> ids) {
+        Map<String, String> all = getVectors();
+        Map<String, String> contents = new HashMap<>();
+        for (String id : ids) {
+            String content = all.get(id);
+            if (content != null) {
+                contents.put(id, content);
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * Chunk id -> metadata for the chunks stored with metadata; empty for stores that drop it.
+     */
+    default Map<String, ChunkMetadata> getMetadata() {
+        return Collections.emptyMap();
+    }
+
     void clear();
-}
\ No newline at end of file
+
+    static boolean belongsToDocument(String chunkId, String documentId) {
+        if (chunkId.equals(documentId)) {
+            return true;
+        }
+        String prefix = documentId + "_chunk_";
+        if (!chunkId.startsWith(prefix) || chunkId.length() == prefix.length()) {
+            return false;
+        }
+        for (int i = prefix.length(); i < chunkId.length(); i++) {
+            if (!Character.isDigit(chunkId.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
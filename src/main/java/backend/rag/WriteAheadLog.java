@@ -0,0 +1,343 @@
+package backend.rag;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of store mutations, so an add costs one small sequential write instead of
+ * rewriting the whole snapshot.
+ *
+ * Each record is {@code [int payloadLength][int crc32c(payload)][payload]} (little-endian) and
+ * the payload starts with a record type byte. On startup the store loads its last snapshot and
+ * {@link #replay replays} the log on top; a torn or corrupt tail (crash mid-append) ends the
+ * replay and is cut off. After a checkpoint has written a new snapshot the log is {@link #reset}.
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    public enum SyncPolicy {
+        /** fsync after every record */
+        ALWAYS,
+        /** fsync at most once per interval (a background flusher covers idle periods) */
+        INTERVAL,
+        /** leave flushing to the OS; survives a process crash but not a power loss */
+        NONE;
+
+        public static SyncPolicy parse(String value) {
+            for (SyncPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(value)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown WAL sync policy: " + value + " (use always, interval or none)");
+        }
+    }
+
+    /**
+     * Durability and checkpoint settings shared by the stores that keep a log.
+     */
+    public static final class Policy {
+        public static final Policy DEFAULT = new Policy(SyncPolicy.INTERVAL, 1000, 1000);
+
+        public final SyncPolicy sync;
+        public final long syncIntervalMillis;
+        public final int checkpointRecords;
+
+        /**
+         * @param sync               when appended records are forced to disk
+         * @param syncIntervalMillis fsync interval for {@link SyncPolicy#INTERVAL}
+         * @param checkpointRecords  records logged before the store folds the log into a snapshot
+         */
+        public Policy(SyncPolicy sync, long syncIntervalMillis, int checkpointRecords) {
+            this.sync = sync;
+            this.syncIntervalMillis = Math.max(syncIntervalMillis, 1);
+            this.checkpointRecords = Math.max(checkpointRecords, 1);
+        }
+    }
+
+    /**
+     * Receives replayed records in log order.
+     */
+    public interface Replayer {
+        void add(String id, String content, float[] embedding);
+
+        /**
+         * An add logged with chunk metadata; stores that do not index metadata drop it.
+         */
+        default void add(String id, String content, float[] embedding, ChunkMetadata metadata) {
+            add(id, content, embedding);
+        }
+
+        void delete(String id);
+    }
+
+    static final byte RECORD_ADD = 1;
+    static final byte RECORD_DELETE = 2;
+    // RECORD_ADD followed by module, documentId (length -1 = null) and page
+    static final byte RECORD_ADD_WITH_METADATA = 3;
+
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int MAX_RECORD_BYTES = 256 * 1024 * 1024;
+
+    private final Path file;
+    private final Policy policy;
+    private final FileChannel channel;
+    private final ScheduledExecutorService flusher;
+
+    private int records = 0;
+    private boolean dirty = false;
+    private long lastSync = System.nanoTime();
+
+    public WriteAheadLog(Path file, Policy policy) throws IOException {
+        this.file = file;
+        this.policy = policy;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (policy.sync == SyncPolicy.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-flusher-" + file.getFileName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::syncIfDirty,
+                    policy.syncIntervalMillis, policy.syncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Replay every intact record, then truncate anything after the last one.
+     *
+     * @return number of records replayed
+     */
+    public synchronized int replay(Replayer replayer) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        int replayed = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (position + RECORD_HEADER_BYTES <= size) {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(0);
+            int checksum = header.getInt(4);
+            if (length <= 0 || length > MAX_RECORD_BYTES || position + RECORD_HEADER_BYTES + length > size) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(payload, position + RECORD_HEADER_BYTES);
+            if (crc(payload.array()) != checksum) {
+                break;
+            }
+
+            apply(payload, replayer);
+            replayed++;
+            position += RECORD_HEADER_BYTES + length;
+        }
+
+        if (position < size) {
+            System.err.println("⚠️ Discarding " + (size - position) + " bytes of incomplete log tail in " + file);
+            channel.truncate(position);
+            channel.force(false);
+        }
+        channel.position(position);
+        records = replayed;
+        return replayed;
+    }
+
+    public synchronized void appendAdd(String id, String content, float[] embedding) throws IOException {
+        appendAdd(id, content, embedding, null);
+    }
+
+    public synchronized void appendAdd(String id, String content, float[] embedding, ChunkMetadata metadata) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] contentBytes = content == null ? new byte[0] : content.getBytes(StandardCharsets.UTF_8);
+        byte[] moduleBytes = metadata == null || metadata.module == null ? null : metadata.module.getBytes(StandardCharsets.UTF_8);
+        byte[] documentBytes = metadata == null || metadata.documentId == null ? null : metadata.documentId.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + Integer.BYTES + idBytes.length + Integer.BYTES + contentBytes.length
+                + Integer.BYTES + embedding.length * Float.BYTES;
+        if (metadata != null) {
+            length += Integer.BYTES + (moduleBytes == null ? 0 : moduleBytes.length)
+                    + Integer.BYTES + (documentBytes == null ? 0 : documentBytes.length)
+                    + Integer.BYTES;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length).order(ByteOrder.LITTLE_ENDIAN);
+        record.position(RECORD_HEADER_BYTES);
+        record.put(metadata == null ? RECORD_ADD : RECORD_ADD_WITH_METADATA);
+        record.putInt(idBytes.length).put(idBytes);
+        record.putInt(contentBytes.length).put(contentBytes);
+        record.putInt(embedding.length);
+        for (float value : embedding) {
+            record.putFloat(value);
+        }
+        if (metadata != null) {
+            putNullable(record, moduleBytes);
+            putNullable(record, documentBytes);
+            record.putInt(metadata.page);
+        }
+
+        write(record, length);
+    }
+
+    private static void putNullable(ByteBuffer record, byte[] bytes) {
+        if (bytes == null) {
+            record.putInt(-1);
+        } else {
+            record.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    public synchronized void appendDelete(String id) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + Integer.BYTES + idBytes.length;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length).order(ByteOrder.LITTLE_ENDIAN);
+        record.position(RECORD_HEADER_BYTES);
+        record.put(RECORD_DELETE);
+        record.putInt(idBytes.length).put(idBytes);
+
+        write(record, length);
+    }
+
+    // fills in the header of a record whose payload has been put after it, then appends it
+    private void write(ByteBuffer record, int length) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), RECORD_HEADER_BYTES, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        records++;
+        dirty = true;
+
+        if (policy.sync == SyncPolicy.ALWAYS
+                || (policy.sync == SyncPolicy.INTERVAL
+                && System.nanoTime() - lastSync >= TimeUnit.MILLISECONDS.toNanos(policy.syncIntervalMillis))) {
+            sync();
+        }
+    }
+
+    /**
+     * Drop every record; call once a snapshot covering them is safely on disk.
+     */
+    public synchronized void reset() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(false);
+        records = 0;
+        dirty = false;
+        lastSync = System.nanoTime();
+    }
+
+    /**
+     * @return records appended or replayed since the last reset
+     */
+    public synchronized int records() {
+        return records;
+    }
+
+    /**
+     * @return true once enough records have piled up that the store should checkpoint
+     */
+    public synchronized boolean checkpointDue() {
+        return records >= policy.checkpointRecords;
+    }
+
+    public synchronized void sync() throws IOException {
+        if (dirty) {
+            channel.force(false);
+            dirty = false;
+        }
+        lastSync = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        if (channel.isOpen()) {
+            sync();
+            channel.close();
+        }
+    }
+
+    private synchronized void syncIfDirty() {
+        try {
+            if (channel.isOpen()) {
+                sync();
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to sync " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void apply(ByteBuffer payload, Replayer replayer) throws IOException {
+        byte type = payload.get();
+        if (type == RECORD_DELETE) {
+            replayer.delete(readString(payload));
+            return;
+        }
+        if (type != RECORD_ADD && type != RECORD_ADD_WITH_METADATA) {
+            throw new IOException("Unknown log record type " + type);
+        }
+
+        String id = readString(payload);
+        String content = readString(payload);
+        float[] embedding = new float[payload.getInt()];
+        for (int i = 0; i < embedding.length; i++) {
+            embedding[i] = payload.getFloat();
+        }
+        if (type == RECORD_ADD) {
+            replayer.add(id, content, embedding);
+            return;
+        }
+
+        String module = readString(payload);
+        String documentId = readString(payload);
+        replayer.add(id, content, embedding, new ChunkMetadata(module, documentId, payload.getInt()));
+    }
+
+    // length -1 encodes null
+    private static String readString(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
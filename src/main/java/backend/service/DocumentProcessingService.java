@@ -16,7 +16,7 @@ public class DocumentProcessingService {
     private TextChunkerService chunker;
 
     @Autowired
-    private OpenAiEmbeddingService embeddingService;
+    private EmbeddingService embeddingService;
 
     @Autowired
     private InMemoryVectorStore vectorStore;
@@ -33,20 +33,23 @@ public class DocumentProcessingService {
             List<String> chunks = chunker.chunkText(fullText, 1000, 100);
             System.out.println("   Split into " + chunks.size() + " chunks");
 
-            // 3. Create embeddings for each chunk
-            for (int i = 0; i < chunks.size(); i++) {
-                String chunkId = documentId + "_chunk_" + i;
-                String chunkText = chunks.get(i);
+            // 3. Create embeddings for all chunks in batched requests
+            System.out.println("   Creating embeddings for " + chunks.size() + " chunks");
+            List<float[]> embeddings = embeddingService.embedBatch(chunks);
 
-                System.out.println("   Creating embedding for chunk " + i + " (" + chunkText.length() + " chars)");
+            try {
+                for (int i = 0; i < chunks.size(); i++) {
+                    String chunkId = documentId + "_chunk_" + i;
 
-                // 4. Generate embedding
-                float[] embedding = embeddingService.embed(chunkText);
+                    // 4. Store in vector database
+                    vectorStore.addVector(chunkId, chunks.get(i), embeddings.get(i));
 
-                // 5. Store in vector database
-                vectorStore.addVector(chunkId, chunkText, embedding);
-
-                System.out.println("   ✓ Stored chunk " + i);
+                    System.out.println("   ✓ Stored chunk " + i);
+                }
+            } catch (RuntimeException e) {
+                // no half-stored documents: drop the chunks that made it in
+                vectorStore.deleteDocument(documentId);
+                throw e;
             }
 
             return "Successfully processed PDF with " + chunks.size() + " chunks";
@@ -17,6 +17,10 @@ public class DocumentStorageService {
         return "storage/" + file.getOriginalFilename();
     }
 
+    public boolean removeDocument(String documentId) {
+        return storedDocuments.remove(documentId);
+    }
+
     public int getStoredDocumentCount() {
         return storedDocuments.size();
     }
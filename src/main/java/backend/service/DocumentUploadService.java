@@ -1,12 +1,17 @@
 package backend.service;
 
+import backend.rag.CachingEmbeddingService;
+import backend.rag.ChunkMetadata;
 import backend.rag.EmbeddingService;
+import backend.rag.LexicalIndex;
 import backend.rag.VectorStore;
 import backend.rag.TextChunkerService;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 @Service
 public class DocumentUploadService {
@@ -16,41 +21,72 @@ public class DocumentUploadService {
     private final DocumentStorageService documentStorageService;
     private final PdfTextExtractor pdfTextExtractor;
     private final TextChunkerService textChunkerService;
+    private final LexicalIndex lexicalIndex;
 
     public DocumentUploadService(
             EmbeddingService embeddingService,
             VectorStore vectorStore,
             DocumentStorageService documentStorageService,
             PdfTextExtractor pdfTextExtractor,
-            TextChunkerService textChunkerService
+            TextChunkerService textChunkerService,
+            LexicalIndex lexicalIndex
     ) {
         this.embeddingService = embeddingService;
         this.vectorStore = vectorStore;
         this.documentStorageService = documentStorageService;
         this.pdfTextExtractor = pdfTextExtractor;
         this.textChunkerService = textChunkerService;
+        this.lexicalIndex = lexicalIndex;
     }
 
     public UploadResult processUpload(MultipartFile file, String documentId) throws Exception {
+        return processUpload(file, documentId, null);
+    }
+
+    /**
+     * @param module course module the document belongs to (null = none); stored with every
+     *               chunk so questions can be restricted to it
+     */
+    public UploadResult processUpload(MultipartFile file, String documentId, String module) throws Exception {
         UploadResult result = new UploadResult();
 
-        System.out.println("📄 Processing upload: " + file.getOriginalFilename());
+        System.out.println("📄 Processing upload: " + file.getOriginalFilename() +
+                (module != null ? " (" + module + ")" : ""));
 
         // Save PDF
         String savedPath = documentStorageService.saveDocument(file, documentId);
         result.setFilePath(savedPath);
 
-        // Extract text
-        String text = pdfTextExtractor.extractText(file);
-
-        // Chunk text
-        List<String> chunks = textChunkerService.chunkText(text, 500, 100);
+        // Extract text page by page and chunk each page, so every chunk knows its page
+        List<String> pages = pdfTextExtractor.extractPages(file);
+
+        List<String> chunks = new ArrayList<>();
+        List<ChunkMetadata> chunkMetadata = new ArrayList<>();
+        for (int page = 0; page < pages.size(); page++) {
+            if (pages.get(page).isBlank()) {
+                continue;
+            }
+            ChunkMetadata metadata = new ChunkMetadata(module, documentId, page + 1);
+            for (String chunk : textChunkerService.chunkText(pages.get(page), 500, 100)) {
+                chunks.add(chunk);
+                chunkMetadata.add(metadata);
+            }
+        }
 
-        int chunkCount = 0;
-        for (String chunk : chunks) {
-            String chunkId = documentId + "_chunk_" + chunkCount++;
-            float[] embedding = embeddingService.embed(chunk);
-            vectorStore.addVector(chunkId, chunk, embedding);
+        // embed the whole document in as few requests as the batch limits allow
+        List<float[]> embeddings = embeddingService.embedBatch(chunks);
+        int chunkCount = chunks.size();
+        try {
+            for (int i = 0; i < chunkCount; i++) {
+                String chunkId = documentId + "_chunk_" + i;
+                vectorStore.addVector(chunkId, chunks.get(i), embeddings.get(i), chunkMetadata.get(i));
+                lexicalIndex.add(chunkId, chunks.get(i), chunkMetadata.get(i));
+            }
+        } catch (RuntimeException e) {
+            // e.g. a module over its memory budget: never leave half a document searchable
+            int removed = deleteDocument(documentId);
+            System.err.println("❌ Upload of " + documentId + " failed, rolled back " + removed + " stored chunks: " + e.getMessage());
+            throw e;
         }
 
         result.setSuccess(true);
@@ -63,6 +99,13 @@ public class DocumentUploadService {
         return result;
     }
 
+    // Removes every chunk of the document from the vector store, e.g. before re-uploading a new version
+    public int deleteDocument(String documentId) {
+        documentStorageService.removeDocument(documentId);
+        lexicalIndex.removeDocument(documentId);
+        return vectorStore.deleteDocument(documentId);
+    }
+
     // ================= STATS METHODS =================
 
     public int getTotalDocuments() {
@@ -73,6 +116,18 @@ public class DocumentUploadService {
         return vectorStore.getVectorCount();
     }
 
+    public String getEmbeddingStorage() {
+        return vectorStore.getEmbeddingStorage();
+    }
+
+    // hit/miss counters of the embedding cache, null when embeddings are not cached
+    public Map<String, Object> getEmbeddingCacheStats() {
+        if (embeddingService instanceof CachingEmbeddingService) {
+            return ((CachingEmbeddingService) embeddingService).getStats();
+        }
+        return null;
+    }
+
     // ================= DTO =================
 
     public static class UploadResult {
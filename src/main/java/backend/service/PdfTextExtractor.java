@@ -5,6 +5,8 @@ import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.text.PDFTextStripper;
 import org.springframework.web.multipart.MultipartFile;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 @Service
 public class PdfTextExtractor {
@@ -27,6 +29,31 @@ public class PdfTextExtractor {
         }
     }
 
+    // Text of every page in order, so chunks can remember which page they came from
+    public List<String> extractPages(MultipartFile file) throws Exception {
+        try (InputStream inputStream = file.getInputStream();
+             PDDocument document = PDDocument.load(inputStream)) {
+
+            if (document.isEncrypted()) {
+                throw new IllegalArgumentException("PDF is encrypted and cannot be processed");
+            }
+
+            PDFTextStripper stripper = new PDFTextStripper();
+            stripper.setSortByPosition(true);
+
+            List<String> pages = new ArrayList<>(document.getNumberOfPages());
+            for (int page = 1; page <= document.getNumberOfPages(); page++) {
+                stripper.setStartPage(page);
+                stripper.setEndPage(page);
+                pages.add(stripper.getText(document));
+            }
+            return pages;
+
+        } catch (Exception e) {
+            throw new Exception("Failed to extract text from PDF: " + e.getMessage(), e);
+        }
+    }
+
     public int getPageCount(MultipartFile file) throws Exception {
         try (InputStream inputStream = file.getInputStream();
              PDDocument document = PDDocument.load(inputStream)) {
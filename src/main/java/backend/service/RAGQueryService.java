@@ -1,36 +1,82 @@
 package backend.service;
 
+import backend.config.RagProperties;
 import backend.rag.EmbeddingService;
+import backend.rag.LexicalIndex;
+import backend.rag.MetadataFilter;
+import backend.rag.QueryEmbeddingCache;
+import backend.rag.RankFusion;
 import backend.rag.SearchResult;
 import backend.rag.VectorStore;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 @Service
 public class RAGQueryService {
 
+    // lexical hits scoring less than this share of the best lexical hit's BM25 score are dropped
+    private static final float MIN_RELATIVE_LEXICAL_SCORE = 0.5f;
+
     private final EmbeddingService embeddingService;
     private final VectorStore vectorStore;
     private final GPTService gptService;
+    private final LexicalIndex lexicalIndex;
+    private final RagProperties ragProperties;
+    private final QueryEmbeddingCache queryCache;
 
-    public RAGQueryService(VectorStore vectorStore, EmbeddingService embeddingService, GPTService gptService) {
+    public RAGQueryService(VectorStore vectorStore, EmbeddingService embeddingService, GPTService gptService,
+                           LexicalIndex lexicalIndex, RagProperties ragProperties) {
         this.vectorStore = vectorStore;
         this.embeddingService = embeddingService;
         this.gptService = gptService;
+        this.lexicalIndex = lexicalIndex;
+        this.ragProperties = ragProperties;
+        this.queryCache = new QueryEmbeddingCache(ragProperties.getQueryCacheEntries(),
+                ragProperties.getQueryCacheTtlSeconds() * 1000L);
     }
 
     // search for relevant documents
     public List<SearchResult> searchDocuments(String query) {
+        return searchDocuments(query, null);
+    }
+
+    // search for relevant documents among the chunks matching the metadata filter (null = all chunks)
+    public List<SearchResult> searchDocuments(String query, MetadataFilter filter) {
         try {
-            System.out.println("🔍 Searching for: " + query);
+            System.out.println("🔍 Searching for: " + query + (filter != null ? " where " + filter : ""));
+
+            boolean hybrid = "hybrid".equalsIgnoreCase(ragProperties.getRetrieval());
+            List<SearchResult> lexicalResults = new ArrayList<>();
+            if (hybrid) {
+                lexicalResults.addAll(lexicalIndex.search(query, ragProperties.getLexicalCandidates(), filter));
+                // lexical scores are relative to the best hit, keep the ones at least half as good
+                lexicalResults.removeIf(result -> result.getSimilarity() < MIN_RELATIVE_LEXICAL_SCORE);
+
+                // "cout", "what is int*": exact term matches answer these, no need to embed the question
+                if (ragProperties.isLexicalFastPath() && !lexicalResults.isEmpty()
+                        && lexicalIndex.isIdentifierLookup(query)) {
+                    List<SearchResult> results = lexicalResults.subList(0, Math.min(10, lexicalResults.size()));
+                    System.out.println("   Identifier lookup: " + results.size() + " lexical matches");
+                    return new ArrayList<>(results);
+                }
+            }
 
-            // Convert query to embedding
-            float[] queryEmbedding = embeddingService.embed(query);
+            // Convert query to embedding, unless the same question was asked a moment ago
+            float[] queryEmbedding = queryCache.isEnabled() ? queryCache.get(query) : null;
+            if (queryEmbedding != null) {
+                System.out.println("   Query embedding from cache");
+            } else {
+                queryEmbedding = embeddingService.embed(query);
+                if (!embeddingService.isPlaceholder(queryEmbedding)) {
+                    queryCache.put(query, queryEmbedding);
+                }
+            }
 
             // Search vector store
-            List<SearchResult> results = new ArrayList<>(vectorStore.searchSimilar(queryEmbedding, 10));
+            List<SearchResult> results = new ArrayList<>(vectorStore.searchSimilar(queryEmbedding, 10, filter));
 
             System.out.println("   Found " + results.size() + " potential matches");
 
@@ -39,6 +85,11 @@ public class RAGQueryService {
 
             System.out.println("   After filtering: " + results.size() + " highly relevant");
 
+            if (hybrid && !lexicalResults.isEmpty()) {
+                results = RankFusion.fuse(ragProperties.getRrfK(), 10, results, lexicalResults);
+                System.out.println("   After fusing " + lexicalResults.size() + " lexical matches: " + results.size());
+            }
+
             return results;
         } catch (Exception e) {
             System.err.println("❌ Search failed: " + e.getMessage());
@@ -46,6 +97,25 @@ public class RAGQueryService {
         }
     }
 
+    // search for several queries in one pass over the vector store, results in query order (unfiltered)
+    public List<List<SearchResult>> searchDocumentsBatch(List<String> queries, int topK) {
+        try {
+            System.out.println("🔍 Batch search for " + queries.size() + " queries");
+
+            float[][] queryEmbeddings = embeddingService.embedBatch(queries).toArray(new float[0][]);
+
+            return vectorStore.searchSimilarBatch(queryEmbeddings, topK);
+        } catch (Exception e) {
+            System.err.println("❌ Batch search failed: " + e.getMessage());
+            throw new RuntimeException("Batch search failed: " + e.getMessage(), e);
+        }
+    }
+
+    // hits, misses and evictions of the question embedding cache
+    public Map<String, Object> getQueryCacheStats() {
+        return queryCache.getStats();
+    }
+
     // generate answer using GPT based on the documents
     public String generateAnswer(String question, List<SearchResult> relevantDocs) {
         if (relevantDocs.isEmpty()) {
@@ -57,9 +127,12 @@ public class RAGQueryService {
         StringBuilder contextBuilder = new StringBuilder();
         for (int i = 0; i < topChunks.size(); i++) {
             SearchResult doc = topChunks.get(i);
+            // only a cosine similarity is a percentage match; BM25 scores are relative to the best hit
             contextBuilder.append(i + 1).append(". [")
-                    .append(String.format("%.2f", doc.getSimilarityPercentage()))
-                    .append("% match] From ")
+                    .append(doc.isVectorScore()
+                            ? String.format("%.2f", doc.getSimilarityPercentage()) + "% match"
+                            : "keyword match")
+                    .append("] From ")
                     .append(doc.getDocumentId())
                     .append(":\n")
                     .append(doc.getContent())
@@ -102,7 +175,14 @@ public class RAGQueryService {
      * @param numberOfQuestions number of questions for plain format (ignored for MCQ)
      */
     public List<String> generateQuiz(String topic, String format, int numberOfQuestions) {
-        List<SearchResult> topicDocs = searchDocuments(topic);
+        return generateQuiz(topic, format, numberOfQuestions, null);
+    }
+
+    /**
+     * Generate quiz questions from the chunks matching the metadata filter (null = all chunks)
+     */
+    public List<String> generateQuiz(String topic, String format, int numberOfQuestions, MetadataFilter filter) {
+        List<SearchResult> topicDocs = searchDocuments(topic, filter);
 
         if (topicDocs.isEmpty()) {
             throw new RuntimeException("No documents found about: " + topic);
@@ -90,7 +90,7 @@ public class UploadDocument {
         new Thread(() -> {
             try {
                 FileUploadService service = new FileUploadService();
-                service.uploadDocument(file);
+                service.uploadDocument(file, moduleName);
 
                 Platform.runLater(() -> {
                     statusLabel.setText("Upload successful");
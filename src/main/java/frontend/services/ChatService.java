@@ -24,9 +24,21 @@ public class ChatService {
      * @return ChatResponse containing either answer or questions
      */
     public ChatResponse askQuestion(String input) {
+        return askQuestion(input, null);
+    }
+
+    /**
+     * Send a question that only searches the documents of one module
+     *
+     * @param module module name as shown in StudentHome (e.g., "Module 1"), or null for all modules
+     */
+    public ChatResponse askQuestion(String input, String module) {
         try {
             Map<String, String> request = new HashMap<>();
             request.put("question", input);
+            if (module != null) {
+                request.put("module", module);
+            }
 
             HttpHeaders headers = new HttpHeaders();
             headers.setContentType(MediaType.APPLICATION_JSON);
@@ -15,6 +15,11 @@ public class FileUploadService {
             "http://localhost:8080/api/documents/upload";
 
     public String uploadDocument(File file) {
+        return uploadDocument(file, null);
+    }
+
+    // module is stored with every chunk so students of that module only search its documents
+    public String uploadDocument(File file, String module) {
 
         if (!file.getName().toLowerCase().endsWith(".pdf")) {
             throw new IllegalArgumentException("Only PDF files are supported");
@@ -34,6 +39,9 @@ public class FileUploadService {
             // Body
             MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
             body.add("file", new FileSystemResource(file));
+            if (module != null) {
+                body.add("module", module);
+            }
 
             HttpEntity<MultiValueMap<String, Object>> request =
                     new HttpEntity<>(body, headers);
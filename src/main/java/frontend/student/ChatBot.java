@@ -151,7 +151,7 @@ public class ChatBot extends Application {
 
         new Thread(() -> {
             try {
-                ChatService.ChatResponse response = chatService.askQuestion(input);
+                ChatService.ChatResponse response = chatService.askQuestion(input, moduleName);
 
                 Platform.runLater(() -> {
                     // Save to chat history
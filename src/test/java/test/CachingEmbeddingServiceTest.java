@@ -0,0 +1,74 @@
+package test;
+
+import backend.rag.CachingEmbeddingService;
+import backend.rag.EmbeddingService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachingEmbeddingServiceTest {
+
+    // embeds a text as {length, hash}, counting the texts it was asked for
+    private static final class CountingEmbeddings implements EmbeddingService {
+        final List<String> embedded = new ArrayList<>();
+        final float[] placeholder = {0.0f, 0.0f};
+
+        @Override
+        public float[] embed(String text) {
+            embedded.add(text);
+            return text.equals("offline") ? placeholder : new float[]{text.length(), text.hashCode()};
+        }
+
+        @Override
+        public boolean isPlaceholder(float[] embedding) {
+            return embedding == placeholder;
+        }
+    }
+
+    @Test
+    void batchesOnlyEmbedUnseenTextsOnce() throws Exception {
+        CountingEmbeddings delegate = new CountingEmbeddings();
+        CachingEmbeddingService cache = CachingEmbeddingService.open(delegate, "model-a", 16, null, 0);
+
+        cache.embed("intro");
+        List<float[]> embeddings = cache.embedBatch(List.of("intro", "loops", "loops ", "pointers"));
+
+        assertEquals(List.of("intro", "loops", "pointers"), delegate.embedded);
+        assertArrayEquals(embeddings.get(1), embeddings.get(2), "whitespace differences share an entry");
+        assertEquals(1, cache.getMemoryHits());
+
+        cache.embed("offline");
+        cache.embed("offline");
+        assertEquals(2, delegate.embedded.stream().filter("offline"::equals).count(), "placeholders are not cached");
+    }
+
+    @Test
+    void diskTierSurvivesRestartAndIsKeyedByModel(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("embeddings.bin");
+        CachingEmbeddingService first = CachingEmbeddingService.open(new CountingEmbeddings(), "model-a", 16, file, 1 << 20);
+        float[] stored = first.embed("std::cout prints");
+        first.close();
+
+        // a torn record from a crash is dropped on open
+        Files.write(file, new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+
+        CountingEmbeddings delegate = new CountingEmbeddings();
+        CachingEmbeddingService reopened = CachingEmbeddingService.open(delegate, "model-a", 16, file, 1 << 20);
+        assertArrayEquals(stored, reopened.embed("std::cout prints"));
+        assertEquals(1, reopened.getDiskHits());
+        assertTrue(delegate.embedded.isEmpty());
+        reopened.close();
+
+        CachingEmbeddingService otherModel = CachingEmbeddingService.open(delegate, "model-b", 16, file, 1 << 20);
+        otherModel.embed("std::cout prints");
+        assertEquals(List.of("std::cout prints"), delegate.embedded);
+        otherModel.close();
+    }
+}
@@ -0,0 +1,182 @@
+package test;
+
+import backend.rag.ContentBlobStore;
+import backend.rag.PersistentVectorStore;
+import backend.rag.WriteAheadLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContentBlobStoreTest {
+
+    private static final WriteAheadLog.Policy NO_SYNC = new WriteAheadLog.Policy(WriteAheadLog.SyncPolicy.NONE, 1000, 1000);
+    // a block every few texts, a cache of two blocks
+    private static final ContentBlobStore.Policy SMALL_BLOCKS = new ContentBlobStore.Policy(64, 2);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void textsRoundTripAcrossBlocksAndReopens() throws Exception {
+        ContentBlobStore blob = ContentBlobStore.create(dir, 1, SMALL_BLOCKS);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, blob.append(text(i)));
+        }
+        // pending texts are readable before they are flushed
+        assertEquals(text(49), blob.read(49));
+        blob.flush();
+        for (int i = 0; i < 50; i++) {
+            assertEquals(text(i), blob.read(i));
+        }
+        assertTrue(blob.getCacheMisses() > 2);
+        blob.close();
+
+        ContentBlobStore reopened = ContentBlobStore.open(dir, 1, SMALL_BLOCKS);
+        assertEquals(50, reopened.size());
+        assertNull(reopened.read(7));
+        assertEquals(text(23), reopened.read(23));
+        assertThrows(IllegalArgumentException.class, () -> reopened.read(50));
+        reopened.close();
+    }
+
+    @Test
+    void aTornBlockAtTheEndIsCutOff() throws Exception {
+        ContentBlobStore blob = ContentBlobStore.create(dir, 1, SMALL_BLOCKS);
+        for (int i = 0; i < 20; i++) {
+            blob.append(text(i));
+        }
+        blob.close();
+        Path file = blob.getFile();
+        long complete = Files.size(file);
+
+        // a crash in the middle of the next block: a header promising more bytes than were written
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(complete);
+            raw.writeInt(5);
+            raw.writeInt(300);
+            raw.writeInt(200);
+            raw.write(new byte[17]);
+        }
+
+        ContentBlobStore reopened = ContentBlobStore.open(dir, 1, SMALL_BLOCKS);
+        assertEquals(complete, Files.size(file));
+        assertEquals(complete, reopened.getFileBytes());
+        assertEquals(20, reopened.size());
+        assertEquals(text(19), reopened.read(19));
+        assertEquals(20, reopened.append("after the crash"));
+        reopened.flush();
+        reopened.close();
+
+        ContentBlobStore again = ContentBlobStore.open(dir, 1, SMALL_BLOCKS);
+        assertEquals("after the crash", again.read(20));
+        again.close();
+    }
+
+    @Test
+    void aBlockThatInflatesShortFailsInsteadOfSpinning() throws Exception {
+        ContentBlobStore blob = ContentBlobStore.create(dir, 1, new ContentBlobStore.Policy(1 << 20, 2));
+        for (int i = 0; i < 20; i++) {
+            blob.append(text(i));
+        }
+        blob.close();
+        Path file = blob.getFile();
+        byte[] good = Files.readAllBytes(file);
+
+        // the compressed stream loses its last bytes, but the header still adds up
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(8);
+            raw.writeInt(good.length - 12 - 6);
+        }
+        ContentBlobStore cut = ContentBlobStore.open(dir, 1, SMALL_BLOCKS);
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertThrows(IllegalStateException.class, () -> cut.read(3)));
+        cut.close();
+
+        // the header claims more raw bytes than the stream holds
+        Files.write(file, good);
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(4);
+            raw.writeInt(readInt(good, 4) + 100);
+        }
+        ContentBlobStore inflated = ContentBlobStore.open(dir, 1, SMALL_BLOCKS);
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertThrows(IllegalStateException.class, () -> inflated.read(3)));
+        inflated.close();
+    }
+
+    @Test
+    void readsAfterCloseOpenTheFileAgain() throws Exception {
+        ContentBlobStore blob = ContentBlobStore.create(dir, 1, SMALL_BLOCKS);
+        for (int i = 0; i < 30; i++) {
+            blob.append(text(i));
+        }
+        blob.close();
+        // a search that started before its store was unloaded
+        assertEquals(text(2), blob.read(2));
+        assertEquals(text(29), blob.read(29));
+        assertThrows(IllegalStateException.class, () -> blob.append("too late"));
+    }
+
+    @Test
+    void storesMoveToTheNextGenerationAndBackToTheHeap() throws Exception {
+        ContentBlobStore.Policy policy = new ContentBlobStore.Policy(1024, 4);
+        PersistentVectorStore store = new PersistentVectorStore(dir.toString(), 0, null, NO_SYNC, 0.1, policy);
+        for (int doc = 0; doc < 300; doc++) {
+            for (int chunk = 0; chunk < 10; chunk++) {
+                store.addVector("d" + doc + "_chunk_" + chunk, "text of " + doc + "/" + chunk, vector(doc, chunk));
+            }
+        }
+        for (int doc = 50; doc < 300; doc++) {
+            store.deleteDocument("d" + doc);
+        }
+        store.close();
+        assertTrue(Files.exists(dir.resolve("contents.1.blob")));
+
+        // 2500 of 3000 texts are garbage: the reopened store copies the live ones into generation 2
+        PersistentVectorStore compacted = new PersistentVectorStore(dir.toString(), 0, null, NO_SYNC, 0.1, policy);
+        assertTrue(Files.exists(dir.resolve("contents.2.blob")));
+        assertFalse(Files.exists(dir.resolve("contents.1.blob")));
+        assertEquals(500, compacted.getVectorCount());
+        assertEquals("text of 49/9", compacted.getContents(List.of("d49_chunk_9")).get("d49_chunk_9"));
+        compacted.close();
+
+        // switched to heap: the texts go back into the segment and the blob is deleted
+        PersistentVectorStore heap = new PersistentVectorStore(dir.toString(), 0, null, NO_SYNC, 0.1, ContentBlobStore.Policy.HEAP);
+        assertFalse(Files.exists(dir.resolve("contents.2.blob")));
+        Map<String, String> texts = heap.getVectors();
+        assertEquals(500, texts.size());
+        assertEquals("text of 7/3", texts.get("d7_chunk_3"));
+        heap.close();
+
+        // and back to a blob, which starts over at generation 1
+        PersistentVectorStore blobAgain = new PersistentVectorStore(dir.toString(), 0, null, NO_SYNC, 0.1, policy);
+        assertTrue(Files.exists(dir.resolve("contents.1.blob")));
+        assertEquals("text of 12/0", blobAgain.getVectors().get("d12_chunk_0"));
+        blobAgain.close();
+    }
+
+    // every seventh text is null, some are not ASCII
+    private static String text(int i) {
+        return i % 7 == 0 ? null : "chunk " + i + (i % 3 == 0 ? " — Größe" : "");
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static float[] vector(int doc, int chunk) {
+        Random random = new Random(doc * 31L + chunk);
+        float[] vector = new float[8];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,118 @@
+package test;
+
+import backend.rag.EmbeddingRateLimiter;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EmbeddingRateLimiterTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void requestsArePacedOverASlidingMinute() {
+        long[] now = {0};
+        EmbeddingRateLimiter limiter = new EmbeddingRateLimiter(3, 0, 0, () -> now[0]);
+        assertEquals(0, limiter.tryAcquire(10, false));
+        now[0] = 20 * SECOND;
+        assertEquals(0, limiter.tryAcquire(10, false));
+        assertEquals(0, limiter.tryAcquire(10, false));
+
+        // the whole minute's allowance is used until the first request ages out at 60 s
+        now[0] = 30 * SECOND;
+        assertEquals(30 * SECOND, limiter.tryAcquire(10, false));
+        now[0] = 60 * SECOND;
+        assertEquals(0, limiter.tryAcquire(10, false));
+        // then the two taken at 20 s
+        assertEquals(20 * SECOND, limiter.tryAcquire(10, false));
+    }
+
+    @Test
+    void settlingGivesBackOrChargesTheDifference() {
+        long[] now = {0};
+        EmbeddingRateLimiter limiter = new EmbeddingRateLimiter(0, 1000, 0, () -> now[0]);
+        assertEquals(0, limiter.tryAcquire(600, false));
+        assertEquals(60 * SECOND, limiter.tryAcquire(600, false));
+
+        // the first request used 100 of its estimated 600 tokens
+        limiter.settle(600, 100, false);
+        assertEquals(0, limiter.tryAcquire(600, false));
+
+        // and the second 900: the window is full again
+        now[0] = 10 * SECOND;
+        limiter.settle(600, 900, false);
+        assertEquals(50 * SECOND, limiter.tryAcquire(1, false));
+
+        // a request over the whole limit waits for an empty window and takes all of it
+        now[0] = 70 * SECOND;
+        assertEquals(0, limiter.tryAcquire(5000, false));
+        assertTrue(limiter.tryAcquire(1, false) > 0);
+        limiter.settle(5000, 400, false);
+        assertEquals(0, limiter.tryAcquire(600, false));
+    }
+
+    @Test
+    void batchesLeaveTheReservedShareToQueries() {
+        long[] now = {0};
+        EmbeddingRateLimiter limiter = new EmbeddingRateLimiter(10, 1000, 0.2, () -> now[0]);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(0, limiter.tryAcquire(10, false));
+        }
+        assertTrue(limiter.tryAcquire(10, false) > 0);
+        assertEquals(0, limiter.tryAcquire(10, true));
+        assertEquals(0, limiter.tryAcquire(10, true));
+        assertTrue(limiter.tryAcquire(10, true) > 0);
+
+        // a batch larger than its share of the tokens takes the bulk 800 and no more
+        now[0] = 60 * SECOND;
+        assertEquals(0, limiter.tryAcquire(5000, false));
+        assertEquals(0, limiter.tryAcquire(200, true));
+        assertTrue(limiter.tryAcquire(1, true) > 0);
+    }
+
+    @Test
+    void pausesHoldQueriesToo() {
+        long[] now = {0};
+        EmbeddingRateLimiter limiter = new EmbeddingRateLimiter(3000, 1_000_000, 0.1, () -> now[0]);
+        limiter.pauseUntil(1500);
+        // a shorter pause does not cut the longer one short
+        limiter.pauseUntil(200);
+        assertEquals(1500 * 1_000_000L, limiter.tryAcquire(10, true));
+        now[0] = 1500 * 1_000_000L;
+        assertEquals(0, limiter.tryAcquire(10, true));
+    }
+
+    @Test
+    void givenBackTokensWakeWaitingRequests() throws Exception {
+        EmbeddingRateLimiter limiter = new EmbeddingRateLimiter(0, 1000, 0);
+        limiter.acquire(1000, false);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> waiting = pool.submit(() -> {
+                limiter.acquire(500, false);
+                return null;
+            });
+            Thread.sleep(50);
+            assertFalse(waiting.isDone());
+
+            // without the give-back it would wait a minute
+            limiter.settle(1000, 200, false);
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> waiting.get());
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void invalidLimitsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new EmbeddingRateLimiter(-1, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new EmbeddingRateLimiter(10, 10, 1.0));
+    }
+}
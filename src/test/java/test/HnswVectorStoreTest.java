@@ -0,0 +1,243 @@
+package test;
+
+import backend.rag.ChunkMetadata;
+import backend.rag.HnswVectorStore;
+import backend.rag.MetadataFilter;
+import backend.rag.PersistentVectorStore;
+import backend.rag.SearchResult;
+import backend.rag.WriteAheadLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HnswVectorStoreTest {
+
+    private static final WriteAheadLog.Policy NO_SYNC = new WriteAheadLog.Policy(WriteAheadLog.SyncPolicy.NONE, 1000, 100_000);
+    private static final int DIMENSION = 16;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recallAgainstTheExactScan() {
+        HnswVectorStore hnsw = new HnswVectorStore(dir.resolve("hnsw").toString(), 16, 100, 64, NO_SYNC);
+        PersistentVectorStore exact = new PersistentVectorStore(dir.resolve("flat").toString(), 0, null, NO_SYNC);
+        for (int doc = 0; doc < 2000; doc++) {
+            hnsw.addVector("d" + doc + "_chunk_0", "doc " + doc, vector(doc, 0));
+            exact.addVector("d" + doc + "_chunk_0", "doc " + doc, vector(doc, 0));
+        }
+
+        int found = 0;
+        for (int query = 0; query < 50; query++) {
+            float[] embedding = vector(10_000 + query, 0);
+            Set<String> expected = ids(exact.searchSimilar(embedding, 10));
+            for (SearchResult result : hnsw.searchSimilar(embedding, 10)) {
+                if (expected.contains(result.getDocumentId())) {
+                    found++;
+                }
+            }
+        }
+        assertTrue(found >= 50 * 10 * 9 / 10, "recall@10 was " + found / 500.0);
+        hnsw.close();
+        exact.close();
+    }
+
+    @Test
+    void aGraphOfOtherSegmentRowsIsRebuilt() throws Exception {
+        HnswVectorStore store = store();
+        addDocuments(store, 0, 200);
+        store.checkpoint();
+        Path graph = dir.resolve("hnsw.graph");
+        Path stale = dir.resolve("stale.graph");
+        Files.copy(graph, stale);
+
+        // as many adds as deletes: the next segment has as many rows as the stale graph
+        assertEquals(1, store.deleteDocument("d7"));
+        addDocuments(store, 200, 201);
+        store.close();
+        byte[] current = header(graph);
+        assertFalse(Arrays.equals(current, header(stale)));
+
+        // as if the process died after writing the segment but before writing its graph
+        Files.move(stale, graph, StandardCopyOption.REPLACE_EXISTING);
+        HnswVectorStore reopened = store();
+        assertArrayEquals(current, header(graph), "the rebuilt graph is written again");
+        assertTopHitsAreThemselves(reopened, 8, 201);
+        reopened.close();
+
+        // a graph whose id checksum does not match is not trusted either
+        corrupt(graph, 16);
+        HnswVectorStore rebuilt = store();
+        assertArrayEquals(current, header(graph));
+        assertEquals(200, rebuilt.getVectorCount());
+        assertTopHitsAreThemselves(rebuilt, 0, 7);
+        rebuilt.close();
+
+        // nor one whose header checks out but whose entry point is out of range
+        corrupt(graph, 24);
+        byte[] corrupt = Files.readAllBytes(graph);
+        HnswVectorStore relinked = store();
+        assertFalse(Arrays.equals(corrupt, Files.readAllBytes(graph)));
+        assertTopHitsAreThemselves(relinked, 0, 7);
+        relinked.close();
+    }
+
+    @Test
+    void tombstonesAreDroppedOnceTheyReachTheRatio() {
+        HnswVectorStore store = store();
+        addDocuments(store, 0, 100);
+        store.checkpoint();
+
+        // replaced chunks are tombstones too
+        store.addVector("d0_chunk_0", "doc 0 again", vector(0, 0));
+        for (int doc = 1; doc < 20; doc++) {
+            assertEquals(1, store.deleteDocument("d" + doc));
+        }
+        // 20 of 101 nodes are tombstones, just under 20%: still in the graph for routing
+        assertEquals(101, nodeCount(store));
+        assertEquals(81, store.getVectorCount());
+        assertTopHitsAreThemselves(store, 20, 100);
+
+        // the next one reaches the ratio and the checkpoint drops them
+        assertEquals(1, store.deleteDocument("d20"));
+        assertEquals(80, nodeCount(store));
+        assertEquals(80, store.getVectorCount());
+        assertEquals("doc 0 again", store.getContents(List.of("d0_chunk_0")).get("d0_chunk_0"));
+        assertTopHitsAreThemselves(store, 21, 100);
+        for (SearchResult result : store.searchSimilar(vector(5, 0), 20)) {
+            int doc = Integer.parseInt(result.getDocumentId().substring(1, result.getDocumentId().indexOf('_')));
+            assertTrue(doc == 0 || doc > 20, result.getDocumentId() + " was deleted");
+        }
+        store.close();
+    }
+
+    @Test
+    void replaysTheLogAfterACrash() throws Exception {
+        HnswVectorStore store = store();
+        addDocuments(store, 0, 50);
+        store.checkpoint();
+        addDocuments(store, 50, 60);
+        store.addVector("d3_chunk_0", "doc 3 again", vector(3, 0));
+        assertEquals(1, store.deleteDocument("d4"));
+        // no close(): everything after the checkpoint is only in vectors.wal
+        assertTrue(Files.size(dir.resolve("vectors.wal")) > 0);
+
+        HnswVectorStore reopened = store();
+        assertEquals(59, reopened.getVectorCount());
+        assertEquals("doc 3 again", reopened.getContents(List.of("d3_chunk_0")).get("d3_chunk_0"));
+        assertFalse(reopened.getVectors().containsKey("d4_chunk_0"));
+        assertTopHitsAreThemselves(reopened, 50, 60);
+        // the replayed records were checkpointed right away
+        assertEquals(0, Files.size(dir.resolve("vectors.wal")));
+        reopened.close();
+
+        HnswVectorStore again = store();
+        assertEquals(59, again.getVectorCount());
+        assertTopHitsAreThemselves(again, 5, 60);
+        again.close();
+    }
+
+    @Test
+    void filteredSearchesSeeMetadataAfterReplayAndReopen() {
+        HnswVectorStore store = store();
+        for (int doc = 0; doc < 40; doc++) {
+            for (int chunk = 0; chunk < 3; chunk++) {
+                store.addVector("d" + doc + "_chunk_" + chunk, "doc " + doc, vector(doc, chunk),
+                        new ChunkMetadata("Module " + doc % 4, "d" + doc, chunk + 1));
+            }
+        }
+        assertOnlyModule(store, 1);
+        store.checkpoint();
+        // re-added without metadata, so it no longer matches its module
+        store.addVector("d1_chunk_0", "doc 1", vector(1, 0));
+        assertEquals(3, store.deleteDocument("d5"));
+        // no close(): the add and the delete are only in vectors.wal
+
+        HnswVectorStore reopened = store();
+        assertFalse(reopened.getMetadata().containsKey("d1_chunk_0"));
+        assertFalse(reopened.getMetadata().containsKey("d5_chunk_2"));
+        assertEquals(40 * 3 - 4, reopened.getMetadata().size());
+        assertOnlyModule(reopened, 1);
+        reopened.close();
+
+        HnswVectorStore checkpointed = store();
+        assertEquals("Module 2", checkpointed.getMetadata().get("d6_chunk_1").module);
+        assertOnlyModule(checkpointed, 2);
+        checkpointed.close();
+    }
+
+    private HnswVectorStore store() {
+        return new HnswVectorStore(dir.toString(), 8, 64, 32, NO_SYNC);
+    }
+
+    private static void addDocuments(HnswVectorStore store, int from, int to) {
+        for (int doc = from; doc < to; doc++) {
+            store.addVector("d" + doc + "_chunk_0", "doc " + doc, vector(doc, 0));
+        }
+    }
+
+    private static void assertTopHitsAreThemselves(HnswVectorStore store, int from, int to) {
+        for (int doc = from; doc < to; doc++) {
+            List<SearchResult> results = store.searchSimilar(vector(doc, 0), 1);
+            assertEquals("d" + doc + "_chunk_0", results.get(0).getDocumentId());
+        }
+    }
+
+    // flips bits of the 8 bytes at offset
+    private static void corrupt(Path graph, int offset) throws IOException {
+        try (RandomAccessFile raw = new RandomAccessFile(graph.toFile(), "rw")) {
+            raw.seek(offset);
+            long value = raw.readLong();
+            raw.seek(offset);
+            raw.writeLong(value ^ 0x0F0F0F0F_0F0F0F0FL);
+        }
+    }
+
+    // magic, version, node count, M and the CRC32 of the segment ids the graph was written for
+    private static byte[] header(Path graph) throws IOException {
+        return Arrays.copyOf(Files.readAllBytes(graph), 24);
+    }
+
+    private static int nodeCount(HnswVectorStore store) {
+        return ((List<?>) ReflectionTestUtils.getField(store, "nodes")).size();
+    }
+
+    private static Set<String> ids(List<SearchResult> results) {
+        Set<String> ids = new HashSet<>();
+        for (SearchResult result : results) {
+            ids.add(result.getDocumentId());
+        }
+        return ids;
+    }
+
+    private static void assertOnlyModule(HnswVectorStore store, int module) {
+        MetadataFilter filter = MetadataFilter.eq("module", "Module " + module);
+        List<SearchResult> results = store.searchSimilar(vector(module, 1), 10, filter);
+        assertEquals(10, results.size());
+        for (SearchResult result : results) {
+            assertEquals("Module " + module, store.getMetadata().get(result.getDocumentId()).module, result.getDocumentId());
+        }
+    }
+
+    private static float[] vector(int doc, int chunk) {
+        Random random = new Random(doc * 31L + chunk);
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,187 @@
+package test;
+
+import backend.rag.ChunkMetadata;
+import backend.rag.IvfPqVectorStore;
+import backend.rag.MetadataFilter;
+import backend.rag.PersistentVectorStore;
+import backend.rag.SearchResult;
+import backend.rag.WriteAheadLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IvfPqVectorStoreTest {
+
+    private static final WriteAheadLog.Policy NO_SYNC = new WriteAheadLog.Policy(WriteAheadLog.SyncPolicy.NONE, 1000, 100_000);
+    private static final int DOCUMENTS = 100;
+    private static final int CHUNKS = 3;   // 300 chunks, enough to train 256 codewords per subspace
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void trainsCheckpointsAndReloads() {
+        IvfPqVectorStore store = store(50);
+        addDocuments(store, 0, DOCUMENTS);
+        assertTopHitsAreThemselves(store, 0, DOCUMENTS);
+        store.close();
+        assertTrue(Files.exists(dir.resolve("ivfpq.codes")));
+
+        IvfPqVectorStore reopened = store(50);
+        assertEquals(DOCUMENTS * CHUNKS, reopened.getVectorCount());
+        assertEquals("doc 7", reopened.getVectors().get("d7_chunk_2"));
+        assertTopHitsAreThemselves(reopened, 0, DOCUMENTS);
+        reopened.close();
+    }
+
+    @Test
+    void replaysTheLogAfterACrash() {
+        IvfPqVectorStore store = store(50);
+        addDocuments(store, 0, DOCUMENTS);
+        store.checkpoint();
+        addDocuments(store, DOCUMENTS, DOCUMENTS + 5);
+        assertEquals(CHUNKS, store.deleteDocument("d3"));
+        // no close(): the last adds and the delete are only in ivfpq.wal
+
+        IvfPqVectorStore reopened = store(50);
+        assertEquals((DOCUMENTS + 4) * CHUNKS, reopened.getVectorCount());
+        assertFalse(reopened.getVectors().containsKey("d3_chunk_0"));
+        assertTopHitsAreThemselves(reopened, DOCUMENTS, DOCUMENTS + 5);
+        reopened.close();
+    }
+
+    @Test
+    void deletedChunksStayGoneAcrossCheckpoints() {
+        IvfPqVectorStore store = store(50);
+        addDocuments(store, 0, DOCUMENTS);
+        for (int doc = 0; doc < DOCUMENTS; doc += 4) {
+            assertEquals(CHUNKS, store.deleteDocument("d" + doc));
+        }
+        assertNoHitsOfDeletedDocuments(store);
+        store.checkpoint();
+        assertNoHitsOfDeletedDocuments(store);
+        store.close();
+
+        IvfPqVectorStore reopened = store(50);
+        assertEquals(DOCUMENTS * 3 / 4 * CHUNKS, reopened.getVectorCount());
+        assertNoHitsOfDeletedDocuments(reopened);
+        assertEquals(0, reopened.deleteDocument("d0"));
+        reopened.close();
+    }
+
+    @Test
+    void codesOfAnOlderSegmentAreEncodedAgain() throws Exception {
+        IvfPqVectorStore store = store(0);
+        addDocuments(store, 0, DOCUMENTS);
+        store.checkpoint();
+        Path codes = dir.resolve("ivfpq.codes");
+        Path stale = dir.resolve("stale.codes");
+        Files.copy(codes, stale);
+
+        // as many adds as deletes: the next segment has as many rows as the stale codes
+        store.deleteDocument("d1");
+        addDocuments(store, DOCUMENTS, DOCUMENTS + 1);
+        store.close();
+
+        // as if the process died after writing the segment but before writing its codes
+        Files.move(stale, codes, StandardCopyOption.REPLACE_EXISTING);
+
+        // without a rerank every score comes from the codes
+        IvfPqVectorStore reopened = store(0);
+        assertEquals(DOCUMENTS * CHUNKS, reopened.getVectorCount());
+        assertTopHitsAreThemselves(reopened, 2, DOCUMENTS + 1);
+        reopened.close();
+    }
+
+    @Test
+    void metadataOfTheFlatStoreAndOfLaterAddsIsKept() {
+        PersistentVectorStore flat = new PersistentVectorStore(dir.toString(), 0, null, NO_SYNC);
+        for (int doc = 0; doc < DOCUMENTS; doc++) {
+            for (int chunk = 0; chunk < CHUNKS; chunk++) {
+                flat.addVector("d" + doc + "_chunk_" + chunk, "doc " + doc, vector(doc, chunk),
+                        new ChunkMetadata("Module " + doc % 4, "d" + doc, chunk + 1));
+            }
+        }
+        flat.close();
+
+        // switching rag.index-type imports the flat segment together with its metadata
+        IvfPqVectorStore store = store(50);
+        assertOnlyModule(store, 2);
+        store.checkpoint();
+        store.addVector("d2_chunk_9", "moved", vector(2, 0), new ChunkMetadata("Module 3", "d2", 9));
+        assertEquals(CHUNKS, store.deleteDocument("d6"));
+        // no close(): the add and the delete are only in ivfpq.wal
+
+        IvfPqVectorStore reopened = store(50);
+        assertEquals("Module 3", reopened.getMetadata().get("d2_chunk_9").module);
+        assertFalse(reopened.getMetadata().containsKey("d6_chunk_0"));
+        assertOnlyModule(reopened, 2);
+        reopened.close();
+
+        IvfPqVectorStore checkpointed = store(50);
+        assertEquals((DOCUMENTS - 1) * CHUNKS + 1, checkpointed.getMetadata().size());
+        assertOnlyModule(checkpointed, 3);
+        checkpointed.close();
+    }
+
+    private IvfPqVectorStore store(int rerank) {
+        return new IvfPqVectorStore(dir.toString(), 4, 4, 4, rerank, 0, NO_SYNC);
+    }
+
+    private static void addDocuments(IvfPqVectorStore store, int from, int to) {
+        for (int doc = from; doc < to; doc++) {
+            for (int chunk = 0; chunk < CHUNKS; chunk++) {
+                store.addVector("d" + doc + "_chunk_" + chunk, "doc " + doc, vector(doc, chunk));
+            }
+        }
+    }
+
+    // the quantizers are lossy, so most, not all, chunks must be their own best match
+    private static void assertTopHitsAreThemselves(IvfPqVectorStore store, int from, int to) {
+        int hits = 0;
+        int total = 0;
+        for (int doc = from; doc < to; doc++) {
+            for (int chunk = 0; chunk < CHUNKS; chunk++) {
+                List<SearchResult> results = store.searchSimilar(vector(doc, chunk), 1);
+                if (!results.isEmpty() && results.get(0).getDocumentId().equals("d" + doc + "_chunk_" + chunk)) {
+                    hits++;
+                }
+                total++;
+            }
+        }
+        assertTrue(hits >= total * 9 / 10, hits + " of " + total + " chunks were their own best match");
+    }
+
+    private static void assertOnlyModule(IvfPqVectorStore store, int module) {
+        MetadataFilter filter = MetadataFilter.eq("module", "Module " + module);
+        List<SearchResult> results = store.searchSimilar(vector(module + 1, 0), 10, filter);
+        assertEquals(10, results.size());
+        for (SearchResult result : results) {
+            assertEquals("Module " + module, store.getMetadata().get(result.getDocumentId()).module, result.getDocumentId());
+        }
+    }
+
+    private static void assertNoHitsOfDeletedDocuments(IvfPqVectorStore store) {
+        for (int doc = 0; doc < DOCUMENTS; doc += 4) {
+            for (SearchResult result : store.searchSimilar(vector(doc, 0), 10)) {
+                assertFalse(result.getDocumentId().startsWith("d" + doc + "_"), result.getDocumentId() + " was deleted");
+            }
+        }
+    }
+
+    private static float[] vector(int doc, int chunk) {
+        Random random = new Random(doc * 31L + chunk);
+        float[] vector = new float[16];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
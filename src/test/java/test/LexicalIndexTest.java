@@ -0,0 +1,100 @@
+package test;
+
+import backend.rag.ChunkMetadata;
+import backend.rag.CodeAwareTokenizer;
+import backend.rag.LexicalIndex;
+import backend.rag.MetadataFilter;
+import backend.rag.PersistentVectorStore;
+import backend.rag.RankFusion;
+import backend.rag.SearchResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LexicalIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void tokenizerKeepsCppIdentifiersWhole() {
+        List<String> terms = CodeAwareTokenizer.tokenize("int *p = &x;\nstd::cout << v.push_back(3);\na * b");
+
+        assertTrue(terms.containsAll(List.of("int*", "int", "std::cout", "cout", "<<", "push_back", "push", "back")));
+        assertFalse(terms.contains("a*"), "multiplication is not a pointer type");
+    }
+
+    @Test
+    void identifierQueriesMatchCodeChunksAndRespectFilters() {
+        LexicalIndex index = newIndex();
+
+        assertTrue(index.isIdentifierLookup("cout"));
+        assertTrue(index.isIdentifierLookup("What is int *?"));
+        assertFalse(index.isIdentifierLookup("variable"));
+        assertFalse(index.isIdentifierLookup("how do loops work"));
+
+        assertEquals(List.of("d2_chunk_0", "d1_chunk_0"), ids(index.search("std::cout", 5, null)));
+        assertEquals("cout << \"hello\";\nstd::cout prints to the console.", index.search("std::cout", 5, null).get(0).getContent(),
+                "texts come from the store");
+        assertEquals(List.of("d1_chunk_0"), ids(index.search("cout", 5, MetadataFilter.eq(ChunkMetadata.MODULE, "M1"))));
+        assertEquals(1.0f, index.search("int*", 5, null).get(0).getSimilarity(), 1e-6f);
+        assertFalse(index.search("int*", 5, null).get(0).isVectorScore(), "BM25 scores are not similarities");
+
+        assertEquals(2, index.removeDocument("d2"));
+        assertEquals(List.of("d1_chunk_0"), ids(index.search("cout", 5, null)));
+    }
+
+    @Test
+    void rankFusionRewardsAgreementBetweenRankings() {
+        List<SearchResult> vector = List.of(new SearchResult("a", "", 0.9f), new SearchResult("b", "", 0.8f));
+        List<SearchResult> lexical = List.of(new SearchResult("b", "", 1.0f, false), new SearchResult("c", "", 0.7f, false));
+
+        List<SearchResult> fused = RankFusion.fuse(60, 10, vector, lexical);
+
+        assertEquals(List.of("b", "a", "c"), ids(fused));
+        assertEquals(0.8f, fused.get(0).getSimilarity(), 1e-6f);
+        assertTrue(fused.get(0).isVectorScore());
+        assertFalse(fused.get(2).isVectorScore(), "a lexical-only hit has no similarity to show");
+
+        // the vector similarity wins whichever list comes first
+        List<SearchResult> lexicalFirst = RankFusion.fuse(60, 10, lexical, vector);
+        assertEquals(0.8f, lexicalFirst.get(0).getSimilarity(), 1e-6f);
+        assertTrue(lexicalFirst.get(0).isVectorScore());
+    }
+
+    @Test
+    void indexIsBuiltFromTheStoreOnFirstUse() {
+        PersistentVectorStore store = new PersistentVectorStore(dir.toString());
+        LexicalIndex index = new LexicalIndex(1.2, 0.75, store);
+        store.addVector("d1_chunk_0", "cout << x;", new float[]{1, 0}, new ChunkMetadata("M1", "d1", 1));
+        index.add("d1_chunk_0", "cout << x;", new ChunkMetadata("M1", "d1", 1));
+        assertFalse(index.isBuilt(), "vector-only deployments never index");
+        assertEquals(0, index.size());
+
+        assertEquals(List.of("d1_chunk_0"), ids(index.search("cout", 5, null)));
+        assertTrue(index.isBuilt());
+        store.close();
+    }
+
+    private LexicalIndex newIndex() {
+        PersistentVectorStore store = new PersistentVectorStore(dir.toString());
+        add(store, "d1_chunk_0", "Pointers store addresses.\nint *p = &x;\ncout << *p;", new ChunkMetadata("M1", "d1", 1));
+        add(store, "d1_chunk_1", "A variable holds a value. The output stream prints text.", new ChunkMetadata("M1", "d1", 2));
+        add(store, "d2_chunk_0", "cout << \"hello\";\nstd::cout prints to the console.", new ChunkMetadata("M2", "d2", 1));
+        add(store, "d2_chunk_1", "Loops repeat statements until the condition is false.", new ChunkMetadata("M2", "d2", 3));
+        return new LexicalIndex(1.2, 0.75, store);
+    }
+
+    private static void add(PersistentVectorStore store, String id, String content, ChunkMetadata metadata) {
+        store.addVector(id, content, new float[]{content.length(), 1}, metadata);
+    }
+
+    private static List<String> ids(List<SearchResult> results) {
+        return results.stream().map(SearchResult::getDocumentId).collect(Collectors.toList());
+    }
+}
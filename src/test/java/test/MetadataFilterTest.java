@@ -0,0 +1,58 @@
+package test;
+
+import backend.rag.ChunkMetadata;
+import backend.rag.HnswVectorStore;
+import backend.rag.MetadataFilter;
+import backend.rag.PersistentVectorStore;
+import backend.rag.SearchResult;
+import backend.rag.VectorStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetadataFilterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void moduleFilterKeepsChunksWithoutAModule() {
+        PersistentVectorStore store = new PersistentVectorStore(dir.toString());
+        store.addVector("m1_chunk_0", "module one", vector(1, 0), new ChunkMetadata("Module 1", "m1", 1));
+        store.addVector("m2_chunk_0", "module two", vector(1, 0.1f), new ChunkMetadata("Module 2", "m2", 1));
+        store.addVector("old_chunk_0", "no metadata", vector(1, 0.2f));
+        store.addVector("blank_chunk_0", "blank module", vector(1, 0.3f), new ChunkMetadata(" ", "blank", 1));
+
+        MetadataFilter filter = MetadataFilter.moduleOrShared("Module 1");
+        assertEquals(Set.of("m1_chunk_0", "old_chunk_0", "blank_chunk_0"), ids(store.searchSimilar(vector(1, 0), 10, filter)));
+        assertTrue(filter.candidateModules().contains(null));
+        assertTrue(filter.candidateModules().contains("Module 1"));
+        store.close();
+    }
+
+    @Test
+    void storesWithoutAMetadataIndexPostFilter() {
+        VectorStore store = new HnswVectorStore(dir.toString(), 8, 50, 20);
+        for (int i = 0; i < 30; i++) {
+            store.addVector("d" + i + "_chunk_0", "text " + i, vector(1, i * 0.05f));
+        }
+
+        // no metadata kept: every chunk counts as shared, so module filters match and page filters do not
+        assertEquals(5, store.searchSimilar(vector(1, 0), 5, MetadataFilter.moduleOrShared("Module 1")).size());
+        assertTrue(store.searchSimilar(vector(1, 0), 5, MetadataFilter.parse("page >= 1")).isEmpty());
+    }
+
+    private static float[] vector(float x, float y) {
+        return new float[]{x, y, 0.5f, 0.25f};
+    }
+
+    private static Set<String> ids(List<SearchResult> results) {
+        return results.stream().map(SearchResult::getDocumentId).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,220 @@
+package test;
+
+import backend.rag.ChunkMetadata;
+import backend.rag.ContentBlobStore;
+import backend.rag.MetadataFilter;
+import backend.rag.ModulePartitionedVectorStore;
+import backend.rag.PersistentVectorStore;
+import backend.rag.SearchResult;
+import backend.rag.WriteAheadLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ModulePartitionedVectorStoreTest {
+
+    private static final WriteAheadLog.Policy NO_SYNC = new WriteAheadLog.Policy(WriteAheadLog.SyncPolicy.NONE, 1000, 1000);
+    private static final int DIMENSION = 8;
+    private static final long IDLE_MILLIS = 60 * 60_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void chunksOverTheBudgetAreRejectedWithoutBeingRecorded() {
+        // about 170 bytes per chunk: 20 fit into 4 KB, 30 do not
+        ModulePartitionedVectorStore store = store(4096, 4);
+        int added = 0;
+        IllegalStateException rejected = null;
+        for (int chunk = 0; chunk < 30 && rejected == null; chunk++) {
+            try {
+                store.addVector("doc" + chunk + "_chunk_0", "text", vector(chunk), new ChunkMetadata("Module A", "doc" + chunk, 1));
+                added++;
+            } catch (IllegalStateException e) {
+                rejected = e;
+            }
+        }
+        assertNotNull(rejected);
+        assertTrue(rejected.getMessage().contains("Module A"));
+        assertEquals(added, store.getVectorCount());
+        // the rejected chunk's document was never listed, so deleting it touches no partition
+        assertEquals(0, store.deleteDocument("doc" + added));
+        store.close();
+    }
+
+    @Test
+    void flatStoreImportLeavesOutModulesOverTheBudgetAsAWhole() {
+        PersistentVectorStore flat = new PersistentVectorStore(dir.toString(), 0, null, NO_SYNC);
+        for (int chunk = 0; chunk < 10; chunk++) {
+            flat.addVector("small_chunk_" + chunk, "text", vector(chunk), new ChunkMetadata("Small", "small", 1));
+        }
+        for (int chunk = 0; chunk < 100; chunk++) {
+            flat.addVector("large_chunk_" + chunk, "text", vector(100 + chunk), new ChunkMetadata("Large", "large", 1));
+        }
+        flat.close();
+
+        ModulePartitionedVectorStore store = store(4096, 4);
+        assertEquals(10, store.getVectorCount());
+        assertTrue(store.getVectors().containsKey("small_chunk_9"));
+        assertFalse(store.getVectors().containsKey("large_chunk_0"));
+        assertEquals(0, store.deleteDocument("large"));
+        store.close();
+    }
+
+    @Test
+    void leastRecentlyUsedPartitionsAreUnloadedAndReadFromDisk() throws Exception {
+        ModulePartitionedVectorStore store = store(1 << 20, 2);
+        addModule(store, "A", 0);
+        Thread.sleep(5);
+        addModule(store, "B", 10);
+        Thread.sleep(5);
+        addModule(store, "C", 20);
+        assertEquals(3, store.getPartitionCount());
+        assertEquals(2, store.getLoadedPartitionCount());
+        assertFalse(isLoaded(store, "A"));
+
+        // counts and unfiltered searches read the unloaded partition from its segment
+        assertEquals(30, store.getVectorCount());
+        assertEquals("A_doc_chunk_3", store.searchSimilar(vector(3), 1).get(0).getDocumentId());
+        assertFalse(isLoaded(store, "A"));
+
+        // a filtered search opens it again and pushes out the least recently used one
+        List<SearchResult> results = store.searchSimilar(vector(3), 1, MetadataFilter.eq("module", "A"));
+        assertEquals("A_doc_chunk_3", results.get(0).getDocumentId());
+        assertTrue(isLoaded(store, "A"));
+        assertFalse(isLoaded(store, "B"));
+        assertEquals(2, store.getLoadedPartitionCount());
+
+        assertEquals(10, store.deleteDocument("B_doc"));
+        assertEquals(20, store.getVectorCount());
+        store.close();
+
+        ModulePartitionedVectorStore reopened = store(1 << 20, 2);
+        assertEquals(20, reopened.getVectorCount());
+        assertEquals(0, reopened.getLoadedPartitionCount());
+        assertEquals("C_doc_chunk_5", reopened.searchSimilar(vector(25), 1, MetadataFilter.eq("module", "C")).get(0).getDocumentId());
+        reopened.close();
+    }
+
+    @Test
+    void idlePartitionsAreUnloadedBySweeper() throws Exception {
+        ModulePartitionedVectorStore store = new ModulePartitionedVectorStore(dir.toString(), 0, null, NO_SYNC, 0.1,
+                1 << 20, 50, 4, ContentBlobStore.Policy.HEAP, false, 0, 0, null);
+        addModule(store, "A", 0);
+        assertEquals(1, store.getLoadedPartitionCount());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.getLoadedPartitionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, store.getLoadedPartitionCount());
+        assertEquals(10, store.getVectorCount());
+        store.close();
+    }
+
+    @Test
+    void unloadOfAPartitionUnderSearchWaitsForTheSearch() throws Exception {
+        ModulePartitionedVectorStore store = store(1 << 20, 1);
+        addModule(store, "A", 0);
+        Object partitionA = partitions(store).get("A");
+
+        // a search running on A outside the partition lock
+        PersistentVectorStore searched = ReflectionTestUtils.invokeMethod(store, "acquire", partitionA);
+        addModule(store, "B", 10);
+        // over maxLoaded, but A is only marked for unloading while it is searched
+        assertTrue(isLoaded(store, "A"));
+        assertEquals("A_doc_chunk_4", searched.searchSimilar(vector(4), 1).get(0).getDocumentId());
+
+        ReflectionTestUtils.invokeMethod(store, "release", partitionA);
+        assertFalse(isLoaded(store, "A"));
+        assertEquals(20, store.getVectorCount());
+        store.close();
+    }
+
+    @Test
+    void concurrentSearchesAcrossMorePartitionsThanMayBeLoaded() throws Exception {
+        ModulePartitionedVectorStore store = store(1 << 20, 2);
+        String[] modules = {"A", "B", "C", "D", "E", "F"};
+        for (int m = 0; m < modules.length; m++) {
+            addModule(store, modules[m], m * 10);
+        }
+
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> askers = new ArrayList<>();
+        for (int asker = 0; asker < 4; asker++) {
+            int seed = asker;
+            askers.add(pool.submit(() -> {
+                Random random = new Random(seed);
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        int m = random.nextInt(modules.length);
+                        int chunk = random.nextInt(10);
+                        List<SearchResult> results = store.searchSimilar(vector(m * 10 + chunk), 1,
+                                MetadataFilter.eq("module", modules[m]));
+                        assertEquals(modules[m] + "_doc_chunk_" + chunk, results.get(0).getDocumentId());
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> asker : askers) {
+            asker.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        if (!failures.isEmpty()) {
+            fail(failures.peek());
+        }
+        // racing openers may leave more than maxLoaded open; the next one trims back to the limit
+        addModule(store, "G", 60);
+        assertEquals(2, store.getLoadedPartitionCount());
+        assertEquals(70, store.getVectorCount());
+        store.close();
+    }
+
+    private ModulePartitionedVectorStore store(long budgetBytes, int maxLoaded) {
+        return new ModulePartitionedVectorStore(dir.toString(), 0, null, NO_SYNC, 0.1, budgetBytes, IDLE_MILLIS,
+                maxLoaded, ContentBlobStore.Policy.HEAP, false, 0, 0, null);
+    }
+
+    // ten chunks of document "{module}_doc", chunk i embedded as vector(seed + i)
+    private static void addModule(ModulePartitionedVectorStore store, String module, int seed) {
+        for (int chunk = 0; chunk < 10; chunk++) {
+            store.addVector(module + "_doc_chunk_" + chunk, "text " + chunk, vector(seed + chunk),
+                    new ChunkMetadata(module, module + "_doc", 1));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> partitions(ModulePartitionedVectorStore store) {
+        return (Map<String, Object>) ReflectionTestUtils.getField(store, "partitions");
+    }
+
+    private static boolean isLoaded(ModulePartitionedVectorStore store, String module) {
+        return ReflectionTestUtils.getField(partitions(store).get(module), "store") != null;
+    }
+
+    private static float[] vector(int seed) {
+        Random random = new Random(seed);
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
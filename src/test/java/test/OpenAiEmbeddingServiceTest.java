@@ -0,0 +1,240 @@
+package test;
+
+import backend.rag.OpenAiEmbeddingService;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OpenAiEmbeddingServiceTest {
+
+    private static final String OK_BODY = "{\"data\": [{\"index\": 0, \"embedding\": [0.6, 0.8]}], \"usage\": {\"total_tokens\": 3}}";
+
+    // answers requests with queued responses, repeating the last one, and counts them
+    private static final class ScriptedClient extends HttpClient {
+        final ArrayDeque<HttpResponse<String>> responses = new ArrayDeque<>();
+        int sent;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+            sent++;
+            return (HttpResponse<T>) (responses.size() > 1 ? responses.poll() : responses.peek());
+        }
+
+        @Override
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                                                HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Optional<CookieHandler> cookieHandler() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<Duration> connectTimeout() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Redirect followRedirects() {
+            return Redirect.NEVER;
+        }
+
+        @Override
+        public Optional<ProxySelector> proxy() {
+            return Optional.empty();
+        }
+
+        @Override
+        public SSLContext sslContext() {
+            return null;
+        }
+
+        @Override
+        public SSLParameters sslParameters() {
+            return null;
+        }
+
+        @Override
+        public Optional<Authenticator> authenticator() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Version version() {
+            return Version.HTTP_1_1;
+        }
+
+        @Override
+        public Optional<Executor> executor() {
+            return Optional.empty();
+        }
+    }
+
+    private static final class Response implements HttpResponse<String> {
+        final int status;
+        final String body;
+        final HttpHeaders headers;
+
+        Response(int status, String body, Map<String, List<String>> headers) {
+            this.status = status;
+            this.body = body;
+            this.headers = HttpHeaders.of(headers, (name, value) -> true);
+        }
+
+        @Override
+        public int statusCode() {
+            return status;
+        }
+
+        @Override
+        public HttpRequest request() {
+            return null;
+        }
+
+        @Override
+        public Optional<HttpResponse<String>> previousResponse() {
+            return Optional.empty();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return headers;
+        }
+
+        @Override
+        public String body() {
+            return body;
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return Optional.empty();
+        }
+
+        @Override
+        public URI uri() {
+            return URI.create("https://api.openai.com/v1/embeddings");
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return HttpClient.Version.HTTP_1_1;
+        }
+    }
+
+    @Test
+    void retryAfterHeadersAreReadInEveryForm() {
+        long now = Instant.parse("2026-03-02T10:00:00Z").toEpochMilli();
+        assertEquals(1500, retryAfter(Map.of("retry-after-ms", List.of("1500.7")), now));
+        assertEquals(2500, retryAfter(Map.of("retry-after", List.of("2.5")), now));
+        // retry-after-ms wins over retry-after
+        assertEquals(20, retryAfter(Map.of("retry-after-ms", List.of("20"), "retry-after", List.of("9")), now));
+
+        String in30Seconds = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(now + 30_000).atZone(ZoneOffset.UTC));
+        assertEquals(30_000, retryAfter(Map.of("retry-after", List.of(in30Seconds)), now));
+        // a date in the past means now
+        assertEquals(0, retryAfter(Map.of("retry-after", List.of(in30Seconds)), now + 60_000));
+
+        assertEquals(-1, retryAfter(Map.of("retry-after", List.of("soon")), now));
+        assertEquals(-1, retryAfter(Map.of(), now));
+    }
+
+    @Test
+    void retriesStopAfterMaxRetries() {
+        ScriptedClient client = new ScriptedClient();
+        client.responses.add(new Response(429, "{\"error\": \"rate_limit_exceeded\"}", Map.of("retry-after-ms", List.of("0"))));
+        OpenAiEmbeddingService service = service(client, 2);
+
+        RuntimeException failure = assertThrows(RuntimeException.class, () -> service.embed("what is a pointer"));
+        assertTrue(failure.getMessage().contains("after 3 attempts"), failure.getMessage());
+        assertEquals(3, client.sent);
+        service.shutdown();
+    }
+
+    @Test
+    void serverErrorsAreRetriedUntilOneSucceeds() throws Exception {
+        ScriptedClient client = new ScriptedClient();
+        client.responses.add(new Response(503, "unavailable", Map.of("retry-after-ms", List.of("0"))));
+        client.responses.add(new Response(500, "oops", Map.of("retry-after-ms", List.of("0"))));
+        client.responses.add(new Response(200, OK_BODY, Map.of()));
+        OpenAiEmbeddingService service = service(client, 2);
+
+        assertArrayEquals(new float[]{0.6f, 0.8f}, service.embed("what is a pointer"));
+        assertEquals(3, client.sent);
+        service.shutdown();
+    }
+
+    @Test
+    void quotaErrorsAreNotRetried() {
+        ScriptedClient client = new ScriptedClient();
+        client.responses.add(new Response(429, "{\"error\": {\"code\": \"insufficient_quota\"}}", Map.of()));
+        OpenAiEmbeddingService service = service(client, 5);
+
+        assertThrows(RuntimeException.class, () -> service.embed("what is a pointer"));
+        assertEquals(1, client.sent);
+        service.shutdown();
+    }
+
+    @Test
+    void questionsDoNotWaitForBatchesInFlight() throws Exception {
+        ScriptedClient client = new ScriptedClient();
+        client.responses.add(new Response(200, OK_BODY, Map.of()));
+        OpenAiEmbeddingService service = service(client, 0);
+        ReflectionTestUtils.invokeMethod(service, "initializeIfNeeded");
+
+        // every batch permit is taken, as during an upload
+        Semaphore inFlight = (Semaphore) ReflectionTestUtils.getField(service, "inFlight");
+        inFlight.acquire(inFlight.availablePermits());
+        float[] embedding = assertTimeoutPreemptively(Duration.ofSeconds(5), () -> service.embed("what is a pointer"));
+        assertArrayEquals(new float[]{0.6f, 0.8f}, embedding);
+        service.shutdown();
+    }
+
+    private static OpenAiEmbeddingService service(HttpClient client, int maxRetries) {
+        OpenAiEmbeddingService service = new OpenAiEmbeddingService();
+        ReflectionTestUtils.setField(service, "apiKeyFromProperty", "sk-test-0123456789abcdefghijklmnop");
+        ReflectionTestUtils.setField(service, "embeddingModel", "text-embedding-3-small");
+        ReflectionTestUtils.setField(service, "httpClient", client);
+        ReflectionTestUtils.setField(service, "maxRetries", maxRetries);
+        return service;
+    }
+
+    private static long retryAfter(Map<String, List<String>> headers, long nowMillis) {
+        Long millis = ReflectionTestUtils.invokeMethod(OpenAiEmbeddingService.class, "retryAfterMillis",
+                new Response(429, "", headers), nowMillis);
+        return millis;
+    }
+}
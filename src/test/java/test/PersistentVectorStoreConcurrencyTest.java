@@ -0,0 +1,225 @@
+package test;
+
+import backend.rag.ContentBlobStore;
+import backend.rag.OffHeapArena;
+import backend.rag.PersistentVectorStore;
+import backend.rag.SearchResult;
+import backend.rag.WriteAheadLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PersistentVectorStoreConcurrencyTest {
+
+    private static final int DIMENSION = 64;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void searchesRunWhileUploadsAndDeletesAreInFlight() throws Exception {
+        PersistentVectorStore store = new PersistentVectorStore(dir.toString(), 0, null,
+                new WriteAheadLog.Policy(WriteAheadLog.SyncPolicy.NONE, 1000, 500));
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        AtomicBoolean uploading = new AtomicBoolean(true);
+        AtomicInteger searches = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(6);
+        List<Future<?>> uploads = new ArrayList<>();
+
+        // uploaders add documents chunk by chunk and delete every third one again
+        for (int writer = 0; writer < 2; writer++) {
+            int seed = writer;
+            uploads.add(pool.submit(() -> {
+                Random random = new Random(seed);
+                try {
+                    for (int doc = 0; doc < 60; doc++) {
+                        String documentId = "w" + seed + "-doc" + doc;
+                        for (int chunk = 0; chunk < 20; chunk++) {
+                            store.addVector(documentId + "_chunk_" + chunk, "text " + chunk, randomVector(random));
+                        }
+                        if (doc % 3 == 0) {
+                            assertEquals(20, store.deleteDocument(documentId));
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+                return null;
+            }));
+        }
+
+        // askers search continuously until the uploads are done
+        for (int reader = 0; reader < 4; reader++) {
+            int seed = 100 + reader;
+            pool.submit(() -> {
+                Random random = new Random(seed);
+                try {
+                    while (uploading.get()) {
+                        List<SearchResult> results = store.searchSimilar(randomVector(random), 5);
+                        assertTrue(results.size() <= 5);
+                        for (int i = 1; i < results.size(); i++) {
+                            assertTrue(results.get(i - 1).getSimilarity() >= results.get(i).getSimilarity());
+                        }
+                        searches.incrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+                return null;
+            });
+        }
+
+        for (Future<?> upload : uploads) {
+            upload.get(60, TimeUnit.SECONDS);
+        }
+        uploading.set(false);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        if (!failures.isEmpty()) {
+            fail(failures.peek());
+        }
+        assertEquals(2 * 40 * 20, store.getVectorCount());
+        assertTrue(searches.get() > 0);
+        store.close();
+
+        PersistentVectorStore reopened = new PersistentVectorStore(dir.toString());
+        assertEquals(2 * 40 * 20, reopened.getVectorCount());
+        reopened.close();
+    }
+
+    @Test
+    void searchDoesNotWaitForAWriterHoldingTheStore() throws Exception {
+        PersistentVectorStore store = new PersistentVectorStore(dir.toString(), 0, null,
+                new WriteAheadLog.Policy(WriteAheadLog.SyncPolicy.NONE, 1000, 500));
+        Random random = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            store.addVector("doc_chunk_" + i, "text", randomVector(random));
+        }
+
+        // writers serialize on the store; hold that lock the way a long checkpoint would
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            synchronized (store) {
+                locked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.start();
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+        ExecutorService asker = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<SearchResult>> results = asker.submit(() -> store.searchSimilar(randomVector(new Random(4)), 3));
+            assertEquals(3, results.get(5, TimeUnit.SECONDS).size());
+            assertEquals(100, store.getVectorCount());
+        } finally {
+            release.countDown();
+            writer.join();
+            asker.shutdownNow();
+        }
+        store.close();
+    }
+
+    @Test
+    void offHeapRowsAreFreedOnceNoSearchReadsThem() throws Exception {
+        OffHeapArena arena = new OffHeapArena(64L * 1024 * 1024);
+        WriteAheadLog.Policy policy = new WriteAheadLog.Policy(WriteAheadLog.SyncPolicy.NONE, 1000, 1500);
+        PersistentVectorStore store = offHeapStore(policy, arena);
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+
+        for (int reader = 0; reader < 2; reader++) {
+            int seed = 200 + reader;
+            pool.submit(() -> {
+                Random random = new Random(seed);
+                try {
+                    while (writing.get()) {
+                        List<SearchResult> results = store.searchSimilar(randomVector(random), 5);
+                        for (int i = 1; i < results.size(); i++) {
+                            assertTrue(results.get(i - 1).getSimilarity() >= results.get(i).getSimilarity());
+                        }
+                        for (SearchResult result : results) {
+                            assertTrue(result.getSimilarity() <= 1.0001, "read a row that was not a unit vector");
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+                return null;
+            });
+        }
+
+        // every round replaces all rows, so without compaction the slabs would hold 16 copies
+        int chunks = 1200;
+        for (int round = 0; round < 16; round++) {
+            Random random = new Random(round);
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                store.addVector("doc_chunk_" + chunk, "text " + chunk, randomVector(random));
+            }
+        }
+        writing.set(false);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        if (!failures.isEmpty()) {
+            fail(failures.peek());
+        }
+
+        long rowBytes = (long) chunks * DIMENSION * Float.BYTES;
+        assertTrue(arena.getAllocatedBytes() < 8 * rowBytes, arena.getAllocatedBytes() + " bytes still allocated");
+        assertEquals(chunks, store.getVectorCount());
+        assertLastRoundIsStored(store, 15);
+        store.close();
+        assertEquals(0, arena.getAllocatedBytes());
+
+        OffHeapArena reopenedArena = new OffHeapArena(64L * 1024 * 1024);
+        PersistentVectorStore reopened = offHeapStore(policy, reopenedArena);
+        assertEquals(chunks, reopened.getVectorCount());
+        assertLastRoundIsStored(reopened, 15);
+        reopened.close();
+        assertEquals(0, reopenedArena.getAllocatedBytes());
+    }
+
+    private PersistentVectorStore offHeapStore(WriteAheadLog.Policy policy, OffHeapArena arena) {
+        return new PersistentVectorStore(dir.toString(), 0, null, policy, 0.1,
+                ContentBlobStore.Policy.HEAP, false, 0, 0, arena);
+    }
+
+    private static void assertLastRoundIsStored(PersistentVectorStore store, int round) {
+        Random random = new Random(round);
+        for (int chunk = 0; chunk < 50; chunk++) {
+            SearchResult best = store.searchSimilar(randomVector(random), 1).get(0);
+            assertEquals("doc_chunk_" + chunk, best.getDocumentId());
+            assertEquals(1.0, best.getSimilarity(), 1e-4);
+        }
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,28 @@
+package test;
+
+import backend.rag.QueryEmbeddingCache;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QueryEmbeddingCacheTest {
+
+    @Test
+    void normalizedQuestionsShareEntriesUntilTheyExpire() {
+        long[] now = {0};
+        QueryEmbeddingCache cache = new QueryEmbeddingCache(2, 1000, () -> now[0]);
+
+        cache.put("What is a pointer?", new float[]{1.0f});
+        assertArrayEquals(new float[]{1.0f}, cache.get("  what is a   POINTER "));
+        assertNull(cache.get("what is a pointer*"), "code symbols are part of the question");
+        assertEquals("what does std::cout do", QueryEmbeddingCache.normalize("What does `std::cout` do?!"));
+
+        cache.put("loops", new float[]{2.0f});
+        cache.put("arrays", new float[]{3.0f});
+        assertEquals(1L, cache.getStats().get("evictions"));
+
+        now[0] = 1000;
+        assertNull(cache.get("arrays"));
+        assertEquals(1L, cache.getStats().get("expirations"));
+    }
+}
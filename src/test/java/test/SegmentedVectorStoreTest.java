@@ -0,0 +1,174 @@
+package test;
+
+import backend.rag.ChunkMetadata;
+import backend.rag.MetadataFilter;
+import backend.rag.SearchResult;
+import backend.rag.SegmentedVectorStore;
+import backend.rag.WriteAheadLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentedVectorStoreTest {
+
+    private static final WriteAheadLog.Policy NO_SYNC = new WriteAheadLog.Policy(WriteAheadLog.SyncPolicy.NONE, 1000, 1000);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void deletesOnlyTombstoneSealedRows() throws Exception {
+        // compaction never triggers: no segment can reach a deleted ratio of 2
+        SegmentedVectorStore store = new SegmentedVectorStore(dir.toString(), 4, 100, 2.0, null, NO_SYNC);
+        for (int doc = 0; doc < 4; doc++) {
+            for (int chunk = 0; chunk < 2; chunk++) {
+                store.addVector("d" + doc + "_chunk_" + chunk, "doc " + doc, vector(doc, chunk));
+            }
+        }
+        assertEquals(2, store.getSegmentCount());
+        Path segments = dir.resolve("segments");
+        Path first = segments.resolve("seg-000001.seg");
+        byte[] before = Files.readAllBytes(first);
+
+        assertEquals(2, store.deleteDocument("d1"));
+        assertEquals(6, store.getVectorCount());
+        assertArrayEquals(before, Files.readAllBytes(first), "a delete must not rewrite the segment");
+        assertTrue(ids(store.searchSimilar(vector(1, 0), 8)).stream().noneMatch(id -> id.startsWith("d1_")));
+        store.close();
+
+        // the delete is only in the log until the next seal, and survives a reopen either way
+        SegmentedVectorStore reopened = new SegmentedVectorStore(dir.toString(), 4, 100, 2.0, null, NO_SYNC);
+        assertEquals(6, reopened.getVectorCount());
+        assertFalse(reopened.getVectors().containsKey("d1_chunk_0"));
+        reopened.close();
+    }
+
+    @Test
+    void laterSegmentsShadowEarlierCopiesOnReload() throws Exception {
+        SegmentedVectorStore store = new SegmentedVectorStore(dir.toString(), 2, 100, 2.0, null, NO_SYNC);
+        store.addVector("a_chunk_0", "old", vector(0, 0));
+        store.addVector("b_chunk_0", "other", vector(1, 0));
+        store.addVector("a_chunk_0", "new", vector(0, 0));
+        store.addVector("c_chunk_0", "third", vector(2, 0));
+        assertEquals(2, store.getSegmentCount());
+        store.close();
+
+        // as if the process died before the older segment's tombstones were written
+        Files.deleteIfExists(dir.resolve("segments").resolve("seg-000001.del"));
+
+        SegmentedVectorStore reopened = new SegmentedVectorStore(dir.toString(), 2, 100, 2.0, null, NO_SYNC);
+        assertEquals(3, reopened.getVectorCount());
+        assertEquals("new", reopened.getVectors().get("a_chunk_0"));
+        List<SearchResult> results = reopened.searchSimilar(vector(0, 0), 3);
+        assertEquals(1, results.stream().filter(r -> r.getDocumentId().equals("a_chunk_0")).count());
+        reopened.close();
+    }
+
+    @Test
+    void deletesDuringCompactionAreCarriedIntoTheMergedSegment() throws Exception {
+        // tiny segments and a low segment cap keep the compactor merging while documents are deleted
+        SegmentedVectorStore store = new SegmentedVectorStore(dir.toString(), 8, 2, 0.25, null, NO_SYNC);
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        CountDownLatch added = new CountDownLatch(1);
+        int documents = 60;
+
+        pool.submit(() -> {
+            try {
+                for (int doc = 0; doc < documents; doc++) {
+                    for (int chunk = 0; chunk < 6; chunk++) {
+                        store.addVector("d" + doc + "_chunk_" + chunk, "doc " + doc, vector(doc, chunk));
+                    }
+                }
+            } catch (Throwable t) {
+                failures.add(t);
+            } finally {
+                added.countDown();
+            }
+        });
+        pool.submit(() -> {
+            try {
+                added.await();
+                for (int doc = 0; doc < documents; doc += 2) {
+                    assertEquals(6, store.deleteDocument("d" + doc));
+                }
+            } catch (Throwable t) {
+                failures.add(t);
+            }
+            return null;
+        });
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(60, TimeUnit.SECONDS));
+        assertTrue(failures.isEmpty(), () -> "failures: " + failures);
+
+        store.close();   // waits for the compactor
+        SegmentedVectorStore reopened = new SegmentedVectorStore(dir.toString(), 8, 2, 0.25, null, NO_SYNC);
+        Map<String, String> live = reopened.getVectors();
+        assertEquals(documents / 2 * 6, live.size());
+        for (String id : live.keySet()) {
+            int doc = Integer.parseInt(id.substring(1, id.indexOf('_')));
+            assertEquals(1, doc % 2, id + " was deleted");
+        }
+        reopened.close();
+    }
+
+    @Test
+    void metadataSurvivesSealsCompactionAndReplay() throws Exception {
+        // four-row memtable, merged down to one segment
+        SegmentedVectorStore store = new SegmentedVectorStore(dir.toString(), 4, 1, 2.0, null, NO_SYNC);
+        for (int doc = 0; doc < 5; doc++) {
+            for (int chunk = 0; chunk < 2; chunk++) {
+                store.addVector("d" + doc + "_chunk_" + chunk, "doc " + doc, vector(doc, chunk),
+                        new ChunkMetadata(doc % 2 == 0 ? "A" : "B", "d" + doc, chunk + 1));
+            }
+        }
+        // re-added without metadata: the chunk no longer matches module B
+        store.addVector("d3_chunk_1", "doc 3", vector(3, 1));
+        Set<String> moduleB = Set.of("d1_chunk_0", "d1_chunk_1", "d3_chunk_0");
+        assertEquals(moduleB, ids(store.searchSimilar(vector(1, 0), 5, MetadataFilter.eq("module", "B"))));
+        store.close();   // waits for the compactor; the last rows are only in the log
+
+        SegmentedVectorStore reopened = new SegmentedVectorStore(dir.toString(), 4, 1, 2.0, null, NO_SYNC);
+        assertEquals(1, reopened.getSegmentCount());
+        assertEquals(10, reopened.getVectorCount());
+        assertEquals(moduleB, ids(reopened.searchSimilar(vector(1, 0), 5, MetadataFilter.eq("module", "B"))));
+        assertEquals("A", reopened.getMetadata().get("d4_chunk_1").module);
+        assertFalse(reopened.getMetadata().containsKey("d3_chunk_1"));
+
+        assertEquals(2, reopened.deleteDocument("d1"));
+        assertEquals(Set.of("d3_chunk_0"), ids(reopened.searchSimilar(vector(1, 0), 5, MetadataFilter.eq("module", "B"))));
+        reopened.close();
+    }
+
+    private static float[] vector(int doc, int chunk) {
+        Random random = new Random(doc * 31L + chunk);
+        float[] vector = new float[16];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    private static Set<String> ids(List<SearchResult> results) {
+        Set<String> ids = new HashSet<>();
+        for (SearchResult result : results) {
+            ids.add(result.getDocumentId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,113 @@
+package test;
+
+import backend.rag.Float16;
+import backend.rag.SimilarityKernel;
+import backend.rag.SimilarityKernels;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SimilarityKernelTest {
+
+    private final SimilarityKernel scalar = SimilarityKernels.scalar();
+
+    @Test
+    void selectedKernelMatchesScalarForAllLengths() {
+        SimilarityKernel kernel = SimilarityKernels.select("auto");
+        Random random = new Random(7);
+
+        // odd lengths exercise the unrolled loop, the single-vector loop and the scalar tail
+        for (int length = 0; length <= 1600; length += (length < 70 ? 1 : 97)) {
+            float[] a = randomVector(random, length);
+            float[] b = randomVector(random, length);
+
+            float expected = scalar.dot(a, b);
+            float actual = kernel.dot(a, b);
+            assertEquals(expected, actual, 1e-4f * Math.max(1f, Math.abs(expected)),
+                    kernel.name() + " differs from scalar at length " + length);
+        }
+    }
+
+    @Test
+    void selectedKernelHonoursOffsets() {
+        SimilarityKernel kernel = SimilarityKernels.select("auto");
+        Random random = new Random(11);
+        float[] slab = randomVector(random, 1536 * 3);
+        float[] query = randomVector(random, 1536);
+
+        for (int row = 0; row < 3; row++) {
+            float expected = scalar.dot(slab, row * 1536, query, 0, 1536);
+            float actual = kernel.dot(slab, row * 1536, query, 0, 1536);
+            assertEquals(expected, actual, 1e-3f, "row " + row);
+        }
+    }
+
+    @Test
+    void selectedKernelReadsBuffersInTheirByteOrder() {
+        SimilarityKernel kernel = SimilarityKernels.select("auto");
+        Random random = new Random(13);
+        float[] rows = randomVector(random, 387 * 2);
+        float[] query = randomVector(random, 387);
+
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(rows.length * Float.BYTES).order(order);
+            buffer.asFloatBuffer().put(rows);
+            for (int row = 0; row < 2; row++) {
+                float expected = scalar.dot(rows, row * 387, query, 0, 387);
+                float actual = kernel.dot(buffer, row * 387 * Float.BYTES, query, 0, 387);
+                assertEquals(expected, actual, 1e-3f, order + " row " + row);
+            }
+        }
+    }
+
+    @Test
+    void selectedKernelWidensHalfFloatsLikeTheTable() {
+        SimilarityKernel kernel = SimilarityKernels.select("auto");
+        Random random = new Random(17);
+        float[] query = randomVector(random, 389);
+
+        // random finite half values plus a negative zero and a subnormal, in 389-wide rows
+        short[] halves = new short[389 * 4];
+        for (int i = 0; i < halves.length; i++) {
+            short half = (short) random.nextInt(1 << 16);
+            halves[i] = Float.isFinite(Float16.toFloat(half)) ? half : 0;
+        }
+        halves[0] = Float16.fromFloat(-0.0f);
+        halves[1] = 1;   // smallest subnormal
+
+        for (int row = 0; row < 4; row++) {
+            float expected = Float16.dot(query, 0, halves, row * 389, 389);
+            float actual = kernel.dot(query, 0, halves, row * 389, 389);
+            assertEquals(expected, actual, 1e-3f * Math.max(1f, Math.abs(expected)), "row " + row);
+        }
+        assertEquals(0.33325195f, Float16.toFloat(Float16.fromFloat(1f / 3)), 0f);
+    }
+
+    @Test
+    void scalarChoiceIsRespected() {
+        assertEquals("scalar", SimilarityKernels.select("scalar").name());
+    }
+
+    @Test
+    void vectorApiIsUsedWhenTheModuleIsPresent() {
+        boolean modulePresent = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+        SimilarityKernel kernel = SimilarityKernels.select("simd");
+        if (modulePresent) {
+            assertTrue(kernel.name().startsWith("simd"), kernel.name());
+        } else {
+            assertEquals("scalar", kernel.name());
+        }
+    }
+
+    private static float[] randomVector(Random random, int length) {
+        float[] vector = new float[length];
+        for (int i = 0; i < length; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
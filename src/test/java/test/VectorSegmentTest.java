@@ -0,0 +1,228 @@
+package test;
+
+import backend.rag.PersistentVectorStore;
+import backend.rag.SearchResult;
+import backend.rag.VectorSegment;
+import backend.rag.WriteAheadLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VectorSegmentTest {
+
+    private static final WriteAheadLog.Policy NO_SYNC = new WriteAheadLog.Policy(WriteAheadLog.SyncPolicy.NONE, 1000, 1000);
+
+    private static final String[] IDS = {"a_chunk_0", "b_chunk_0", "ünïcode_chunk_1"};
+    private static final String[] CONTENTS = {"first", "", "dritter Absatz — mit Umlauten"};
+    private static final float[][] ROWS = {
+            {0.6f, 0.8f, 0f, 0f},
+            {0f, 0f, 1f, 0f},
+            {-0.5f, 0.5f, 0.5f, -0.5f},
+    };
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void float32SegmentRoundTrips() throws Exception {
+        Path file = dir.resolve("v1.seg");
+        VectorSegment.write(file, ROWS.length, 4, true, rows());
+
+        VectorSegment segment = VectorSegment.open(file);
+        assertEquals(1, version(file));
+        assertEquals(ROWS.length, segment.count());
+        assertEquals(4, segment.dimension());
+        assertTrue(segment.isNormalized());
+        assertFalse(segment.isFloat16());
+        for (int i = 0; i < ROWS.length; i++) {
+            assertEquals(IDS[i], segment.id(i));
+            assertEquals(CONTENTS[i], segment.content(i));
+            assertArrayEquals(ROWS[i], segment.row(i));
+            assertEquals(1f, segment.dot(i, ROWS[i]), 1e-6f);
+        }
+    }
+
+    @Test
+    void float16SegmentRoundTrips() throws Exception {
+        Path file = dir.resolve("v2.seg");
+        VectorSegment.write(file, ROWS.length, 4, false, true, rows());
+
+        VectorSegment segment = VectorSegment.open(file);
+        assertEquals(2, version(file));
+        assertEquals(ROWS.length, segment.count());
+        assertEquals(4, segment.dimension());
+        assertFalse(segment.isNormalized());
+        assertTrue(segment.isFloat16());
+        // the id table starts right after a matrix of 2-byte components
+        assertEquals(64 + ROWS.length * 4 * 2, (int) readLong(file, 32));
+        for (int i = 0; i < ROWS.length; i++) {
+            assertEquals(IDS[i], segment.id(i));
+            assertEquals(CONTENTS[i], segment.content(i));
+            assertArrayEquals(ROWS[i], segment.row(i), 1e-3f);
+            assertEquals(4, segment.halfRow(i).length);
+        }
+    }
+
+    @Test
+    void emptySegmentRoundTrips() throws Exception {
+        Path file = dir.resolve("empty.seg");
+        VectorSegment.write(file, 0, 4, true, rows());
+
+        VectorSegment segment = VectorSegment.open(file);
+        assertEquals(0, segment.count());
+        assertEquals(4, segment.dimension());
+    }
+
+    @Test
+    void rewritesGoToANewGenerationAndLeaveMappedFilesAlone() throws Exception {
+        Path file = dir.resolve("vectors.seg");
+        VectorSegment.write(file, ROWS.length, 4, true, rows());
+        VectorSegment first = VectorSegment.open(file);
+        byte[] original = Files.readAllBytes(file);
+
+        VectorSegment.write(file, 1, 4, true, rows());
+        assertEquals("1", Files.readString(dir.resolve("vectors.seg.current")));
+        assertTrue(Files.exists(dir.resolve("vectors.1.seg")));
+        assertEquals(1, VectorSegment.open(file).count());
+        assertEquals(dir.resolve("vectors.1.seg"), VectorSegment.current(file));
+        // the old mapping still reads the rows it was opened on
+        assertEquals(ROWS.length, first.count());
+        assertEquals(IDS[2], first.id(2));
+        assertArrayEquals(ROWS[2], first.row(2));
+
+        VectorSegment.write(file, 2, 4, true, rows());
+        assertEquals(2, VectorSegment.open(file).count());
+        assertTrue(VectorSegment.isSegment(file));
+        assertTrue(VectorSegment.exists(file));
+        // older generations are gone wherever the file system lets a mapped file be deleted
+        assertTrue(Files.exists(dir.resolve("vectors.2.seg")));
+        if (!Files.exists(file)) {
+            assertFalse(Files.exists(dir.resolve("vectors.1.seg")));
+        } else {
+            assertArrayEquals(original, Files.readAllBytes(file));
+        }
+    }
+
+    @Test
+    void legacyJsonIsMigratedOnce() throws Exception {
+        // the original layout: a bare id -> entry map with unnormalized embeddings
+        Files.writeString(dir.resolve("vectors.json"), """
+                {
+                  "a_chunk_0": {"id": "a_chunk_0", "content": "first", "embedding": [3.0, 4.0, 0.0]},
+                  "b_chunk_0": {"id": "b_chunk_0", "content": "second", "embedding": [0.0, 0.0, 2.0]}
+                }
+                """);
+
+        PersistentVectorStore store = new PersistentVectorStore(dir.toString(), 0, null, NO_SYNC);
+        assertEquals(2, store.getVectorCount());
+        List<SearchResult> results = store.searchSimilar(new float[]{0.6f, 0.8f, 0f}, 1);
+        assertEquals("first", results.get(0).getContent());
+        assertEquals(1.0, results.get(0).getSimilarity(), 1e-5);
+        store.close();
+
+        assertFalse(Files.exists(dir.resolve("vectors.json")));
+        assertTrue(Files.exists(dir.resolve("vectors.json.migrated")));
+        VectorSegment segment = VectorSegment.open(dir.resolve("vectors.seg"));
+        assertEquals(2, segment.count());
+        assertTrue(segment.isNormalized());
+        for (int i = 0; i < segment.count(); i++) {
+            float[] row = segment.row(i);
+            float norm = 0;
+            for (float value : row) {
+                norm += value * value;
+            }
+            assertEquals(1f, norm, 1e-5f, segment.id(i) + " was not normalized");
+        }
+
+        // a stale JSON file next to an existing segment is ignored
+        Files.writeString(dir.resolve("vectors.json"), "{}");
+        PersistentVectorStore reopened = new PersistentVectorStore(dir.toString(), 0, null, NO_SYNC);
+        assertEquals(2, reopened.getVectorCount());
+        reopened.close();
+        assertTrue(Files.exists(dir.resolve("vectors.json")));
+    }
+
+    @Test
+    void corruptHeadersAreRejected() throws Exception {
+        Path file = dir.resolve("v1.seg");
+        VectorSegment.write(file, ROWS.length, 4, true, rows());
+        byte[] good = Files.readAllBytes(file);
+
+        // shorter than the header
+        Path truncated = dir.resolve("truncated.seg");
+        Files.write(truncated, Arrays.copyOf(good, 40));
+        assertThrows(IOException.class, () -> VectorSegment.open(truncated));
+
+        assertRejected(good, 0, 0x12345678);   // magic
+        assertRejected(good, 4, 9);            // unknown version
+        assertRejected(good, 4, 2);            // version 2 without the float16 flag
+        assertRejected(good, 16, 3);           // float16 flag on a version 1 segment
+        assertRejected(good, 8, -1);           // negative count
+        assertRejected(good, 8, ROWS.length + 1);   // matrix no longer ends at the id table
+        assertRejected(good, 56, 1);           // strings no longer end at the end of the file
+
+        // the header alone checks out, but the file lost its last bytes
+        Path shortened = dir.resolve("shortened.seg");
+        Files.write(shortened, Arrays.copyOf(good, good.length - 1));
+        assertThrows(IOException.class, () -> VectorSegment.open(shortened));
+
+        assertFalse(VectorSegment.isSegment(dir.resolve("missing.seg")));
+        assertTrue(VectorSegment.isSegment(file));
+    }
+
+    private void assertRejected(byte[] good, int offset, int value) throws IOException {
+        Path corrupt = dir.resolve("corrupt-" + offset + "-" + value + ".seg");
+        Files.write(corrupt, good);
+        try (RandomAccessFile raw = new RandomAccessFile(corrupt.toFile(), "rw")) {
+            raw.seek(offset);
+            raw.write(new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)});
+        }
+        assertThrows(IOException.class, () -> VectorSegment.open(corrupt), "header byte " + offset + " = " + value);
+    }
+
+    private static int version(Path file) throws IOException {
+        byte[] header = Files.readAllBytes(file);
+        return (header[4] & 0xFF) | (header[5] & 0xFF) << 8 | (header[6] & 0xFF) << 16 | (header[7] & 0xFF) << 24;
+    }
+
+    private static long readLong(Path file, int offset) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static VectorSegment.Rows rows() {
+        return new VectorSegment.Rows() {
+            @Override
+            public String id(int index) {
+                return IDS[index];
+            }
+
+            @Override
+            public String content(int index) {
+                return CONTENTS[index];
+            }
+
+            @Override
+            public float[] array(int index) {
+                return ROWS[index];
+            }
+
+            @Override
+            public int offset(int index) {
+                return 0;
+            }
+        };
+    }
+}
@@ -0,0 +1,204 @@
+package test;
+
+import backend.rag.ChunkMetadata;
+import backend.rag.InMemoryVectorStore;
+import backend.rag.PersistentVectorStore;
+import backend.rag.WriteAheadLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogTest {
+
+    private static final WriteAheadLog.Policy NO_SYNC = new WriteAheadLog.Policy(WriteAheadLog.SyncPolicy.NONE, 1000, 1000);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void storeReplaysItsLogAfterACrash() {
+        PersistentVectorStore store = new PersistentVectorStore(dir.toString(), 0, null, NO_SYNC);
+        store.addVector("a_chunk_0", "first", new float[]{1, 0, 0}, new ChunkMetadata("Module 1", "a", 1));
+        store.addVector("b_chunk_0", "second", new float[]{0, 1, 0});
+        store.addVector("c_chunk_0", "third", new float[]{0, 0, 1});
+        store.deleteDocument("b");
+        // no close(): nothing was checkpointed, everything is only in vectors.wal
+
+        PersistentVectorStore reopened = new PersistentVectorStore(dir.toString(), 0, null, NO_SYNC);
+        assertEquals(2, reopened.getVectorCount());
+        assertEquals("third", reopened.searchSimilar(new float[]{0, 0, 1}, 1).get(0).getContent());
+        assertEquals("Module 1", reopened.getMetadata().get("a_chunk_0").module);
+        reopened.close();
+    }
+
+    @Test
+    void replayStopsAtACorruptRecordAndCutsItOff() throws Exception {
+        Path file = dir.resolve("test.wal");
+        long firstRecordEnd;
+        try (WriteAheadLog log = new WriteAheadLog(file, NO_SYNC)) {
+            log.appendAdd("a", "first", new float[]{1, 2});
+            firstRecordEnd = Files.size(file);
+            log.appendAdd("b", "second", new float[]{3, 4});
+            log.appendDelete("a");
+        }
+
+        // flip a byte inside the second record's payload, so its CRC no longer matches
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            long position = firstRecordEnd + 2 * Integer.BYTES + 3;
+            raw.seek(position);
+            int value = raw.read();
+            raw.seek(position);
+            raw.write(value ^ 0xFF);
+        }
+
+        List<String> replayed = new ArrayList<>();
+        try (WriteAheadLog log = new WriteAheadLog(file, NO_SYNC)) {
+            assertEquals(1, log.replay(recorder(replayed)));
+            assertEquals(List.of("add a"), replayed);
+            assertEquals(firstRecordEnd, Files.size(file));
+
+            // new records go right after the last good one
+            log.appendDelete("a");
+        }
+        replayed.clear();
+        try (WriteAheadLog log = new WriteAheadLog(file, NO_SYNC)) {
+            assertEquals(2, log.replay(recorder(replayed)));
+            assertEquals(List.of("add a", "delete a"), replayed);
+        }
+    }
+
+    @Test
+    void replayDropsATruncatedFinalRecord() throws Exception {
+        Path file = dir.resolve("test.wal");
+        long firstRecordEnd;
+        try (WriteAheadLog log = new WriteAheadLog(file, NO_SYNC)) {
+            log.appendAdd("a", "first", new float[]{1, 2});
+            firstRecordEnd = Files.size(file);
+            log.appendAdd("b", "second", new float[]{3, 4});
+        }
+        // a crash in the middle of the second append
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.setLength(Files.size(file) - 5);
+        }
+
+        List<String> replayed = new ArrayList<>();
+        try (WriteAheadLog log = new WriteAheadLog(file, NO_SYNC)) {
+            assertEquals(1, log.replay(recorder(replayed)));
+            assertEquals(1, log.records());
+        }
+        assertEquals(List.of("add a"), replayed);
+        assertEquals(firstRecordEnd, Files.size(file));
+    }
+
+    @Test
+    void failedCheckpointKeepsTheLog() throws Exception {
+        Path storage = dir.resolve("vectorstore.seg");
+        InMemoryVectorStore store = inMemoryStore(storage);
+        store.addVector("a_chunk_0", "first", new float[]{1, 0});
+        store.addVector("b_chunk_0", "second", new float[]{0, 1});
+
+        // a directory where the segment's temp file goes makes the save fail
+        Path blocker = Files.createDirectory(dir.resolve("vectorstore.seg.tmp"));
+        store.checkpoint();
+        assertTrue(Files.size(dir.resolve("vectorstore.seg.wal")) > 0, "the log was reset after a failed save");
+
+        Files.delete(blocker);
+        InMemoryVectorStore reopened = inMemoryStore(storage);
+        assertEquals(2, reopened.getVectorCount());
+        assertEquals("second", reopened.getDocumentContent("b_chunk_0"));
+        reopened.onShutdown();
+    }
+
+    @Test
+    void int8StoreCheckpointsWhileItsFileIsMapped() throws Exception {
+        Path storage = dir.resolve("vectorstore.seg");
+        InMemoryVectorStore store = inMemoryStore(storage, "int8");
+        store.addVector("a_chunk_0", "first", new float[]{1, 0});
+        store.checkpoint();
+        // the saved rows are now read from the mapping, so the next save must not replace that file
+        store.addVector("b_chunk_0", "second", new float[]{0, 1});
+        store.checkpoint();
+        assertEquals(0, Files.size(dir.resolve("vectorstore.seg.wal")));
+        assertEquals("second", store.searchSimilar(new float[]{0, 1}, 1).get(0).getContent());
+        store.onShutdown();
+
+        InMemoryVectorStore reopened = inMemoryStore(storage, "int8");
+        assertEquals(2, reopened.getVectorCount());
+        assertEquals("first", reopened.searchSimilar(new float[]{1, 0}, 1).get(0).getContent());
+        reopened.onShutdown();
+    }
+
+    @Test
+    void offHeapStoreShutsDownWhileSearchesRun() throws Exception {
+        Path storage = dir.resolve("vectorstore.seg");
+        InMemoryVectorStore store = inMemoryStore(storage, "none", "offheap");
+        for (int i = 0; i < 3000; i++) {
+            store.addVector("doc" + i + "_chunk_0", "text " + i, new float[]{i % 7, i % 11, 1, i % 3});
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger searches = new AtomicInteger();
+        Thread asker = new Thread(() -> {
+            while (running.get()) {
+                store.searchSimilar(new float[]{1, 2, 3, 4}, 5);
+                searches.incrementAndGet();
+            }
+        });
+        asker.start();
+        while (searches.get() < 10) {
+            Thread.onSpinWait();
+        }
+        // the slabs are freed while a scan may be reading them: shutdown has to wait for it
+        store.onShutdown();
+        running.set(false);
+        asker.join();
+        assertEquals(0, store.getVectorCount());
+
+        InMemoryVectorStore reopened = inMemoryStore(storage, "none", "offheap");
+        assertEquals(3000, reopened.getVectorCount());
+        reopened.onShutdown();
+    }
+
+    private static InMemoryVectorStore inMemoryStore(Path storage) {
+        return inMemoryStore(storage, "none");
+    }
+
+    private static InMemoryVectorStore inMemoryStore(Path storage, String quantization) {
+        return inMemoryStore(storage, quantization, "heap");
+    }
+
+    private static InMemoryVectorStore inMemoryStore(Path storage, String quantization, String embeddings) {
+        InMemoryVectorStore store = new InMemoryVectorStore();
+        ReflectionTestUtils.setField(store, "quantization", quantization);
+        ReflectionTestUtils.setField(store, "storage", embeddings);
+        ReflectionTestUtils.setField(store, "storageFile", storage.toString());
+        ReflectionTestUtils.setField(store, "persistenceEnabled", true);
+        ReflectionTestUtils.setField(store, "walSync", "none");
+        store.init();
+        return store;
+    }
+
+    private static WriteAheadLog.Replayer recorder(List<String> replayed) {
+        return new WriteAheadLog.Replayer() {
+            @Override
+            public void add(String id, String content, float[] embedding) {
+                replayed.add("add " + id);
+            }
+
+            @Override
+            public void delete(String id) {
+                replayed.add("delete " + id);
+            }
+        };
+    }
+}